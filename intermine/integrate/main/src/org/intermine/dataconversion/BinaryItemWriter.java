@@ -0,0 +1,152 @@
+package org.intermine.dataconversion;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.intermine.metadata.StringUtil;
+import org.intermine.model.fulldata.Attribute;
+import org.intermine.model.fulldata.Item;
+import org.intermine.model.fulldata.Reference;
+import org.intermine.model.fulldata.ReferenceList;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.xml.full.BinaryItemFormat;
+import org.intermine.xml.full.ItemHelper;
+
+/**
+ * Stores Items in a binary item file, which can be loaded straight into a production database
+ * with the ItemFileDataLoaderTask, instead of going through an items database. See
+ * BinaryItemFormat for the format of the file.
+ * <p>
+ * Items are given ids in the order they are stored, starting at 1, which the store methods for
+ * attributes, references and collections use to say which item to add to.
+ *
+ * @author Matthew Wakeling
+ */
+public class BinaryItemWriter implements ItemWriter
+{
+    private static final Logger LOG = Logger.getLogger(BinaryItemWriter.class);
+
+    private File file;
+    private DataOutputStream out;
+    private int itemCount = 0;
+    private long bytes = BinaryItemFormat.HEADER_BYTES;
+
+    /**
+     * Constructs the ItemWriter, creating or replacing a file.
+     *
+     * @param file the file to write the Items to
+     * @throws ObjectStoreException if the file cannot be created
+     */
+    public BinaryItemWriter(File file) throws ObjectStoreException {
+        this.file = file;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                        65536));
+            BinaryItemFormat.writeHeader(out);
+        } catch (IOException e) {
+            throw new ObjectStoreException("Could not create item file " + file, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer store(Item item) throws ObjectStoreException {
+        if (StringUtils.isEmpty(item.getClassName())
+            && StringUtils.isEmpty(item.getImplementations())) {
+            throw new RuntimeException("className not set for item: " + item.getIdentifier());
+        }
+        item.setId(new Integer(itemCount + 1));
+        try {
+            bytes += BinaryItemFormat.writeItem(out, ItemHelper.convert(item));
+        } catch (IOException e) {
+            throw new ObjectStoreException("Could not write to item file " + file, e);
+        }
+        itemCount++;
+        return item.getId();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(ReferenceList refList, Integer itemId) throws ObjectStoreException {
+        try {
+            bytes += BinaryItemFormat.writeCollection(out, getOrdinal(itemId), refList.getName(),
+                    StringUtil.tokenize(refList.getRefIds()));
+        } catch (IOException e) {
+            throw new ObjectStoreException("Could not write to item file " + file, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(Reference ref, Integer itemId) throws ObjectStoreException {
+        try {
+            bytes += BinaryItemFormat.writeReference(out, getOrdinal(itemId), ref.getName(),
+                    ref.getRefId());
+        } catch (IOException e) {
+            throw new ObjectStoreException("Could not write to item file " + file, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(Attribute att, Integer itemId) throws ObjectStoreException {
+        try {
+            bytes += BinaryItemFormat.writeAttribute(out, getOrdinal(itemId), att.getName(),
+                    att.getValue());
+        } catch (IOException e) {
+            throw new ObjectStoreException("Could not write to item file " + file, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void storeAll(Collection<Item> items) throws ObjectStoreException {
+        for (Item item : items) {
+            store(item);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws ObjectStoreException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new ObjectStoreException("Could not write to item file " + file, e);
+            }
+            out = null;
+            LOG.info("Wrote " + itemCount + " items (" + bytes + " bytes) to " + file);
+        }
+    }
+
+    private int getOrdinal(Integer itemId) {
+        if ((itemId == null) || (itemId.intValue() < 1) || (itemId.intValue() > itemCount)) {
+            throw new IllegalArgumentException("No item with id " + itemId + " has been stored"
+                    + " in " + file);
+        }
+        return itemId.intValue() - 1;
+    }
+}
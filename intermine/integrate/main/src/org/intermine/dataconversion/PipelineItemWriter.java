@@ -0,0 +1,253 @@
+package org.intermine.dataconversion;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.intermine.dataloader.IntegrationWriter;
+import org.intermine.dataloader.PipelineDataLoader;
+import org.intermine.dataloader.Source;
+import org.intermine.metadata.StringUtil;
+import org.intermine.model.fulldata.Attribute;
+import org.intermine.model.fulldata.Item;
+import org.intermine.model.fulldata.Reference;
+import org.intermine.model.fulldata.ReferenceList;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.util.ObjectPipe;
+import org.intermine.xml.full.ItemHelper;
+
+/**
+ * An ItemWriter that passes Items straight to an IntegrationWriter, through an ObjectPipe and a
+ * PipelineDataLoader running in another Thread, so that a source is converted and integrated at
+ * the same time without an items database.
+ * <p>
+ * Converters may add attributes, references and collections to an Item after storing it, so the
+ * most recently stored Items are held back in a window before they are passed on. An attempt to
+ * add to an Item that has already left the window fails, and a converter that does that should
+ * be run with a larger window, or write to an items database instead.
+ *
+ * @author Matthew Wakeling
+ */
+public class PipelineItemWriter implements ItemWriter
+{
+    private static final Logger LOG = Logger.getLogger(PipelineItemWriter.class);
+    private static final int CHUNK_SIZE = 100;
+
+    private IntegrationWriter iw;
+    private int windowSize;
+    private Map<Integer, org.intermine.xml.full.Item> window
+        = new LinkedHashMap<Integer, org.intermine.xml.full.Item>();
+    private List<org.intermine.xml.full.Item> chunk = new ArrayList<org.intermine.xml.full.Item>();
+    private ObjectPipe<org.intermine.xml.full.Item> pipe;
+    private Thread loaderThread;
+    private int itemCount = 0;
+    private boolean finished = false;
+    private volatile boolean aborted = false;
+    private volatile Throwable failure = null;
+
+    /**
+     * Constructs the ItemWriter, and starts a Thread to load the Items.
+     *
+     * @param iw the IntegrationWriter to store the objects with, which is closed by close()
+     * @param source the main source
+     * @param skelSource the skeleton source
+     * @param windowSize the number of recently stored Items to hold back
+     * @param queueSize the number of Items that can wait between the Threads
+     */
+    public PipelineItemWriter(IntegrationWriter iw, final Source source,
+            final Source skelSource, int windowSize, int queueSize) {
+        this.iw = iw;
+        this.windowSize = windowSize;
+        pipe = new ObjectPipe<org.intermine.xml.full.Item>(queueSize);
+        final PipelineDataLoader loader = new PipelineDataLoader(iw);
+        final Iterator<org.intermine.xml.full.Item> items = new AbortableIterator();
+        loaderThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    loader.process(items, source, skelSource);
+                } catch (Throwable t) {
+                    failed(t);
+                }
+            }
+        }, "PipelineItemWriter loader");
+        loaderThread.setContextClassLoader(Thread.currentThread().getContextClassLoader());
+        loaderThread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer store(Item item) throws ObjectStoreException {
+        checkFailure();
+        if (StringUtils.isEmpty(item.getClassName())
+            && StringUtils.isEmpty(item.getImplementations())) {
+            throw new RuntimeException("className not set for item: " + item.getIdentifier());
+        }
+        itemCount++;
+        item.setId(new Integer(itemCount));
+        window.put(item.getId(), ItemHelper.convert(item));
+        if (window.size() > windowSize) {
+            Iterator<org.intermine.xml.full.Item> iter = window.values().iterator();
+            chunk.add(iter.next());
+            iter.remove();
+            if (chunk.size() >= CHUNK_SIZE) {
+                pipe.putAll(chunk);
+                chunk.clear();
+            }
+        }
+        return item.getId();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(ReferenceList refList, Integer itemId) throws ObjectStoreException {
+        getItem(itemId).addCollection(new org.intermine.xml.full.ReferenceList(
+                    refList.getName(), StringUtil.tokenize(refList.getRefIds())));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(Reference ref, Integer itemId) throws ObjectStoreException {
+        getItem(itemId).addReference(new org.intermine.xml.full.Reference(ref.getName(),
+                    ref.getRefId()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(Attribute att, Integer itemId) throws ObjectStoreException {
+        getItem(itemId).addAttribute(new org.intermine.xml.full.Attribute(att.getName(),
+                    att.getValue()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void storeAll(Collection<Item> items) throws ObjectStoreException {
+        for (Item item : items) {
+            store(item);
+        }
+    }
+
+    /**
+     * Passes the remaining Items to the IntegrationWriter, waits for them to be stored, and
+     * closes the IntegrationWriter.
+     *
+     * @throws ObjectStoreException if the Items could not be stored
+     */
+    public void close() throws ObjectStoreException {
+        if (!finished) {
+            if (!aborted) {
+                chunk.addAll(window.values());
+                window.clear();
+                pipe.putAll(chunk);
+                chunk.clear();
+            }
+            finish();
+            LOG.info("Passed " + itemCount + " items to the integration writer");
+            checkFailure();
+        }
+    }
+
+    /**
+     * Stops loading, rolling back all the objects stored so far, and closes the
+     * IntegrationWriter. This should be called instead of close() if the converter fails.
+     *
+     * @throws ObjectStoreException if the IntegrationWriter cannot be closed
+     */
+    public void abort() throws ObjectStoreException {
+        if (!finished) {
+            aborted = true;
+            window.clear();
+            chunk.clear();
+            finish();
+        }
+    }
+
+    private void finish() throws ObjectStoreException {
+        finished = true;
+        pipe.finish();
+        try {
+            loaderThread.join();
+        } catch (InterruptedException e) {
+            throw new ObjectStoreException("Interrupted while waiting for the loader", e);
+        }
+        iw.close();
+    }
+
+    private org.intermine.xml.full.Item getItem(Integer itemId) throws ObjectStoreException {
+        checkFailure();
+        org.intermine.xml.full.Item retval = window.get(itemId);
+        if (retval == null) {
+            throw new ObjectStoreException("Item " + itemId + " has already been passed to the"
+                    + " integration writer - increase the window size (currently " + windowSize
+                    + ") or write to an items database");
+        }
+        return retval;
+    }
+
+    private void checkFailure() throws ObjectStoreException {
+        if (failure != null) {
+            throw new ObjectStoreException("Failed to load items", failure);
+        }
+    }
+
+    /**
+     * Records a failure in the loader Thread, rolls back, and then empties the pipe so that the
+     * converter does not wait for it.
+     */
+    private void failed(Throwable t) {
+        if (!aborted) {
+            LOG.error("Failed to load items", t);
+            failure = t;
+        }
+        try {
+            iw.abortTransaction();
+        } catch (Exception e) {
+            LOG.warn("Could not abort transaction", e);
+        }
+        while (pipe.hasNext()) {
+            pipe.next();
+        }
+    }
+
+    /**
+     * An Iterator over the pipe that throws an exception once the writer has been aborted, so
+     * that the loader does not commit.
+     */
+    private class AbortableIterator implements Iterator<org.intermine.xml.full.Item>
+    {
+        public boolean hasNext() {
+            boolean retval = pipe.hasNext();
+            if (aborted) {
+                throw new IllegalStateException("Loading aborted");
+            }
+            return retval;
+        }
+
+        public org.intermine.xml.full.Item next() {
+            return pipe.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
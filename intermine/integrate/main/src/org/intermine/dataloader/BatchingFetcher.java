@@ -95,6 +95,26 @@ public class BatchingFetcher extends HintingFetcher
         return new NoseyObjectStore(os);
     }
 
+    /**
+     * Adds the figures collected by this fetcher to a DataLoadMetrics.
+     *
+     * @param metrics the DataLoadMetrics to add to
+     */
+    public void addMetrics(DataLoadMetrics metrics) {
+        metrics.addCount("fetcher.batchQueried", batchQueried);
+        metrics.addCount("fetcher.cacheMisses", cacheMisses);
+        metrics.addTime("fetcher.execute", timeSpentExecute);
+        metrics.addTime("fetcher.prefetchEquivalents", timeSpentPrefetchEquiv);
+        metrics.addTime("fetcher.prefetchTracker", timeSpentPrefetchTracker);
+        long hintTime = savedDatabaseEmptyFetch > 0 ? savedDatabaseEmptyFetch : 0;
+        synchronized (savedTimes) {
+            for (Long savedTime : savedTimes.values()) {
+                hintTime += savedTime.longValue();
+            }
+        }
+        metrics.addTime("fetcher.hints", hintTime);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -103,6 +123,7 @@ public class BatchingFetcher extends HintingFetcher
         LOG.info("Batching equivalent object query summary for source " + source + " :"
                 + getSummary(source).toString() + "\nFetched " + batchQueried
                 + " objects by batch, cache misses: " + cacheMisses);
+        hints.close();
     }
 
     /**
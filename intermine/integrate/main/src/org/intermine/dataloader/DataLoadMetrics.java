@@ -0,0 +1,319 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects throughput and timing figures for the load of a single source, from the data loader,
+ * the IntegrationWriter, the equivalent object fetcher, the DataTracker and the write batch, and
+ * writes them out as a JSON report, so that slow sources and stages can be found by comparing
+ * reports between builds.
+ * <p>
+ * Stage times are in milliseconds. Figures are added together, so that the IntegrationWriters of
+ * a source loaded in parallel partitions can all add to the same DataLoadMetrics.
+ *
+ * @author Matthew Wakeling
+ */
+public class DataLoadMetrics
+{
+    /** The number of objects read from the source and passed to the IntegrationWriter. */
+    public static final String OBJECTS = "objects";
+    /** The number of DataTracker lookups. */
+    public static final String TRACKER_OPS = "dataTracker.operations";
+    /** The number of DataTracker lookups that had to read the backing store. */
+    public static final String TRACKER_MISSES = "dataTracker.cacheMisses";
+    /** The latencies of equivalent object lookups in the IntegrationWriter. */
+    public static final String EQUIVALENCE_LOOKUP = "equivalenceLookup";
+
+    private String sourceName;
+    private long startTime;
+    private long endTime = -1;
+    private boolean succeeded = false;
+    private Map<String, Long> times = new TreeMap<String, Long>();
+    private Map<String, Long> counts = new TreeMap<String, Long>();
+    private Map<String, LatencyHistogram> latencies = new TreeMap<String, LatencyHistogram>();
+
+    /**
+     * Constructor, which starts the clock.
+     *
+     * @param sourceName the name of the source being loaded
+     */
+    public DataLoadMetrics(String sourceName) {
+        this.sourceName = sourceName;
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds time spent in a stage of loading.
+     *
+     * @param stage the name of the stage
+     * @param millis the time spent, in milliseconds
+     */
+    public synchronized void addTime(String stage, long millis) {
+        Long soFar = times.get(stage);
+        times.put(stage, new Long(millis + (soFar == null ? 0L : soFar.longValue())));
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param name the name of the counter
+     * @param count the number to add
+     */
+    public synchronized void addCount(String name, long count) {
+        Long soFar = counts.get(name);
+        counts.put(name, new Long(count + (soFar == null ? 0L : soFar.longValue())));
+    }
+
+    /**
+     * Adds the contents of a LatencyHistogram to the histogram with the given name.
+     *
+     * @param name the name of the operation that was timed
+     * @param histogram a LatencyHistogram
+     */
+    public synchronized void addLatencies(String name, LatencyHistogram histogram) {
+        LatencyHistogram soFar = latencies.get(name);
+        if (soFar == null) {
+            soFar = new LatencyHistogram();
+            latencies.put(name, soFar);
+        }
+        soFar.add(histogram);
+    }
+
+    /**
+     * Returns the time spent in a stage so far.
+     *
+     * @param stage the name of the stage
+     * @return the time in milliseconds, or zero if none has been added
+     */
+    public synchronized long getTime(String stage) {
+        Long retval = times.get(stage);
+        return (retval == null ? 0L : retval.longValue());
+    }
+
+    /**
+     * Returns the value of a counter.
+     *
+     * @param name the name of the counter
+     * @return the counter value, or zero if nothing has been added
+     */
+    public synchronized long getCount(String name) {
+        Long retval = counts.get(name);
+        return (retval == null ? 0L : retval.longValue());
+    }
+
+    /**
+     * Returns the histogram of latencies with the given name.
+     *
+     * @param name the name of the operation that was timed
+     * @return a LatencyHistogram, or null if none has been added
+     */
+    public synchronized LatencyHistogram getLatencies(String name) {
+        return latencies.get(name);
+    }
+
+    /**
+     * Stops the clock.
+     *
+     * @param succeeded whether the load finished without an error
+     */
+    public synchronized void finish(boolean succeeded) {
+        this.succeeded = succeeded;
+        endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes the report to a file, creating its directory if necessary.
+     *
+     * @param file the File to write to
+     * @throws IOException if the file cannot be written
+     */
+    public void writeReport(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if ((dir != null) && (!dir.exists()) && (!dir.mkdirs())) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        Writer writer = new FileWriter(file);
+        try {
+            writeReport(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the report to a Writer, as a JSON object.
+     *
+     * @param writer the Writer to write to
+     */
+    public synchronized void writeReport(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        long elapsed = (endTime == -1 ? System.currentTimeMillis() : endTime) - startTime;
+        long objects = getCount(OBJECTS);
+        long trackerOps = getCount(TRACKER_OPS);
+        out.println("{");
+        out.println("  \"source\": " + quote(sourceName) + ",");
+        out.println("  \"succeeded\": " + succeeded + ",");
+        out.println("  \"startTime\": " + startTime + ",");
+        out.println("  \"elapsedMs\": " + elapsed + ",");
+        out.println("  \"objectsPerSecond\": " + ((1000L * objects) / (elapsed + 1)) + ",");
+        if (trackerOps > 0) {
+            out.println("  \"dataTrackerHitRate\": "
+                    + ((double) (trackerOps - getCount(TRACKER_MISSES)) / trackerOps) + ",");
+        }
+        out.println("  \"stageTimesMs\": {");
+        writeMap(out, times);
+        out.println("  },");
+        out.println("  \"counts\": {");
+        writeMap(out, counts);
+        out.println("  },");
+        out.println("  \"latencies\": {");
+        boolean needComma = false;
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            if (needComma) {
+                out.println(",");
+            }
+            out.print("    " + quote(entry.getKey()) + ": ");
+            entry.getValue().write(out);
+            needComma = true;
+        }
+        if (needComma) {
+            out.println();
+        }
+        out.println("  }");
+        out.println("}");
+        out.flush();
+    }
+
+    private static void writeMap(PrintWriter out, Map<String, Long> map) {
+        int i = 0;
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            i++;
+            out.println("    " + quote(entry.getKey()) + ": " + entry.getValue()
+                    + (i < map.size() ? "," : ""));
+        }
+    }
+
+    private static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuffer retval = new StringBuffer("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                retval.append('\\').append(c);
+            } else if (c < ' ') {
+                retval.append(String.format("\\u%04x", new Integer(c)));
+            } else {
+                retval.append(c);
+            }
+        }
+        return retval.append('"').toString();
+    }
+
+    /**
+     * A histogram of operation latencies, in buckets of powers of two microseconds. This is cheap
+     * enough to record every call of an operation, but is not thread-safe, so each thread should
+     * record into its own histogram and add it to a DataLoadMetrics at the end.
+     */
+    public static class LatencyHistogram
+    {
+        private static final int BUCKETS = 40;
+
+        // Bucket i holds latencies of less than 2^i microseconds, and at least half that
+        private long[] buckets = new long[BUCKETS];
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        /**
+         * Records the latency of one operation.
+         *
+         * @param nanos the time the operation took, in nanoseconds, from System.nanoTime()
+         */
+        public void record(long nanos) {
+            long micros = nanos / 1000L;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            buckets[bucket < BUCKETS ? bucket : BUCKETS - 1]++;
+            count++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+
+        /**
+         * Adds the contents of another histogram to this one.
+         *
+         * @param other a LatencyHistogram
+         */
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += other.buckets[i];
+            }
+            count += other.count;
+            totalNanos += other.totalNanos;
+            maxNanos = Math.max(maxNanos, other.maxNanos);
+        }
+
+        /**
+         * Returns the number of operations recorded.
+         *
+         * @return the count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns an upper bound of the latency of the given fraction of operations, which is
+         * accurate to within a factor of two.
+         *
+         * @param fraction a fraction between 0 and 1, for example 0.99 for the 99th percentile
+         * @return the latency in microseconds
+         */
+        public long getPercentile(double fraction) {
+            long needed = (long) Math.ceil(fraction * count);
+            long soFar = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                soFar += buckets[i];
+                if ((soFar >= needed) && (soFar > 0)) {
+                    return Math.min(1L << i, maxNanos / 1000L + 1);
+                }
+            }
+            return 0L;
+        }
+
+        private void write(PrintWriter out) {
+            out.print("{\"count\": " + count + ", \"meanUs\": "
+                    + (count == 0 ? 0 : totalNanos / count / 1000L) + ", \"p50Us\": "
+                    + getPercentile(0.5) + ", \"p90Us\": " + getPercentile(0.9) + ", \"p99Us\": "
+                    + getPercentile(0.99) + ", \"maxUs\": " + (maxNanos / 1000L)
+                    + ", \"bucketsUs\": {");
+            boolean needComma = false;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (buckets[i] > 0) {
+                    out.print((needComma ? ", " : "") + "\"<" + (1L << i) + "\": " + buckets[i]);
+                    needComma = true;
+                }
+            }
+            out.print("}}");
+        }
+    }
+}
@@ -18,6 +18,8 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -39,6 +41,8 @@ import org.intermine.sql.Database;
 public class DataTracker
 {
     private static final Logger LOG = Logger.getLogger(DataTracker.class);
+    /** The source name stored for a field that is no longer attributed to any source. */
+    protected static final String UNATTRIBUTED = "";
 
     /* We need a Map or two to store the entries. Each entry can be in several states:
      * 1. Recently-used and new - must be written to the database eventually.
@@ -82,10 +86,8 @@ public class DataTracker
      * @param commitSize number of entries to write to the database at a time
      */
     public DataTracker(Database db, int maxSize, int commitSize) {
-        this.maxSize = maxSize;
-        this.commitSize = commitSize;
+        this(maxSize, commitSize);
         this.db = db;
-        cache = new LinkedHashMap<Integer, ObjectDescription>(maxSize * 14 / 10, 0.75F, true);
         try {
             conn = db.getConnection();
             conn.setAutoCommit(true);
@@ -103,6 +105,28 @@ public class DataTracker
             e2.initCause(e);
             throw e2;
         }
+        startCacheStorer();
+    }
+
+    /**
+     * Constructor for subclasses that keep the tracking data somewhere other than the tracker
+     * table. Such subclasses must override clear(), fetch(), findObjectIds(), findAllSources(),
+     * writeMap() and closeStore(), and call startCacheStorer() at the end of their constructor.
+     *
+     * @param maxSize maximum number of cache entries
+     * @param commitSize number of entries to write to the store at a time
+     */
+    protected DataTracker(int maxSize, int commitSize) {
+        this.maxSize = maxSize;
+        this.commitSize = commitSize;
+        cache = new LinkedHashMap<Integer, ObjectDescription>(maxSize * 14 / 10, 0.75F, true);
+    }
+
+    /**
+     * Starts the thread that writes batches of entries to the backing store when the cache is
+     * full.
+     */
+    protected void startCacheStorer() {
         cacheStorer = new CacheStorer();
         Thread cacheStorerThread = new Thread(cacheStorer, "DataTracker CacheStorer");
         cacheStorerThread.setDaemon(true);
@@ -133,11 +157,7 @@ public class DataTracker
      * @param ids a Set of Integers
      */
     public void prefetchIds(Set<Integer> ids) {
-        Connection prefetchConn = null;
         try {
-            prefetchConn = db.getConnection();
-            prefetchConn.setAutoCommit(true);
-            prefetchConn.createStatement().execute("SET enable_seqscan = off;");
             long startTime = System.currentTimeMillis();
             Set<Integer> toFetch = new HashSet<Integer>();
             synchronized (this) {
@@ -160,48 +180,10 @@ public class DataTracker
             Map<Integer, ObjectDescription> idsFetched = new HashMap<Integer, ObjectDescription>();
             int highestVersionSeen = Integer.MIN_VALUE;
             if (!toFetch.isEmpty()) {
-                int count = 0;
-                StringBuffer sql = new StringBuffer();
-                boolean needComma = false;
-                Iterator<Integer> idIter = toFetch.iterator();
-                while (idIter.hasNext()) {
-                    count++;
-                    Integer id = idIter.next();
-                    if (needComma) {
-                        sql.append(", ");
-                    } else {
-                        sql.append("SELECT objectid, fieldname, sourcename, version"
-                                + " FROM tracker WHERE objectid IN (");
-                    }
-                    needComma = true;
-                    sql.append("" + id);
+                for (Integer id : toFetch) {
                     idsFetched.put(id, new ObjectDescription());
-                    if ((count % 500 == 0) || (!idIter.hasNext())) {
-                        sql.append(") ORDER BY version");
-                        try {
-                            Statement s = prefetchConn.createStatement();
-                            //long beforeExecute = System.currentTimeMillis();
-                            ResultSet r = s.executeQuery(sql.toString());
-                            //LOG.info("Prefetching " + (((count + 499) % 500) + 1)
-                            //        + " tracks took " + (System.currentTimeMillis()
-                            //            - beforeExecute) + " ms");
-                            while (r.next()) {
-                                ObjectDescription objectDescription =
-                                    idsFetched.get(new Integer(r.getInt(1)));
-                                highestVersionSeen = Math.max(highestVersionSeen, r.getInt(4));
-                                objectDescription.putClean(r.getString(2).intern(),
-                                                           stringToSource(r.getString(3)));
-                            }
-                        } catch (SQLException e) {
-                            broken = e;
-                            IllegalArgumentException e2 = new IllegalArgumentException();
-                            e2.initCause(broken);
-                            throw e2;
-                        }
-                        needComma = false;
-                        sql = new StringBuffer();
-                    }
                 }
+                highestVersionSeen = fetch(idsFetched, true);
             }
             synchronized (this) {
                 if (version <= highestVersionSeen) {
@@ -217,6 +199,85 @@ public class DataTracker
             IllegalArgumentException e2 = new IllegalArgumentException();
             e2.initCause(broken);
             throw e2;
+        }
+    }
+
+    /**
+     * Reads the tracking data for some objects from the backing store, into the given empty
+     * ObjectDescriptions using putClean().
+     *
+     * @param descs a Map from object id to an empty ObjectDescription to fill in
+     * @param prefetch true if this is a batch prefetch, which may run concurrently with other
+     * operations on this tracker, or false if it is a single lookup by a thread that holds the
+     * lock on this tracker
+     * @return the highest version seen in the backing store, or Integer.MIN_VALUE if none
+     * @throws SQLException if something goes wrong
+     */
+    protected int fetch(Map<Integer, ObjectDescription> descs, boolean prefetch)
+        throws SQLException {
+        int highestVersionSeen = Integer.MIN_VALUE;
+        if (!prefetch) {
+            long start = System.currentTimeMillis();
+            Statement s = conn.createStatement();
+            StringBuffer sql = new StringBuffer();
+            for (Integer id : descs.keySet()) {
+                sql.append(sql.length() == 0 ? "" : ", ").append(id);
+            }
+            ResultSet r = s.executeQuery("select objectid, fieldname, sourcename, version from"
+                    + " tracker where objectid IN (" + sql + ") ORDER BY version");
+            while (r.next()) {
+                descs.get(new Integer(r.getInt(1))).putClean(r.getString(2).intern(),
+                        storedSource(r.getString(3)));
+                highestVersionSeen = Math.max(highestVersionSeen, r.getInt(4));
+            }
+            long now = System.currentTimeMillis();
+            //LOG.debug("Fetched entry from DB (time = " + (now - start) + " ms)");
+            if (now - start > 2000) {
+                LOG.warn("Query on tracker table took too long (" + (now - start) + " ms) "
+                        + "- switching off sequential scans. You should analyse the database");
+                conn.createStatement().execute("SET enable_seqscan = off;");
+            }
+            return highestVersionSeen;
+        }
+        Connection prefetchConn = null;
+        try {
+            prefetchConn = db.getConnection();
+            prefetchConn.setAutoCommit(true);
+            prefetchConn.createStatement().execute("SET enable_seqscan = off;");
+            int count = 0;
+            StringBuffer sql = new StringBuffer();
+            boolean needComma = false;
+            Iterator<Integer> idIter = descs.keySet().iterator();
+            while (idIter.hasNext()) {
+                count++;
+                Integer id = idIter.next();
+                if (needComma) {
+                    sql.append(", ");
+                } else {
+                    sql.append("SELECT objectid, fieldname, sourcename, version"
+                            + " FROM tracker WHERE objectid IN (");
+                }
+                needComma = true;
+                sql.append("" + id);
+                if ((count % 500 == 0) || (!idIter.hasNext())) {
+                    sql.append(") ORDER BY version");
+                    Statement s = prefetchConn.createStatement();
+                    //long beforeExecute = System.currentTimeMillis();
+                    ResultSet r = s.executeQuery(sql.toString());
+                    //LOG.info("Prefetching " + (((count + 499) % 500) + 1)
+                    //        + " tracks took " + (System.currentTimeMillis()
+                    //            - beforeExecute) + " ms");
+                    while (r.next()) {
+                        ObjectDescription objectDescription =
+                            descs.get(new Integer(r.getInt(1)));
+                        highestVersionSeen = Math.max(highestVersionSeen, r.getInt(4));
+                        objectDescription.putClean(r.getString(2).intern(),
+                                                   storedSource(r.getString(3)));
+                    }
+                    needComma = false;
+                    sql = new StringBuffer();
+                }
+            }
         } finally {
             if (prefetchConn != null) {
                 try {
@@ -226,6 +287,91 @@ public class DataTracker
                 }
             }
         }
+        return highestVersionSeen;
+    }
+
+    /**
+     * Returns the ids of the objects that have had any field attributed to any of the given
+     * sources, now or at some time in the past. The tracker is flushed first. Callers should use
+     * getSource() to find out which fields are still attributed to the sources.
+     *
+     * @param sources a Collection of Sources
+     * @return a Set of object ids
+     */
+    public Set<Integer> getObjectIds(Collection<Source> sources) {
+        flush();
+        try {
+            return findObjectIds(sources);
+        } catch (SQLException e) {
+            broken = e;
+            IllegalArgumentException e2 = new IllegalArgumentException();
+            e2.initCause(broken);
+            throw e2;
+        }
+    }
+
+    /**
+     * Returns every Source that has had any field of an object attributed to it, including
+     * Sources that have since been overridden. This reads the backing store, so the tracker
+     * should have been flushed since the object was last written.
+     *
+     * @param id the ID of the object
+     * @return a Set of Sources
+     */
+    public Set<Source> getAllSources(Integer id) {
+        try {
+            return findAllSources(id);
+        } catch (SQLException e) {
+            broken = e;
+            IllegalArgumentException e2 = new IllegalArgumentException();
+            e2.initCause(broken);
+            throw e2;
+        }
+    }
+
+    /**
+     * Reads every Source that has had any field of an object attributed to it from the backing
+     * store.
+     *
+     * @param id the ID of the object
+     * @return a Set of Sources
+     * @throws SQLException if something goes wrong
+     */
+    protected synchronized Set<Source> findAllSources(Integer id) throws SQLException {
+        Set<Source> retval = new HashSet<Source>();
+        Statement s = conn.createStatement();
+        ResultSet r = s.executeQuery("SELECT DISTINCT sourcename FROM tracker WHERE objectid = "
+                + id);
+        while (r.next()) {
+            if (!UNATTRIBUTED.equals(r.getString(1))) {
+                retval.add(stringToSource(r.getString(1)));
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Reads the ids of the objects that have ever had a field attributed to any of the given
+     * sources from the backing store.
+     *
+     * @param sources a Collection of Sources
+     * @return a Set of object ids
+     * @throws SQLException if something goes wrong
+     */
+    protected Set<Integer> findObjectIds(Collection<Source> sources) throws SQLException {
+        StringBuffer sql = new StringBuffer();
+        for (Source source : sources) {
+            sql.append(sql.length() == 0 ? "" : ", ").append("'")
+                .append(sourceToString(source).replace("'", "''")).append("'");
+        }
+        Set<Integer> retval = new HashSet<Integer>();
+        Statement s = conn.createStatement();
+        ResultSet r = s.executeQuery("SELECT DISTINCT objectid FROM tracker WHERE sourcename IN ("
+                + sql + ")");
+        while (r.next()) {
+            retval.add(new Integer(r.getInt(1)));
+        }
+        return retval;
     }
 
     /**
@@ -268,23 +414,9 @@ public class DataTracker
         if (desc == null) {
             desc = new ObjectDescription();
             try {
-                long start = System.currentTimeMillis();
-                Statement s = conn.createStatement();
-                ResultSet r = s.executeQuery("select fieldname, sourcename, version from tracker"
-                        + " where objectid = " + id + " ORDER BY version");
-                while (r.next()) {
-                    desc.putClean(r.getString(1).intern(), stringToSource(r.getString(2)));
-                    int rowVersion = r.getInt(3);
-                    if (version <= rowVersion) {
-                        version = rowVersion + 1;
-                    }
-                }
-                long now = System.currentTimeMillis();
-                //LOG.debug("Fetched entry from DB (time = " + (now - start) + " ms)");
-                if (now - start > 2000) {
-                    LOG.warn("Query on tracker table took too long (" + (now - start) + " ms) "
-                            + "- switching off sequential scans. You should analyse the database");
-                    conn.createStatement().execute("SET enable_seqscan = off;");
+                int highestVersionSeen = fetch(Collections.singletonMap(id, desc), false);
+                if (version <= highestVersionSeen) {
+                    version = highestVersionSeen + 1;
                 }
             } catch (SQLException e) {
                 broken = e;
@@ -334,6 +466,46 @@ public class DataTracker
         maybePoke();
     }
 
+    /**
+     * Removes the Source of a field of an object in the database, so that the value of the field
+     * is not attributed to any source. This is for values left behind when the data from a
+     * source is removed. Such a field has a null Source, and isUnattributed() returns true.
+     *
+     * @param id the ID of the object
+     * @param field the name of the field
+     */
+    public synchronized void clearSource(Integer id, String field) {
+        if (id == null) {
+            throw new NullPointerException("id cannot be null");
+        }
+        if (broken != null) {
+            IllegalArgumentException e = new IllegalArgumentException();
+            e.initCause(broken);
+            throw e;
+        }
+        ObjectDescription desc = getDesc(id, true);
+        desc.put(field.intern(), null);
+        cache.put(id, desc);
+        maybePoke();
+    }
+
+    /**
+     * Returns whether the Source of a field of an object has been removed by clearSource(), as
+     * opposed to never having been set.
+     *
+     * @param id the ID of the object
+     * @param field the name of the field
+     * @return true if the field was attributed to a source that has been removed
+     */
+    public synchronized boolean isUnattributed(Integer id, String field) {
+        if (broken != null) {
+            IllegalArgumentException e = new IllegalArgumentException();
+            e.initCause(broken);
+            throw e;
+        }
+        return getDesc(id, false).isUnattributed(field);
+    }
+
     /**
      * Clears the cache for a particular object, in preparation for writing all the data for that
      * object. This allows the data tracker to cache the writes that are about to happen. This
@@ -412,6 +584,19 @@ public class DataTracker
         }
     }
 
+    /**
+     * Adds the figures collected by this DataTracker to a DataLoadMetrics.
+     *
+     * @param metrics the DataLoadMetrics to add to
+     */
+    public synchronized void addMetrics(DataLoadMetrics metrics) {
+        metrics.addCount(DataLoadMetrics.TRACKER_OPS, ops);
+        metrics.addCount(DataLoadMetrics.TRACKER_MISSES, misses);
+        metrics.addCount("dataTracker.prefetched", batched);
+        metrics.addTime("dataTracker.read", timeSpentReading);
+        metrics.addTime("dataTracker.prefetch", timeSpentPrefetching);
+    }
+
     /**
      * Closes this DataTracker, releasing both connections to the database. No further operations
      * can be performed on the tracker.
@@ -424,10 +609,7 @@ public class DataTracker
         flush();
         synchronized (this) {
             try {
-                conn.close();
-                storeConn.close();
-                conn = null;
-                storeConn = null;
+                closeStore();
             } catch (SQLException e) {
                 IllegalArgumentException e2 = new IllegalArgumentException();
                 e2.initCause(e);
@@ -436,6 +618,18 @@ public class DataTracker
         }
     }
 
+    /**
+     * Releases the resources used by the backing store.
+     *
+     * @throws SQLException if something goes wrong
+     */
+    protected void closeStore() throws SQLException {
+        conn.close();
+        storeConn.close();
+        conn = null;
+        storeConn = null;
+    }
+
     /**
      * Returns a Map created from cache, containing the entries that should be flushed to the
      * backing database. The entries are removed from the cache and put in a special write-back
@@ -489,7 +683,8 @@ public class DataTracker
      * false if the given Map is going to be thrown away.
      * @throws SQLException on any error with the backing database
      */
-    private void writeMap(Map<Integer, ObjectDescription> map, boolean clean) throws SQLException {
+    protected void writeMap(Map<Integer, ObjectDescription> map, boolean clean)
+        throws SQLException {
         long start = System.currentTimeMillis();
         try {
             org.postgresql.copy.CopyManager copyManager = null;
@@ -520,15 +715,15 @@ public class DataTracker
                     for (Map.Entry<String, Source> fieldEntry : newData.entrySet()) {
                         String field = fieldEntry.getKey();
                         Source source = fieldEntry.getValue();
-                        if (!orig.containsKey(field) || (!orig.get(field).equals(source))) {
+                        if (isChanged(orig.get(field), source)) {
                             // Insert required
+                            String sourceName = storedName(source);
                             if (s == null) {
                                 dos.writeShort(4); // Number of fields
                                 dos.writeInt(4); // Length of an integer
                                 dos.writeInt(id.intValue()); // objectid
                                 dos.writeInt(field.length()); // Length of fieldname
                                 dos.writeBytes(field); // Field name
-                                String sourceName = sourceToString(source);
                                 dos.writeInt(sourceName.length()); // Length of source name
                                 dos.writeBytes(sourceName); // Source name
                                 dos.writeInt(4); // Length of an integer
@@ -536,7 +731,7 @@ public class DataTracker
                             } else {
                                 s.addBatch("INSERT INTO tracker (objectid, fieldname, sourcename,"
                                         + " version) VALUES (" + id + ", '" + field + "', '"
-                                        + sourceToString(source) + "', " + version + ")");
+                                        + sourceName + "', " + version + ")");
                             }
                         }
                     }
@@ -616,6 +811,39 @@ public class DataTracker
         return retval;
     }
 
+    /**
+     * Converts a Source to the name stored in the backing store, which is UNATTRIBUTED for a
+     * null Source.
+     *
+     * @param source a Source, or null
+     * @return the name
+     */
+    protected String storedName(Source source) {
+        return (source == null ? UNATTRIBUTED : sourceToString(source));
+    }
+
+    /**
+     * Converts a name read from the backing store to a Source, which is null for UNATTRIBUTED.
+     *
+     * @param name a source name
+     * @return a Source, or null
+     */
+    protected Source storedSource(String name) {
+        return (UNATTRIBUTED.equals(name) ? null : stringToSource(name));
+    }
+
+    /**
+     * Returns whether a field needs writing to the backing store, because its Source has changed
+     * since it was read.
+     *
+     * @param orig the Source read from the backing store, or null
+     * @param source the new Source, or null
+     * @return true if they are different
+     */
+    protected static boolean isChanged(Source orig, Source source) {
+        return (orig == null ? source != null : !orig.equals(source));
+    }
+
     private class CacheStorer implements Runnable
     {
         private boolean needAction = false;
@@ -10,6 +10,11 @@ package org.intermine.dataloader;
  *
  */
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 import org.intermine.metadata.Util;
 import org.intermine.model.FastPathObject;
@@ -19,6 +24,14 @@ import org.intermine.util.DynamicUtil;
 
 /**
  * A DataLoader with helper methods for creating and storing objects using an IntegrationWriter.
+ * <p>
+ * Several threads may create and store objects with the same DirectDataLoader at once. Each
+ * thread takes ids for the objects it creates from its own block of ids, and may buffer the
+ * objects it stores (see setBufferSize()), passing them on a buffer at a time. Buffers are
+ * written to the IntegrationWriter by one thread at a time, which writes every buffer that has
+ * been passed on in the meantime, so that the other threads can carry on creating objects. A
+ * thread that stores objects must call flush() when it has finished, and objects referred to by
+ * a ProxyReference must have been stored by the same thread or flushed first.
  *
  * @author Kim Rutherford
  */
@@ -26,15 +39,39 @@ import org.intermine.util.DynamicUtil;
 public class DirectDataLoader extends DataLoader
 {
     private static final Logger LOG = Logger.getLogger(DirectDataLoader.class);
-    private int idCounter = 0;
     private int storeCount = 0;
     private long startTime;
     private long stepTime;
     private String sourceName;
     private String sourceType;
+    private int bufferSize = 1;
+    private AtomicInteger nextIdBlock = new AtomicInteger(0);
+    private ThreadLocal<int[]> idBlocks = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] {0, 0};
+        }
+    };
+    private List<List<FastPathObject>> allBuffers = new ArrayList<List<FastPathObject>>();
+    private ThreadLocal<List<FastPathObject>> buffers = new ThreadLocal<List<FastPathObject>>() {
+        @Override
+        protected List<FastPathObject> initialValue() {
+            List<FastPathObject> retval = new ArrayList<FastPathObject>();
+            synchronized (allBuffers) {
+                allBuffers.add(retval);
+            }
+            return retval;
+        }
+    };
+    // Buffers waiting to be written, guarded by itself
+    private LinkedList<List<FastPathObject>> queue = new LinkedList<List<FastPathObject>>();
+    private boolean writing = false;
+    private Throwable failure = null;
 
     private static final int LOG_FREQUENCY = 100000;
     private static final int COMMIT_FREQUENCY = 500000;
+    private static final int ID_BLOCK_SIZE = 100000;
+    private static final int MAX_QUEUED_BUFFERS = 10;
 
     /**
      * Create a new DirectDataLoader using the given IntegrationWriter and source name.
@@ -50,16 +87,132 @@ public class DirectDataLoader extends DataLoader
         this.stepTime = startTime;
     }
 
+    /**
+     * Set the number of objects each thread buffers before passing them on to be written. The
+     * default is 1, which writes each object as it is stored unless another thread is writing.
+     * Larger buffers let threads that create objects in parallel spend less time waiting for
+     * each other.
+     *
+     * @param bufferSize the number of objects to buffer in each thread
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        this.bufferSize = bufferSize;
+    }
 
     /**
-     * Store an object using the IntegrationWriter.
+     * Store an object using the IntegrationWriter. The object may be buffered, and should not be
+     * changed after it has been stored.
      * @param o the InterMineObject
      * @throws ObjectStoreException if there is a problem in the IntegrationWriter
      */
     public void store(FastPathObject o) throws ObjectStoreException {
-        Source source = getIntegrationWriter().getMainSource(sourceName, sourceType);
-        Source skelSource = getIntegrationWriter().getSkeletonSource(sourceName, sourceType);
+        List<FastPathObject> buffer = buffers.get();
+        buffer.add(o);
+        if (buffer.size() >= bufferSize) {
+            submit(buffer);
+        }
+    }
+
+    /**
+     * Write the objects buffered by the current thread, and wait for every buffer that has been
+     * passed on to be written. Each thread that stores objects must call this when it has
+     * finished, before the transaction is committed.
+     * @throws ObjectStoreException if there is a problem in the IntegrationWriter
+     */
+    public void flush() throws ObjectStoreException {
+        List<FastPathObject> buffer = buffers.get();
+        if (!buffer.isEmpty()) {
+            submit(buffer);
+        }
+        synchronized (queue) {
+            while (writing) {
+                waitForQueue();
+            }
+            checkFailure();
+            if (queue.isEmpty()) {
+                return;
+            }
+            writing = true;
+        }
+        writeQueued();
+    }
+
+    /**
+     * Passes a thread's buffer on to be written, and writes it along with any other waiting
+     * buffers unless another thread is already writing. A thread that passes on a buffer while
+     * too many are waiting waits for them to be written.
+     */
+    private void submit(List<FastPathObject> buffer) throws ObjectStoreException {
+        List<FastPathObject> toWrite = new ArrayList<FastPathObject>(buffer);
+        buffer.clear();
+        synchronized (queue) {
+            checkFailure();
+            queue.add(toWrite);
+            if (writing) {
+                while (writing && (queue.size() > MAX_QUEUED_BUFFERS)) {
+                    waitForQueue();
+                }
+                checkFailure();
+                return;
+            }
+            writing = true;
+        }
+        writeQueued();
+    }
+
+    /**
+     * Writes buffers until none are waiting. This must only be called by the thread that set
+     * writing to true.
+     */
+    private void writeQueued() throws ObjectStoreException {
+        boolean finished = false;
+        Throwable problem = null;
+        try {
+            while (true) {
+                List<List<FastPathObject>> toWrite;
+                synchronized (queue) {
+                    if (queue.isEmpty()) {
+                        writing = false;
+                        queue.notifyAll();
+                        finished = true;
+                        return;
+                    }
+                    toWrite = new ArrayList<List<FastPathObject>>(queue);
+                    queue.clear();
+                    queue.notifyAll();
+                }
+                Source source = getIntegrationWriter().getMainSource(sourceName, sourceType);
+                Source skelSource = getIntegrationWriter().getSkeletonSource(sourceName,
+                        sourceType);
+                for (List<FastPathObject> objects : toWrite) {
+                    for (FastPathObject o : objects) {
+                        write(o, source, skelSource);
+                    }
+                }
+            }
+        } catch (ObjectStoreException e) {
+            problem = e;
+            throw e;
+        } catch (RuntimeException e) {
+            problem = e;
+            throw e;
+        } catch (Error e) {
+            problem = e;
+            throw e;
+        } finally {
+            if (!finished) {
+                // Other threads must not wait forever for this one, whatever stopped it
+                failed(problem == null ? new ObjectStoreException("Writing stopped unexpectedly")
+                        : problem);
+            }
+        }
+    }
 
+    private void write(FastPathObject o, Source source, Source skelSource)
+        throws ObjectStoreException {
         getIntegrationWriter().store(o, source, skelSource);
         storeCount++;
         if (storeCount % LOG_FREQUENCY == 0) {
@@ -77,10 +230,45 @@ public class DirectDataLoader extends DataLoader
         }
     }
 
+    private void failed(Throwable e) {
+        synchronized (queue) {
+            failure = e;
+            writing = false;
+            queue.clear();
+            queue.notifyAll();
+        }
+    }
+
+    private void checkFailure() throws ObjectStoreException {
+        if (failure != null) {
+            throw new ObjectStoreException("An earlier store failed", failure);
+        }
+    }
+
+    private void waitForQueue() throws ObjectStoreException {
+        try {
+            queue.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ObjectStoreException("Interrupted while waiting for objects to be written",
+                    e);
+        }
+    }
+
     /**
      * Close the DirectDataLoader, this just prints a final log message with loading stats.
      */
     public void close() {
+        int buffered = 0;
+        synchronized (allBuffers) {
+            for (List<FastPathObject> buffer : allBuffers) {
+                buffered += buffer.size();
+            }
+        }
+        if (buffered > 0) {
+            LOG.warn(buffered + " objects were stored but never flushed - call flush() before"
+                    + " committing");
+        }
         long now = System.currentTimeMillis();
         LOG.info("Finished dataloading " + storeCount + " objects at " + ((60000L * storeCount)
                 / (now - startTime)) + " objects per minute (" + (now - startTime)
@@ -98,15 +286,21 @@ public class DirectDataLoader extends DataLoader
     }
 
     /**
-     * Create a new object of the given class and give it a unique ID.
+     * Create a new object of the given class and give it a unique ID, from the current thread's
+     * block of ids.
      * @param c the class
      * @param <C> the type of the class
      * @return the new InterMineObject
      */
     public <C extends InterMineObject> C createObject(Class<C> c) {
         C o = DynamicUtil.simpleCreateObject(c);
-        o.setId(new Integer(idCounter));
-        idCounter++;
+        int[] idBlock = idBlocks.get();
+        if (idBlock[0] >= idBlock[1]) {
+            idBlock[0] = nextIdBlock.getAndAdd(ID_BLOCK_SIZE);
+            idBlock[1] = idBlock[0] + ID_BLOCK_SIZE;
+        }
+        o.setId(new Integer(idBlock[0]));
+        idBlock[0]++;
         return o;
     }
 
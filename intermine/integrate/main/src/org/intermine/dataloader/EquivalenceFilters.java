@@ -0,0 +1,309 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Util;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.InterMineObject;
+import org.intermine.modelproduction.MetadataManager;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryFunction;
+import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.sql.Database;
+import org.intermine.util.BloomFilter;
+
+/**
+ * Bloom filters of the primary key field values in a production database, shared by all the
+ * EquivalentObjectHints that use the database in this JVM. Every object stored by an
+ * IntegrationWriter is added to the filters, so they stay a superset of the values in the
+ * database, and when the last user releases them they are saved in the intermine_metadata table
+ * for the next source to use.
+ * <p>
+ * A token in the metadata table ties the saved filters to the database. It is removed when the
+ * filters are loaded and only put back once they have been saved again, so filters are never
+ * reused after a load that did not finish cleanly. The largest object id is saved too, so that
+ * filters are not reused after something else has written to the database.
+ *
+ * @author Matthew Wakeling
+ */
+public final class EquivalenceFilters
+{
+    private static final Logger LOG = Logger.getLogger(EquivalenceFilters.class);
+
+    /** The key under which the filters are saved in the intermine_metadata table */
+    public static final String METADATA_KEY = "equivalenceFilters";
+    /** The key under which the token for the saved filters is kept */
+    public static final String TOKEN_KEY = "equivalenceFiltersToken";
+    /** The false positive rate of new filters */
+    public static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private static final int FORMAT_VERSION = 1;
+    private static Map<Database, EquivalenceFilters> instances
+        = new HashMap<Database, EquivalenceFilters>();
+
+    private ObjectStore os;
+    private Database db;
+    private int users = 0;
+    private Map<String, Entry> filters = new LinkedHashMap<String, Entry>();
+    private boolean stored = false;
+
+    /**
+     * Returns the filters for the database behind an ObjectStore, loading them from the database
+     * if they have been saved. Each call must be matched by a call to release.
+     *
+     * @param os an ObjectStore for a production database
+     * @return an EquivalenceFilters object
+     */
+    public static synchronized EquivalenceFilters getInstance(ObjectStore os) {
+        Database db = null;
+        if (os instanceof ObjectStoreInterMineImpl) {
+            db = ((ObjectStoreInterMineImpl) os).getDatabase();
+        }
+        EquivalenceFilters retval = (db == null ? null : instances.get(db));
+        if (retval == null) {
+            retval = new EquivalenceFilters(os, db);
+            if (db != null) {
+                instances.put(db, retval);
+            }
+        }
+        retval.users++;
+        return retval;
+    }
+
+    private EquivalenceFilters(ObjectStore os, Database db) {
+        this.os = os;
+        this.db = db;
+        if (db != null) {
+            try {
+                load();
+            } catch (Exception e) {
+                LOG.warn("Could not load equivalence filters - they will be rebuilt", e);
+                filters.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the filter for a class and field, or null if there is not one.
+     *
+     * @param clazz the class
+     * @param fieldName the name of the field
+     * @return a BloomFilter, or null
+     */
+    public synchronized BloomFilter getFilter(Class<? extends FastPathObject> clazz,
+            String fieldName) {
+        Entry entry = filters.get(Util.getFriendlyName(clazz) + "." + fieldName);
+        return (entry == null ? null : entry.filter);
+    }
+
+    /**
+     * Creates and registers a filter for a class and field, filled with the values in the
+     * database. The filter can only be saved if no objects have been stored yet, as stored
+     * objects that are not committed cannot be seen by the query.
+     *
+     * @param clazz the class
+     * @param fieldName the name of the attribute
+     * @return a BloomFilter
+     * @throws ObjectStoreException if the values cannot be fetched
+     */
+    public BloomFilter createFilter(Class<? extends FastPathObject> clazz, String fieldName)
+        throws ObjectStoreException {
+        long start = System.currentTimeMillis();
+        boolean complete;
+        synchronized (this) {
+            complete = !stored;
+        }
+        Query q = new Query();
+        QueryClass qc = new QueryClass(clazz);
+        q.addFrom(qc);
+        q.addToSelect(new QueryField(qc, fieldName));
+        q.setDistinct(false);
+        int count = os.count(q, ObjectStore.SEQUENCE_IGNORE);
+        // Leave room for the values that this and later sources will add
+        BloomFilter filter = new BloomFilter(count * 2L, FALSE_POSITIVE_RATE);
+        for (Object value : os.executeSingleton(q, 10000, false, false, false)) {
+            filter.add(value);
+        }
+        String name = Util.getFriendlyName(clazz) + "." + fieldName;
+        synchronized (this) {
+            filters.put(name, new Entry(clazz, fieldName, filter, complete && !stored));
+        }
+        LOG.info("Built equivalence filter for " + name + " with " + count + " values in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return filter;
+    }
+
+    /**
+     * Adds the primary key values of an object that is about to be stored to the filters.
+     *
+     * @param o the object
+     */
+    public void objectStored(InterMineObject o) {
+        List<Entry> entries;
+        synchronized (this) {
+            stored = true;
+            entries = new ArrayList<Entry>(filters.values());
+        }
+        for (Entry entry : entries) {
+            if (entry.clazz.isInstance(o)) {
+                try {
+                    entry.filter.add(o.getFieldValue(entry.fieldName));
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException("Failed to get field value for field name: "
+                            + entry.fieldName + " in " + o, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases these filters, saving them to the database when they have no more users.
+     */
+    public void release() {
+        synchronized (EquivalenceFilters.class) {
+            synchronized (this) {
+                users--;
+                if ((users == 0) && (db != null)) {
+                    instances.remove(db);
+                    try {
+                        save();
+                    } catch (Exception e) {
+                        LOG.warn("Could not save equivalence filters", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void load() throws SQLException, IOException, ObjectStoreException {
+        String token = MetadataManager.retrieve(db, TOKEN_KEY);
+        if (token == null) {
+            return;
+        }
+        // Until the filters are saved again, they may be missing objects stored by this run
+        MetadataManager.store(db, TOKEN_KEY, null);
+        InputStream is = MetadataManager.readLargeBinary(db, METADATA_KEY);
+        if (is == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        try {
+            if ((in.readInt() != FORMAT_VERSION) || (!token.equals(in.readUTF()))) {
+                LOG.info("Saved equivalence filters do not match the database - ignoring them");
+                return;
+            }
+            int maxId = in.readInt();
+            if (maxId != getMaxId()) {
+                LOG.info("Objects have been added to the database since the equivalence filters"
+                        + " were saved - ignoring them");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String className = in.readUTF();
+                String fieldName = in.readUTF();
+                BloomFilter filter = BloomFilter.read(in);
+                ClassDescriptor cld = os.getModel().getClassDescriptorByName(className);
+                if ((cld != null) && (cld.getFieldDescriptorByName(fieldName) != null)) {
+                    filters.put(Util.getFriendlyName(cld.getType()) + "." + fieldName,
+                            new Entry(cld.getType(), fieldName, filter, true));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        LOG.info("Loaded " + filters.size() + " equivalence filters in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void save() throws SQLException, IOException, ObjectStoreException {
+        List<Entry> toSave = new ArrayList<Entry>();
+        for (Entry entry : filters.values()) {
+            if (entry.complete && (!entry.filter.isSaturated())) {
+                toSave.add(entry);
+            }
+        }
+        if (toSave.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String token = Long.toString(new Random().nextLong());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    MetadataManager.storeLargeBinary(db, METADATA_KEY)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(token);
+            out.writeInt(getMaxId());
+            out.writeInt(toSave.size());
+            for (Entry entry : toSave) {
+                out.writeUTF(entry.clazz.getName());
+                out.writeUTF(entry.fieldName);
+                entry.filter.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        MetadataManager.store(db, TOKEN_KEY, token);
+        LOG.info("Saved " + toSave.size() + " equivalence filters in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private int getMaxId() throws ObjectStoreException {
+        Query q = new Query();
+        QueryClass qc = new QueryClass(InterMineObject.class);
+        q.addFrom(qc);
+        q.addToSelect(new QueryFunction(new QueryField(qc, "id"), QueryFunction.MAX));
+        q.setDistinct(false);
+        List<ResultsRow<Object>> results = os.execute(q, 0, 2, false, false,
+                ObjectStore.SEQUENCE_IGNORE);
+        Object maxId = results.get(0).get(0);
+        return (maxId == null ? 0 : ((Number) maxId).intValue());
+    }
+
+    private static class Entry
+    {
+        Class<? extends FastPathObject> clazz;
+        String fieldName;
+        BloomFilter filter;
+        // False if objects may have been stored before the filter was filled
+        boolean complete;
+
+        public Entry(Class<? extends FastPathObject> clazz, String fieldName,
+                BloomFilter filter, boolean complete) {
+            this.clazz = clazz;
+            this.fieldName = fieldName;
+            this.filter = filter;
+            this.complete = complete;
+        }
+    }
+}
@@ -38,6 +38,8 @@ import org.intermine.util.PseudoSet;
 
 /**
  * Object for holding hint data for the getEquivalentObjects method in IntegrationWriters.
+ * Fields with too many values to hold in a Set are summarised with a Bloom filter, which is
+ * shared with other sources through EquivalenceFilters.
  *
  * @author Matthew Wakeling
  */
@@ -56,6 +58,7 @@ public class EquivalentObjectHints
     private Map<String, ClassAndFieldName> summaryToCafn = new HashMap<String, ClassAndFieldName>();
 
     private ObjectStore os;
+    private EquivalenceFilters filters = null;
 
     /**
      * Constructor.
@@ -150,6 +153,9 @@ public class EquivalentObjectHints
         ClassAndFieldName cafn = new ClassAndFieldName(clazz, fieldName);
         String summaryName = Util.getFriendlyName(clazz) + "." + fieldName;
         Set<Object> values = classAndFieldNameValues.get(cafn);
+        if (values == null) {
+            values = getFilters().getFilter(clazz, fieldName);
+        }
         if (values == null) {
             try {
                 Query testQuery = new Query();
@@ -189,7 +195,7 @@ public class EquivalentObjectHints
                         values = new IntegerRangeSet(((Integer) results2.get(0).get(0)).intValue(),
                                 ((Integer) results2.get(0).get(1)).intValue());
                     } else {
-                        values = AlwaysSet.getInstance();
+                        values = createFilter(clazz, fieldName);
                     }
                 } else {
                     values = new HashSet<Object>();
@@ -197,14 +203,16 @@ public class EquivalentObjectHints
                         values.add(row.get(0));
                     }
                 }
-                classAndFieldNameValues.put(cafn, values);
-                classAndFieldNameQueried.put(cafn, new HashSet<Object>());
-                summaryToCafn.put(summaryName, cafn);
             } catch (ObjectStoreException e) {
                 LOG.warn("Error checking database for " + clazz.getName() + "." + fieldName, e);
                 return false;
             }
         }
+        if (!classAndFieldNameQueried.containsKey(cafn)) {
+            classAndFieldNameValues.put(cafn, values);
+            classAndFieldNameQueried.put(cafn, new HashSet<Object>());
+            summaryToCafn.put(summaryName, cafn);
+        }
         Set<Object> queried = classAndFieldNameQueried.get(cafn);
         if (queried instanceof HashSet<?>) {
             queried.add(value);
@@ -225,6 +233,57 @@ public class EquivalentObjectHints
         return !values.contains(value);
     }
 
+    /**
+     * Tells the hints that an object is about to be stored in the database, so that the
+     * equivalence filters can record its primary key values.
+     *
+     * @param o the object
+     */
+    public void objectStored(InterMineObject o) {
+        getFilters().objectStored(o);
+    }
+
+    /**
+     * Releases the equivalence filters, which are saved for the next source once every user of
+     * the database has released them.
+     */
+    public synchronized void close() {
+        if (filters != null) {
+            filters.release();
+            filters = null;
+        }
+    }
+
+    /**
+     * Returns the equivalence filters for the database, loading them if necessary.
+     *
+     * @return an EquivalenceFilters object
+     */
+    private synchronized EquivalenceFilters getFilters() {
+        if (filters == null) {
+            filters = EquivalenceFilters.getInstance(os);
+        }
+        return filters;
+    }
+
+    /**
+     * Builds a Bloom filter of the values of a field that has too many values to hold in a Set,
+     * falling back to a Set that contains everything if the values cannot be fetched.
+     *
+     * @param clazz the class
+     * @param fieldName the name of the field
+     * @return a Set
+     */
+    private Set<Object> createFilter(Class<? extends FastPathObject> clazz, String fieldName) {
+        try {
+            return getFilters().createFilter(clazz, fieldName);
+        } catch (Exception e) {
+            LOG.warn("Error building equivalence filter for " + clazz.getName() + "."
+                    + fieldName, e);
+            return AlwaysSet.getInstance();
+        }
+    }
+
     /**
      * Returns a Set of values that have been tested for a particular class and fieldname.
      *
@@ -70,6 +70,17 @@ public class HintingFetcher extends BaseEquivalentObjectFetcher
     public void close(Source source) {
         LOG.info("Hinting equivalent object query summary for source " + source + " :"
                 + getSummary(source).toString());
+        hints.close();
+    }
+
+    /**
+     * Tells the fetcher that an object is about to be stored in the production database, so
+     * that the hints can keep track of its primary key values.
+     *
+     * @param o the object
+     */
+    public void objectStored(InterMineObject o) {
+        hints.objectStored(o);
     }
 
     /**
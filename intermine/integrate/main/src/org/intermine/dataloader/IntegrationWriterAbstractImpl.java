@@ -10,12 +10,14 @@ package org.intermine.dataloader;
  *
  */
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -27,6 +29,7 @@ import org.intermine.model.InterMineObject;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.intermine.ObjectStoreWriterInterMineImpl;
 import org.intermine.objectstore.proxy.ProxyReference;
 import org.intermine.objectstore.query.Clob;
 import org.intermine.objectstore.query.ClobAccess;
@@ -38,8 +41,12 @@ import org.intermine.objectstore.query.Results;
 import org.intermine.objectstore.query.ResultsInfo;
 import org.intermine.objectstore.query.ResultsRow;
 import org.intermine.objectstore.query.SingletonResults;
+import org.intermine.sql.writebatch.Batch;
+import org.intermine.sql.writebatch.TableStatistics;
 import org.intermine.util.IntPresentSet;
 import org.intermine.util.IntToIntMap;
+import org.intermine.util.OffHeapIntToIntMap;
+import org.intermine.util.PropertiesUtil;
 
 /**
  * Abstract implementation of ObjectStoreIntegrationWriter.  To retain
@@ -58,13 +65,16 @@ public abstract class IntegrationWriterAbstractImpl implements IntegrationWriter
     protected static final int SKELETON = 0;
     protected static final int FROM_DB = 1;
     protected static final int SOURCE = 2;
-    protected IntToIntMap idMap = new IntToIntMap();
+    protected IntToIntMap idMap = createIdMap();
     protected IntPresentSet dbIdsStored = new IntPresentSet();
     protected int idMapOps = 0;
     protected boolean ignoreDuplicates = false;
     protected HintingFetcher eof;
     protected BaseEquivalentObjectFetcher beof;
     protected Source lastSource = null;
+    protected DataLoadMetrics.LatencyHistogram equivalenceLatencies
+        = new DataLoadMetrics.LatencyHistogram();
+    protected long idMapHits = 0;
     protected Set<String> seenBrokenOneToMany = Collections.synchronizedSet(new HashSet<String>());
 
     /**
@@ -78,6 +88,29 @@ public abstract class IntegrationWriterAbstractImpl implements IntegrationWriter
         eof = new HintingFetcher(beof);
     }
 
+    /**
+     * Creates the map from source ids to destination ids. This is an IntToIntMap on the heap,
+     * unless the property "dataLoader.idMap.offHeap" is true, in which case it is an
+     * OffHeapIntToIntMap, which is stored in a memory-mapped file in the directory given by
+     * "dataLoader.idMap.spillDir" once it is larger than "dataLoader.idMap.spillSize" megabytes,
+     * which defaults to a quarter of the direct memory the JVM may allocate.
+     *
+     * @return an IntToIntMap
+     */
+    protected static IntToIntMap createIdMap() {
+        Properties props = PropertiesUtil.getPropertiesStartingWith("dataLoader.idMap");
+        if (!"true".equals(props.getProperty("dataLoader.idMap.offHeap"))) {
+            return new IntToIntMap();
+        }
+        long spillSize = OffHeapIntToIntMap.getDefaultSpillBytes();
+        String spillSizeString = props.getProperty("dataLoader.idMap.spillSize");
+        if (spillSizeString != null) {
+            spillSize = Long.parseLong(spillSizeString.trim()) * 1024L * 1024L;
+        }
+        String spillDir = props.getProperty("dataLoader.idMap.spillDir");
+        return new OffHeapIntToIntMap(spillSize, spillDir == null ? null : new File(spillDir));
+    }
+
     /**
      * Resets the IntegrationWriter, clearing the id map and the hints
      */
@@ -147,13 +180,18 @@ public abstract class IntegrationWriterAbstractImpl implements IntegrationWriter
                         + " Source object ID: " + obj.toString()
                         + (idMap.size() < 100 ? ", idMap = " : ""));
             }
+            long start = System.nanoTime();
+            Set<InterMineObject> retval;
             if ((obj.getId() == null) || ignoreDuplicates) {
-                return beof.queryEquivalentObjects(obj, source);
+                retval = beof.queryEquivalentObjects(obj, source);
             } else {
-                return eof.queryEquivalentObjects(obj, source);
+                retval = eof.queryEquivalentObjects(obj, source);
             }
+            equivalenceLatencies.record(System.nanoTime() - start);
+            return retval;
         } else {
             // was in idMap, no need to query database
+            idMapHits++;
             return Collections.singleton((InterMineObject) new ProxyReference(osw, destId,
                     InterMineObject.class));
         }
@@ -167,6 +205,10 @@ public abstract class IntegrationWriterAbstractImpl implements IntegrationWriter
         if (o == null) {
             throw new NullPointerException("Object o should not be null");
         }
+        if (osw instanceof ObjectStoreWriterInterMineImpl) {
+            // Hold back while the database catches up, rather than stall on a full batch later
+            ((ObjectStoreWriterInterMineImpl) osw).getBatch().waitWhileBackedUp();
+        }
         long time = (new Date()).getTime();
         store(o, source, skelSource, SOURCE);
         long now = (new Date()).getTime();
@@ -436,6 +478,9 @@ public abstract class IntegrationWriterAbstractImpl implements IntegrationWriter
      * @throws ObjectStoreException if an error occurs during storage of the object
      */
     public void store(Object o) throws ObjectStoreException {
+        if (o instanceof InterMineObject) {
+            eof.objectStored((InterMineObject) o);
+        }
         osw.store(o);
     }
 
@@ -453,6 +498,20 @@ public abstract class IntegrationWriterAbstractImpl implements IntegrationWriter
         osw.addToCollection(hasId, clazz, fieldName, hadId);
     }
 
+    /**
+     * Removes an element from a collection, delegate to internal ObjectStoreWriter.
+     *
+     * @param hasId the ID of the object that has the collection
+     * @param clazz the class of the object that has the collection
+     * @param fieldName the name of the collection
+     * @param hadId the ID of the object to remove from the collection
+     * @throws ObjectStoreException if something goes wrong
+     */
+    public void removeFromCollection(Integer hasId, Class<?> clazz, String fieldName,
+            Integer hadId) throws ObjectStoreException {
+        osw.removeFromCollection(hasId, clazz, fieldName, hadId);
+    }
+
     /**
      * Delete an object from this ObjectStore, delegate to internal ObjectStoreWriter.
      *
@@ -728,6 +787,36 @@ public abstract class IntegrationWriterAbstractImpl implements IntegrationWriter
         return osw.getObjectsByExample(o, fieldNames);
     }
 
+    /**
+     * Adds the figures collected by this IntegrationWriter, its equivalent object fetcher and its
+     * ObjectStoreWriter to a DataLoadMetrics. Subclasses that collect more should override this.
+     *
+     * @param metrics the DataLoadMetrics to add to
+     */
+    public void addMetrics(DataLoadMetrics metrics) {
+        metrics.addLatencies(DataLoadMetrics.EQUIVALENCE_LOOKUP, equivalenceLatencies);
+        metrics.addCount(DataLoadMetrics.EQUIVALENCE_LOOKUP + ".idMapHits", idMapHits);
+        metrics.addCount("idMap.size", idMap.size());
+        metrics.addCount("idMap.operations", idMapOps);
+        metrics.addTime("recursing", timeSpentRecursing);
+        if (eof instanceof BatchingFetcher) {
+            ((BatchingFetcher) eof).addMetrics(metrics);
+        }
+        if (osw instanceof ObjectStoreWriterInterMineImpl) {
+            Batch batch = ((ObjectStoreWriterInterMineImpl) osw).getBatch();
+            metrics.addTime("batch.flush", batch.getTimeSpentFlushing());
+            metrics.addTime("batch.waitForFlush", batch.getTimeSpentWaiting());
+            metrics.addTime("batch.backedUp", batch.getTimeSpentBackedUp());
+            metrics.addCount("batch.flushes", batch.getFlushCount());
+            for (Map.Entry<String, TableStatistics> entry : batch.getTableStatistics()
+                    .entrySet()) {
+                metrics.addTime("batch.flush." + entry.getKey(), entry.getValue().getTime());
+                metrics.addCount("batch.rows." + entry.getKey(), entry.getValue().getRows());
+                metrics.addCount("batch.bytes." + entry.getKey(), entry.getValue().getBytes());
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
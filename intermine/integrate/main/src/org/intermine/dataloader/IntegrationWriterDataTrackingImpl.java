@@ -11,31 +11,50 @@ package org.intermine.dataloader;
  */
 
 import java.lang.reflect.Constructor;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
+import org.intermine.metadata.AttributeDescriptor;
+import org.intermine.metadata.ClassDescriptor;
 import org.intermine.metadata.CollectionDescriptor;
+import org.intermine.metadata.ConstraintOp;
 import org.intermine.metadata.FieldDescriptor;
 import org.intermine.metadata.Model;
+import org.intermine.metadata.ReferenceDescriptor;
 import org.intermine.metadata.StringUtil;
 import org.intermine.metadata.TypeUtil;
 import org.intermine.metadata.Util;
 import org.intermine.model.FastPathObject;
 import org.intermine.model.InterMineObject;
+import org.intermine.modelproduction.MetadataManager;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
 import org.intermine.objectstore.ObjectStoreWriterFactory;
 import org.intermine.objectstore.intermine.ObjectStoreWriterInterMineImpl;
 import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.objectstore.query.BagConstraint;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
 import org.intermine.sql.Database;
+import org.intermine.sql.DatabaseUtil;
 import org.intermine.util.DynamicUtil;
 import org.intermine.util.IntPresentSet;
 
@@ -66,9 +85,12 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
     protected IntPresentSet duplicateObjects = new IntPresentSet();
     protected boolean isDuplicates = false;
     protected PriorityConfig priorityConfig;
+    /** True if a new release of a source is being loaded over the previous one */
+    protected boolean deltaLoad = false;
 
     /**
-     * Creates a new instance of this class, given the properties defining it.
+     * Creates a new instance of this class, given the properties defining it. The DataTracker
+     * class may be chosen with the property "datatrackerClass", and defaults to DataTracker.
      *
      * @param osAlias the alias of this objectstore
      * @param props the Properties
@@ -77,8 +99,22 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
      */
     public static IntegrationWriterDataTrackingImpl getInstance(String osAlias, Properties props)
         throws ObjectStoreException {
+        Class<? extends DataTracker> trackerClass = DataTracker.class;
+        String trackerClassName = props.getProperty("datatrackerClass");
+        if (trackerClassName != null) {
+            try {
+                trackerClass = Class.forName(trackerClassName.trim())
+                    .asSubclass(DataTracker.class);
+            } catch (ClassNotFoundException e) {
+                throw new ObjectStoreException("Cannot find specified DataTracker class '"
+                        + trackerClassName + "' for " + osAlias + " (check properties file)", e);
+            } catch (ClassCastException e) {
+                throw new ObjectStoreException("Class " + trackerClassName + " for " + osAlias
+                        + " is not a DataTracker (check properties file)", e);
+            }
+        }
         return getInstance(osAlias, props, IntegrationWriterDataTrackingImpl.class,
-                           DataTracker.class);
+                           trackerClass);
     }
 
 
@@ -231,6 +267,263 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
         return true;
     }
 
+    /**
+     * Sets whether this IntegrationWriter is loading a new release of a source over the data from
+     * a previous load of the same source, instead of adding it to the database. In a delta load,
+     * the values of the previous load are replaced by the values of the objects in the new
+     * release, and finishDeltaLoad() must be called once the whole source has been stored, to
+     * remove the data of objects that are no longer in the source.
+     * <p>
+     * Values from other sources that were overridden by the previous load are not restored, and
+     * collections are only ever added to, so a full build is still needed if those matter.
+     *
+     * @param deltaLoad true for a delta load
+     */
+    public void setDeltaLoad(boolean deltaLoad) {
+        this.deltaLoad = deltaLoad;
+    }
+
+    /**
+     * Returns whether this IntegrationWriter is performing a delta load.
+     *
+     * @return true for a delta load
+     */
+    public boolean isDeltaLoad() {
+        return deltaLoad;
+    }
+
+    /**
+     * Finishes a delta load, by removing the data from the previous load of the source that was
+     * not in the new release. This must only be called after every object in the new release has
+     * been stored. Objects that no other source has ever contributed to are deleted, along with
+     * references to them from other objects and their rows in many-to-many collections. Fields
+     * of other objects that are still attributed to the source are cleared and left attributed
+     * to no source, as any value that cannot be cleared, such as a primitive number, did not come
+     * from another source. Precomputed tables are dropped as the tables they use are altered,
+     * and the serial number of the database is changed so that saved bags are upgraded.
+     *
+     * @param source the main source that was loaded
+     * @param skelSource the skeleton source that was loaded
+     * @throws ObjectStoreException if something goes wrong
+     */
+    public void finishDeltaLoad(Source source, Source skelSource) throws ObjectStoreException {
+        long start = System.currentTimeMillis();
+        Set<Integer> candidates = dataTracker.getObjectIds(Arrays.asList(source, skelSource));
+        List<Integer> ids = new ArrayList<Integer>();
+        int removed = 0;
+        int cleared = 0;
+        Iterator<Integer> candidateIter = candidates.iterator();
+        while (candidateIter.hasNext()) {
+            Integer id = candidateIter.next();
+            if (!dbIdsStored.contains(id)) {
+                ids.add(id);
+            }
+            if ((ids.size() >= 1000) || ((!candidateIter.hasNext()) && (!ids.isEmpty()))) {
+                dataTracker.prefetchIds(new HashSet<Integer>(ids));
+                List<InterMineObject> toDelete = new ArrayList<InterMineObject>();
+                for (InterMineObject obj : osw.getObjectsByIds(ids)) {
+                    int result = removeDeltaData(obj, source.getName());
+                    if (result == 2) {
+                        toDelete.add(obj);
+                    } else if (result == 1) {
+                        cleared++;
+                    }
+                }
+                deleteDetached(toDelete);
+                removed += toDelete.size();
+                ids.clear();
+            }
+        }
+        try {
+            Database db = ((ObjectStoreWriterInterMineImpl) osw).getDatabase();
+            MetadataManager.store(db, MetadataManager.SERIAL_NUMBER,
+                    Long.toString(new Random().nextLong()));
+        } catch (ClassCastException e) {
+            LOG.warn("Cannot change serial number of non-InterMine objectstore");
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Could not change serial number of database", e);
+        }
+        LOG.info("Finished delta load of source " + source.getName() + ": "
+                + writtenObjects.size() + " objects stored, " + removed + " objects removed and "
+                + cleared + " objects with fields cleared, out of " + candidates.size()
+                + " objects from the previous load, in " + (System.currentTimeMillis() - start)
+                + " ms");
+    }
+
+    /**
+     * Returns true if an object being stored is the first from the source in a delta load to
+     * merge with an object in the database, so it replaces the values from the previous load.
+     */
+    private boolean isReloading(int type, Integer newId) {
+        return deltaLoad && (type == SOURCE) && (newId != null)
+            && (!writtenObjects.contains(newId));
+    }
+
+    /**
+     * Removes the data from a source from an object that the source no longer contains.
+     *
+     * @return 2 if the object should be deleted, 1 if fields were cleared, or 0 if nothing was
+     * done
+     */
+    private int removeDeltaData(InterMineObject obj, String sourceName)
+        throws ObjectStoreException {
+        if (!doTrackerFor(obj.getClass())) {
+            return 0;
+        }
+        List<FieldDescriptor> fromSource = new ArrayList<FieldDescriptor>();
+        boolean otherSource = false;
+        for (FieldDescriptor field : getModel().getFieldDescriptorsForClass(obj.getClass())
+                .values()) {
+            if ((!field.isCollection()) && (!"id".equals(field.getName()))) {
+                Source fieldSource = dataTracker.getSource(obj.getId(), field.getName());
+                if (fieldSource != null) {
+                    if (fieldSource.getName().equals(sourceName)) {
+                        fromSource.add(field);
+                    } else {
+                        otherSource = true;
+                    }
+                }
+            }
+        }
+        if (fromSource.isEmpty()) {
+            return 0;
+        }
+        if (!otherSource) {
+            // Another source may have referred to this object before the source overrode all
+            // of its fields, in which case it is kept
+            for (Source pastSource : dataTracker.getAllSources(obj.getId())) {
+                if (!pastSource.getName().equals(sourceName)) {
+                    otherSource = true;
+                }
+            }
+        }
+        if (!otherSource) {
+            return 2;
+        }
+        for (FieldDescriptor field : fromSource) {
+            if (!(field.isAttribute() && ((AttributeDescriptor) field).isPrimitive())) {
+                obj.setFieldValue(field.getName(), null);
+            }
+            dataTracker.clearSource(obj.getId(), field.getName());
+        }
+        store(obj);
+        return 1;
+    }
+
+    /**
+     * Deletes objects, after removing every reference to them from other objects and every row
+     * of a many-to-many collection that they are in, so that nothing is left pointing at an
+     * object that no longer exists.
+     */
+    private void deleteDetached(List<InterMineObject> objects) throws ObjectStoreException {
+        if (objects.isEmpty()) {
+            return;
+        }
+        Set<Integer> deleting = new HashSet<Integer>();
+        for (InterMineObject obj : objects) {
+            deleting.add(obj.getId());
+        }
+        Set<String> indirectionTables = new HashSet<String>();
+        for (ClassDescriptor cld : getModel().getClassDescriptors()) {
+            for (ReferenceDescriptor ref : cld.getReferenceDescriptors()) {
+                Set<Integer> targets = idsOfType(objects,
+                        ref.getReferencedClassDescriptor().getType());
+                if (!targets.isEmpty()) {
+                    clearReferences(cld, ref, targets, deleting);
+                }
+            }
+            for (CollectionDescriptor coll : cld.getCollectionDescriptors()) {
+                if ((coll.relationType() == FieldDescriptor.M_N_RELATION)
+                        && indirectionTables.add(DatabaseUtil.getIndirectionTableName(coll))) {
+                    removeFromCollection(cld, coll, idsOfType(objects, cld.getType()), true);
+                    removeFromCollection(cld, coll, idsOfType(objects,
+                                coll.getReferencedClassDescriptor().getType()), false);
+                }
+            }
+        }
+        for (InterMineObject obj : objects) {
+            delete(obj);
+        }
+    }
+
+    private static Set<Integer> idsOfType(List<InterMineObject> objects, Class<?> type) {
+        Set<Integer> retval = new HashSet<Integer>();
+        for (InterMineObject obj : objects) {
+            if (type.isInstance(obj)) {
+                retval.add(obj.getId());
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Sets a reference to null in every object that refers to one of the given objects, apart
+     * from objects that are about to be deleted. The value is left attributed to no source.
+     */
+    private void clearReferences(ClassDescriptor cld, ReferenceDescriptor ref,
+            Set<Integer> targets, Set<Integer> deleting) throws ObjectStoreException {
+        Query q = new Query();
+        QueryClass qcReferrer = new QueryClass(cld.getType());
+        QueryClass qcTarget = new QueryClass(ref.getReferencedClassDescriptor().getType());
+        q.addFrom(qcReferrer);
+        q.addFrom(qcTarget);
+        q.addToSelect(qcReferrer);
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcReferrer,
+                        ref.getName()), ConstraintOp.CONTAINS, qcTarget));
+        cs.addConstraint(new BagConstraint(new QueryField(qcTarget, "id"), ConstraintOp.IN,
+                    targets));
+        q.setConstraint(cs);
+        q.setDistinct(false);
+        // Read them all before changing any, as the changes alter the results
+        List<InterMineObject> referrers = new ArrayList<InterMineObject>();
+        for (Object referrer : osw.executeSingleton(q, 1000, false, false, false)) {
+            if (!deleting.contains(((InterMineObject) referrer).getId())) {
+                referrers.add((InterMineObject) referrer);
+            }
+        }
+        for (InterMineObject referrer : referrers) {
+            referrer.setFieldValue(ref.getName(), null);
+            if (doTrackerFor(referrer.getClass())) {
+                dataTracker.clearSource(referrer.getId(), ref.getName());
+            }
+            store(referrer);
+        }
+    }
+
+    /**
+     * Removes the rows of a many-to-many collection that have one of the given objects on the
+     * given side.
+     */
+    private void removeFromCollection(ClassDescriptor cld, CollectionDescriptor coll,
+            Set<Integer> ids, boolean owners) throws ObjectStoreException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        Query q = new Query();
+        QueryClass qcOwner = new QueryClass(cld.getType());
+        QueryClass qcElement = new QueryClass(coll.getReferencedClassDescriptor().getType());
+        q.addFrom(qcOwner);
+        q.addFrom(qcElement);
+        q.addToSelect(new QueryField(qcOwner, "id"));
+        q.addToSelect(new QueryField(qcElement, "id"));
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcOwner,
+                        coll.getName()), ConstraintOp.CONTAINS, qcElement));
+        cs.addConstraint(new BagConstraint(new QueryField(owners ? qcOwner : qcElement, "id"),
+                    ConstraintOp.IN, ids));
+        q.setConstraint(cs);
+        q.setDistinct(false);
+        List<Integer[]> rows = new ArrayList<Integer[]>();
+        for (Object row : osw.execute(q, 1000, false, false, false)) {
+            List<?> pair = (List<?>) row;
+            rows.add(new Integer[] {(Integer) pair.get(0), (Integer) pair.get(1)});
+        }
+        for (Integer[] row : rows) {
+            osw.removeFromCollection(row[0], cld.getType(), coll.getName(), row[1]);
+        }
+    }
+
     private long timeSpentEquiv = 0;
     private long timeSpentCreate = 0;
     private long timeSpentPriorities = 0;
@@ -290,6 +583,7 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
             } else {
                 newObj.setId(getSerial());
             }
+            boolean reloading = isReloading(type, newId);
             if (type == SOURCE) {
                 if (writtenObjects.contains(newObj.getId())) {
                     // There are duplicate objects
@@ -323,7 +617,6 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
                 String fieldName = field.getName();
                 if (!"id".equals(fieldName)) {
                     Set<InterMineObject> sortedEquivalentObjects;
-
                     // always add to collections, resolve other clashes by priority
                     if (field instanceof CollectionDescriptor) {
                         sortedEquivalentObjects = new HashSet<InterMineObject>();
@@ -331,7 +624,7 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
                         Comparator<InterMineObject> compare = new SourcePriorityComparator(
                                 dataTracker, newObj.getClass(), field.getName(),
                                 (type == SOURCE ? source : skelSource), o, dbIdsStored, this,
-                                source, skelSource, priorityConfig);
+                                source, skelSource, priorityConfig, reloading);
                         sortedEquivalentObjects = new TreeSet<InterMineObject>(compare);
                     }
 
@@ -340,7 +633,7 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
                     }
                     for (InterMineObject obj : equivObjects) {
                         Source fieldSource = dataTracker.getSource(obj.getId(), fieldName);
-                        if ((equivObjects.size() == 1) && (fieldSource != null)
+                        if ((equivObjects.size() == 1) && (fieldSource != null) && (!reloading)
                             && (fieldSource.equals(source)
                             || (fieldSource.equals(skelSource) && (type != SOURCE)))) {
                             if (type == SOURCE) {
@@ -604,6 +897,22 @@ public class IntegrationWriterDataTrackingImpl extends IntegrationWriterAbstract
     }
      */
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addMetrics(DataLoadMetrics metrics) {
+        super.addMetrics(metrics);
+        metrics.addTime("equivalentObjects", timeSpentEquiv);
+        metrics.addTime("createObject", timeSpentCreate);
+        metrics.addTime("computePriorities", timeSpentPriorities);
+        metrics.addTime("copyFields", timeSpentCopyFields);
+        metrics.addTime("storeObject", timeSpentStore);
+        metrics.addTime("dataTrackerWrite", timeSpentDataTrackerWrite);
+        metrics.addCount("duplicates", duplicateObjects.size());
+        dataTracker.addMetrics(metrics);
+    }
+
     /**
      * {@inheritDoc}
      */
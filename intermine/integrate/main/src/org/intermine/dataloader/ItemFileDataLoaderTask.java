@@ -0,0 +1,45 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Task to load binary item files, as written by converters with a BinaryItemWriter, into a
+ * production database. This takes the same attributes as XmlDataLoaderTask, except that items
+ * cannot be read from a classpath resource.
+ *
+ * @author Matthew Wakeling
+ */
+public class ItemFileDataLoaderTask extends XmlDataLoaderTask
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute() {
+        if (xmlRes != null) {
+            throw new BuildException("Binary item files cannot be loaded from the classpath");
+        }
+        super.execute();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void processFile(XmlDataLoader loader, File file, Source source, Source skelSource)
+        throws Exception {
+        loader.processItemFile(file, source, skelSource);
+    }
+}
@@ -0,0 +1,525 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.intermine.modelproduction.MetadataManager;
+import org.intermine.sql.Database;
+import org.intermine.util.OffHeapIntToIntMap;
+import org.intermine.util.PropertiesUtil;
+
+/**
+ * A DataTracker that keeps the tracking data in a memory-mapped file on the local disc instead of
+ * in the tracker table. Each entry in the file is three ints - the object id, the field and
+ * source packed together as ordinals into lists of names, and the position of the previous entry
+ * for the same object - so reading the data for an object is a walk along a chain of entries,
+ * with no database round trip. An off-heap index from object id to the latest entry is rebuilt
+ * when the file is opened.
+ * <p>
+ * The file is created in the directory given by the property "dataLoader.tracker.dir", or the
+ * temporary directory, and is named after the database. It is tied to the database by a random
+ * token stored in the intermine_metadata table, together with the number of entries in the file,
+ * which is updated every time the file is flushed. Entries are only ever appended, so when the
+ * database is restored from a dump taken earlier, the entries written since the dump are
+ * discarded when the file is next opened, and the file goes back to the state the database
+ * recorded. If the metadata says there is a tracker file but the file is missing, belongs to a
+ * different database, or has fewer entries than were recorded, the tracking data has been lost,
+ * and opening the tracker fails rather than silently starting again with an empty file. The
+ * tracker table is not used, so the acceptance tests do not show tracking data for such a
+ * database. To use this tracker, set the integration property "datatrackerClass" to
+ * org.intermine.dataloader.MappedDataTracker.
+ *
+ * @author Matthew Wakeling
+ */
+public class MappedDataTracker extends DataTracker
+{
+    private static final Logger LOG = Logger.getLogger(MappedDataTracker.class);
+    /** The key in the metadata table of the token identifying the tracker file. */
+    public static final String METADATA_KEY = MetadataManager.TRACKER_FILE;
+
+    private Store store;
+
+    /**
+     * Constructor for MappedDataTracker.
+     *
+     * @param db the Database that the tracking data describes
+     * @param maxSize maximum number of cache entries
+     * @param commitSize number of entries to write to the file at a time
+     */
+    public MappedDataTracker(Database db, int maxSize, int commitSize) {
+        super(maxSize, commitSize);
+        Properties props = PropertiesUtil.getPropertiesStartingWith("dataLoader.tracker");
+        String dir = props.getProperty("dataLoader.tracker.dir");
+        try {
+            store = Store.getInstance(db, new File(dir == null ? System.getProperty(
+                            "java.io.tmpdir") : dir));
+        } catch (Exception e) {
+            IllegalArgumentException e2 = new IllegalArgumentException(
+                    "Could not open tracker file for " + db.getName());
+            e2.initCause(e);
+            throw e2;
+        }
+        startCacheStorer();
+    }
+
+    /**
+     * Clears the data tracker of all entries. This method may only be called immediately after
+     * construction, and only while no other MappedDataTracker in this JVM is using the file of the
+     * same database, as they share it.
+     *
+     * @throws SQLException if the new token cannot be stored in the database
+     * @throws IllegalStateException if another MappedDataTracker is using the file
+     */
+    @Override
+    public void clear() throws SQLException {
+        store.resetUnshared();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int fetch(Map<Integer, ObjectDescription> descs, boolean prefetch) {
+        Map<String, String> fields = new HashMap<String, String>();
+        for (Map.Entry<Integer, ObjectDescription> entry : descs.entrySet()) {
+            fields.clear();
+            store.read(entry.getKey().intValue(), fields);
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                entry.getValue().putClean(field.getKey(), storedSource(field.getValue()));
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Set<Integer> findObjectIds(Collection<Source> sources) {
+        Set<String> names = new HashSet<String>();
+        for (Source source : sources) {
+            names.add(sourceToString(source));
+        }
+        return store.findObjectIds(names);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Set<Source> findAllSources(Integer id) {
+        Set<Source> retval = new HashSet<Source>();
+        for (String name : store.readAllSources(id.intValue())) {
+            if (!UNATTRIBUTED.equals(name)) {
+                retval.add(stringToSource(name));
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void writeMap(Map<Integer, ObjectDescription> map, boolean clean)
+        throws SQLException {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<Integer, ObjectDescription> entry : map.entrySet()) {
+            ObjectDescription desc = entry.getValue();
+            if (desc.isDirty()) {
+                Map<String, Source> orig = desc.getOrig();
+                for (Map.Entry<String, Source> fieldEntry : desc.getNewData().entrySet()) {
+                    String field = fieldEntry.getKey();
+                    Source source = fieldEntry.getValue();
+                    if (isChanged(orig.get(field), source)) {
+                        store.append(entry.getKey().intValue(), field, storedName(source));
+                        count++;
+                    }
+                }
+                if (clean) {
+                    desc.clean();
+                }
+            }
+        }
+        store.flush();
+        LOG.debug("Finished storing " + count + " entries (time = "
+                + (System.currentTimeMillis() - start) + " ms)");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void closeStore() {
+        store.release();
+    }
+
+    /**
+     * The tracker file for a database, which is shared by all the MappedDataTrackers in this JVM
+     * that use the same database.
+     */
+    static final class Store
+    {
+        private static final int MAGIC = 0x54524B31;
+        private static final int RECORD_BYTES = 12;
+        private static final int CHUNK_SHIFT = 22;
+        private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+        private static final long CHUNK_BYTES = ((long) CHUNK_RECORDS) * RECORD_BYTES;
+        private static Map<File, Store> instances = new HashMap<File, Store>();
+
+        private Database db;
+        private File file;
+        private File namesFile;
+        private RandomAccessFile raf;
+        private List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+        private OffHeapIntToIntMap index = new OffHeapIntToIntMap();
+        private Map<String, Integer> fieldOrdinals = new LinkedHashMap<String, Integer>();
+        private List<String> fieldNames = new ArrayList<String>();
+        private Map<String, Integer> sourceOrdinals = new LinkedHashMap<String, Integer>();
+        private List<String> sourceNames = new ArrayList<String>();
+        // Record 0 is the header, so that 0 can mean the end of a chain
+        private int count = 1;
+        private int users = 0;
+
+        /**
+         * Returns the Store for a database, opening it if necessary.
+         *
+         * @param db the Database
+         * @param dir the directory in which to keep the file
+         * @return a Store
+         * @throws IOException if the file cannot be opened
+         * @throws SQLException if the token cannot be read from the database
+         */
+        static synchronized Store getInstance(Database db, File dir)
+            throws IOException, SQLException {
+            File file = new File(dir, "tracker-" + db.getName() + ".dat").getAbsoluteFile();
+            Store retval = instances.get(file);
+            if (retval == null) {
+                retval = new Store(db, file);
+                instances.put(file, retval);
+            }
+            retval.users++;
+            return retval;
+        }
+
+        private Store(Database db, File file) throws IOException, SQLException {
+            this.db = db;
+            this.file = file;
+            namesFile = new File(file.getPath() + ".names");
+            String metadata = MetadataManager.retrieve(db, METADATA_KEY);
+            if (metadata == null) {
+                LOG.info("Creating new tracker file " + file);
+                raf = new RandomAccessFile(file, "rw");
+                reset();
+                return;
+            }
+            // The token, followed by the number of entries when the file was last flushed
+            String[] parts = metadata.trim().split(" ");
+            String token = parts[0];
+            int recordedCount = (parts.length > 1 ? Integer.parseInt(parts[1]) : -1);
+            if (!(file.exists() && namesFile.exists())) {
+                throw new IllegalStateException(mismatch("does not exist"));
+            }
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < CHUNK_BYTES) {
+                raf.close();
+                throw new IllegalStateException(mismatch("is truncated"));
+            }
+            MappedByteBuffer header = map(0);
+            if ((header.getInt(0) != MAGIC) || (!token.equals("" + header.getInt(8)))) {
+                raf.close();
+                throw new IllegalStateException(mismatch("belongs to a different database"));
+            }
+            int savedCount = header.getInt(4);
+            if (recordedCount > savedCount) {
+                raf.close();
+                throw new IllegalStateException(mismatch("has " + (savedCount - 1)
+                            + " entries, but the database recorded " + (recordedCount - 1)));
+            }
+            if ((recordedCount != -1) && (recordedCount < savedCount)) {
+                // The database has been restored from a dump taken before these were written
+                LOG.warn("Discarding the last " + (savedCount - recordedCount) + " entries of"
+                        + " tracker file " + file + ", which were written after the database"
+                        + " was last saved");
+                savedCount = recordedCount;
+            }
+            open(savedCount);
+        }
+
+        private String mismatch(String problem) {
+            return "Tracker file " + file + " " + problem + ", but the " + METADATA_KEY
+                + " entry in the " + MetadataManager.METADATA_TABLE + " table of database "
+                + db.getName() + " says that the tracking data for the database is kept in it."
+                + " Restore the file that was saved with the database, or rebuild the database";
+        }
+
+        private void open(int savedCount) throws IOException {
+            long start = System.currentTimeMillis();
+            BufferedReader reader = new BufferedReader(new FileReader(namesFile));
+            try {
+                String line = reader.readLine();
+                while (line != null) {
+                    if (line.startsWith("f ")) {
+                        ordinal(fieldOrdinals, fieldNames, line.substring(2));
+                    } else if (line.startsWith("s ")) {
+                        ordinal(sourceOrdinals, sourceNames, line.substring(2));
+                    }
+                    line = reader.readLine();
+                }
+            } finally {
+                reader.close();
+            }
+            for (int chunkNo = 1; ((long) chunkNo) * CHUNK_RECORDS < savedCount; chunkNo++) {
+                map(chunkNo);
+            }
+            count = savedCount;
+            chunks.get(0).putInt(4, count);
+            // Later entries for an object come later in the file
+            for (int recordNo = 1; recordNo < count; recordNo++) {
+                index.put(getInt(recordNo, 0), recordNo);
+            }
+            LOG.info("Opened tracker file " + file + " with " + (count - 1) + " entries for "
+                    + index.size() + " objects in " + (System.currentTimeMillis() - start)
+                    + " ms");
+        }
+
+        /**
+         * Discards all the entries, as long as no other tracker is using this Store.
+         *
+         * @throws SQLException if the token cannot be stored
+         */
+        void resetUnshared() throws SQLException {
+            synchronized (Store.class) {
+                synchronized (this) {
+                    if (users > 1) {
+                        throw new IllegalStateException("Cannot clear tracker file " + file
+                                + ", because it is being used by " + (users - 1) + " other"
+                                + " DataTrackers");
+                    }
+                    reset();
+                }
+            }
+        }
+
+        /**
+         * Discards all the entries, and ties the file to the database with a new token.
+         *
+         * @throws SQLException if the token cannot be stored
+         */
+        private synchronized void reset() throws SQLException {
+            try {
+                chunks.clear();
+                raf.setLength(0);
+                index.clear();
+                fieldOrdinals.clear();
+                fieldNames.clear();
+                sourceOrdinals.clear();
+                sourceNames.clear();
+                count = 1;
+                MappedByteBuffer header = map(0);
+                header.putInt(0, MAGIC);
+                header.putInt(8, new Random().nextInt());
+                flush();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not reset tracker file " + file, e);
+            }
+        }
+
+        /**
+         * Reads the latest source for each field of an object.
+         *
+         * @param id the object id
+         * @param fields a Map into which to put field names and source names
+         */
+        synchronized void read(int id, Map<String, String> fields) {
+            int recordNo = index.get(id);
+            while (recordNo > 0) {
+                int packed = getInt(recordNo, 1);
+                String field = fieldNames.get(packed >>> 16);
+                if (!fields.containsKey(field)) {
+                    fields.put(field, sourceNames.get(packed & 0xFFFF));
+                }
+                recordNo = getInt(recordNo, 2);
+            }
+        }
+
+        /**
+         * Reads the names of every source in any entry for an object, including entries that
+         * have been overridden.
+         *
+         * @param id the object id
+         * @return a Set of source names
+         */
+        synchronized Set<String> readAllSources(int id) {
+            Set<String> retval = new HashSet<String>();
+            int recordNo = index.get(id);
+            while (recordNo > 0) {
+                retval.add(sourceNames.get(getInt(recordNo, 1) & 0xFFFF));
+                recordNo = getInt(recordNo, 2);
+            }
+            return retval;
+        }
+
+        /**
+         * Finds the objects that have any entry for any of the given sources.
+         *
+         * @param names the source names
+         * @return a Set of object ids
+         */
+        synchronized Set<Integer> findObjectIds(Set<String> names) {
+            Set<Integer> retval = new HashSet<Integer>();
+            boolean[] wanted = new boolean[sourceNames.size()];
+            for (int i = 0; i < wanted.length; i++) {
+                wanted[i] = names.contains(sourceNames.get(i));
+            }
+            for (int recordNo = 1; recordNo < count; recordNo++) {
+                if (wanted[getInt(recordNo, 1) & 0xFFFF]) {
+                    retval.add(new Integer(getInt(recordNo, 0)));
+                }
+            }
+            return retval;
+        }
+
+        /**
+         * Adds an entry, which overrides any earlier entry for the same object and field.
+         *
+         * @param id the object id
+         * @param field the field name
+         * @param source the source name
+         */
+        synchronized void append(int id, String field, String source) {
+            if ((count & (CHUNK_RECORDS - 1)) == 0) {
+                try {
+                    map(count >>> CHUNK_SHIFT);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Could not extend tracker file " + file,
+                            e);
+                }
+            }
+            int previous = index.get(id);
+            putInt(count, 0, id);
+            putInt(count, 1, (ordinal(fieldOrdinals, fieldNames, field) << 16)
+                    | ordinal(sourceOrdinals, sourceNames, source));
+            putInt(count, 2, previous == -1 ? 0 : previous);
+            index.put(id, count);
+            count++;
+        }
+
+        /**
+         * Writes the entries and names to disc, and records the number of entries in the header
+         * and in the metadata table of the database. The metadata is written last, so the file
+         * always has at least as many entries as the database records.
+         */
+        synchronized void flush() {
+            try {
+                for (MappedByteBuffer chunk : chunks) {
+                    chunk.force();
+                }
+                PrintWriter writer = new PrintWriter(new FileWriter(namesFile));
+                try {
+                    for (String name : fieldNames) {
+                        writer.println("f " + name);
+                    }
+                    for (String name : sourceNames) {
+                        writer.println("s " + name);
+                    }
+                } finally {
+                    writer.close();
+                }
+                chunks.get(0).putInt(4, count);
+                chunks.get(0).force();
+                MetadataManager.store(db, METADATA_KEY, chunks.get(0).getInt(8) + " " + count);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not write tracker file " + file, e);
+            } catch (SQLException e) {
+                throw new IllegalArgumentException("Could not record the size of tracker file "
+                        + file + " in the database", e);
+            }
+        }
+
+        /**
+         * Releases this Store, closing the file when it has no more users.
+         */
+        void release() {
+            synchronized (Store.class) {
+                synchronized (this) {
+                    users--;
+                    if (users == 0) {
+                        flush();
+                        instances.remove(file);
+                        chunks.clear();
+                        index.clear();
+                        try {
+                            raf.close();
+                        } catch (IOException e) {
+                            LOG.warn("Could not close tracker file " + file, e);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static int ordinal(Map<String, Integer> ordinals, List<String> names,
+                String name) {
+            Integer retval = ordinals.get(name);
+            if (retval == null) {
+                if (names.size() > 0xFFFF) {
+                    throw new IllegalStateException("Too many distinct names in tracker file");
+                }
+                retval = new Integer(names.size());
+                ordinals.put(name, retval);
+                names.add(name.intern());
+            }
+            return retval.intValue();
+        }
+
+        private MappedByteBuffer map(int chunkNo) throws IOException {
+            MappedByteBuffer chunk = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    chunkNo * CHUNK_BYTES, CHUNK_BYTES);
+            chunk.order(ByteOrder.nativeOrder());
+            chunks.add(chunk);
+            return chunk;
+        }
+
+        private int getInt(int recordNo, int column) {
+            return chunks.get(recordNo >>> CHUNK_SHIFT).getInt((recordNo & (CHUNK_RECORDS - 1))
+                    * RECORD_BYTES + column * 4);
+        }
+
+        private void putInt(int recordNo, int column, int value) {
+            chunks.get(recordNo >>> CHUNK_SHIFT).putInt((recordNo & (CHUNK_RECORDS - 1))
+                    * RECORD_BYTES + column * 4, value);
+        }
+    }
+}
@@ -69,7 +69,7 @@ public class ObjectDescription
      * database. This makes the ObjectDescription dirty, so that the change is written back.
      *
      * @param fieldName the name of the field
-     * @param source the Source to map onto
+     * @param source the Source to map onto, or null to remove the attribution of the field
      */
     public void put(String fieldName, Source source) {
         if (!dirty) {
@@ -86,11 +86,8 @@ public class ObjectDescription
      * @return the Source, or null if it doesn't exist
      */
     public Source getSource(String fieldName) {
-        if (newData != null) {
-            Source retval = newData.get(fieldName);
-            if (retval != null) {
-                return retval;
-            }
+        if ((newData != null) && newData.containsKey(fieldName)) {
+            return newData.get(fieldName);
         }
         if (orig != null) {
             return orig.get(fieldName);
@@ -98,6 +95,20 @@ public class ObjectDescription
         return null;
     }
 
+    /**
+     * Returns whether the attribution of the given field has been removed, rather than never
+     * having been made.
+     *
+     * @param fieldName the fieldname to look up
+     * @return true if the field is mapped onto null
+     */
+    public boolean isUnattributed(String fieldName) {
+        if ((newData != null) && newData.containsKey(fieldName)) {
+            return newData.get(fieldName) == null;
+        }
+        return (orig != null) && orig.containsKey(fieldName) && (orig.get(fieldName) == null);
+    }
+
     /**
      * Returns whether this ObjectDescription is dirty.
      *
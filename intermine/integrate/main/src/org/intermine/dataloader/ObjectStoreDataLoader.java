@@ -10,8 +10,11 @@ package org.intermine.dataloader;
  *
  */
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.intermine.dataconversion.ItemToObjectTranslator;
@@ -37,6 +40,9 @@ public class ObjectStoreDataLoader extends DataLoader
     private static final Logger LOG = Logger.getLogger(ObjectStoreDataLoader.class);
     private static final int ITEM_READ_BATCH_SIZE = 5000;
 
+    private DataLoadMetrics metrics = null;
+    private boolean deferCommit = false;
+
     /**
      * Construct an ObjectStoreDataLoader
      *
@@ -46,6 +52,29 @@ public class ObjectStoreDataLoader extends DataLoader
         super(iw);
     }
 
+    /**
+     * Sets a DataLoadMetrics to add the figures collected while loading to, once loading has
+     * finished.
+     *
+     * @param metrics a DataLoadMetrics, or null
+     */
+    public void setMetrics(DataLoadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets whether the caller commits the transaction. If true, process() writes everything in a
+     * single transaction of the IntegrationWriter, which it begins if necessary, but does not
+     * commit, and it does not close the IntegrationWriter or add its figures to the metrics. This
+     * lets several calls to process() share one transaction, and lets the
+     * PartitionedObjectStoreDataLoader commit several IntegrationWriters together.
+     *
+     * @param deferCommit true to leave committing to the caller
+     */
+    public void setDeferCommit(boolean deferCommit) {
+        this.deferCommit = deferCommit;
+    }
+
     /**
      * Performs the loading operation, reading data from the given ObjectStore, which must use the
      * same model as the destination IntegrationWriter.
@@ -74,39 +103,33 @@ public class ObjectStoreDataLoader extends DataLoader
      */
     public void process(ObjectStore os, Source source, Source skelSource,
             Class<? extends FastPathObject> queryClass) throws ObjectStoreException {
+        List<Class<? extends FastPathObject>> queryClasses
+            = new ArrayList<Class<? extends FastPathObject>>();
+        queryClasses.add(queryClass);
+        process(os, source, skelSource, queryClasses, null);
+    }
+
+    /**
+     * Loads several classes reading data from the given ObjectStore, which must use the same
+     * model as the destination IntegrationWriter. An object that is an instance of more than one
+     * of the classes is loaded only once. If a Set of allowed classes is given, then every class
+     * of every object loaded must be in it, otherwise the load fails - this is used by the
+     * PartitionedObjectStoreDataLoader to check that its partitions are really independent.
+     *
+     * @param os the ObjectStore from which to read data
+     * @param source the main Source
+     * @param skelSource the skeleton Source
+     * @param queryClasses the classes to load data for
+     * @param allowedClasses the classes that objects may have, or null to allow any
+     * @throws ObjectStoreException if an error occurs on either the source or the destination
+     */
+    public void process(ObjectStore os, Source source, Source skelSource,
+            List<Class<? extends FastPathObject>> queryClasses, Set<Class<?>> allowedClasses)
+        throws ObjectStoreException {
         int errorCount = 0;
         ObjectStore origOs = os;
         try {
-            if (os instanceof ObjectStoreFastCollectionsForTranslatorImpl) {
-                ((ObjectStoreFastCollectionsForTranslatorImpl) os).setSource(source);
-            }
-            if (getIntegrationWriter() instanceof IntegrationWriterDataTrackingImpl) {
-                Properties props = PropertiesUtil.getPropertiesStartingWith(
-                        "equivalentObjectFetcher");
-                if (!("false".equals(props.getProperty("equivalentObjectFetcher.useParallel")))) {
-                    LOG.info("Using ParallelBatchingFetcher - set the property "
-                            + "\"equivalentObjectFetcher.useParallel\" to false to use the standard"
-                            + " BatchingFetcher");
-                    ParallelBatchingFetcher eof =
-                        new ParallelBatchingFetcher(((IntegrationWriterAbstractImpl)
-                                getIntegrationWriter()).getBaseEof(),
-                            ((IntegrationWriterDataTrackingImpl) getIntegrationWriter())
-                            .getDataTracker(), source);
-                    ((IntegrationWriterAbstractImpl) getIntegrationWriter()).setEof(eof);
-                    os = eof.getNoseyObjectStore(os);
-                } else {
-                    LOG.info("Using BatchingFetcher - set the property "
-                            + "\"equivalentObjectFetcher.useParallel\" to true to use the "
-                            + "ParallelBatchingFetcher");
-                    BatchingFetcher eof =
-                        new BatchingFetcher(((IntegrationWriterAbstractImpl)
-                                getIntegrationWriter()).getBaseEof(),
-                            ((IntegrationWriterDataTrackingImpl) getIntegrationWriter())
-                            .getDataTracker(), source);
-                    ((IntegrationWriterAbstractImpl) getIntegrationWriter()).setEof(eof);
-                    os = eof.getNoseyObjectStore(os);
-                }
-            }
+            os = setUpFetcher(os, source);
             Properties props = PropertiesUtil.getPropertiesStartingWith("dataLoader");
             boolean allowMultipleErrors = "true".equals(props.getProperty(
                             "dataLoader.allowMultipleErrors"));
@@ -114,11 +137,6 @@ public class ObjectStoreDataLoader extends DataLoader
             for (int i = 0; i < 20; i++) {
                 times[i] = -1;
             }
-            Query q = new Query();
-            QueryClass qc = new QueryClass(queryClass);
-            q.addFrom(qc);
-            q.addToSelect(qc);
-            q.setDistinct(false);
             long opCount = 0;
             long time = System.currentTimeMillis();
             long startTime = time;
@@ -126,80 +144,106 @@ public class ObjectStoreDataLoader extends DataLoader
             long timeSpentWrite = 0;
             long timeSpentCommit = 0;
             long timeSpentLoop = 0;
-            getIntegrationWriter().beginTransaction();
-            SingletonResults res = os.executeSingleton(q, ITEM_READ_BATCH_SIZE, false, false, true);
-            long time4 = System.currentTimeMillis();
+            if (!(deferCommit && getIntegrationWriter().isInTransaction())) {
+                getIntegrationWriter().beginTransaction();
+            }
             long time1, time2, time3;
-            @SuppressWarnings({ "unchecked", "rawtypes" })
-            Collection<FastPathObject> tmpRes = (Collection) res;
-            for (FastPathObject obj : tmpRes) {
-                time1 = System.currentTimeMillis();
-                timeSpentLoop += time1 - time4;
-                time2 = System.currentTimeMillis();
-                timeSpentRead += time2 - time1;
-                //if ("org.intermine.model.chado.feature".equals(obj.getClass().getName())) {
-                //    String objText = obj.toString();
-                //    int objTextLen = objText.length();
-                //    System//.out.println("Storing " + objText.substring(0, (objTextLen > 60 ? 60
-                //                    : objTextLen)));
-                //}
-                try {
-                    getIntegrationWriter().store(obj, source, skelSource);
-                } catch (RuntimeException e) {
-                    String identifier = null;
-                    if ((origOs instanceof ObjectStoreFastCollectionsForTranslatorImpl)
-                           && (obj instanceof InterMineObject)) {
-                        ItemToObjectTranslator trans = (ItemToObjectTranslator)
-                            ((ObjectStoreFastCollectionsForTranslatorImpl) origOs).getTranslator();
-                        identifier = trans.idToIdentifier(((InterMineObject) obj).getId());
-                    }
-                    LOG.error("Exception while dataloading" + (identifier == null ? ""
-                                : " item with identifier " + identifier), e);
-                    errorCount++;
-                    if (errorCount >= 100) {
-                        throw new RuntimeException("Too many data loading exceptions - to stop on"
-                                + " the first error, set the property"
-                                + " \"dataLoader.allowMultipleErrors\" to false", e);
+            for (int classNo = 0; classNo < queryClasses.size(); classNo++) {
+                Query q = new Query();
+                QueryClass qc = new QueryClass(queryClasses.get(classNo));
+                q.addFrom(qc);
+                q.addToSelect(qc);
+                q.setDistinct(false);
+                SingletonResults res = os.executeSingleton(q, ITEM_READ_BATCH_SIZE, false, false,
+                        true);
+                long time4 = System.currentTimeMillis();
+                @SuppressWarnings({ "unchecked", "rawtypes" })
+                Collection<FastPathObject> tmpRes = (Collection) res;
+                for (FastPathObject obj : tmpRes) {
+                    if (loadedEarlier(obj, queryClasses, classNo)) {
+                        continue;
                     }
-                    if (!allowMultipleErrors) {
-                        throw new RuntimeException("Exception while dataloading - to allow multiple"
-                                + " errors, set the property \"dataLoader.allowMultipleErrors\" to"
-                                + " true\n" + (identifier == null ? ""
-                                    : "Problem while loading item identifier " + identifier
-                                    + " because\n") + e.getMessage(), e);
+                    if (allowedClasses != null) {
+                        checkAllowed(obj, allowedClasses);
                     }
-                }
-                time3 = System.currentTimeMillis();
-                timeSpentWrite += time3 - time2;
-                opCount++;
-                if (opCount % 10000 == 0) {
-                    long now = System.currentTimeMillis();
-                    if (times[(int) ((opCount / 10000) % 20)] == -1) {
-                        LOG.info("Dataloaded " + opCount + " objects - running at "
-                                + (600000000L / (now - time)) + " (avg "
-                                + ((60000L * opCount) / (now - startTime))
-                                + ") objects per minute -- now on "
-                                + Util.getFriendlyName(obj.getClass()));
-                    } else {
-                        LOG.info("Dataloaded " + opCount + " objects - running at "
-                                + (600000000L / (now - time)) + " (200000 avg "
-                                + (12000000000L / (now - times[(int) ((opCount / 10000) % 20)]))
-                                + ") (avg = " + ((60000L * opCount) / (now - startTime))
-                                + ") objects per minute -- now on "
-                                + Util.getFriendlyName(obj.getClass()));
+                    time1 = System.currentTimeMillis();
+                    timeSpentLoop += time1 - time4;
+                    time2 = System.currentTimeMillis();
+                    timeSpentRead += time2 - time1;
+                    //if ("org.intermine.model.chado.feature".equals(obj.getClass().getName())) {
+                    //    String objText = obj.toString();
+                    //    int objTextLen = objText.length();
+                    //    System//.out.println("Storing " + objText.substring(0,
+                    //                (objTextLen > 60 ? 60 : objTextLen)));
+                    //}
+                    try {
+                        getIntegrationWriter().store(obj, source, skelSource);
+                    } catch (RuntimeException e) {
+                        String identifier = null;
+                        if ((origOs instanceof ObjectStoreFastCollectionsForTranslatorImpl)
+                               && (obj instanceof InterMineObject)) {
+                            ItemToObjectTranslator trans = (ItemToObjectTranslator)
+                                ((ObjectStoreFastCollectionsForTranslatorImpl) origOs)
+                                .getTranslator();
+                            identifier = trans.idToIdentifier(((InterMineObject) obj).getId());
+                        }
+                        LOG.error("Exception while dataloading" + (identifier == null ? ""
+                                    : " item with identifier " + identifier), e);
+                        errorCount++;
+                        if (errorCount >= 100) {
+                            throw new RuntimeException("Too many data loading exceptions - to stop"
+                                    + " on the first error, set the property"
+                                    + " \"dataLoader.allowMultipleErrors\" to false", e);
+                        }
+                        if (!allowMultipleErrors) {
+                            throw new RuntimeException("Exception while dataloading - to allow"
+                                    + " multiple errors, set the property"
+                                    + " \"dataLoader.allowMultipleErrors\" to true\n"
+                                    + (identifier == null ? ""
+                                        : "Problem while loading item identifier " + identifier
+                                        + " because\n") + e.getMessage(), e);
+                        }
                     }
-                    time = now;
-                    times[(int) ((opCount / 10000) % 20)] = now;
-                    if (opCount % 500000 == 0) {
-                        getIntegrationWriter().batchCommitTransaction();
+                    time3 = System.currentTimeMillis();
+                    timeSpentWrite += time3 - time2;
+                    opCount++;
+                    if (opCount % 10000 == 0) {
+                        long now = System.currentTimeMillis();
+                        if (times[(int) ((opCount / 10000) % 20)] == -1) {
+                            LOG.info("Dataloaded " + opCount + " objects - running at "
+                                    + (600000000L / (now - time)) + " (avg "
+                                    + ((60000L * opCount) / (now - startTime))
+                                    + ") objects per minute -- now on "
+                                    + Util.getFriendlyName(obj.getClass()));
+                        } else {
+                            LOG.info("Dataloaded " + opCount + " objects - running at "
+                                    + (600000000L / (now - time)) + " (200000 avg "
+                                    + (12000000000L / (now - times[(int) ((opCount / 10000) % 20)]))
+                                    + ") (avg = " + ((60000L * opCount) / (now - startTime))
+                                    + ") objects per minute -- now on "
+                                    + Util.getFriendlyName(obj.getClass()));
+                        }
+                        time = now;
+                        times[(int) ((opCount / 10000) % 20)] = now;
+                        if ((opCount % 500000 == 0) && (!deferCommit)) {
+                            getIntegrationWriter().batchCommitTransaction();
+                        }
                     }
+                    time4 = System.currentTimeMillis();
+                    timeSpentCommit += time4 - time3;
                 }
-                time4 = System.currentTimeMillis();
-                timeSpentCommit += time4 - time3;
             }
             time3 = System.currentTimeMillis();
-            getIntegrationWriter().commitTransaction();
-            getIntegrationWriter().close();
+            if ((getIntegrationWriter() instanceof IntegrationWriterDataTrackingImpl)
+                    && ((IntegrationWriterDataTrackingImpl) getIntegrationWriter())
+                    .isDeltaLoad()) {
+                ((IntegrationWriterDataTrackingImpl) getIntegrationWriter())
+                    .finishDeltaLoad(source, skelSource);
+            }
+            if (!deferCommit) {
+                getIntegrationWriter().commitTransaction();
+                getIntegrationWriter().close();
+            }
             long now = System.currentTimeMillis();
             timeSpentCommit += now - time3;
             LOG.info("Finished dataloading " + opCount + " objects at " + ((60000L * opCount)
@@ -207,6 +251,17 @@ public class ObjectStoreDataLoader extends DataLoader
                     + " ms total) for source " + source.getName());
             LOG.info("Time spent: Reading: " + (timeSpentRead + timeSpentLoop) + ", Writing: "
                     + timeSpentWrite + ", Committing: " + timeSpentCommit);
+            if (metrics != null) {
+                metrics.addCount(DataLoadMetrics.OBJECTS, opCount);
+                metrics.addCount("errors", errorCount);
+                metrics.addTime("read", timeSpentRead + timeSpentLoop);
+                metrics.addTime("write", timeSpentWrite);
+                metrics.addTime("commit", timeSpentCommit);
+                if ((!deferCommit)
+                        && (getIntegrationWriter() instanceof IntegrationWriterAbstractImpl)) {
+                    ((IntegrationWriterAbstractImpl) getIntegrationWriter()).addMetrics(metrics);
+                }
+            }
         } catch (RuntimeException e) {
             if (origOs instanceof ObjectStoreFastCollectionsForTranslatorImpl) {
                 IntPresentSet doneAlready = ((ObjectStoreFastCollectionsForTranslatorImpl) origOs)
@@ -229,4 +284,59 @@ public class ObjectStoreDataLoader extends DataLoader
                     + ".allowMultipleErrors\" to false");
         }
     }
+
+    private ObjectStore setUpFetcher(ObjectStore os, Source source) {
+        if (os instanceof ObjectStoreFastCollectionsForTranslatorImpl) {
+            ((ObjectStoreFastCollectionsForTranslatorImpl) os).setSource(source);
+        }
+        if (getIntegrationWriter() instanceof IntegrationWriterDataTrackingImpl) {
+            Properties props = PropertiesUtil.getPropertiesStartingWith(
+                    "equivalentObjectFetcher");
+            if (!("false".equals(props.getProperty("equivalentObjectFetcher.useParallel")))) {
+                LOG.info("Using ParallelBatchingFetcher - set the property "
+                        + "\"equivalentObjectFetcher.useParallel\" to false to use the standard"
+                        + " BatchingFetcher");
+                ParallelBatchingFetcher eof =
+                    new ParallelBatchingFetcher(((IntegrationWriterAbstractImpl)
+                            getIntegrationWriter()).getBaseEof(),
+                        ((IntegrationWriterDataTrackingImpl) getIntegrationWriter())
+                        .getDataTracker(), source);
+                ((IntegrationWriterAbstractImpl) getIntegrationWriter()).setEof(eof);
+                os = eof.getNoseyObjectStore(os);
+            } else {
+                LOG.info("Using BatchingFetcher - set the property "
+                        + "\"equivalentObjectFetcher.useParallel\" to true to use the "
+                        + "ParallelBatchingFetcher");
+                BatchingFetcher eof =
+                    new BatchingFetcher(((IntegrationWriterAbstractImpl)
+                            getIntegrationWriter()).getBaseEof(),
+                        ((IntegrationWriterDataTrackingImpl) getIntegrationWriter())
+                        .getDataTracker(), source);
+                ((IntegrationWriterAbstractImpl) getIntegrationWriter()).setEof(eof);
+                os = eof.getNoseyObjectStore(os);
+            }
+        }
+        return os;
+    }
+
+    private static boolean loadedEarlier(FastPathObject obj,
+            List<Class<? extends FastPathObject>> queryClasses, int classNo) {
+        for (int i = 0; i < classNo; i++) {
+            if (queryClasses.get(i).isInstance(obj)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkAllowed(FastPathObject obj, Set<Class<?>> allowedClasses) {
+        for (Class<?> c : Util.decomposeClass(obj.getClass())) {
+            if (!allowedClasses.contains(c)) {
+                throw new IllegalStateException("Object " + obj + " has class " + c.getName()
+                        + ", which is not in the partition being loaded (" + allowedClasses
+                        + ") - this source cannot be loaded in parallel. Set the property"
+                        + " \"dataLoader.parallelThreads\" to 1 to load it serially");
+            }
+        }
+    }
 }
@@ -10,11 +10,18 @@ package org.intermine.dataloader;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 
+import org.intermine.metadata.Model;
 import org.intermine.model.FastPathObject;
 import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.util.PropertiesUtil;
 
 /**
  * Uses an IntegrationWriter to load data from another ObjectStore.
@@ -24,6 +31,8 @@ import org.intermine.objectstore.ObjectStoreFactory;
  */
 public class ObjectStoreDataLoaderTask extends Task
 {
+    private static final Logger LOG = Logger.getLogger(ObjectStoreDataLoaderTask.class);
+
     protected String integrationWriter;
     protected String source;
     protected String sourceName;
@@ -31,6 +40,8 @@ public class ObjectStoreDataLoaderTask extends Task
     protected boolean ignoreDuplicates;
     protected String queryClass = null;
     protected String allSources;
+    protected boolean delta = false;
+    protected File metricsFile = null;
 
     /**
      * Set the IntegrationWriter.
@@ -96,6 +107,28 @@ public class ObjectStoreDataLoaderTask extends Task
         this.allSources = allSources;
     }
 
+    /**
+     * Set whether to load the source as a new release of a source that has already been loaded,
+     * replacing the data from the previous load instead of adding to it. This needs an
+     * IntegrationWriterDataTrackingImpl, and cannot be combined with queryClass.
+     *
+     * @param delta true for a delta load
+     */
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * Set the file to write the metrics report for the load to. By default, this is
+     * load-metrics-&lt;sourceName&gt;.json in the directory given by the property
+     * "dataLoader.metricsDir", or in the build directory if that is not set.
+     *
+     * @param metricsFile the report file
+     */
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -108,10 +141,22 @@ public class ObjectStoreDataLoaderTask extends Task
             throw new BuildException("source attribute is not set");
         }
 
+        DataLoadMetrics metrics = new DataLoadMetrics(sourceName);
+        boolean succeeded = false;
         try {
             IntegrationWriter iw = IntegrationWriterFactory.getIntegrationWriter(integrationWriter);
             PriorityConfig.verify(iw.getModel(), allSources);
             iw.setIgnoreDuplicates(ignoreDuplicates);
+            if (delta) {
+                if (!(iw instanceof IntegrationWriterDataTrackingImpl)) {
+                    throw new BuildException("Delta loads need an IntegrationWriterDataTrackingImpl"
+                            + " - " + integrationWriter + " is a " + iw.getClass().getName());
+                }
+                if (queryClass != null) {
+                    throw new BuildException("Delta loads cannot be limited to a queryClass");
+                }
+                ((IntegrationWriterDataTrackingImpl) iw).setDeltaLoad(true);
+            }
             if (queryClass != null) {
                 Class<?> tmpQueryClass = Class.forName(queryClass);
                 if (!FastPathObject.class.isAssignableFrom(tmpQueryClass)) {
@@ -120,19 +165,89 @@ public class ObjectStoreDataLoaderTask extends Task
                 }
                 @SuppressWarnings("unchecked") Class<? extends FastPathObject> tmp2QueryClass =
                     (Class) tmpQueryClass;
-                new ObjectStoreDataLoader(iw).process(ObjectStoreFactory.getObjectStore(source),
+                ObjectStoreDataLoader loader = new ObjectStoreDataLoader(iw);
+                loader.setMetrics(metrics);
+                loader.process(ObjectStoreFactory.getObjectStore(source),
                         iw.getMainSource(sourceName, sourceType), iw.getSkeletonSource(sourceName,
                                 sourceType), tmp2QueryClass);
 
+            } else if ((getParallelThreads() > 1) && (!delta)
+                    && (iw instanceof IntegrationWriterDataTrackingImpl)
+                    && isWorthPartitioning(iw.getModel())) {
+                Model model = iw.getModel();
+                iw.close();
+                PartitionedObjectStoreDataLoader loader = new PartitionedObjectStoreDataLoader(
+                        integrationWriter, source, sourceName, sourceType, ignoreDuplicates,
+                        getParallelThreads());
+                loader.setMetrics(metrics);
+                loader.process(model);
             } else {
-                new ObjectStoreDataLoader(iw).process(ObjectStoreFactory.getObjectStore(source),
-                                                      iw.getMainSource(sourceName, sourceType),
-                                                      iw.getSkeletonSource(sourceName, sourceType));
+                ObjectStoreDataLoader loader = new ObjectStoreDataLoader(iw);
+                loader.setMetrics(metrics);
+                loader.process(ObjectStoreFactory.getObjectStore(source),
+                        iw.getMainSource(sourceName, sourceType),
+                        iw.getSkeletonSource(sourceName, sourceType));
             }
+            succeeded = true;
         } catch (Exception e) {
             throw new BuildException(e);
+        } finally {
+            metrics.finish(succeeded);
+            writeMetrics(metrics);
         }
     }
 
-}
+    /**
+     * Writes the metrics report for the load. A failure to write it is logged rather than thrown,
+     * so that it does not hide the result of the load.
+     *
+     * @param metrics the DataLoadMetrics to write
+     */
+    protected void writeMetrics(DataLoadMetrics metrics) {
+        File file = metricsFile;
+        if (file == null) {
+            Properties props = PropertiesUtil.getPropertiesStartingWith("dataLoader");
+            String dir = props.getProperty("dataLoader.metricsDir");
+            file = new File(dir == null ? "build" : dir.trim(), "load-metrics-" + sourceName
+                    + ".json");
+        }
+        try {
+            metrics.writeReport(file);
+            LOG.info("Wrote metrics report for source " + sourceName + " to " + file);
+        } catch (IOException e) {
+            LOG.warn("Could not write metrics report for source " + sourceName + " to " + file,
+                    e);
+        }
+    }
 
+    /**
+     * Returns true if the model splits into more than one partition of meaningful size, so that
+     * the source can be loaded in parallel. Otherwise a warning is logged, and the source is
+     * loaded serially with the usual batch commits.
+     *
+     * @param model the Model of the source
+     * @return a boolean
+     */
+    private boolean isWorthPartitioning(Model model) {
+        if (PartitionedObjectStoreDataLoader.isWorthPartitioning(model)) {
+            return true;
+        }
+        LOG.warn("Not loading source " + sourceName + " in parallel, because model "
+                + model.getName() + " has only one partition of meaningful size - loading it"
+                + " with one thread");
+        return false;
+    }
+
+    /**
+     * Returns the number of threads to load a source with, from the property
+     * "dataLoader.parallelThreads". If this is more than one, and no queryClass is set, then the
+     * model is split into independent partitions, which are loaded in parallel.
+     *
+     * @return the number of threads, which defaults to 1
+     */
+    protected int getParallelThreads() {
+        Properties props = PropertiesUtil.getPropertiesStartingWith("dataLoader");
+        String threads = props.getProperty("dataLoader.parallelThreads");
+        return (threads == null ? 1 : Integer.parseInt(threads.trim()));
+    }
+}
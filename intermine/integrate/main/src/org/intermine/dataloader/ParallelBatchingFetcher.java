@@ -64,6 +64,7 @@ public class ParallelBatchingFetcher extends BatchingFetcher
         LOG.info("Parallel Batching equivalent object query summary for source " + source + " :"
                 + getSummary(source).toString() + "\nQueried " + batchQueried
                 + " objects by batch, cache misses: " + cacheMisses);
+        hints.close();
     }
 
     /**
@@ -0,0 +1,529 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.metadata.ReferenceDescriptor;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.intermine.ObjectStoreWriterInterMineImpl;
+import org.intermine.sql.DatabaseUtil;
+
+/**
+ * Loads information from an ObjectStore into the InterMine database using several threads.
+ * <p>
+ * The classes of the model are split into partitions, such that no class in one partition has a
+ * superclass, reference or collection pointing to a class in another partition. Objects in
+ * different partitions therefore can never be equivalent to each other (as primary keys only use
+ * the fields of a class and the objects it references), and can never refer to each other, so
+ * they can be merged independently. Each thread loads partitions with its own IntegrationWriter,
+ * which has its own ObjectStoreWriter and DataTracker, reading from the source ObjectStore returned
+ * to it by the ObjectStoreFactory. The factory creates a new instance for each thread, apart from
+ * an ObjectStoreInterMineImpl, which is shared between threads as it is elsewhere. The threads
+ * write in transactions that are committed together with a two-phase commit once every partition
+ * has loaded, so a failure leaves nothing of the source in the database. The result is the same
+ * as that of loading the whole source with one ObjectStoreDataLoader, apart from the order in
+ * which ids are allocated.
+ * <p>
+ * A model only splits where there are groups of classes with no references between them. The
+ * genomic core model, for instance, has one partition holding all but one of its classes, as
+ * every BioEntity refers to an Organism and DataSets. Parallel loading helps sources of models
+ * with several large unrelated groups of classes, and the sizes of the partitions are logged. A
+ * model that has only one partition of meaningful size is refused, as it would be loaded by one
+ * thread in one long transaction without any batch commits.
+ * <p>
+ * If the source contains an object whose classes span more than one partition, the load fails,
+ * and the source must be loaded with a single thread.
+ *
+ * @author Matthew Wakeling
+ */
+public class PartitionedObjectStoreDataLoader
+{
+    private static final Logger LOG = Logger.getLogger(PartitionedObjectStoreDataLoader.class);
+    // A partition with fewer than this fraction of the classes of the model is too small to be
+    // worth a thread of its own
+    private static final int MIN_PARTITION_FRACTION = 10;
+
+    private String integrationWriterAlias;
+    private String sourceAlias;
+    private String sourceName;
+    private String sourceType;
+    private boolean ignoreDuplicates;
+    private int threadCount;
+
+    private LinkedList<Set<ClassDescriptor>> queue = new LinkedList<Set<ClassDescriptor>>();
+    private Set<ObjectStore> sources
+        = Collections.newSetFromMap(new IdentityHashMap<ObjectStore, Boolean>());
+    private Throwable error = null;
+    private DataLoadMetrics metrics = null;
+
+    /**
+     * Constructs a new PartitionedObjectStoreDataLoader.
+     *
+     * @param integrationWriterAlias the alias of the IntegrationWriter to write with, from which
+     * one IntegrationWriter will be created for each thread
+     * @param sourceAlias the alias of the ObjectStore to read from
+     * @param sourceName the name of the data source
+     * @param sourceType the type of the data source
+     * @param ignoreDuplicates the value of ignoreDuplicates for the IntegrationWriters
+     * @param threadCount the maximum number of threads to use
+     */
+    public PartitionedObjectStoreDataLoader(String integrationWriterAlias, String sourceAlias,
+            String sourceName, String sourceType, boolean ignoreDuplicates, int threadCount) {
+        this.integrationWriterAlias = integrationWriterAlias;
+        this.sourceAlias = sourceAlias;
+        this.sourceName = sourceName;
+        this.sourceType = sourceType;
+        this.ignoreDuplicates = ignoreDuplicates;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Sets a DataLoadMetrics for the loaders of all the partitions to add their figures to.
+     *
+     * @param metrics a DataLoadMetrics, or null
+     */
+    public void setMetrics(DataLoadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Splits the InterMineObject classes of a model into partitions that are not connected to
+     * each other by inheritance, references or collections. The partitions are returned largest
+     * first. If any class has a reference to InterMineObject itself, then everything is connected
+     * and a single partition is returned. Classes that are not InterMineObjects are ignored.
+     *
+     * @param model a Model
+     * @return a List of Sets of ClassDescriptors
+     */
+    public static List<Set<ClassDescriptor>> getPartitions(Model model) {
+        Map<ClassDescriptor, ClassDescriptor> parents
+            = new HashMap<ClassDescriptor, ClassDescriptor>();
+        List<ClassDescriptor> classes = new ArrayList<ClassDescriptor>();
+        for (ClassDescriptor cld : model.getClassDescriptors()) {
+            if (InterMineObject.class.isAssignableFrom(cld.getType())
+                    && (!InterMineObject.class.equals(cld.getType()))) {
+                classes.add(cld);
+                parents.put(cld, cld);
+            }
+        }
+        for (ClassDescriptor cld : classes) {
+            for (ClassDescriptor superCld : cld.getSuperDescriptors()) {
+                if (parents.containsKey(superCld)) {
+                    union(parents, cld, superCld);
+                }
+            }
+            List<ReferenceDescriptor> refs = new ArrayList<ReferenceDescriptor>();
+            refs.addAll(cld.getReferenceDescriptors());
+            refs.addAll(cld.getCollectionDescriptors());
+            for (ReferenceDescriptor ref : refs) {
+                ClassDescriptor target = ref.getReferencedClassDescriptor();
+                if (InterMineObject.class.equals(target.getType())) {
+                    // A reference to InterMineObject can point anywhere
+                    Set<ClassDescriptor> all = new LinkedHashSet<ClassDescriptor>(classes);
+                    return Collections.singletonList(all);
+                } else if (parents.containsKey(target)) {
+                    // Collections of simple objects are not loaded by the ObjectStoreDataLoader
+                    union(parents, cld, target);
+                }
+            }
+        }
+        Map<ClassDescriptor, Set<ClassDescriptor>> partitions
+            = new HashMap<ClassDescriptor, Set<ClassDescriptor>>();
+        for (ClassDescriptor cld : classes) {
+            ClassDescriptor root = find(parents, cld);
+            Set<ClassDescriptor> partition = partitions.get(root);
+            if (partition == null) {
+                partition = new LinkedHashSet<ClassDescriptor>();
+                partitions.put(root, partition);
+            }
+            partition.add(cld);
+        }
+        List<Set<ClassDescriptor>> retval
+            = new ArrayList<Set<ClassDescriptor>>(partitions.values());
+        Collections.sort(retval, new Comparator<Set<ClassDescriptor>>() {
+            public int compare(Set<ClassDescriptor> o1, Set<ClassDescriptor> o2) {
+                return o2.size() - o1.size();
+            }
+        });
+        return retval;
+    }
+
+    /**
+     * Returns true if a model splits into at least two partitions of meaningful size, that is
+     * with at least a tenth of the classes of the model each, so that loading it in parallel is
+     * worthwhile.
+     *
+     * @param model a Model
+     * @return a boolean
+     */
+    public static boolean isWorthPartitioning(Model model) {
+        return isWorthPartitioning(getPartitions(model));
+    }
+
+    private static boolean isWorthPartitioning(List<Set<ClassDescriptor>> partitions) {
+        int total = 0;
+        for (Set<ClassDescriptor> partition : partitions) {
+            total += partition.size();
+        }
+        int large = 0;
+        for (Set<ClassDescriptor> partition : partitions) {
+            if (partition.size() * MIN_PARTITION_FRACTION >= total) {
+                large++;
+            }
+        }
+        return large > 1;
+    }
+
+    private static ClassDescriptor find(Map<ClassDescriptor, ClassDescriptor> parents,
+            ClassDescriptor cld) {
+        ClassDescriptor root = cld;
+        while (parents.get(root) != root) {
+            root = parents.get(root);
+        }
+        while (cld != root) {
+            ClassDescriptor next = parents.get(cld);
+            parents.put(cld, root);
+            cld = next;
+        }
+        return root;
+    }
+
+    private static void union(Map<ClassDescriptor, ClassDescriptor> parents, ClassDescriptor a,
+            ClassDescriptor b) {
+        ClassDescriptor rootA = find(parents, a);
+        ClassDescriptor rootB = find(parents, b);
+        if (rootA != rootB) {
+            parents.put(rootA, rootB);
+        }
+    }
+
+    /**
+     * Returns the classes of a partition that must be queried in order to fetch every object in
+     * the partition, which are those that have no superclass other than InterMineObject.
+     *
+     * @param partition a Set of ClassDescriptors returned by getPartitions
+     * @return a List of classes
+     */
+    public static List<Class<? extends FastPathObject>> getRoots(
+            Set<ClassDescriptor> partition) {
+        List<Class<? extends FastPathObject>> retval
+            = new ArrayList<Class<? extends FastPathObject>>();
+        for (ClassDescriptor cld : partition) {
+            boolean root = true;
+            for (ClassDescriptor superCld : cld.getSuperDescriptors()) {
+                if (partition.contains(superCld)) {
+                    root = false;
+                }
+            }
+            if (root) {
+                retval.add(cld.getType());
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Performs the loading operation. The model is split into partitions, which are loaded by up
+     * to threadCount threads, the largest partitions first. The
+     * transactions of all the threads are prepared and then committed together, so either all of
+     * the source is committed or none of it is. If the production database does not allow
+     * prepared transactions, the source is loaded with one thread in a single transaction.
+     *
+     * @param model the Model of the source and destination
+     * @throws ObjectStoreException if an error occurs on either the source or the destination,
+     * or if the model does not have more than one partition of meaningful size
+     */
+    public void process(Model model) throws ObjectStoreException {
+        List<Set<ClassDescriptor>> partitions = getPartitions(model);
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (Set<ClassDescriptor> partition : partitions) {
+            sizes.add(new Integer(partition.size()));
+        }
+        LOG.info("Model " + model.getName() + " has " + partitions.size()
+                + " partitions with sizes " + sizes);
+        if (!isWorthPartitioning(partitions)) {
+            throw new ObjectStoreException("Cannot load source " + sourceName + " in parallel,"
+                    + " because model " + model.getName() + " has only one partition of"
+                    + " meaningful size (partition sizes " + sizes + "), which would be loaded in"
+                    + " a single transaction without batch commits - set the property"
+                    + " \"dataLoader.parallelThreads\" to 1 to load it serially");
+        }
+        List<Worker> workers = new ArrayList<Worker>();
+        boolean committed = false;
+        try {
+            workers.add(new Worker());
+            int workerCount = Math.min(threadCount, partitions.size());
+            if ((workerCount > 1) && (!supportsPreparedTransactions(workers.get(0).iw))) {
+                LOG.warn("The production database does not allow prepared transactions - set"
+                        + " max_prepared_transactions in postgresql.conf to load in parallel."
+                        + " Loading source " + sourceName + " with one thread");
+                workerCount = 1;
+            }
+            if (workerCount == 1) {
+                Set<ClassDescriptor> all = new LinkedHashSet<ClassDescriptor>();
+                for (Set<ClassDescriptor> partition : partitions) {
+                    all.addAll(partition);
+                }
+                queue.add(all);
+            } else {
+                queue.addAll(partitions);
+            }
+            for (int i = 1; i < workerCount; i++) {
+                workers.add(new Worker());
+            }
+            LOG.info("Loading source " + sourceName + " in " + queue.size() + " partitions with "
+                    + workerCount + " threads");
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 1; i < workers.size(); i++) {
+                Thread thread = new Thread(workers.get(i), "PartitionedDataLoader-" + sourceName
+                        + "-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            workers.get(0).run();
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted while waiting for data loader threads",
+                            e);
+                }
+            }
+            if (error == null) {
+                commit(workers);
+                committed = true;
+                if (metrics != null) {
+                    for (Worker worker : workers) {
+                        if (worker.iw instanceof IntegrationWriterAbstractImpl) {
+                            ((IntegrationWriterAbstractImpl) worker.iw).addMetrics(metrics);
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (Worker worker : workers) {
+                worker.close(committed);
+            }
+        }
+        if (error instanceof ObjectStoreException) {
+            throw (ObjectStoreException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException("Error while loading source " + sourceName, error);
+        }
+    }
+
+    private static boolean supportsPreparedTransactions(IntegrationWriter iw)
+        throws ObjectStoreException {
+        if (!(iw instanceof IntegrationWriterAbstractImpl)) {
+            return false;
+        }
+        ObjectStoreWriter osw = ((IntegrationWriterAbstractImpl) iw).getObjectStoreWriter();
+        if (!(osw instanceof ObjectStoreWriterInterMineImpl)) {
+            return false;
+        }
+        ObjectStoreWriterInterMineImpl oswimi = (ObjectStoreWriterInterMineImpl) osw;
+        Connection c = null;
+        try {
+            c = oswimi.getConnection();
+            return DatabaseUtil.isTwoPhaseCommitSupported(c);
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Could not check for prepared transactions", e);
+        } finally {
+            oswimi.releaseConnection(c);
+        }
+    }
+
+    /**
+     * Commits the transactions of all the workers together. If any of them cannot be prepared,
+     * the ones that have been are rolled back. A prepared transaction that then fails to commit
+     * is left prepared, so that it can be committed by hand.
+     */
+    private void commit(List<Worker> workers) throws ObjectStoreException {
+        if (workers.size() == 1) {
+            workers.get(0).iw.commitTransaction();
+            return;
+        }
+        List<Worker> prepared = new ArrayList<Worker>();
+        try {
+            for (Worker worker : workers) {
+                worker.prepare();
+                prepared.add(worker);
+            }
+        } catch (ObjectStoreException e) {
+            for (Worker worker : prepared) {
+                try {
+                    worker.getWriter().rollbackPreparedTransaction(worker.preparedId);
+                } catch (ObjectStoreException e2) {
+                    LOG.error("Could not roll back prepared transaction " + worker.preparedId
+                            + " - roll it back with ROLLBACK PREPARED", e2);
+                }
+            }
+            throw e;
+        }
+        ObjectStoreException problem = null;
+        for (Worker worker : workers) {
+            try {
+                worker.getWriter().commitPreparedTransaction(worker.preparedId);
+            } catch (ObjectStoreException e) {
+                LOG.error("Could not commit prepared transaction " + worker.preparedId
+                        + " of source " + sourceName + " - commit it with COMMIT PREPARED", e);
+                if (problem == null) {
+                    problem = e;
+                }
+            }
+        }
+        if (problem != null) {
+            throw problem;
+        }
+    }
+
+    private synchronized Set<ClassDescriptor> nextPartition() {
+        if (error != null) {
+            return null;
+        }
+        return queue.poll();
+    }
+
+    private synchronized void setError(Throwable e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    /**
+     * Records a source ObjectStore used by a worker. The ObjectStoreFactory creates a new instance
+     * of most kinds of ObjectStore, but returns a single shared instance of an
+     * ObjectStoreInterMineImpl for each alias, which is safe because it can be used by several
+     * threads at once. Any other kind of ObjectStore must not be shared.
+     */
+    private synchronized void addSource(ObjectStore os) throws ObjectStoreException {
+        if ((!sources.add(os)) && (!(os instanceof ObjectStoreInterMineImpl))) {
+            throw new ObjectStoreException("ObjectStoreFactory returned the same "
+                    + os.getClass().getName() + " for source " + sourceAlias + " to two threads,"
+                    + " which cannot be shared - set the property \"dataLoader.parallelThreads\""
+                    + " to 1 to load it serially");
+        }
+    }
+
+    /**
+     * Loads partitions with its own IntegrationWriter and source ObjectStore, in one transaction
+     * which is left for the PartitionedObjectStoreDataLoader to commit.
+     */
+    private class Worker implements Runnable
+    {
+        private IntegrationWriter iw;
+        private ObjectStore os;
+        private String preparedId = null;
+
+        public Worker() throws ObjectStoreException {
+            iw = IntegrationWriterFactory.getIntegrationWriter(integrationWriterAlias);
+            iw.setIgnoreDuplicates(ignoreDuplicates);
+            try {
+                os = ObjectStoreFactory.getObjectStore(sourceAlias);
+            } catch (Exception e) {
+                iw.close();
+                throw new ObjectStoreException("Could not create source ObjectStore "
+                        + sourceAlias, e);
+            }
+            try {
+                addSource(os);
+            } catch (ObjectStoreException e) {
+                iw.close();
+                throw e;
+            }
+        }
+
+        public void run() {
+            Set<ClassDescriptor> partition = nextPartition();
+            while (partition != null) {
+                try {
+                    load(partition);
+                } catch (Throwable e) {
+                    LOG.error("Error while loading partition of source " + sourceName, e);
+                    setError(e);
+                    return;
+                }
+                partition = nextPartition();
+            }
+        }
+
+        private void load(Set<ClassDescriptor> partition) throws ObjectStoreException {
+            Set<Class<?>> allowedClasses = new HashSet<Class<?>>();
+            allowedClasses.add(InterMineObject.class);
+            for (ClassDescriptor cld : partition) {
+                allowedClasses.add(cld.getType());
+            }
+            List<Class<? extends FastPathObject>> roots = getRoots(partition);
+            LOG.info("Loading partition " + roots + " of " + partition.size() + " classes");
+            ObjectStoreDataLoader loader = new ObjectStoreDataLoader(iw);
+            loader.setMetrics(metrics);
+            loader.setDeferCommit(true);
+            loader.process(os, iw.getMainSource(sourceName, sourceType),
+                    iw.getSkeletonSource(sourceName, sourceType), roots, allowedClasses);
+        }
+
+        private ObjectStoreWriterInterMineImpl getWriter() {
+            return (ObjectStoreWriterInterMineImpl) ((IntegrationWriterAbstractImpl) iw)
+                .getObjectStoreWriter();
+        }
+
+        private void prepare() throws ObjectStoreException {
+            String id = DatabaseUtil.newPreparedTransactionId("intermine_load");
+            getWriter().prepareTransaction(id);
+            preparedId = id;
+        }
+
+        private void close(boolean committed) {
+            try {
+                if ((!committed) && iw.isInTransaction()) {
+                    iw.abortTransaction();
+                }
+            } catch (ObjectStoreException e) {
+                LOG.error("Could not abort transaction of partition of source " + sourceName, e);
+            }
+            try {
+                iw.close();
+            } catch (Throwable e) {
+                LOG.error("Error while closing IntegrationWriter for source " + sourceName, e);
+                if (committed) {
+                    setError(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.util.IntToIntMap;
+import org.intermine.xml.full.Attribute;
+import org.intermine.xml.full.BatchObjectResolver;
+import org.intermine.xml.full.BinaryItemFormat;
+import org.intermine.xml.full.Item;
+import org.intermine.xml.full.ItemFactory;
+import org.intermine.xml.full.Reference;
+import org.intermine.xml.full.ReferenceList;
+
+/**
+ * Loads Items into a production database as they arrive from a converter, for example through
+ * an ObjectPipe filled by a PipelineItemWriter, so that converting and integrating a source can
+ * run at the same time without an items database in between.
+ * <p>
+ * An Item is only stored once every item it refers to has arrived, because the IntegrationWriter
+ * needs the primary key fields of a referenced object in order to store a skeleton for it. Items
+ * that refer to items that have not arrived yet wait in a spill file on disc until they do, and
+ * any still waiting when the input ends are stored with those references left empty, as
+ * FullParser does. Loading only overlaps conversion for items whose references arrived first, so
+ * a converter that stores an item referred to by most of the others in its close() method gains
+ * nothing from this loader - the identifiers that most items are waiting for are logged, so
+ * that such converters can be found and made to store those items first.
+ * <p>
+ * The heap used does not grow with the number of items stored. Items that have been stored are
+ * only remembered by their id, in IntToIntMaps outside the heap for identifiers made by
+ * DataConverter, and references to them are passed to the IntegrationWriter as ProxyReferences,
+ * which it resolves with its id map. Waiting items take a few dozen bytes of heap each.
+ * <p>
+ * Everything is stored in a single transaction, so a converter that fails leaves nothing in the
+ * production database.
+ *
+ * @author Matthew Wakeling
+ */
+public class PipelineDataLoader extends DataLoader
+{
+    private static final Logger LOG = Logger.getLogger(PipelineDataLoader.class);
+    private static final int BATCH_SIZE = 1000;
+
+    private ItemFactory itemFactory = new ItemFactory();
+    private int nextId = 1;
+    // The ids of all the items that have arrived, by identifier
+    private IdentifierMap ids = new IdentifierMap();
+    // The positions in the spill file of items that have arrived but not been stored
+    private Map<String, Long> spilled = new HashMap<String, Long>();
+    // The positions of waiting items, by the identifier of the item they are waiting for
+    private Map<String, List<Long>> waiting = new HashMap<String, List<Long>>();
+    private File spillFile = null;
+    private RandomAccessFile spill = null;
+    private List<Pending> ready = new ArrayList<Pending>();
+    private int waitingCount = 0;
+    private long opCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param iw the IntegrationWriter to store the objects with
+     */
+    public PipelineDataLoader(IntegrationWriter iw) {
+        super(iw);
+    }
+
+    /**
+     * Stores the Items from an Iterator, which may block while waiting for more Items, until it
+     * has no more. The IntegrationWriter is committed once at the end, but is not closed. If
+     * the Iterator or the IntegrationWriter throws an exception, nothing is committed.
+     *
+     * @param items an Iterator of Items
+     * @param source the main source
+     * @param skelSource the skeleton source
+     * @throws ObjectStoreException if something goes wrong
+     */
+    public void process(Iterator<Item> items, Source source, Source skelSource)
+        throws ObjectStoreException {
+        long startTime = System.currentTimeMillis();
+        int itemCount = 0;
+        getIntegrationWriter().beginTransaction();
+        try {
+            while (items.hasNext()) {
+                add(items.next(), source, skelSource);
+                itemCount++;
+            }
+            if (waitingCount > 0) {
+                LOG.warn(waitingCount + " items refer to items that were never stored - storing"
+                        + " them without those references");
+                for (List<Long> list : waiting.values()) {
+                    for (Long position : list) {
+                        Pending p = readSpilled(position.longValue());
+                        p.item = removeMissing(p.item);
+                        addReady(p, source, skelSource);
+                    }
+                }
+                waiting.clear();
+                waitingCount = 0;
+            }
+            storeReady(source, skelSource);
+        } catch (IOException e) {
+            throw new ObjectStoreException("Could not use spill file " + spillFile, e);
+        } finally {
+            closeSpill();
+            ids.clear();
+        }
+        getIntegrationWriter().commitTransaction();
+        long now = System.currentTimeMillis();
+        LOG.info("Finished dataloading " + opCount + " objects from " + itemCount + " items at "
+                + ((60000L * opCount) / (now - startTime + 1)) + " objects per minute ("
+                + (now - startTime) + " ms total) for source " + source.getName());
+    }
+
+    private void add(Item item, Source source, Source skelSource)
+        throws IOException, ObjectStoreException {
+        int id = nextId++;
+        Pending p = new Pending(item, new Integer(id));
+        String identifier = item.getIdentifier();
+        if (identifier != null) {
+            ids.put(identifier, id);
+            List<Long> released = waiting.remove(identifier);
+            if (released != null) {
+                waitingCount -= released.size();
+                for (Long position : released) {
+                    check(readSpilled(position.longValue()), position, source, skelSource);
+                }
+            }
+        }
+        check(p, null, source, skelSource);
+    }
+
+    /**
+     * Stores an item with the next batch if every item that it refers to has arrived, or
+     * otherwise makes it wait for the first one that has not.
+     *
+     * @param p the item
+     * @param position the position of the item in the spill file, or null if it is not there
+     */
+    private void check(Pending p, Long position, Source source, Source skelSource)
+        throws IOException, ObjectStoreException {
+        String missing = null;
+        for (Reference ref : p.item.getReferences()) {
+            if (!arrived(ref.getRefId())) {
+                missing = ref.getRefId();
+                break;
+            }
+        }
+        if (missing == null) {
+            for (ReferenceList col : p.item.getCollections()) {
+                for (String refId : col.getRefIds()) {
+                    if (!arrived(refId)) {
+                        missing = refId;
+                        break;
+                    }
+                }
+                if (missing != null) {
+                    break;
+                }
+            }
+        }
+        if (missing == null) {
+            addReady(p, source, skelSource);
+        } else {
+            if (position == null) {
+                position = writeSpilled(p);
+            }
+            List<Long> list = waiting.get(missing);
+            if (list == null) {
+                list = new ArrayList<Long>();
+                waiting.put(missing, list);
+            }
+            list.add(position);
+            waitingCount++;
+        }
+    }
+
+    private void addReady(Pending p, Source source, Source skelSource)
+        throws ObjectStoreException {
+        ready.add(p);
+        if (ready.size() >= BATCH_SIZE) {
+            storeReady(source, skelSource);
+        }
+    }
+
+    /**
+     * Returns an item without the references and collection elements that refer to items that
+     * have not arrived, which is a copy if there are any.
+     */
+    private Item removeMissing(Item item) {
+        boolean missing = false;
+        for (Reference ref : item.getReferences()) {
+            missing = missing || (!arrived(ref.getRefId()));
+        }
+        for (ReferenceList col : item.getCollections()) {
+            for (String refId : col.getRefIds()) {
+                missing = missing || (!arrived(refId));
+            }
+        }
+        if (!missing) {
+            return item;
+        }
+        Item retval = itemFactory.makeItem(item.getIdentifier(), item.getClassName(),
+                item.getImplementations());
+        for (Attribute att : item.getAttributes()) {
+            retval.addAttribute(att);
+        }
+        for (Reference ref : item.getReferences()) {
+            if (arrived(ref.getRefId())) {
+                retval.addReference(ref);
+            }
+        }
+        for (ReferenceList col : item.getCollections()) {
+            ReferenceList newCol = new ReferenceList(col.getName());
+            for (String refId : col.getRefIds()) {
+                if (arrived(refId)) {
+                    newCol.addRefId(refId);
+                }
+            }
+            retval.addCollection(newCol);
+        }
+        return retval;
+    }
+
+    private boolean arrived(String identifier) {
+        return ids.get(identifier) != -1;
+    }
+
+    private void storeReady(Source source, Source skelSource) throws ObjectStoreException {
+        try {
+            ItemResolver resolver = new ItemResolver();
+            List<FastPathObject> objects = new ArrayList<FastPathObject>();
+            for (Pending p : ready) {
+                FastPathObject obj = resolver.instantiate(p.item, p.id);
+                objects.add(obj);
+                resolver.add(p.item.getIdentifier(), obj);
+            }
+            for (int i = 0; i < ready.size(); i++) {
+                resolver.populate(ready.get(i).item, objects.get(i));
+            }
+            // Items referred to before they are ready are populated for use as skeletons
+            resolver.populateForward();
+            for (int i = 0; i < ready.size(); i++) {
+                getIntegrationWriter().store(objects.get(i), source, skelSource);
+                String identifier = ready.get(i).item.getIdentifier();
+                if (identifier != null) {
+                    spilled.remove(identifier);
+                }
+                opCount++;
+                if (opCount % 100000 == 0) {
+                    LOG.info("Dataloaded " + opCount + " objects - " + waitingCount
+                            + " items waiting to be stored" + mostWaitedFor());
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new ObjectStoreException("Item has a class that is not in the model", e);
+        } finally {
+            ready.clear();
+        }
+    }
+
+    /**
+     * Describes the identifier that the most items are waiting for, for the progress log.
+     */
+    private String mostWaitedFor() {
+        String retval = null;
+        int most = 0;
+        for (Map.Entry<String, List<Long>> entry : waiting.entrySet()) {
+            if (entry.getValue().size() > most) {
+                most = entry.getValue().size();
+                retval = entry.getKey();
+            }
+        }
+        if (retval == null) {
+            return "";
+        }
+        return ", " + most + " of them for item " + retval + " - storing that item earlier in the"
+            + " converter would let them be loaded sooner";
+    }
+
+    private Long writeSpilled(Pending p) throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("pipeline", ".spill");
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        long position = spill.length();
+        spill.seek(position);
+        spill.writeInt(p.id.intValue());
+        BinaryItemFormat.writeItem(spill, p.item);
+        Long retval = new Long(position);
+        if (p.item.getIdentifier() != null) {
+            spilled.put(p.item.getIdentifier(), retval);
+        }
+        return retval;
+    }
+
+    private Pending readSpilled(long position) throws IOException {
+        spill.seek(position);
+        Integer id = new Integer(spill.readInt());
+        return new Pending(BinaryItemFormat.readRecord(spill).getItem(), id);
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close spill file " + spillFile, e);
+            }
+            spill = null;
+            if (!spillFile.delete()) {
+                LOG.warn("Could not delete spill file " + spillFile);
+            }
+        }
+        spilled.clear();
+        waiting.clear();
+    }
+
+    /**
+     * Resolves item identifiers for a batch. Items that have been stored are referred to by id
+     * only, and items that have arrived but are waiting are read from the spill file and
+     * populated as skeletons.
+     */
+    private class ItemResolver extends BatchObjectResolver
+    {
+        public ItemResolver() {
+            super(getIntegrationWriter().getModel(), false, true);
+        }
+
+        @Override
+        protected FastPathObject lookup(String identifier) throws Exception {
+            int id = ids.get(identifier);
+            if (id == -1) {
+                return null;
+            }
+            Long position = spilled.get(identifier);
+            if (position == null) {
+                return new ProxyReference(getIntegrationWriter(), new Integer(id),
+                        InterMineObject.class);
+            }
+            Pending p = readSpilled(position.longValue());
+            FastPathObject retval = instantiate(p.item, p.id);
+            if (retval != null) {
+                forward(removeMissing(p.item));
+            }
+            return retval;
+        }
+    }
+
+    /**
+     * The ids of items by identifier. Identifiers made by DataConverter, which are a class alias
+     * and a number separated by an underscore, are kept in an IntToIntMap for each alias, which
+     * is stored outside the heap. Any other identifiers are kept in a HashMap.
+     */
+    private static class IdentifierMap
+    {
+        private Map<String, IntToIntMap> byAlias = new HashMap<String, IntToIntMap>();
+        private Map<String, Integer> others = new HashMap<String, Integer>();
+
+        public void put(String identifier, int id) {
+            int split = split(identifier);
+            if (split == -1) {
+                others.put(identifier, new Integer(id));
+            } else {
+                String alias = identifier.substring(0, split);
+                IntToIntMap map = byAlias.get(alias);
+                if (map == null) {
+                    map = IntegrationWriterAbstractImpl.createIdMap();
+                    byAlias.put(alias, map);
+                }
+                map.put(Integer.parseInt(identifier.substring(split + 1)), id);
+            }
+        }
+
+        public int get(String identifier) {
+            int split = split(identifier);
+            if (split == -1) {
+                Integer retval = others.get(identifier);
+                return (retval == null ? -1 : retval.intValue());
+            }
+            IntToIntMap map = byAlias.get(identifier.substring(0, split));
+            if (map == null) {
+                return -1;
+            }
+            return map.get(Integer.parseInt(identifier.substring(split + 1)));
+        }
+
+        public void clear() {
+            for (IntToIntMap map : byAlias.values()) {
+                map.clear();
+            }
+            byAlias.clear();
+            others.clear();
+        }
+
+        /**
+         * Returns the position of the underscore in an identifier made by DataConverter, or -1
+         * for any other identifier. The number must be written the only way Integer.toString()
+         * would write it, so that no two identifiers have the same alias and number.
+         */
+        private static int split(String identifier) {
+            int split = identifier.lastIndexOf('_');
+            int length = identifier.length() - split - 1;
+            if ((split < 1) || (length < 1) || (length > 9)
+                    || ((length > 1) && (identifier.charAt(split + 1) == '0'))) {
+                return -1;
+            }
+            for (int i = split + 1; i < identifier.length(); i++) {
+                char c = identifier.charAt(i);
+                if ((c < '0') || (c > '9')) {
+                    return -1;
+                }
+            }
+            return split;
+        }
+    }
+
+    private static class Pending
+    {
+        Item item;
+        Integer id;
+
+        public Pending(Item item, Integer id) {
+            this.item = item;
+            this.id = id;
+        }
+    }
+}
@@ -44,6 +44,7 @@ public class SourcePriorityComparator implements Comparator<InterMineObject>
     private IntegrationWriterAbstractImpl iw;
     private Source source, skelSource;
     private PriorityConfig priorityConfig;
+    private boolean reloading;
 
     /**
      * Constructs a new Comparator for comparing objects for priority for a given field.
@@ -64,6 +65,32 @@ public class SourcePriorityComparator implements Comparator<InterMineObject>
             String fieldName, Source def, InterMineObject defObj, IntPresentSet dbIdsStored,
             IntegrationWriterAbstractImpl iw, Source source, Source skelSource,
             PriorityConfig priorityConfig) {
+        this(dataTracker, clazz, fieldName, def, defObj, dbIdsStored, iw, source, skelSource,
+                priorityConfig, false);
+    }
+
+    /**
+     * Constructs a new Comparator for comparing objects for priority for a given field, where
+     * the default object may be replacing an object from a previous load of the same source.
+     *
+     * @param dataTracker the data tracker
+     * @param clazz the Class of the resulting object
+     * @param fieldName the fieldName the comparison is for
+     * @param def the default Source
+     * @param defObj a InterMineObject that came from a data source, not from the destination
+     * objectstore, and should be associated with the default source
+     * @param dbIdsStored the set of IDs stored in this dataloader run - improves error messages
+     * @param iw the IntegrationWriter creating this comparator
+     * @param source the main source, as passed to iw.store
+     * @param skelSource the skeleton source, as passed to iw.store
+     * @param priorityConfig a PriorityConfig object for the target Model
+     * @param reloading true if values in the database from the default source were loaded by a
+     * previous run, and should be replaced by the values of the default object
+     */
+    public SourcePriorityComparator(DataTracker dataTracker, Class<? extends InterMineObject> clazz,
+            String fieldName, Source def, InterMineObject defObj, IntPresentSet dbIdsStored,
+            IntegrationWriterAbstractImpl iw, Source source, Source skelSource,
+            PriorityConfig priorityConfig, boolean reloading) {
         this.dataTracker = dataTracker;
         this.clazz = clazz;
         this.fieldName = fieldName;
@@ -74,6 +101,7 @@ public class SourcePriorityComparator implements Comparator<InterMineObject>
         this.source = source;
         this.skelSource = skelSource;
         this.priorityConfig = priorityConfig;
+        this.reloading = reloading;
     }
 
     /**
@@ -96,6 +124,23 @@ public class SourcePriorityComparator implements Comparator<InterMineObject>
         } catch (IllegalAccessException e) {
             throw new RuntimeException(e);
         }
+        if (reloading && ((o1 == defObj) || (o2 == defObj))) {
+            Source oldSource = dataTracker.getSource((o1 == defObj ? o2 : o1).getId(), fieldName);
+            if ((oldSource != null) && oldSource.getName().equals(def.getName())
+                    && (oldSource.getSkeleton() || (!def.getSkeleton()))) {
+                // The value from the previous load of this source is replaced, even by null
+                return (o1 == defObj ? 1 : -1);
+            }
+        }
+        // A value left behind when the data from its source was removed by a delta load belongs
+        // to no source, so it gives way to any value that does
+        boolean unattributed1 = (o1 != defObj) && dataTracker.isUnattributed(o1.getId(),
+                fieldName);
+        boolean unattributed2 = (o2 != defObj) && dataTracker.isUnattributed(o2.getId(),
+                fieldName);
+        if (unattributed1 || unattributed2) {
+            return (unattributed1 ? -1 : 1);
+        }
         List<String> srcs = priorityConfig.getPriorities(clazz, fieldName);
         if (srcs != null) {
             if (o1 == defObj) {
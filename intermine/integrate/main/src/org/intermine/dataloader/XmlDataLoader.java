@@ -10,6 +10,8 @@ package org.intermine.dataloader;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
@@ -17,13 +19,13 @@ import java.util.List;
 import org.apache.log4j.Logger;
 import org.intermine.InterMineException;
 import org.intermine.model.FastPathObject;
-import org.intermine.model.InterMineObject;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.XmlBinding;
+import org.intermine.xml.full.StreamingFullParser;
 
 /**
  * Provides a method for unmarshalling XML given source into java
- * business objects then calls store on each.
+ * business objects then calls store on each. The XML is read in batches, so files larger than
+ * the heap can be loaded.
  * store() is AbstractDataLoader.store().
  *
  * @author Richard Smith
@@ -32,6 +34,8 @@ import org.intermine.util.XmlBinding;
 public class XmlDataLoader extends DataLoader
 {
     private static final Logger LOG = Logger.getLogger(XmlDataLoader.class);
+    // The number of objects realised from the XML at a time
+    private static final int BATCH_SIZE = 10000;
     private static int idCounter = 1;
 
     /**
@@ -53,6 +57,29 @@ public class XmlDataLoader extends DataLoader
      * @throws InterMineException if anything goes wrong with xml or storing
      */
     public void processXml(InputStream is, Source source, Source skelSource)
+        throws InterMineException {
+        LOG.info("Starting XmlDataLoader. Indexing XML file.");
+        process(new StreamingFullParser(is, getIntegrationWriter().getObjectStore().getModel(),
+                    BATCH_SIZE, null), source, skelSource);
+    }
+
+    /**
+     * Method to read business objects from a binary item file, as written by BinaryItemWriter,
+     * and call store on each.
+     *
+     * @param file the binary item file
+     * @param source the main source
+     * @param skelSource the skeleton source
+     * @throws InterMineException if anything goes wrong with reading or storing
+     */
+    public void processItemFile(File file, Source source, Source skelSource)
+        throws InterMineException {
+        LOG.info("Starting XmlDataLoader. Indexing item file " + file);
+        process(new StreamingFullParser(file, getIntegrationWriter().getObjectStore().getModel(),
+                    BATCH_SIZE, null), source, skelSource);
+    }
+
+    private void process(StreamingFullParser parser, Source source, Source skelSource)
         throws InterMineException {
         try {
             long[] times = new long[20];
@@ -62,44 +89,41 @@ public class XmlDataLoader extends DataLoader
             long opCount = 0;
             long time = (new Date()).getTime();
             long startTime = time;
-            LOG.info("Starting XmlDataLoader. Loading XML file.");
-            XmlBinding binding = new XmlBinding(getIntegrationWriter().getObjectStore().getModel());
-
-            List<FastPathObject> objects = binding.unmarshal(is);
-            LOG.info("Loaded XML file to list of " + objects.size() + " objects");
-
-            for (FastPathObject o : objects) {
-                if (o instanceof InterMineObject) {
-                    InterMineObject io = (InterMineObject) o;
-                    io.setId(new Integer(idCounter++));
-                }
-            }
+            parser.setFirstId(idCounter);
+            int itemCount = parser.getItemCount();
+            idCounter += itemCount;
+            LOG.info("Indexed " + itemCount + " items");
 
             getIntegrationWriter().beginTransaction();
-            for (FastPathObject o : objects) {
-                getIntegrationWriter().store(o, source, skelSource);
-                opCount++;
-                if (opCount % 1000 == 0) {
-                    long now = (new Date()).getTime();
-                    if (times[(int) ((opCount / 1000) % 20)] == -1) {
-                        LOG.info("Dataloaded " + opCount + " objects - running at "
-                                + (60000000 / (now - time)) + " (avg "
-                                + ((60000L * opCount) / (now - startTime))
-                                + ") objects per minute");
-                    } else {
-                        LOG.info("Dataloaded " + opCount + " objects - running at "
-                                + (60000000 / (now - time)) + " (20000 avg "
-                                + (1200000000 / (now - times[(int) ((opCount / 1000) % 20)]))
-                                + ") (avg = " + ((60000L * opCount) / (now - startTime))
-                                + ") objects per minute");
-                    }
-                    time = now;
-                    times[(int) ((opCount / 1000) % 20)] = now;
-                    if (opCount % 500000 == 0) {
-                        getIntegrationWriter().commitTransaction();
-                        getIntegrationWriter().beginTransaction();
+            List<FastPathObject> objects = parser.nextObjects();
+            while (objects != null) {
+                for (FastPathObject o : objects) {
+                    getIntegrationWriter().store(o, source, skelSource);
+                    opCount++;
+                    if (opCount % 1000 == 0) {
+                        long now = (new Date()).getTime();
+                        if (times[(int) ((opCount / 1000) % 20)] == -1) {
+                            LOG.info("Dataloaded " + opCount + " objects - running at "
+                                    + (60000000 / (now - time)) + " (avg "
+                                    + ((60000L * opCount) / (now - startTime))
+                                    + ") objects per minute");
+                        } else {
+                            LOG.info("Dataloaded " + opCount + " objects - running at "
+                                    + (60000000 / (now - time)) + " (20000 avg "
+                                    + (1200000000
+                                    / (now - times[(int) ((opCount / 1000) % 20)]))
+                                    + ") (avg = " + ((60000L * opCount) / (now - startTime))
+                                    + ") objects per minute");
+                        }
+                        time = now;
+                        times[(int) ((opCount / 1000) % 20)] = now;
+                        if (opCount % 500000 == 0) {
+                            getIntegrationWriter().commitTransaction();
+                            getIntegrationWriter().beginTransaction();
+                        }
                     }
                 }
+                objects = parser.nextObjects();
             }
             getIntegrationWriter().commitTransaction();
             long now = System.currentTimeMillis();
@@ -108,6 +132,16 @@ public class XmlDataLoader extends DataLoader
                     + " ms total) for source " + source.getName());
         } catch (ObjectStoreException e) {
             throw new InterMineException("Problem with store method", e);
+        } catch (InterMineException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InterMineException("Error reading items", e);
+        } finally {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                LOG.warn("Could not remove temporary files for XML parser", e);
+            }
         }
     }
 
@@ -157,9 +157,8 @@ public class XmlDataLoaderTask extends Task
                 while (fileIter.hasNext()) {
                     toRead = fileIter.next();
                     System.out .println("Processing file " + toRead.toString());
-                    loader.processXml(new FileInputStream(toRead),
-                                      iw.getMainSource(sourceName, sourceType),
-                                      iw.getSkeletonSource(sourceName, sourceType));
+                    processFile(loader, toRead, iw.getMainSource(sourceName, sourceType),
+                            iw.getSkeletonSource(sourceName, sourceType));
                 }
                 loader.close();
             }
@@ -171,5 +170,18 @@ public class XmlDataLoaderTask extends Task
             }
         }
     }
-}
 
+    /**
+     * Loads one file.
+     *
+     * @param loader the XmlDataLoader
+     * @param file the file
+     * @param source the main source
+     * @param skelSource the skeleton source
+     * @throws Exception if anything goes wrong
+     */
+    protected void processFile(XmlDataLoader loader, File file, Source source, Source skelSource)
+        throws Exception {
+        loader.processXml(new FileInputStream(file), source, skelSource);
+    }
+}
@@ -11,15 +11,29 @@ package org.intermine.task;
  */
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Properties;
 
+import org.apache.tools.ant.BuildException;
+import org.intermine.dataconversion.BinaryItemWriter;
+import org.intermine.dataconversion.ItemWriter;
+import org.intermine.dataconversion.ObjectStoreItemWriter;
+import org.intermine.dataconversion.PipelineItemWriter;
+import org.intermine.dataloader.IntegrationWriter;
+import org.intermine.dataloader.IntegrationWriterFactory;
+import org.intermine.dataloader.PriorityConfig;
 import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.ObjectStoreWriterFactory;
 import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.util.PropertiesUtil;
 
 /**
  * Task superclass for invoking converters.
@@ -31,6 +45,12 @@ public class ConverterTask extends DynamicAttributeTask
     private String modelName = null;
     private String osName;
     private String excludeList;
+    private String itemFile = null;
+    private String integrationWriter = null;
+    private String sourceName;
+    private String sourceType;
+    private boolean ignoreDuplicates = false;
+    private String allSources;
 
     /**
      * Set the objectstore name
@@ -40,6 +60,153 @@ public class ConverterTask extends DynamicAttributeTask
         this.osName = osName;
     }
 
+    /**
+     * Set a binary item file to write the items to, instead of the objectstore. The file can be
+     * loaded with the insert-item-file task.
+     *
+     * @param itemFile the name of the file
+     */
+    public void setItemFile(String itemFile) {
+        this.itemFile = itemFile;
+    }
+
+    /**
+     * Return the binary item file set by setItemFile().
+     *
+     * @return the file name, or null if items are written to the objectstore
+     */
+    public String getItemFile() {
+        return itemFile;
+    }
+
+    /**
+     * Set an IntegrationWriter to load the items into while they are converted, instead of
+     * writing them to the objectstore. The sourceName and sourceType attributes must be set too.
+     *
+     * @param integrationWriter the name of the IntegrationWriter
+     */
+    public void setIntegrationWriter(String integrationWriter) {
+        this.integrationWriter = integrationWriter;
+    }
+
+    /**
+     * Set the source name, as used by primary key priority config, when loading the items with
+     * an IntegrationWriter.
+     *
+     * @param sourceName the name of the data source
+     */
+    public void setSourceName(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    /**
+     * Set the source type, as used by primary key priority config, when loading the items with
+     * an IntegrationWriter.
+     *
+     * @param sourceType the type of the data source
+     */
+    public void setSourceType(String sourceType) {
+        this.sourceType = sourceType;
+    }
+
+    /**
+     * Set the value of ignoreDuplicates for the IntegrationWriter.
+     *
+     * @param ignoreDuplicates the value of ignoreDuplicates
+     */
+    public void setIgnoreDuplicates(boolean ignoreDuplicates) {
+        this.ignoreDuplicates = ignoreDuplicates;
+    }
+
+    /**
+     * Set the list of data sources present in the project.xml, for the purposes of verifying the
+     * priorities properties file.
+     *
+     * @param allSources a space-separated list of source names
+     */
+    public void setAllSources(String allSources) {
+        this.allSources = allSources;
+    }
+
+    /**
+     * Checks that there is somewhere to write the items to, throwing a BuildException if none
+     * of osName, itemFile and integrationWriter is set.
+     */
+    protected void checkDestination() {
+        if ((osName == null) && (itemFile == null) && (integrationWriter == null)) {
+            throw new BuildException("osName attribute is not set");
+        }
+        if ((integrationWriter != null) && (sourceName == null)) {
+            throw new BuildException("sourceName attribute is not set");
+        }
+    }
+
+    /**
+     * Returns an ObjectStoreWriter for the items objectstore, or null if the items are being
+     * written to a file or loaded with an IntegrationWriter.
+     *
+     * @return an ObjectStoreWriter, or null
+     * @throws ObjectStoreException if the ObjectStoreWriter cannot be created
+     */
+    protected ObjectStoreWriter getItemObjectStoreWriter() throws ObjectStoreException {
+        if ((itemFile != null) || (integrationWriter != null)) {
+            return null;
+        }
+        return ObjectStoreWriterFactory.getObjectStoreWriter(osName);
+    }
+
+    /**
+     * Returns an ItemWriter that writes to the binary item file or the IntegrationWriter if one
+     * is set, or otherwise to the given ObjectStoreWriter.
+     * <p>
+     * When loading with an IntegrationWriter, the properties "dataLoader.pipeline.window" and
+     * "dataLoader.pipeline.queueSize" set how many recently stored items the converter can still
+     * add to, and how many items can wait to be loaded, both defaulting to 10000.
+     *
+     * @param osw the ObjectStoreWriter returned by getItemObjectStoreWriter()
+     * @return an ItemWriter
+     * @throws ObjectStoreException if the ItemWriter cannot be created
+     */
+    protected ItemWriter createItemWriter(ObjectStoreWriter osw) throws ObjectStoreException {
+        if (itemFile != null) {
+            return new BinaryItemWriter(new File(itemFile));
+        }
+        if (integrationWriter != null) {
+            IntegrationWriter iw = IntegrationWriterFactory.getIntegrationWriter(
+                    integrationWriter);
+            PriorityConfig.verify(iw.getModel(), allSources);
+            iw.setIgnoreDuplicates(ignoreDuplicates);
+            Properties props = PropertiesUtil.getPropertiesStartingWith("dataLoader.pipeline");
+            return new PipelineItemWriter(iw, iw.getMainSource(sourceName, sourceType),
+                    iw.getSkeletonSource(sourceName, sourceType),
+                    getIntProperty(props, "dataLoader.pipeline.window", 10000),
+                    getIntProperty(props, "dataLoader.pipeline.queueSize", 10000));
+        }
+        return new ObjectStoreItemWriter(osw);
+    }
+
+    /**
+     * Closes an ItemWriter returned by createItemWriter(). If the conversion failed and the
+     * items are being loaded with an IntegrationWriter, the load is aborted instead.
+     *
+     * @param writer the ItemWriter
+     * @param succeeded false if the conversion failed
+     * @throws ObjectStoreException if the ItemWriter cannot be closed
+     */
+    protected void closeItemWriter(ItemWriter writer, boolean succeeded)
+        throws ObjectStoreException {
+        if ((!succeeded) && (writer instanceof PipelineItemWriter)) {
+            ((PipelineItemWriter) writer).abort();
+        } else {
+            writer.close();
+        }
+    }
+
+    private static int getIntProperty(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        return (value == null ? defaultValue : Integer.parseInt(value.trim()));
+    }
+
     /**
      * Sets the list of classes to NOT try and convert
      * @param excludeList the suitably formatted list of classes to exclude.
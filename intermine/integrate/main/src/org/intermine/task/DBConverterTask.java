@@ -12,10 +12,9 @@ package org.intermine.task;
 
 import org.intermine.dataconversion.DBConverter;
 import org.intermine.dataconversion.ItemWriter;
-import org.intermine.dataconversion.ObjectStoreItemWriter;
+import org.intermine.dataconversion.PipelineItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStoreWriter;
-import org.intermine.objectstore.ObjectStoreWriterFactory;
 import org.intermine.sql.Database;
 import org.intermine.sql.DatabaseFactory;
 
@@ -57,18 +56,17 @@ public class DBConverterTask extends ConverterTask
         if (clsName == null) {
             throw new BuildException("clsName attribute is not set");
         }
-        if (getOsName() == null) {
-            throw new BuildException("osName attribute is not set");
-        }
+        checkDestination();
         if (getModelName() == null) {
             throw new BuildException("modelName attribute is not set");
         }
         if (dbAlias == null) {
             throw new BuildException("dbAlias attribute is not set");
         }
+        ItemWriter writer = null;
         try {
-            ObjectStoreWriter osw = ObjectStoreWriterFactory.getObjectStoreWriter(getOsName());
-            ObjectStoreItemWriter writer = new ObjectStoreItemWriter(osw);
+            ObjectStoreWriter osw = getItemObjectStoreWriter();
+            writer = createItemWriter(osw);
             Database database = DatabaseFactory.getDatabase(dbAlias);
 
             Class<?> c = Class.forName(clsName);
@@ -86,8 +84,17 @@ public class DBConverterTask extends ConverterTask
             converter.process();
             converter.close();
             converter.getItemWriter().close();
-            osw.close();
+            if (osw != null) {
+                osw.close();
+            }
         } catch (Exception e) {
+            if (writer instanceof PipelineItemWriter) {
+                try {
+                    ((PipelineItemWriter) writer).abort();
+                } catch (Exception e2) {
+                    // the original exception is more useful
+                }
+            }
             throw new BuildException("problem while running converter reading from db: "
                                      + dbAlias, e);
         }
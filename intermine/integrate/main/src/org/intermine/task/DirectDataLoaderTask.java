@@ -104,7 +104,9 @@ public abstract class DirectDataLoaderTask extends Task
 
     /**
      * Called by execute() to process the data.  This implementation should call
-     * DirectDataLoader.createObject() and then DirectDataLoader.store() while processing.
+     * DirectDataLoader.createObject() and then DirectDataLoader.store() while processing. Objects
+     * may be created and stored by several threads, each of which must call
+     * DirectDataLoader.flush() when it has finished.
      */
     public abstract void process();
 
@@ -131,6 +133,9 @@ public abstract class DirectDataLoaderTask extends Task
 
             process();
 
+            if (directDataLoader != null) {
+                directDataLoader.flush();
+            }
             getIntegrationWriter().commitTransaction();
             getIntegrationWriter().close();
             directDataLoader.close();
@@ -16,10 +16,8 @@ import java.lang.reflect.Constructor;
 import org.apache.tools.ant.BuildException;
 import org.intermine.dataconversion.DirectoryConverter;
 import org.intermine.dataconversion.ItemWriter;
-import org.intermine.dataconversion.ObjectStoreItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStoreWriter;
-import org.intermine.objectstore.ObjectStoreWriterFactory;
 
 /**
  * Initiates retrieval and conversion of data from a source directory.
@@ -68,9 +66,7 @@ public class DirectoryConverterTask extends ConverterTask
         if (clsName == null) {
             throw new BuildException("clsName attribute is not set");
         }
-        if (getOsName() == null) {
-            throw new BuildException("osName attribute is not set");
-        }
+        checkDestination();
         if (getModelName() == null) {
             throw new BuildException("modelName attribute is not set");
         }
@@ -81,10 +77,11 @@ public class DirectoryConverterTask extends ConverterTask
 
         ObjectStoreWriter osw = null;
         ItemWriter writer = null;
+        boolean succeeded = false;
         try {
             Model model = Model.getInstanceByName(getModelName());
-            osw = ObjectStoreWriterFactory.getObjectStoreWriter(getOsName());
-            writer = new ObjectStoreItemWriter(osw);
+            osw = getItemObjectStoreWriter();
+            writer = createItemWriter(osw);
 
             Class c = Class.forName(clsName);
             if (!DirectoryConverter.class.isAssignableFrom(c)) {
@@ -108,15 +105,16 @@ public class DirectoryConverterTask extends ConverterTask
             } finally {
                 converter.close();
             }
+            succeeded = true;
         } catch (Exception e) {
             throw new BuildException(e);
         } finally {
             Thread.currentThread().setContextClassLoader(cl);
             try {
                 if (writer != null) {
-                    writer.close();
+                    closeItemWriter(writer, succeeded);
                 }
-                if (writer != null) {
+                if (osw != null) {
                     osw.close();
                 }
             } catch (Exception e) {
@@ -124,10 +122,12 @@ public class DirectoryConverterTask extends ConverterTask
             }
         }
 
-        try {
-            doSQL(osw.getObjectStore());
-        } catch (Exception e) {
-            throw new BuildException(e);
+        if (osw != null) {
+            try {
+                doSQL(osw.getObjectStore());
+            } catch (Exception e) {
+                throw new BuildException(e);
+            }
         }
     }
 
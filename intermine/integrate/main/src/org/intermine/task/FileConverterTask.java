@@ -21,10 +21,8 @@ import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.types.FileSet;
 import org.intermine.dataconversion.FileConverter;
 import org.intermine.dataconversion.ItemWriter;
-import org.intermine.dataconversion.ObjectStoreItemWriter;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStoreWriter;
-import org.intermine.objectstore.ObjectStoreWriterFactory;
 
 /**
  * Initiates retrieval and conversion of data from a source file.
@@ -69,9 +67,7 @@ public class FileConverterTask extends ConverterTask
         if (clsName == null) {
             throw new BuildException("clsName attribute is not set");
         }
-        if (getOsName() == null) {
-            throw new BuildException("osName attribute is not set");
-        }
+        checkDestination();
         if (getModelName() == null) {
             throw new BuildException("modelName attribute is not set");
         }
@@ -82,10 +78,11 @@ public class FileConverterTask extends ConverterTask
 
         ObjectStoreWriter osw = null;
         ItemWriter writer = null;
+        boolean succeeded = false;
         try {
             Model model = Model.getInstanceByName(getModelName());
-            osw = ObjectStoreWriterFactory.getObjectStoreWriter(getOsName());
-            writer = new ObjectStoreItemWriter(osw);
+            osw = getItemObjectStoreWriter();
+            writer = createItemWriter(osw);
 
             Class<?> c = Class.forName(clsName);
             if (!FileConverter.class.isAssignableFrom(c)) {
@@ -124,15 +121,16 @@ public class FileConverterTask extends ConverterTask
                 }
             }
             converter.close();
+            succeeded = true;
         } catch (Exception e) {
             throw new BuildException(e);
         } finally {
             Thread.currentThread().setContextClassLoader(cl);
             try {
                 if (writer != null) {
-                    writer.close();
+                    closeItemWriter(writer, succeeded);
                 }
-                if (writer != null) {
+                if (osw != null) {
                     osw.close();
                 }
             } catch (Exception e) {
@@ -140,10 +138,12 @@ public class FileConverterTask extends ConverterTask
             }
         }
 
-        try {
-            doSQL(osw.getObjectStore());
-        } catch (Exception e) {
-            throw new BuildException(e);
+        if (osw != null) {
+            try {
+                doSQL(osw.getObjectStore());
+            } catch (Exception e) {
+                throw new BuildException(e);
+            }
         }
     }
 
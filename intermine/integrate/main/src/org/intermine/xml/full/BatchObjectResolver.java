@@ -0,0 +1,181 @@
+package org.intermine.xml.full;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.Model;
+import org.intermine.metadata.TypeUtil;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.InterMineObject;
+import org.intermine.util.DynamicUtil;
+
+/**
+ * Realises a batch of Items as business objects, when the items that they refer to are not all
+ * in memory. The objects for the items in the batch are created with instantiate() and added
+ * with add(). Any other identifier is looked up once per batch with lookup(), which may create
+ * an object for an item that has not been realised yet and pass that item to forward(). Such
+ * items are populated by populateForward() after the batch, so that objects they refer to have
+ * all their fields. References from a forward item to further items do not make those items
+ * forward in turn, so however long a chain of forward references is, only its first link is
+ * realised.
+ *
+ * @author Matthew Wakeling
+ */
+public abstract class BatchObjectResolver implements FullParser.ObjectResolver
+{
+    private static final Logger LOG = Logger.getLogger(BatchObjectResolver.class);
+
+    private Model model;
+    private boolean useIdentifier;
+    private boolean abortOnError;
+    private Map<String, FastPathObject> objects = new HashMap<String, FastPathObject>();
+    private LinkedList<Item> forward = new LinkedList<Item>();
+    private boolean populatingForward = false;
+
+    /**
+     * Constructor.
+     *
+     * @param model the Model of the items
+     * @param useIdentifier if true, the ids of the objects are taken from the item identifiers
+     * @param abortOnError if true, throw an exception if there is a problem.  If false, log the
+     * problem and continue if possible
+     */
+    public BatchObjectResolver(Model model, boolean useIdentifier, boolean abortOnError) {
+        this.model = model;
+        this.useIdentifier = useIdentifier;
+        this.abortOnError = abortOnError;
+    }
+
+    /**
+     * Creates an empty object for an item, with its id set.
+     *
+     * @param item the Item
+     * @param id the id to give the object, if it is an InterMineObject and useIdentifier is false
+     * @return the object, or null if its class is not in the model and abortOnError is false
+     * @throws ClassNotFoundException if the class of the item is not in the model
+     */
+    public FastPathObject instantiate(Item item, Integer id) throws ClassNotFoundException {
+        FastPathObject retval;
+        try {
+            retval = DynamicUtil.instantiateObject(
+                    ItemHelper.generateClassNames(item.getClassName(), model),
+                    ItemHelper.generateClassNames(item.getImplementations(), model));
+        } catch (ClassNotFoundException e) {
+            if (abortOnError) {
+                throw e;
+            }
+            LOG.warn("Not creating object for item: " + item.getIdentifier() + " class: "
+                    + item.getClassName() + " not found in model.");
+            return null;
+        }
+        if (retval instanceof InterMineObject) {
+            if (useIdentifier) {
+                ((InterMineObject) retval).setId((Integer) TypeUtil.stringToObject(
+                            Integer.class, item.getIdentifier()));
+            } else {
+                ((InterMineObject) retval).setId(id);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Adds the object for an item in the batch, so that references to it resolve to it.
+     *
+     * @param identifier the identifier of the item, which may be null
+     * @param obj the object
+     */
+    public void add(String identifier, FastPathObject obj) {
+        if ((obj != null) && (identifier != null)) {
+            objects.put(identifier, obj);
+        }
+    }
+
+    /**
+     * Fills in the fields of an object from an item.
+     *
+     * @param item the Item
+     * @param obj the object created for it by instantiate()
+     * @return the object
+     */
+    public FastPathObject populate(Item item, FastPathObject obj) {
+        return FullParser.populateObject(item, this, useIdentifier, abortOnError, obj);
+    }
+
+    /**
+     * Populates the objects of the items passed to forward() while the batch was populated.
+     */
+    public void populateForward() {
+        populatingForward = true;
+        try {
+            while (!forward.isEmpty()) {
+                Item item = forward.removeFirst();
+                populate(item, objects.get(item.getIdentifier()));
+            }
+        } finally {
+            populatingForward = false;
+            forward.clear();
+        }
+    }
+
+    /**
+     * Forgets the objects of the batch, so that the next batch can be started.
+     */
+    public void clear() {
+        objects.clear();
+        forward.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public FastPathObject resolve(String identifier) {
+        FastPathObject retval = objects.get(identifier);
+        if ((retval != null) || objects.containsKey(identifier)) {
+            return retval;
+        }
+        try {
+            retval = lookup(identifier);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Could not resolve reference to item " + identifier, e);
+        }
+        objects.put(identifier, retval);
+        return retval;
+    }
+
+    /**
+     * Marks an item found by lookup() as one whose object should be populated after the batch.
+     * This has no effect while forward items are being populated.
+     *
+     * @param item the Item, whose object lookup() is returning
+     */
+    protected void forward(Item item) {
+        if (!populatingForward) {
+            forward.add(item);
+        }
+    }
+
+    /**
+     * Returns the object for an identifier that is not in the batch. This is called at most once
+     * for each identifier in a batch.
+     *
+     * @param identifier an item identifier
+     * @return the object, or null if there is no such item
+     * @throws Exception if the item cannot be read or realised
+     */
+    protected abstract FastPathObject lookup(String identifier) throws Exception;
+}
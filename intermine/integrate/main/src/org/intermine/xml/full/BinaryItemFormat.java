@@ -0,0 +1,350 @@
+package org.intermine.xml.full;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Reads and writes the binary item file format, a compact alternative to InterMine Full XML that
+ * converters can write with BinaryItemWriter and StreamingFullParser can load.
+ * <p>
+ * A file starts with a magic number and a version, followed by records. Each record is a type
+ * byte, the length of the rest of the record, and then the record itself, so a reader can skip
+ * records it does not want. An item record holds a whole Item. The other records add an
+ * attribute, reference or collection to an item that was written earlier, identified by its
+ * position among the item records in the file, as converters may store these after the item.
+ * Strings are written as a length and UTF-8 bytes, with a length of -1 for null.
+ *
+ * @author Matthew Wakeling
+ */
+public final class BinaryItemFormat
+{
+    /** The number at the start of every binary item file */
+    public static final int MAGIC = 0x494D4931;
+    /** The version of the format */
+    public static final int VERSION = 1;
+    /** The number of bytes in the file header */
+    public static final int HEADER_BYTES = 8;
+    /** The type of a record holding an Item */
+    public static final byte ITEM = 1;
+    /** The type of a record adding an attribute to an earlier Item */
+    public static final byte ATTRIBUTE = 2;
+    /** The type of a record adding a reference to an earlier Item */
+    public static final byte REFERENCE = 3;
+    /** The type of a record adding a collection to an earlier Item */
+    public static final byte COLLECTION = 4;
+
+    private BinaryItemFormat() {
+    }
+
+    /**
+     * Writes the file header.
+     *
+     * @param out the DataOutput
+     * @throws IOException if the write fails
+     */
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Reads and checks the file header.
+     *
+     * @param in the DataInput
+     * @throws IOException if the read fails or the input is not a binary item file
+     */
+    public static void readHeader(DataInput in) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a binary item file");
+        }
+        if (version != VERSION) {
+            throw new IOException("Binary item file is version " + version + ", but only version "
+                    + VERSION + " is understood");
+        }
+    }
+
+    /**
+     * Writes an item record.
+     *
+     * @param out the DataOutput
+     * @param item the Item
+     * @return the number of bytes written
+     * @throws IOException if the write fails
+     */
+    public static int writeItem(DataOutput out, Item item) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        writeString(dos, item.getIdentifier());
+        writeString(dos, item.getClassName());
+        writeString(dos, item.getImplementations());
+        dos.writeInt(item.getAttributes().size());
+        for (Attribute attribute : item.getAttributes()) {
+            writeString(dos, attribute.getName());
+            writeString(dos, attribute.getValue());
+        }
+        dos.writeInt(item.getReferences().size());
+        for (Reference reference : item.getReferences()) {
+            writeString(dos, reference.getName());
+            writeString(dos, reference.getRefId());
+        }
+        dos.writeInt(item.getCollections().size());
+        for (ReferenceList collection : item.getCollections()) {
+            writeString(dos, collection.getName());
+            writeStrings(dos, collection.getRefIds());
+        }
+        return writeRecord(out, ITEM, baos);
+    }
+
+    /**
+     * Writes a record that adds an attribute to an earlier Item.
+     *
+     * @param out the DataOutput
+     * @param ordinal the position of the Item among the items in the file, starting at zero
+     * @param name the name of the attribute
+     * @param value the value of the attribute
+     * @return the number of bytes written
+     * @throws IOException if the write fails
+     */
+    public static int writeAttribute(DataOutput out, int ordinal, String name, String value)
+        throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(ordinal);
+        writeString(dos, name);
+        writeString(dos, value);
+        return writeRecord(out, ATTRIBUTE, baos);
+    }
+
+    /**
+     * Writes a record that adds a reference to an earlier Item.
+     *
+     * @param out the DataOutput
+     * @param ordinal the position of the Item among the items in the file, starting at zero
+     * @param name the name of the reference
+     * @param refId the identifier of the referenced Item
+     * @return the number of bytes written
+     * @throws IOException if the write fails
+     */
+    public static int writeReference(DataOutput out, int ordinal, String name, String refId)
+        throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(ordinal);
+        writeString(dos, name);
+        writeString(dos, refId);
+        return writeRecord(out, REFERENCE, baos);
+    }
+
+    /**
+     * Writes a record that adds a collection to an earlier Item.
+     *
+     * @param out the DataOutput
+     * @param ordinal the position of the Item among the items in the file, starting at zero
+     * @param name the name of the collection
+     * @param refIds the identifiers of the Items in the collection
+     * @return the number of bytes written
+     * @throws IOException if the write fails
+     */
+    public static int writeCollection(DataOutput out, int ordinal, String name,
+            Collection<String> refIds) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(ordinal);
+        writeString(dos, name);
+        writeStrings(dos, refIds);
+        return writeRecord(out, COLLECTION, baos);
+    }
+
+    /**
+     * Reads a record. For an item record, the returned Record holds the Item. For the other
+     * records, it holds the ordinal of the Item to add to, and an Item with no identifier or
+     * class that holds just the attribute, reference or collection to add.
+     *
+     * @param in the DataInput
+     * @return a Record
+     * @throws IOException if the read fails, including an EOFException at the end of the file
+     */
+    public static Record readRecord(DataInput in) throws IOException {
+        byte type = in.readByte();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (type == ITEM) {
+            Item item = new ItemFactory().makeItem(readString(dis));
+            String className = readString(dis);
+            if (className != null) {
+                item.setClassName(className);
+            }
+            String implementations = readString(dis);
+            if (implementations != null) {
+                item.setImplementations(implementations);
+            }
+            for (int i = dis.readInt(); i > 0; i--) {
+                item.addAttribute(new Attribute(readString(dis), readString(dis)));
+            }
+            for (int i = dis.readInt(); i > 0; i--) {
+                item.addReference(new Reference(readString(dis), readString(dis)));
+            }
+            for (int i = dis.readInt(); i > 0; i--) {
+                item.addCollection(readCollection(dis));
+            }
+            return new Record(type, -1, item, bytes.length + 5);
+        }
+        int ordinal = dis.readInt();
+        Item addition = new Item();
+        if (type == ATTRIBUTE) {
+            addition.addAttribute(new Attribute(readString(dis), readString(dis)));
+        } else if (type == REFERENCE) {
+            addition.addReference(new Reference(readString(dis), readString(dis)));
+        } else if (type == COLLECTION) {
+            addition.addCollection(readCollection(dis));
+        } else {
+            throw new IOException("Unknown record type " + type + " in binary item file");
+        }
+        return new Record(type, ordinal, addition, bytes.length + 5);
+    }
+
+    /**
+     * Adds the attributes, references and collections of one Item to another, replacing any
+     * with the same name.
+     *
+     * @param item the Item to add to
+     * @param addition an Item holding the parts to add
+     */
+    public static void merge(Item item, Item addition) {
+        for (Attribute attribute : addition.getAttributes()) {
+            item.addAttribute(attribute);
+        }
+        for (Reference reference : addition.getReferences()) {
+            item.addReference(reference);
+        }
+        for (ReferenceList collection : addition.getCollections()) {
+            item.addCollection(collection);
+        }
+    }
+
+    private static ReferenceList readCollection(DataInputStream in) throws IOException {
+        ReferenceList collection = new ReferenceList(readString(in));
+        for (int j = in.readInt(); j > 0; j--) {
+            collection.addRefId(readString(in));
+        }
+        return collection;
+    }
+
+    private static int writeRecord(DataOutput out, byte type, ByteArrayOutputStream baos)
+        throws IOException {
+        out.writeByte(type);
+        out.writeInt(baos.size());
+        out.write(baos.toByteArray());
+        return baos.size() + 5;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values)
+        throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    // writeUTF() is limited to 64k, which is not enough for some attribute values
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A record read from a binary item file.
+     */
+    public static class Record
+    {
+        private byte type;
+        private int ordinal;
+        private Item item;
+        private int length;
+
+        /**
+         * Constructor.
+         *
+         * @param type the record type
+         * @param ordinal the ordinal of the Item to add to, or -1 for an item record
+         * @param item the Item, or the parts to add
+         * @param length the number of bytes in the record
+         */
+        public Record(byte type, int ordinal, Item item, int length) {
+            this.type = type;
+            this.ordinal = ordinal;
+            this.item = item;
+            this.length = length;
+        }
+
+        /**
+         * Returns the record type.
+         *
+         * @return ITEM, ATTRIBUTE, REFERENCE or COLLECTION
+         */
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * Returns the ordinal of the Item that this record adds to.
+         *
+         * @return an int, or -1 for an item record
+         */
+        public int getOrdinal() {
+            return ordinal;
+        }
+
+        /**
+         * Returns the Item of an item record, or an Item holding the parts to add.
+         *
+         * @return an Item
+         */
+        public Item getItem() {
+            return item;
+        }
+
+        /**
+         * Returns the number of bytes in the record, including its type and length.
+         *
+         * @return an int
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -43,6 +43,22 @@ public final class FullParser
 
     private static final Logger LOG = Logger.getLogger(FullParser.class);
 
+    /**
+     * Looks up the object for an item identifier while an object is being populated. This lets
+     * callers that realise objects lazily, such as the StreamingFullParser, find them without
+     * having to present them as a complete Map.
+     */
+    public interface ObjectResolver
+    {
+        /**
+         * Returns the outline object for an item identifier.
+         *
+         * @param identifier an item identifier
+         * @return the object, or null if there is no such item
+         */
+        FastPathObject resolve(String identifier);
+    }
+
     /**
      * Parse a InterMine Full XML file
      *
@@ -153,7 +169,29 @@ public final class FullParser
      * @param obj the object
      * @return a populated object
      */
-    protected static FastPathObject populateObject(Item item, Map<String, FastPathObject> objMap,
+    public static FastPathObject populateObject(Item item,
+            final Map<String, FastPathObject> objMap, boolean useIdentifier, boolean abortOnError,
+            FastPathObject obj) {
+        return populateObject(item, new ObjectResolver() {
+            public FastPathObject resolve(String identifier) {
+                return objMap.get(identifier);
+            }
+        }, useIdentifier, abortOnError, obj);
+    }
+
+    /**
+     * Fill in fields of an outline business object, looking up the objects it refers to with an
+     * ObjectResolver.
+     *
+     * @param item a the Item to read field data from
+     * @param resolver an ObjectResolver for the objects referred to by the item
+     * @param useIdentifier if true, set the id of the new object using the identifier of the Item
+     * @param abortOnError if true, throw an exception if there is a problem.  If false, log the
+     * problem and continue if possible
+     * @param obj the object
+     * @return a populated object
+     */
+    public static FastPathObject populateObject(Item item, ObjectResolver resolver,
             boolean useIdentifier, boolean abortOnError, FastPathObject obj) {
         try {
             // Set the data for every given attribute except id
@@ -196,7 +234,7 @@ public final class FullParser
 
             // Set the data for every given reference
             for (Reference ref : item.getReferences()) {
-                Object refObj = objMap.get(ref.getRefId());
+                Object refObj = resolver.resolve(ref.getRefId());
                 String refName = ref.getName();
                 Class<?> refClass;
                 try {
@@ -240,7 +278,7 @@ public final class FullParser
                 @SuppressWarnings("unchecked") Collection<Object> col
                     = (Collection<Object>) obj.getFieldValue(refList.getName());
                 for (String refId : refList.getRefIds()) {
-                    col.add(objMap.get(refId));
+                    col.add(resolver.resolve(refId));
                 }
             }
 
@@ -0,0 +1,551 @@
+package org.intermine.xml.full;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.Model;
+import org.intermine.model.FastPathObject;
+
+/**
+ * Parses InterMine Full XML files of any size with a bounded amount of memory. This is an
+ * alternative to FullParser, which reads the whole file into a List of Items.
+ * <p>
+ * The file is read once with a StAX parser, and each Item is written to a spill file on disc,
+ * while an index from item identifier to position in the spill file is built. The index is a
+ * hash table in a memory-mapped file, so it does not take up heap either. Items are then read
+ * back in order and returned in batches, either as Items or as realised business objects. When
+ * an object refers to an item that has not been returned yet, that item is realised from the
+ * spill file, so that (as with FullParser.realiseObjects) the referenced object has all its
+ * fields. References from such an object to items that have not been returned yet either get an
+ * object with only its class and id, rather than being realised in turn, so the number of
+ * objects realised for a batch is bounded by the number of references made by the batch, however
+ * long the chains of forward references in the file are. An object that refers to an item that
+ * was returned in an earlier batch also gets an object with only its class and id, because the
+ * earlier object has already been dealt with.
+ * <p>
+ * So that such references work, every InterMineObject is given an id - either the item
+ * identifier, if useIdentifier is set, or firstId plus the position of the item in the file.
+ * A file may hold at most 2^29 items.
+ * <p>
+ * The spill file is in the format described by BinaryItemFormat, so a binary item file written
+ * by a converter can be read in place, without parsing any XML. Records that add to an earlier
+ * item are held in memory and applied as the item is read.
+ *
+ * @author Matthew Wakeling
+ */
+public class StreamingFullParser
+{
+    private static final Logger LOG = Logger.getLogger(StreamingFullParser.class);
+    // Each index slot is the 64-bit hash of the identifier, then the position of the item record
+    private static final int SLOT_BYTES = 16;
+    private static final int CHUNK_SHIFT = 26;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+    // The index is at most half full, and has a power of two slots addressed by an int
+    private static final int MAX_ITEMS = 1 << 29;
+
+    private InputStream is;
+    private File itemFile;
+    private Model model;
+    private int batchSize;
+    private File spillDir;
+    private boolean useIdentifier = false;
+    private boolean abortOnError = true;
+    private int firstId = 1;
+
+    private File spillFile = null;
+    private File indexFile = null;
+    private RandomAccessFile spillRandom = null;
+    private DataInputStream spillIn = null;
+    private MappedByteBuffer[] index = null;
+    private int indexSlots = 0;
+    private int itemCount = 0;
+    private int nextOrdinal = 0;
+    private Map<Integer, Item> additions = new HashMap<Integer, Item>();
+
+    /**
+     * Constructs a new StreamingFullParser. Nothing is read until the first batch is requested.
+     *
+     * @param is the InputStream to parse
+     * @param model the Model of the items
+     * @param batchSize the number of items to return in each batch
+     * @param spillDir the directory in which to create the spill files, or null for the default
+     * temporary directory
+     */
+    public StreamingFullParser(InputStream is, Model model, int batchSize, File spillDir) {
+        if (is == null) {
+            throw new NullPointerException("InputStream cannot be null");
+        }
+        this.is = is;
+        this.model = model;
+        this.batchSize = batchSize;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Constructs a new StreamingFullParser that reads a binary item file, as written by
+     * BinaryItemWriter. The file is used in place of a spill file, and is not deleted by close.
+     *
+     * @param itemFile the binary item file
+     * @param model the Model of the items
+     * @param batchSize the number of items to return in each batch
+     * @param spillDir the directory in which to create the index file, or null for the default
+     * temporary directory
+     */
+    public StreamingFullParser(File itemFile, Model model, int batchSize, File spillDir) {
+        if (itemFile == null) {
+            throw new NullPointerException("itemFile cannot be null");
+        }
+        this.itemFile = itemFile;
+        this.model = model;
+        this.batchSize = batchSize;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Sets whether the ids of the realised objects are taken from the item identifiers, which
+     * must then be integers. Otherwise, ids are allocated from firstId. Defaults to false.
+     *
+     * @param useIdentifier a boolean
+     */
+    public void setUseIdentifier(boolean useIdentifier) {
+        this.useIdentifier = useIdentifier;
+    }
+
+    /**
+     * Sets whether an exception is thrown when an item cannot be realised, or whether the
+     * problem is logged. Defaults to true.
+     *
+     * @param abortOnError a boolean
+     */
+    public void setAbortOnError(boolean abortOnError) {
+        this.abortOnError = abortOnError;
+    }
+
+    /**
+     * Sets the id given to the object realised from the first item in the file, if useIdentifier
+     * is false. Defaults to 1.
+     *
+     * @param firstId an int
+     */
+    public void setFirstId(int firstId) {
+        this.firstId = firstId;
+    }
+
+    /**
+     * Returns the number of items in the file. This causes the whole file to be read into the
+     * spill file, if it has not been already.
+     *
+     * @return an int
+     * @throws Exception if there is an error while parsing
+     */
+    public int getItemCount() throws Exception {
+        spill();
+        return itemCount;
+    }
+
+    /**
+     * Returns the next batch of Items from the file.
+     *
+     * @return a List of up to batchSize Items, or null if there are no more
+     * @throws Exception if there is an error while parsing
+     */
+    public List<Item> nextItems() throws Exception {
+        spill();
+        if (nextOrdinal >= itemCount) {
+            return null;
+        }
+        List<Item> retval = new ArrayList<Item>();
+        while ((retval.size() < batchSize) && (nextOrdinal < itemCount)) {
+            BinaryItemFormat.Record record = BinaryItemFormat.readRecord(spillIn);
+            if (record.getType() == BinaryItemFormat.ITEM) {
+                retval.add(addTo(record.getItem(), nextOrdinal));
+                nextOrdinal++;
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the next batch of business objects realised from the Items in the file.
+     *
+     * @return a List of up to batchSize objects, or null if there are no more
+     * @throws Exception if there is an error while parsing
+     */
+    public List<FastPathObject> nextObjects() throws Exception {
+        int batchStart = nextOrdinal;
+        List<Item> items = nextItems();
+        if (items == null) {
+            return null;
+        }
+        SpillResolver resolver = new SpillResolver(nextOrdinal);
+        List<FastPathObject> retval = new ArrayList<FastPathObject>();
+        List<FastPathObject> instances = new ArrayList<FastPathObject>();
+        int ordinal = batchStart;
+        for (Item item : items) {
+            FastPathObject obj = resolver.instantiate(item, new Integer(firstId + ordinal++));
+            instances.add(obj);
+            resolver.add(item.getIdentifier(), obj);
+        }
+        for (int i = 0; i < items.size(); i++) {
+            FastPathObject obj = instances.get(i);
+            if (obj != null) {
+                retval.add(resolver.populate(items.get(i), obj));
+            }
+        }
+        // Objects referenced before their turn are populated after the batch. Their own forward
+        // references only get outline objects, so that chains of them are not followed
+        resolver.populateForward();
+        return retval;
+    }
+
+    /**
+     * Deletes the spill files. This should be called when the parser is no longer needed.
+     *
+     * @throws IOException if something goes wrong
+     */
+    public void close() throws IOException {
+        index = null;
+        if (spillIn != null) {
+            spillIn.close();
+            spillIn = null;
+        }
+        if (spillRandom != null) {
+            spillRandom.close();
+            spillRandom = null;
+        }
+        if (itemFile == null) {
+            deleteFile(spillFile);
+        }
+        deleteFile(indexFile);
+    }
+
+    private static void deleteFile(File file) {
+        if ((file != null) && (!file.delete())) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Reads the whole input into the spill file and builds the index. A binary item file is
+     * used as the spill file, and only read to find the items.
+     */
+    private void spill() throws Exception {
+        if (spillFile != null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        File hashFile = File.createTempFile("items", ".hashes", spillDir);
+        try {
+            DataOutputStream hashOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(hashFile)));
+            try {
+                if (itemFile == null) {
+                    spillFile = File.createTempFile("items", ".spill", spillDir);
+                    spillXml(hashOut);
+                } else {
+                    spillFile = itemFile;
+                    scanItemFile(hashOut);
+                }
+            } finally {
+                hashOut.close();
+            }
+            buildIndex(hashFile);
+        } finally {
+            deleteFile(hashFile);
+        }
+        spillRandom = new RandomAccessFile(spillFile, "r");
+        spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+        BinaryItemFormat.readHeader(spillIn);
+        LOG.info("Spilled " + itemCount + " items to " + spillFile + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Parses the XML input, writing each Item to the spill file and its hash and position to
+     * the hash file.
+     */
+    private void spillXml(DataOutputStream hashOut) throws Exception {
+        DataOutputStream spillOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(spillFile)));
+        try {
+            BinaryItemFormat.writeHeader(spillOut);
+            long position = BinaryItemFormat.HEADER_BYTES;
+            ItemReader reader = new ItemReader(is);
+            Item item = reader.next();
+            while (item != null) {
+                countItem();
+                writeHash(hashOut, item, position);
+                position += BinaryItemFormat.writeItem(spillOut, item);
+                item = reader.next();
+            }
+        } finally {
+            spillOut.close();
+        }
+    }
+
+    /**
+     * Reads through a binary item file, writing the hash and position of each Item to the hash
+     * file, and keeping the records that add to earlier items.
+     */
+    private void scanItemFile(DataOutputStream hashOut) throws IOException {
+        long length = itemFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(itemFile)));
+        try {
+            BinaryItemFormat.readHeader(in);
+            long position = BinaryItemFormat.HEADER_BYTES;
+            while (position < length) {
+                BinaryItemFormat.Record record = BinaryItemFormat.readRecord(in);
+                if (record.getType() == BinaryItemFormat.ITEM) {
+                    countItem();
+                    writeHash(hashOut, record.getItem(), position);
+                } else {
+                    Integer ordinal = new Integer(record.getOrdinal());
+                    Item addition = additions.get(ordinal);
+                    if (addition == null) {
+                        additions.put(ordinal, record.getItem());
+                    } else {
+                        BinaryItemFormat.merge(addition, record.getItem());
+                    }
+                }
+                position += record.getLength();
+            }
+        } finally {
+            in.close();
+        }
+        if (!additions.isEmpty()) {
+            LOG.info("Read additions to " + additions.size() + " items from " + itemFile);
+        }
+    }
+
+    private void countItem() {
+        if (itemCount >= MAX_ITEMS) {
+            throw new IllegalStateException("Too many items - a file may have at most "
+                    + MAX_ITEMS + " items");
+        }
+        itemCount++;
+    }
+
+    private static void writeHash(DataOutputStream hashOut, Item item, long position)
+        throws IOException {
+        hashOut.writeLong(item.getIdentifier() == null ? 0 : hash(item.getIdentifier()));
+        hashOut.writeLong(position);
+    }
+
+    /**
+     * Applies any records that add to an item.
+     */
+    private Item addTo(Item item, int ordinal) {
+        Item addition = additions.get(new Integer(ordinal));
+        if (addition != null) {
+            BinaryItemFormat.merge(item, addition);
+        }
+        return item;
+    }
+
+    /**
+     * Builds the hash table from identifier hash to item position. An item with the same
+     * identifier as an earlier one replaces it, as in FullParser.realiseObjects. Slots hold the
+     * ordinal of the item plus one, so that zero means an empty slot.
+     */
+    private void buildIndex(File hashFile) throws IOException {
+        long slots = Long.highestOneBit(Math.max(itemCount, 1) * 2L - 1) * 2;
+        if (slots > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many items (" + itemCount + ") to index");
+        }
+        indexSlots = (int) slots;
+        int chunkSlots = Math.min(indexSlots, CHUNK_SLOTS);
+        indexFile = File.createTempFile("items", ".index", spillDir);
+        RandomAccessFile indexRandom = new RandomAccessFile(indexFile, "rw");
+        try {
+            index = new MappedByteBuffer[indexSlots / chunkSlots];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = indexRandom.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        ((long) i) * chunkSlots * SLOT_BYTES, ((long) chunkSlots) * SLOT_BYTES);
+            }
+        } finally {
+            indexRandom.close();
+        }
+        DataInputStream hashIn = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(hashFile)));
+        try {
+            for (int ordinal = 0; ordinal < itemCount; ordinal++) {
+                long hash = hashIn.readLong();
+                long position = hashIn.readLong();
+                if (hash != 0) {
+                    int slot = findSlot(hash);
+                    putLong(slot, 0, hash);
+                    // Positions are less than 2^40, so there is room for the ordinal above them
+                    putLong(slot, 8, position | (((long) ordinal + 1) << 40));
+                }
+            }
+        } finally {
+            hashIn.close();
+        }
+    }
+
+    private int findSlot(long hash) {
+        int mask = indexSlots - 1;
+        int slot = ((int) (hash ^ (hash >>> 32))) & mask;
+        while (true) {
+            long slotHash = getLong(slot, 0);
+            if ((slotHash == hash) || (slotHash == 0)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long getLong(int slot, int offset) {
+        return index[slot >>> CHUNK_SHIFT].getLong((slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES
+                + offset);
+    }
+
+    private void putLong(int slot, int offset, long value) {
+        index[slot >>> CHUNK_SHIFT].putLong((slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES + offset,
+                value);
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of an identifier, which is never zero.
+     */
+    private static long hash(String identifier) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < identifier.length(); i++) {
+            h ^= identifier.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return (h == 0 ? 1 : h);
+    }
+
+    /**
+     * Resolves item identifiers to objects for a batch, realising items that have not been
+     * returned yet from the spill file.
+     */
+    private class SpillResolver extends BatchObjectResolver
+    {
+        private int batchEnd;
+
+        public SpillResolver(int batchEnd) {
+            super(model, useIdentifier, abortOnError);
+            this.batchEnd = batchEnd;
+        }
+
+        @Override
+        protected FastPathObject lookup(String identifier) throws Exception {
+            long entry = getLong(findSlot(hash(identifier)), 8);
+            if (entry == 0) {
+                return null;
+            }
+            int ordinal = (int) (entry >>> 40) - 1;
+            spillRandom.seek(entry & ((1L << 40) - 1));
+            Item item = addTo(BinaryItemFormat.readRecord(spillRandom).getItem(), ordinal);
+            if (!identifier.equals(item.getIdentifier())) {
+                throw new IllegalStateException("Hash collision between item identifiers "
+                        + identifier + " and " + item.getIdentifier());
+            }
+            FastPathObject retval = instantiate(item, new Integer(firstId + ordinal));
+            if ((retval != null) && (ordinal >= batchEnd)) {
+                forward(item);
+            }
+            return retval;
+        }
+    }
+
+    /**
+     * Reads Items one at a time from InterMine Full XML with a StAX parser. This understands the
+     * same elements as FullHandler.
+     */
+    private static class ItemReader
+    {
+        private XMLStreamReader reader;
+        private ItemFactory itemFactory = new ItemFactory();
+
+        ItemReader(InputStream is) throws XMLStreamException {
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+        }
+
+        /**
+         * Returns the next Item, or null at the end of the input.
+         */
+        Item next() throws XMLStreamException, EOFException {
+            Item currentItem = null;
+            String currentCollectionName = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("item".equals(name)) {
+                        currentItem = itemFactory.makeItem(reader.getAttributeValue(null, "id"));
+                        currentItem.setClassName(reader.getAttributeValue(null, "class"));
+                        String implementations = reader.getAttributeValue(null, "implements");
+                        if (implementations != null) {
+                            currentItem.setImplementations(implementations);
+                        }
+                    } else if ("attribute".equals(name)) {
+                        currentItem.setAttribute(reader.getAttributeValue(null, "name"),
+                                reader.getAttributeValue(null, "value"));
+                    } else if ("reference".equals(name)) {
+                        String value = reader.getAttributeValue(null, "ref_id");
+                        if (currentCollectionName == null) {
+                            String refName = reader.getAttributeValue(null, "name");
+                            if (refName == null) {
+                                throw new RuntimeException("no name given for reference with"
+                                        + " value: " + value);
+                            }
+                            currentItem.setReference(refName, value);
+                        } else {
+                            currentItem.addToCollection(currentCollectionName, value);
+                        }
+                    } else if ("collection".equals(name)) {
+                        currentCollectionName = reader.getAttributeValue(null, "name");
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("item".equals(name)) {
+                        return currentItem;
+                    } else if ("collection".equals(name)) {
+                        currentCollectionName = null;
+                    }
+                }
+            }
+            if (currentItem != null) {
+                throw new EOFException("Unexpected end of input inside item "
+                        + currentItem.getIdentifier());
+            }
+            reader.close();
+            return null;
+        }
+    }
+}
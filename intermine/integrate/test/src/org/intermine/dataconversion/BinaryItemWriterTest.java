@@ -0,0 +1,113 @@
+package org.intermine.dataconversion;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.intermine.metadata.Model;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.fulldata.Attribute;
+import org.intermine.model.fulldata.ReferenceList;
+import org.intermine.model.testmodel.Company;
+import org.intermine.xml.full.FullParser;
+import org.intermine.xml.full.Item;
+import org.intermine.xml.full.ItemHelper;
+import org.intermine.xml.full.StreamingFullParser;
+
+public class BinaryItemWriterTest extends TestCase
+{
+    private Model model;
+    private File file;
+
+    public BinaryItemWriterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        model = Model.getInstanceByName("testmodel");
+        file = File.createTempFile("items", ".bin");
+    }
+
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testWriteRead() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("FullParserTest.xml");
+        List<Item> expected = FullParser.parse(is);
+        BinaryItemWriter writer = new BinaryItemWriter(file);
+        for (Item item : expected) {
+            writer.store(ItemHelper.convert(item));
+        }
+        writer.close();
+
+        StreamingFullParser parser = new StreamingFullParser(file, model, 2, null);
+        try {
+            assertEquals(4, parser.getItemCount());
+            List<Item> items = new ArrayList<Item>();
+            List<Item> batch = parser.nextItems();
+            while (batch != null) {
+                items.addAll(batch);
+                batch = parser.nextItems();
+            }
+            assertEquals(expected, items);
+        } finally {
+            parser.close();
+        }
+        assertTrue(file.exists());
+    }
+
+    public void testLateStores() throws Exception {
+        BinaryItemWriter writer = new BinaryItemWriter(file);
+        org.intermine.model.fulldata.Item company = new org.intermine.model.fulldata.Item();
+        company.setIdentifier("1");
+        company.setClassName("");
+        company.setImplementations("Company");
+        Integer companyId = writer.store(company);
+        org.intermine.model.fulldata.Item department = new org.intermine.model.fulldata.Item();
+        department.setIdentifier("2");
+        department.setClassName("Department");
+        department.setImplementations("");
+        writer.store(department);
+        Attribute name = new Attribute();
+        name.setName("name");
+        name.setValue("CompanyA");
+        writer.store(name, companyId);
+        ReferenceList departments = new ReferenceList();
+        departments.setName("departments");
+        departments.setRefIds("2");
+        writer.store(departments, companyId);
+        try {
+            writer.store(name, new Integer(3));
+            fail("Expected an exception for an item that has not been stored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        writer.close();
+
+        StreamingFullParser parser = new StreamingFullParser(file, model, 1, null);
+        try {
+            List<FastPathObject> batch = parser.nextObjects();
+            Company c = (Company) batch.get(0);
+            assertEquals("CompanyA", c.getName());
+            assertEquals(1, c.getDepartments().size());
+            assertEquals(1, parser.nextObjects().size());
+            assertNull(parser.nextObjects());
+        } finally {
+            parser.close();
+        }
+    }
+}
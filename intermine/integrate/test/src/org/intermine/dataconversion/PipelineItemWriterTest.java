@@ -0,0 +1,110 @@
+package org.intermine.dataconversion;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.intermine.dataloader.IntegrationWriter;
+import org.intermine.dataloader.IntegrationWriterFactory;
+import org.intermine.model.InterMineObject;
+import org.intermine.model.fulldata.Attribute;
+import org.intermine.model.testmodel.Address;
+import org.intermine.model.testmodel.Manager;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.ObjectStoreWriterFactory;
+import org.intermine.xml.full.Item;
+import org.intermine.xml.full.ItemFactory;
+import org.intermine.xml.full.ItemHelper;
+
+public class PipelineItemWriterTest extends TestCase
+{
+    private ObjectStoreWriter writer;
+    private List<InterMineObject> toDelete = new ArrayList<InterMineObject>();
+    private ItemFactory itemFactory = new ItemFactory();
+
+    public PipelineItemWriterTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        writer = ObjectStoreWriterFactory.getObjectStoreWriter("osw.unittest");
+    }
+
+    public void tearDown() throws Exception {
+        for (InterMineObject o : toDelete) {
+            writer.delete(o);
+        }
+        writer.close();
+    }
+
+    private PipelineItemWriter createItemWriter(int windowSize) throws Exception {
+        IntegrationWriter iw = IntegrationWriterFactory.getIntegrationWriter(
+                "integration.unittestmulti");
+        return new PipelineItemWriter(iw, iw.getMainSource("testsource", "testsource"),
+                iw.getSkeletonSource("testsource", "testsource"), windowSize, 10);
+    }
+
+    public void testForwardReferenceAndLateAttribute() throws Exception {
+        PipelineItemWriter itemWriter = createItemWriter(1);
+        Item manager = itemFactory.makeItem("0_1", "Manager", "");
+        manager.setAttribute("name", "pipelineManager");
+        manager.setReference("address", "0_2");
+        Integer managerId = itemWriter.store(ItemHelper.convert(manager));
+        Attribute title = new Attribute();
+        title.setName("title");
+        title.setValue("Pointy Haired Boss");
+        itemWriter.store(title, managerId);
+        Item address = itemFactory.makeItem("0_2", "Address", "");
+        address.setAttribute("address", "pipelineAddress");
+        itemWriter.store(ItemHelper.convert(address));
+        itemWriter.close();
+
+        Manager m1 = new Manager();
+        m1.setName("pipelineManager");
+        Manager m2 = (Manager) writer.getObjectByExample(m1, Collections.singleton("name"));
+        assertNotNull("Expected manager to be retrieved from DB", m2);
+        toDelete.add(m2);
+        assertEquals("Pointy Haired Boss", m2.getTitle());
+        Address a2 = m2.getAddress();
+        assertNotNull("Expected address to be stored", a2);
+        toDelete.add(a2);
+        assertEquals("pipelineAddress", a2.getAddress());
+    }
+
+    public void testAddToPassedItem() throws Exception {
+        PipelineItemWriter itemWriter = createItemWriter(1);
+        Item first = itemFactory.makeItem("0_1", "Address", "");
+        first.setAttribute("address", "pipelineAddress1");
+        Integer firstId = itemWriter.store(ItemHelper.convert(first));
+        Item second = itemFactory.makeItem("0_2", "Address", "");
+        second.setAttribute("address", "pipelineAddress2");
+        itemWriter.store(ItemHelper.convert(second));
+        Attribute att = new Attribute();
+        att.setName("address");
+        att.setValue("pipelineAddress3");
+        try {
+            itemWriter.store(att, firstId);
+            fail("Expected an exception for an item that has left the window");
+        } catch (ObjectStoreException e) {
+            // expected
+        } finally {
+            itemWriter.abort();
+        }
+        Address a1 = new Address();
+        a1.setAddress("pipelineAddress1");
+        assertNull(writer.getObjectByExample(a1, Collections.singleton("address")));
+    }
+}
@@ -0,0 +1,80 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class DataLoadMetricsTest extends TestCase
+{
+    public DataLoadMetricsTest(String arg) {
+        super(arg);
+    }
+
+    public void testAddTogether() throws Exception {
+        DataLoadMetrics metrics = new DataLoadMetrics("testsource");
+        metrics.addTime("read", 10);
+        metrics.addTime("read", 5);
+        metrics.addCount(DataLoadMetrics.OBJECTS, 100);
+        metrics.addCount(DataLoadMetrics.OBJECTS, 50);
+        assertEquals(15, metrics.getTime("read"));
+        assertEquals(150, metrics.getCount(DataLoadMetrics.OBJECTS));
+        assertEquals(0, metrics.getTime("write"));
+        assertNull(metrics.getLatencies(DataLoadMetrics.EQUIVALENCE_LOOKUP));
+    }
+
+    public void testHistogram() throws Exception {
+        DataLoadMetrics.LatencyHistogram h1 = new DataLoadMetrics.LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            h1.record(500L);
+        }
+        DataLoadMetrics.LatencyHistogram h2 = new DataLoadMetrics.LatencyHistogram();
+        for (int i = 0; i < 9; i++) {
+            h2.record(3000000L);
+        }
+        h2.record(100000000L);
+        DataLoadMetrics metrics = new DataLoadMetrics("testsource");
+        metrics.addLatencies(DataLoadMetrics.EQUIVALENCE_LOOKUP, h1);
+        metrics.addLatencies(DataLoadMetrics.EQUIVALENCE_LOOKUP, h2);
+        DataLoadMetrics.LatencyHistogram h = metrics.getLatencies(
+                DataLoadMetrics.EQUIVALENCE_LOOKUP);
+        assertEquals(100, h.getCount());
+        assertEquals(1, h.getPercentile(0.5));
+        assertEquals(1, h.getPercentile(0.9));
+        assertEquals(4096, h.getPercentile(0.99));
+        assertEquals(100001, h.getPercentile(1.0));
+    }
+
+    public void testReport() throws Exception {
+        DataLoadMetrics metrics = new DataLoadMetrics("test\"source");
+        metrics.addCount(DataLoadMetrics.OBJECTS, 1000);
+        metrics.addCount(DataLoadMetrics.TRACKER_OPS, 200);
+        metrics.addCount(DataLoadMetrics.TRACKER_MISSES, 50);
+        metrics.addTime("read", 10);
+        metrics.addTime("write", 20);
+        DataLoadMetrics.LatencyHistogram h = new DataLoadMetrics.LatencyHistogram();
+        h.record(1500L);
+        metrics.addLatencies(DataLoadMetrics.EQUIVALENCE_LOOKUP, h);
+        metrics.finish(true);
+        StringWriter writer = new StringWriter();
+        metrics.writeReport(writer);
+        String report = writer.toString();
+        assertTrue(report, report.startsWith("{\n  \"source\": \"test\\\"source\",\n"));
+        assertTrue(report, report.contains("\"succeeded\": true,"));
+        assertTrue(report, report.contains("\"dataTrackerHitRate\": 0.75,"));
+        assertTrue(report, report.contains("    \"read\": 10,\n    \"write\": 20\n"));
+        assertTrue(report, report.contains("\"equivalenceLookup\": {\"count\": 1, \"meanUs\": 1,"
+                    + " \"p50Us\": 2, \"p90Us\": 2, \"p99Us\": 2, \"maxUs\": 1,"
+                    + " \"bucketsUs\": {\"<2\": 1}}\n"));
+        assertTrue(report, report.endsWith("  }\n}\n"));
+    }
+}
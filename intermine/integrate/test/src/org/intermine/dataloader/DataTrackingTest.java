@@ -11,6 +11,10 @@ package org.intermine.dataloader;
  */
 
 import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
@@ -21,8 +25,12 @@ public class DataTrackingTest extends TestCase {
     protected DataTracker dt;
     protected Source source1, source2;
 
+    protected DataTracker createTracker() throws Exception {
+        return new DataTracker(DatabaseFactory.getDatabase("db.unittest"), 30, 10);
+    }
+
     public void setUp() throws Exception {
-        dt = new DataTracker(DatabaseFactory.getDatabase("db.unittest"), 30, 10);
+        dt = createTracker();
         source1 = dt.stringToSource("Source1");
         source2 = dt.stringToSource("Source2");
     }
@@ -77,10 +85,50 @@ public class DataTrackingTest extends TestCase {
         dt.flush();
         dt.setSource(new Integer(14), "name", source1);
         dt.flush();
-        DataTracker dt2 = new DataTracker(DatabaseFactory.getDatabase("db.unittest"), 30, 10);
+        DataTracker dt2 = createTracker();
         dt2.setSource(new Integer(14), "name", dt2.stringToSource("Source2"));
         dt2.close();
-        dt2 = new DataTracker(DatabaseFactory.getDatabase("db.unittest"), 30, 10);
+        dt2 = createTracker();
         assertEquals(source2.getName(), dt2.getSource(new Integer(14), "name").getName());
     }
+
+    public void testGetObjectIds() throws Exception {
+        dt.setSource(new Integer(13), "name", source1);
+        dt.setSource(new Integer(14), "name", source2);
+        dt.setSource(new Integer(15), "name", source1);
+        dt.setSource(new Integer(15), "address", source2);
+        Set<Integer> expected = new HashSet<Integer>();
+        expected.add(new Integer(13));
+        expected.add(new Integer(15));
+        assertEquals(expected, dt.getObjectIds(Collections.singleton(source1)));
+
+        Set<String> names = new HashSet<String>();
+        for (Source source : dt.getAllSources(new Integer(15))) {
+            names.add(source.getName());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("Source1", "Source2")), names);
+        assertTrue(dt.getAllSources(new Integer(16)).isEmpty());
+    }
+
+    public void testClearSource() throws Exception {
+        dt.setSource(new Integer(13), "name", source1);
+        dt.setSource(new Integer(13), "age", source1);
+        dt.flush();
+        dt.clearSource(new Integer(13), "name");
+        assertNull(dt.getSource(new Integer(13), "name"));
+        assertTrue(dt.isUnattributed(new Integer(13), "name"));
+        assertFalse(dt.isUnattributed(new Integer(13), "age"));
+        assertFalse(dt.isUnattributed(new Integer(14), "name"));
+        dt.close();
+
+        dt = createTracker();
+        assertNull(dt.getSource(new Integer(13), "name"));
+        assertTrue(dt.isUnattributed(new Integer(13), "name"));
+        assertEquals(source1.getName(), dt.getSource(new Integer(13), "age").getName());
+        Set<String> names = new HashSet<String>();
+        for (Source source : dt.getAllSources(new Integer(13))) {
+            names.add(source.getName());
+        }
+        assertEquals(Collections.singleton("Source1"), names);
+    }
 }
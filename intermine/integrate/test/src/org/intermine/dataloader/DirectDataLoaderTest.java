@@ -0,0 +1,99 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.intermine.model.InterMineObject;
+import org.intermine.model.testmodel.Address;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.ObjectStoreWriterFactory;
+
+public class DirectDataLoaderTest extends TestCase
+{
+    private static final int THREADS = 4;
+    private static final int OBJECTS_PER_THREAD = 250;
+
+    private ObjectStoreWriter writer;
+    private List<InterMineObject> toDelete = new ArrayList<InterMineObject>();
+
+    public DirectDataLoaderTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        writer = ObjectStoreWriterFactory.getObjectStoreWriter("osw.unittest");
+    }
+
+    public void tearDown() throws Exception {
+        for (InterMineObject o : toDelete) {
+            writer.delete(o);
+        }
+        writer.close();
+    }
+
+    public void testParallelStore() throws Exception {
+        IntegrationWriter iw = IntegrationWriterFactory.getIntegrationWriter(
+                "integration.unittestmulti");
+        final DirectDataLoader loader = new DirectDataLoader(iw, "testsource", "testsource");
+        loader.setBufferSize(20);
+        final Set<Integer> ids = Collections.synchronizedSet(new HashSet<Integer>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        iw.beginTransaction();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int threadNo = t;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < OBJECTS_PER_THREAD; i++) {
+                            Address address = loader.createObject(Address.class);
+                            address.setAddress("directAddress" + threadNo + "_" + i);
+                            ids.add(address.getId());
+                            loader.store(address);
+                        }
+                        loader.flush();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        loader.flush();
+        iw.commitTransaction();
+        iw.close();
+        loader.close();
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(THREADS * OBJECTS_PER_THREAD, ids.size());
+
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < OBJECTS_PER_THREAD; i++) {
+                Address a = new Address();
+                a.setAddress("directAddress" + t + "_" + i);
+                Address stored = (Address) writer.getObjectByExample(a,
+                        Collections.singleton("address"));
+                assertNotNull("Expected address " + t + "_" + i + " to be stored", stored);
+                toDelete.add(stored);
+            }
+        }
+    }
+}
@@ -10,6 +10,8 @@ package org.intermine.dataloader;
  *
  */
 
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -19,6 +21,7 @@ import java.util.Set;
 
 import junit.framework.Test;
 
+import org.intermine.metadata.CollectionDescriptor;
 import org.intermine.metadata.ConstraintOp;
 import org.intermine.model.FastPathObject;
 import org.intermine.model.InterMineObject;
@@ -35,6 +38,8 @@ import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
 import org.intermine.objectstore.SetupDataTestCase;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.intermine.ObjectStoreWriterInterMineImpl;
 import org.intermine.objectstore.query.ConstraintSet;
 import org.intermine.objectstore.query.Query;
 import org.intermine.objectstore.query.QueryClass;
@@ -42,6 +47,7 @@ import org.intermine.objectstore.query.QueryField;
 import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.SimpleConstraint;
 import org.intermine.objectstore.query.SingletonResults;
+import org.intermine.sql.DatabaseUtil;
 import org.intermine.testing.OneTimeTestCase;
 import org.intermine.util.DynamicUtil;
 
@@ -1161,4 +1167,126 @@ public class IntegrationWriterDataTrackingImplTest extends SetupDataTestCase
         r2 = iw.executeSingleton(q2);
         assertEquals(1, r2.size());
     }
+
+    public void testDeltaLoadRemovesCollectionRows() throws Exception {
+        Contractor con = new Contractor();
+        con.setName("DeltaContractor");
+        Address address = new Address();
+        address.setAddress("Delta Street");
+        Company company = (Company) DynamicUtil.createObject(Collections.singleton(Company.class));
+        company.setName("DeltaCompany");
+        company.setAddress(address);
+        con.addCompanys(company);
+        company.addContractors(con);
+        Contractor con2 = new Contractor();
+        con2.setName("DeltaContractor");
+
+        if (doIds) {
+            con.setId(new Integer(1));
+            address.setId(new Integer(2));
+            company.setId(new Integer(3));
+            con2.setId(new Integer(1));
+        }
+
+        Source source = iw.getMainSource("testsource", "testsource");
+        Source skelSource = iw.getSkeletonSource("testsource", "testsource");
+
+        iw.store(con, source, skelSource);
+        iw.store(company, source, skelSource);
+        iw.store(address, source, skelSource);
+        iw.commitTransaction();
+        iw.reset();
+        iw.beginTransaction();
+
+        // The new release still has the contractor, but not the company
+        iw.setDeltaLoad(true);
+        try {
+            iw.store(con2, source, skelSource);
+            iw.finishDeltaLoad(source, skelSource);
+        } finally {
+            iw.setDeltaLoad(false);
+        }
+        iw.commitTransaction();
+        iw.reset();
+        iw.beginTransaction();
+
+        assertNull(iw.getObjectByExample(company, Collections.singleton("name")));
+        assertNull(iw.getObjectByExample(address, Collections.singleton("address")));
+        Contractor rcon = (Contractor) iw.getObjectByExample(con2, Collections.singleton("name"));
+        assertNotNull(rcon);
+
+        CollectionDescriptor coll = (CollectionDescriptor) iw.getModel()
+            .getClassDescriptorByName("Contractor").getFieldDescriptorByName("companys");
+        int version = ((ObjectStoreInterMineImpl) os).getSchema().getVersion();
+        Connection c = ((ObjectStoreWriterInterMineImpl) writer).getDatabase().getConnection();
+        try {
+            ResultSet r = c.createStatement().executeQuery("SELECT COUNT(*) FROM "
+                    + DatabaseUtil.getIndirectionTableName(coll) + " WHERE "
+                    + DatabaseUtil.getInwardIndirectionColumnName(coll, version) + " = "
+                    + rcon.getId() + " OR "
+                    + DatabaseUtil.getOutwardIndirectionColumnName(coll, version) + " = "
+                    + rcon.getId());
+            assertTrue(r.next());
+            assertEquals(0, r.getInt(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testDeltaLoadLeavesValuesUnattributed() throws Exception {
+        Employee e = new Employee();
+        e.setName("DeltaEmployee");
+        e.setFullTime(true);
+        e.setEnd("3");
+        e.setAge(40);
+        Employee e3 = new Employee();
+        e3.setName("DeltaEmployee");
+        e3.setAge(35);
+
+        if (doIds) {
+            e.setId(new Integer(1));
+            e3.setId(new Integer(1));
+        }
+
+        Source source = iw.getMainSource("testsource", "testsource");
+        Source skelSource = iw.getSkeletonSource("testsource", "testsource");
+        Source source3 = iw.getMainSource("testsource3", "testsource3");
+        Source skelSource3 = iw.getSkeletonSource("testsource3", "testsource3");
+
+        iw.store(e, source, skelSource);
+        iw.commitTransaction();
+        iw.reset();
+        iw.beginTransaction();
+        // testsource3 has priority for the age, and testsource for everything else
+        iw.store(e3, source3, skelSource3);
+        iw.commitTransaction();
+        iw.reset();
+        iw.beginTransaction();
+        Integer id = iw.getObjectByExample(e, Collections.singleton("name")).getId();
+
+        // The new release of testsource no longer has the employee
+        iw.setDeltaLoad(true);
+        try {
+            iw.finishDeltaLoad(source, skelSource);
+        } finally {
+            iw.setDeltaLoad(false);
+        }
+        iw.commitTransaction();
+        iw.reset();
+        iw.beginTransaction();
+
+        Employee re = (Employee) iw.getObjectById(id, Employee.class);
+        assertNotNull("Employee has data from testsource3, so should be kept", re);
+        assertNull(re.getName());
+        assertNull(re.getEnd());
+        assertEquals(35, re.getAge());
+        // A primitive cannot be cleared, but the value left behind is from no source
+        assertTrue(re.getFullTime());
+        DataTracker dataTracker = iw.getDataTracker();
+        assertNull(dataTracker.getSource(id, "fullTime"));
+        assertTrue(dataTracker.isUnattributed(id, "fullTime"));
+        assertTrue(dataTracker.isUnattributed(id, "name"));
+        assertEquals("testsource3", dataTracker.getSource(id, "age").getName());
+        assertFalse(dataTracker.isUnattributed(id, "age"));
+    }
 }
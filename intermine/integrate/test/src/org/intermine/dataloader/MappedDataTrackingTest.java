@@ -0,0 +1,108 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import org.intermine.modelproduction.MetadataManager;
+import org.intermine.sql.Database;
+import org.intermine.sql.DatabaseFactory;
+
+public class MappedDataTrackingTest extends DataTrackingTest
+{
+    protected DataTracker createTracker() throws Exception {
+        return new MappedDataTracker(DatabaseFactory.getDatabase("db.unittest"), 30, 10);
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        MetadataManager.store(DatabaseFactory.getDatabase("db.unittest"),
+                MappedDataTracker.METADATA_KEY, null);
+    }
+
+    public void testReopen() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            dt.setSource(new Integer(i), "name", source1);
+            dt.setSource(new Integer(i), "address", i % 2 == 0 ? source1 : source2);
+        }
+        dt.flush();
+        for (int i = 0; i < 100; i += 3) {
+            dt.setSource(new Integer(i), "name", source2);
+        }
+        dt.close();
+        dt = createTracker();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 3 == 0 ? "Source2" : "Source1",
+                    dt.getSource(new Integer(i), "name").getName());
+            assertEquals(i % 2 == 0 ? "Source1" : "Source2",
+                    dt.getSource(new Integer(i), "address").getName());
+        }
+        assertNull(dt.getSource(new Integer(200), "name"));
+    }
+
+    public void testRestoreDiscardsLaterEntries() throws Exception {
+        Database db = DatabaseFactory.getDatabase("db.unittest");
+        for (int i = 0; i < 50; i++) {
+            dt.setSource(new Integer(i), "name", source1);
+        }
+        dt.flush();
+        // The state saved by a dump of the database at this point
+        String saved = MetadataManager.retrieve(db, MappedDataTracker.METADATA_KEY);
+        for (int i = 0; i < 100; i++) {
+            dt.setSource(new Integer(i), "name", source2);
+        }
+        dt.close();
+        MetadataManager.store(db, MappedDataTracker.METADATA_KEY, saved);
+        dt = createTracker();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Source1", dt.getSource(new Integer(i), "name").getName());
+        }
+        assertNull(dt.getSource(new Integer(50), "name"));
+    }
+
+    public void testMismatchedFileFails() throws Exception {
+        Database db = DatabaseFactory.getDatabase("db.unittest");
+        dt.setSource(new Integer(1), "name", source1);
+        dt.close();
+        String saved = MetadataManager.retrieve(db, MappedDataTracker.METADATA_KEY);
+        String token = saved.split(" ")[0];
+        MetadataManager.store(db, MappedDataTracker.METADATA_KEY, "x" + saved);
+        try {
+            dt = createTracker();
+            fail("Expected an exception for a file of another database");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        MetadataManager.store(db, MappedDataTracker.METADATA_KEY, token + " 1000000");
+        try {
+            dt = createTracker();
+            fail("Expected an exception for a file with fewer entries than recorded");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        MetadataManager.store(db, MappedDataTracker.METADATA_KEY, saved);
+        dt = createTracker();
+        assertEquals("Source1", dt.getSource(new Integer(1), "name").getName());
+    }
+
+    public void testClearSharedFileFails() throws Exception {
+        dt.setSource(new Integer(1), "name", source1);
+        dt.flush();
+        DataTracker other = createTracker();
+        try {
+            dt.clear();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            other.close();
+        }
+        assertEquals("Source1", dt.getSource(new Integer(1), "name").getName());
+    }
+}
@@ -0,0 +1,117 @@
+package org.intermine.dataloader;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.metadata.ReferenceDescriptor;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.InterMineObject;
+import org.intermine.model.testmodel.Address;
+import org.intermine.model.testmodel.Bank;
+import org.intermine.model.testmodel.Company;
+import org.intermine.model.testmodel.Employee;
+import org.intermine.model.testmodel.Range;
+import org.intermine.model.testmodel.Types;
+
+public class PartitionedObjectStoreDataLoaderTest extends TestCase
+{
+    private Model model;
+
+    public PartitionedObjectStoreDataLoaderTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        model = Model.getInstanceByName("testmodel");
+    }
+
+    public void testPartitionsAreIndependent() throws Exception {
+        List<Set<ClassDescriptor>> partitions = PartitionedObjectStoreDataLoader
+            .getPartitions(model);
+        Set<ClassDescriptor> seen = new HashSet<ClassDescriptor>();
+        int lastSize = Integer.MAX_VALUE;
+        for (Set<ClassDescriptor> partition : partitions) {
+            assertTrue(partition.size() <= lastSize);
+            lastSize = partition.size();
+            for (ClassDescriptor cld : partition) {
+                assertTrue(seen.add(cld));
+                for (ClassDescriptor superCld : cld.getSuperDescriptors()) {
+                    assertTrue(superCld.getType().equals(InterMineObject.class)
+                            || partition.contains(superCld));
+                }
+                Set<ReferenceDescriptor> refs = new HashSet<ReferenceDescriptor>();
+                refs.addAll(cld.getAllReferenceDescriptors());
+                refs.addAll(cld.getAllCollectionDescriptors());
+                for (ReferenceDescriptor ref : refs) {
+                    ClassDescriptor target = ref.getReferencedClassDescriptor();
+                    assertTrue(ref.getName(), partition.contains(target)
+                            || (!InterMineObject.class.isAssignableFrom(target.getType())));
+                }
+            }
+        }
+        for (ClassDescriptor cld : model.getClassDescriptors()) {
+            if (InterMineObject.class.isAssignableFrom(cld.getType())
+                    && (!InterMineObject.class.equals(cld.getType()))) {
+                assertTrue(cld.getName(), seen.contains(cld));
+            } else {
+                assertFalse(cld.getName(), seen.contains(cld));
+            }
+        }
+    }
+
+    public void testTestModelPartitions() throws Exception {
+        // Types has no references, and nothing refers to it, so it is the only class that splits
+        // off - everything else is connected through Company, Department and Employee
+        List<Set<ClassDescriptor>> partitions = PartitionedObjectStoreDataLoader
+            .getPartitions(model);
+        assertEquals(2, partitions.size());
+        assertEquals(Collections.singleton(model.getClassDescriptorByName(Types.class.getName())),
+                partitions.get(1));
+        assertTrue(partitions.get(0).contains(model.getClassDescriptorByName(
+                        Bank.class.getName())));
+        assertTrue(partitions.get(0).contains(model.getClassDescriptorByName(
+                        Range.class.getName())));
+    }
+
+    public void testTestModelNotWorthPartitioning() throws Exception {
+        // The only other partition is Types, which is a single class
+        assertFalse(PartitionedObjectStoreDataLoader.isWorthPartitioning(model));
+    }
+
+    public void testRoots() throws Exception {
+        Set<ClassDescriptor> partition = null;
+        for (Set<ClassDescriptor> p : PartitionedObjectStoreDataLoader.getPartitions(model)) {
+            if (p.contains(model.getClassDescriptorByName(Company.class.getName()))) {
+                partition = p;
+            }
+        }
+        assertNotNull(partition);
+        assertTrue(partition.contains(model.getClassDescriptorByName(Address.class.getName())));
+        List<Class<? extends FastPathObject>> roots = PartitionedObjectStoreDataLoader
+            .getRoots(partition);
+        assertFalse(roots.contains(Employee.class));
+        for (ClassDescriptor cld : partition) {
+            boolean covered = false;
+            for (Class<? extends FastPathObject> root : roots) {
+                covered = covered || root.isAssignableFrom(cld.getType());
+            }
+            assertTrue(cld.getName(), covered);
+        }
+    }
+}
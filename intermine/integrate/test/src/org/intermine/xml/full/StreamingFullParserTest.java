@@ -0,0 +1,151 @@
+package org.intermine.xml.full;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.intermine.metadata.Model;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.testmodel.Address;
+import org.intermine.model.testmodel.Company;
+import org.intermine.model.testmodel.Department;
+import org.intermine.model.testmodel.Employee;
+
+public class StreamingFullParserTest extends TestCase
+{
+    private Model model;
+
+    public StreamingFullParserTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        model = Model.getInstanceByName("testmodel");
+    }
+
+    public void testNextItems() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("FullParserTest.xml");
+        List<Item> expected = FullParser.parse(is);
+        is = getClass().getClassLoader().getResourceAsStream("FullParserTest.xml");
+        StreamingFullParser parser = new StreamingFullParser(is, model, 3, null);
+        try {
+            assertEquals(4, parser.getItemCount());
+            List<Item> items = new ArrayList<Item>();
+            List<Item> batch = parser.nextItems();
+            assertEquals(3, batch.size());
+            while (batch != null) {
+                items.addAll(batch);
+                batch = parser.nextItems();
+            }
+            assertEquals(expected, items);
+        } finally {
+            parser.close();
+        }
+    }
+
+    public void testForwardReferences() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("FullParserTest.xml");
+        StreamingFullParser parser = new StreamingFullParser(is, model, 1, null);
+        parser.setUseIdentifier(true);
+        try {
+            Company c1 = (Company) parser.nextObjects().get(0);
+            assertEquals("Company1", c1.getName());
+            assertEquals(new Integer(1), c1.getId());
+            Address a1 = c1.getAddress();
+            assertEquals("\"Company's\" street", a1.getAddress());
+            assertEquals(new Integer(2), a1.getId());
+            assertEquals(2, c1.getDepartments().size());
+            for (Department d : c1.getDepartments()) {
+                assertNotNull(d.getName());
+            }
+            Address a2 = (Address) parser.nextObjects().get(0);
+            assertEquals(a1.getAddress(), a2.getAddress());
+            assertEquals(a1.getId(), a2.getId());
+            assertEquals("Department1", ((Department) parser.nextObjects().get(0)).getName());
+            assertEquals("Department2", ((Department) parser.nextObjects().get(0)).getName());
+            assertNull(parser.nextObjects());
+        } finally {
+            parser.close();
+        }
+    }
+
+    public void testBackwardReferences() throws Exception {
+        String xml = "<items>"
+            + "<item id=\"a\" class=\"Address\" implements=\"\">"
+            + "<attribute name=\"address\" value=\"Street\"/></item>"
+            + "<item id=\"b\" class=\"\" implements=\"Company\">"
+            + "<attribute name=\"name\" value=\"CompanyB\"/>"
+            + "<reference name=\"address\" ref_id=\"a\"/></item>"
+            + "<item id=\"c\" class=\"\" implements=\"Company\">"
+            + "<attribute name=\"name\" value=\"CompanyC\"/>"
+            + "<reference name=\"address\" ref_id=\"a\"/></item>"
+            + "</items>";
+        StreamingFullParser parser = new StreamingFullParser(new ByteArrayInputStream(
+                    xml.getBytes("UTF-8")), model, 2, null);
+        parser.setFirstId(100);
+        try {
+            List<FastPathObject> batch = parser.nextObjects();
+            assertEquals(2, batch.size());
+            Address a = (Address) batch.get(0);
+            assertEquals(new Integer(100), a.getId());
+            Company b = (Company) batch.get(1);
+            assertEquals(new Integer(101), b.getId());
+            assertSame(a, b.getAddress());
+            batch = parser.nextObjects();
+            Company c = (Company) batch.get(0);
+            assertEquals(new Integer(102), c.getId());
+            // The address was returned in an earlier batch, so only its id is filled in
+            assertEquals(new Integer(100), c.getAddress().getId());
+            assertNull(c.getAddress().getAddress());
+            assertNull(parser.nextObjects());
+        } finally {
+            parser.close();
+        }
+    }
+
+    public void testForwardChainNotFollowed() throws Exception {
+        String xml = "<items>"
+            + "<item id=\"e\" class=\"Employee\" implements=\"\">"
+            + "<attribute name=\"name\" value=\"EmployeeE\"/>"
+            + "<reference name=\"department\" ref_id=\"d\"/></item>"
+            + "<item id=\"d\" class=\"Department\" implements=\"\">"
+            + "<attribute name=\"name\" value=\"DepartmentD\"/>"
+            + "<reference name=\"company\" ref_id=\"c\"/></item>"
+            + "<item id=\"c\" class=\"\" implements=\"Company\">"
+            + "<attribute name=\"name\" value=\"CompanyC\"/></item>"
+            + "</items>";
+        StreamingFullParser parser = new StreamingFullParser(new ByteArrayInputStream(
+                    xml.getBytes("UTF-8")), model, 1, null);
+        try {
+            Employee e = (Employee) parser.nextObjects().get(0);
+            assertEquals("EmployeeE", e.getName());
+            // The department is referenced directly by the batch, so it is realised
+            Department d = e.getDepartment();
+            assertEquals("DepartmentD", d.getName());
+            assertEquals(new Integer(2), d.getId());
+            // The company is only referenced by the department, so it is an outline
+            assertEquals(new Integer(3), d.getCompany().getId());
+            assertNull(d.getCompany().getName());
+            assertEquals("DepartmentD", ((Department) parser.nextObjects().get(0)).getName());
+            Company c = (Company) parser.nextObjects().get(0);
+            assertEquals("CompanyC", c.getName());
+            assertEquals(new Integer(3), c.getId());
+            assertNull(parser.nextObjects());
+        } finally {
+            parser.close();
+        }
+    }
+}
@@ -124,6 +124,12 @@ public final class MetadataManager
      */
     public static final String RANGE_DEFINITIONS = "rangeDefinitions";
 
+    /**
+     * The name of the key used to store the token and size of the file holding the data tracking
+     * information, when it is not kept in the tracker table.
+     */
+    public static final String TRACKER_FILE = "trackerFile";
+
     /**
      * Store a (key, value) pair in the metadata table of the database
      * @param database the database
@@ -21,11 +21,13 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
 
 import org.apache.log4j.Logger;
 import org.intermine.metadata.MetaDataException;
 import org.intermine.metadata.Model;
+import org.intermine.metadata.TypeUtil;
 import org.intermine.model.InterMineObject;
 import org.intermine.objectstore.query.Clob;
 import org.intermine.objectstore.query.ObjectStoreBag;
@@ -34,7 +36,7 @@ import org.intermine.objectstore.query.QueryCreator;
 import org.intermine.objectstore.query.Results;
 import org.intermine.objectstore.query.ResultsRow;
 import org.intermine.objectstore.query.SingletonResults;
-import org.intermine.util.CacheMap;
+import org.intermine.util.IntObjectCache;
 import org.intermine.util.PropertiesUtil;
 
 /**
@@ -47,6 +49,13 @@ import org.intermine.util.PropertiesUtil;
 public abstract class ObjectStoreAbstractImpl implements ObjectStore
 {
     private static final Logger LOG = Logger.getLogger(ObjectStoreAbstractImpl.class);
+    // By default, the getObjectById cache may use up to this fraction of the maximum heap size
+    private static final int DEFAULT_OBJECT_CACHE_FRACTION = 8;
+    private static final IntObjectCache.Weigher<InterMineObject> OBJECT_WEIGHER
+        = new ObjectWeigher();
+    // The getObjectById cache shared by all the ObjectStores in the JVM, so that they are limited
+    // by a single memory budget
+    private static IntObjectCache<InterMineObject> sharedCache = null;
 
     protected static Random rand = new Random();
 
@@ -56,7 +65,9 @@ public abstract class ObjectStoreAbstractImpl implements ObjectStore
     protected long maxTime = Long.MAX_VALUE;
     // Optimiser will use a default query parse time if none is provided from properties
     protected Long maxQueryParseTime = null;
-    protected CacheMap<Integer, InterMineObject> cache;
+    protected IntObjectCache<InterMineObject> cache;
+    // The namespace of this ObjectStore's entries in the shared cache
+    protected volatile int cacheNamespace;
 
     protected int getObjectOps = 0;
     protected int getObjectHits = 0;
@@ -99,8 +110,33 @@ public abstract class ObjectStoreAbstractImpl implements ObjectStore
 
         LOG.info("Creating new " + getClass().getName() + " with sequence = " + sequenceNumber
                 + ", model = \"" + model.getName() + "\"");
-        cache = new CacheMap<Integer, InterMineObject>(getClass().getName() + " with sequence = "
-                + sequenceNumber + ", model = \"" + model.getName() + "\" getObjectById cache");
+        cache = getSharedCache(props);
+        cacheNamespace = cache.newNamespace();
+    }
+
+    /**
+     * Returns the getObjectById cache shared by all ObjectStores, creating it if necessary. The
+     * size of the cache is read from the properties of the first ObjectStore to be created.
+     *
+     * @param props the os.query properties
+     * @return an IntObjectCache
+     */
+    private static synchronized IntObjectCache<InterMineObject> getSharedCache(Properties props) {
+        if (sharedCache == null) {
+            long objectCacheSize = Runtime.getRuntime().maxMemory()
+                / DEFAULT_OBJECT_CACHE_FRACTION;
+            if (props.get("object-cache-size") != null) {
+                objectCacheSize = Long.parseLong((String) props.get("object-cache-size"));
+            }
+
+            long objectCacheEntries = Long.MAX_VALUE;
+            if (props.get("object-cache-entries") != null) {
+                objectCacheEntries = Long.parseLong((String) props.get("object-cache-entries"));
+            }
+            sharedCache = new IntObjectCache<InterMineObject>("ObjectStore getObjectById cache",
+                    objectCacheEntries, objectCacheSize, OBJECT_WEIGHER);
+        }
+        return sharedCache;
     }
 
     /**
@@ -192,30 +228,18 @@ public abstract class ObjectStoreAbstractImpl implements ObjectStore
             LOG.info("getObjectById called " + getObjectOps + " times. Cache hits: "
                     + getObjectHits + ". Prefetches: " + getObjectPrefetches);
         }
-        boolean contains = true;
-        InterMineObject cached = null;
-        synchronized (cache) {
-            cached = cache.get(id);
-            if (cached == null) {
-                contains = cache.containsKey(id);
-            }
-        }
-        if (contains) {
+        Object cached = cache.lookup(cacheNamespace, id.intValue());
+        if (cached != IntObjectCache.NOT_PRESENT) {
             getObjectHits++;
-            return cached;
+            return (InterMineObject) cached;
         }
         InterMineObject fromDb = internalGetObjectById(id, clazz);
-        synchronized (cache) {
-            cached = cache.get(id);
-            if (cached == null) {
-                contains = cache.containsKey(id);
-            }
-            if (contains) {
-                fromDb = cached;
-            } else {
-                cacheObjectById(id, fromDb);
-            }
+        // Another thread may have fetched the object meanwhile - if so, return the same instance
+        cached = cache.lookup(cacheNamespace, id.intValue());
+        if (cached != IntObjectCache.NOT_PRESENT) {
+            return (InterMineObject) cached;
         }
+        cacheObjectById(id, fromDb);
         return fromDb;
     }
 
@@ -249,14 +273,26 @@ public abstract class ObjectStoreAbstractImpl implements ObjectStore
 
     /**
      * {@inheritDoc}
+     *
+     * If all the objects are in the getObjectById cache, they are returned from there in order of
+     * id. Otherwise, a lazy list is returned that fetches the objects in batches.
      */
     @SuppressWarnings({ "cast", "unchecked", "rawtypes" })
     public List<InterMineObject> getObjectsByIds(Collection<Integer> ids)
         throws ObjectStoreException {
-        Results results = executeSingleton(QueryCreator.createQueryForIds(ids,
-                        InterMineObject.class), 1000, false, false, false);
-
-        return (List<InterMineObject>) ((List) results);
+        Map<Integer, InterMineObject> found = new TreeMap<Integer, InterMineObject>();
+        for (Integer id : ids) {
+            Object cached = cache.lookup(cacheNamespace, id.intValue());
+            if (cached == IntObjectCache.NOT_PRESENT) {
+                Results results = executeSingleton(QueryCreator.createQueryForIds(ids,
+                                InterMineObject.class), 1000, false, false, false);
+
+                return (List<InterMineObject>) ((List) results);
+            } else if (cached != null) {
+                found.put(id, (InterMineObject) cached);
+            }
+        }
+        return new ArrayList<InterMineObject>(found.values());
     }
 
     /**
@@ -297,37 +333,32 @@ public abstract class ObjectStoreAbstractImpl implements ObjectStore
      * {@inheritDoc}
      */
     public void invalidateObjectById(Integer id) {
-        synchronized (cache) {
-            cache.remove(id);
-        }
+        cache.remove(cacheNamespace, id.intValue());
     }
 
     /**
      * {@inheritDoc}
      */
     public Object cacheObjectById(Integer id, InterMineObject obj) {
-        synchronized (cache) {
-            cache.put(id, obj);
-        }
+        cache.put(cacheNamespace, id.intValue(), obj);
         return obj;
     }
 
     /**
      * {@inheritDoc}
+     *
+     * The cache is shared with other ObjectStores, so this ObjectStore moves to a new namespace
+     * in it, and its old entries are evicted as the cache fills.
      */
     public void flushObjectById() {
-        synchronized (cache) {
-            cache.clear();
-        }
+        cacheNamespace = cache.newNamespace();
     }
 
     /**
      * {@inheritDoc}
      */
     public InterMineObject pilferObjectById(Integer id) {
-        synchronized (cache) {
-            return cache.get(id);
-        }
+        return cache.get(cacheNamespace, id.intValue());
     }
 
     /**
@@ -512,4 +543,22 @@ public abstract class ObjectStoreAbstractImpl implements ObjectStore
     public Clob createClob() throws ObjectStoreException {
         return new Clob(getSerial().intValue());
     }
+
+    /**
+     * Estimates the memory used by an object in the getObjectById cache from the number of its
+     * fields.
+     */
+    private static class ObjectWeigher implements IntObjectCache.Weigher<InterMineObject>
+    {
+        private static final long ESTIMATED_OVERHEAD = 64;
+        private static final long ESTIMATED_BYTES_PER_FIELD = 48;
+
+        public long weigh(InterMineObject value) {
+            if (value == null) {
+                return ESTIMATED_OVERHEAD;
+            }
+            return ESTIMATED_OVERHEAD + ESTIMATED_BYTES_PER_FIELD
+                * TypeUtil.getFieldInfos(value.getClass()).size();
+        }
+    }
 }
@@ -96,6 +96,18 @@ public interface ObjectStoreWriter extends ObjectStore
     void addToCollection(Integer hasId, Class<?> clazz, String fieldName, Integer hadId)
         throws ObjectStoreException;
 
+    /**
+     * Removes an element from a many-to-many collection, undoing addToCollection.
+     *
+     * @param hasId the ID of the object that has the collection
+     * @param clazz the class of the object that has the collection
+     * @param fieldName the name of the collection
+     * @param hadId the ID of the object to remove from the collection
+     * @throws ObjectStoreException if a problem occurs
+     */
+    void removeFromCollection(Integer hasId, Class<?> clazz, String fieldName, Integer hadId)
+        throws ObjectStoreException;
+
     /**
      * Adds an element to an ObjectStoreBag.
      *
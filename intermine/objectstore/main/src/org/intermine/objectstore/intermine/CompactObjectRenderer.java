@@ -0,0 +1,178 @@
+package org.intermine.objectstore.intermine;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import org.intermine.metadata.TypeUtil;
+import org.intermine.metadata.TypeUtil.FieldInfo;
+import org.intermine.metadata.Util;
+import org.intermine.model.InterMineObject;
+import org.intermine.model.StringConstructor;
+import org.intermine.objectstore.query.ClobAccess;
+
+/**
+ * Renders an object in the compact format for the OBJECT field of database tables, which is an
+ * alternative to NotXml. The OBJECT column is text, and old NotXml rows must remain readable
+ * alongside compact rows, so the format is made of characters rather than bytes. Every structural
+ * character is in the range 1 to 127, and so takes a single byte in the database.
+ * <p>
+ * The format is the MARKER character, the space-separated class names, and the MARKER character
+ * again, followed by each non-null field as its name, a type character, and the value. Integers,
+ * longs, dates and reference ids are written as variable-length integers, strings are written
+ * as their length followed by the characters with no escaping, and booleans are held in the type
+ * character alone. Other values are written as strings in the same form as NotXml.
+ *
+ * @author Matthew Wakeling
+ */
+public final class CompactObjectRenderer
+{
+    /** The character at the start of a compact object, which cannot start a NotXml object. */
+    public static final char MARKER = '\u0001';
+
+    static final char TYPE_REFERENCE = '\u0002';
+    static final char TYPE_INTEGER = '\u0003';
+    static final char TYPE_LONG = '\u0004';
+    static final char TYPE_TRUE = '\u0005';
+    static final char TYPE_FALSE = '\u0006';
+    static final char TYPE_DATE = '\u0007';
+    static final char TYPE_STRING = '\u0008';
+    static final char TYPE_OTHER = '\u0009';
+    /** Characters below this value are type characters, which end a field name. */
+    static final char TYPE_LIMIT = '\u0010';
+
+    // Each character of a variable-length integer holds six bits. Characters from CONTINUATION
+    // upwards are followed by more characters, and the last character is in the range 1 to 63.
+    private static final int CONTINUATION = 0x40;
+    private static final int LAST_LIMIT = 63;
+    // Strings longer than this are appended to the StringConstructor without being copied
+    private static final int LARGE_STRING = 1000;
+
+    private CompactObjectRenderer() {
+    }
+
+    /**
+     * Render the given object in the compact format.
+     *
+     * @param obj the object to render
+     * @return a StringConstructor holding the compact String
+     */
+    public static StringConstructor render(Object obj) {
+        try {
+            StringConstructor retval = new StringConstructor();
+            StringBuilder sb = new StringBuilder();
+            sb.append(MARKER);
+            boolean needSpace = false;
+            for (Class<?> clazz : Util.decomposeClass(obj.getClass())) {
+                if (needSpace) {
+                    sb.append(' ');
+                }
+                needSpace = true;
+                sb.append(clazz.getName());
+            }
+            sb.append(MARKER);
+
+            Map<String, FieldInfo> infos = TypeUtil.getFieldInfos(obj.getClass());
+            for (String fieldName : infos.keySet()) {
+                Object value = TypeUtil.getFieldProxy(obj, fieldName);
+                if ((value == null) || (value instanceof Collection<?>)) {
+                    continue;
+                }
+                sb.append(fieldName);
+                if (value instanceof InterMineObject) {
+                    sb.append(TYPE_REFERENCE);
+                    writeVarLong(sb, ((InterMineObject) value).getId().intValue());
+                } else if (value instanceof Integer) {
+                    sb.append(TYPE_INTEGER);
+                    writeVarLong(sb, ((Integer) value).intValue());
+                } else if (value instanceof Long) {
+                    sb.append(TYPE_LONG);
+                    writeVarLong(sb, ((Long) value).longValue());
+                } else if (value instanceof Boolean) {
+                    sb.append(((Boolean) value).booleanValue() ? TYPE_TRUE : TYPE_FALSE);
+                } else if (value instanceof Date) {
+                    sb.append(TYPE_DATE);
+                    writeVarLong(sb, ((Date) value).getTime());
+                } else {
+                    String string;
+                    if (value instanceof String) {
+                        sb.append(TYPE_STRING);
+                        string = (String) value;
+                    } else {
+                        sb.append(TYPE_OTHER);
+                        if (value instanceof ClobAccess) {
+                            string = ((ClobAccess) value).getDbDescription();
+                        } else {
+                            string = value.toString();
+                        }
+                    }
+                    writeVarLong(sb, string.length());
+                    if (string.length() > LARGE_STRING) {
+                        retval.append(sb.toString());
+                        sb.setLength(0);
+                        retval.append(string);
+                    } else {
+                        sb.append(string);
+                    }
+                }
+            }
+            if (sb.length() > 0) {
+                retval.append(sb.toString());
+            }
+            return retval;
+        } catch (IllegalAccessException e) {
+            IllegalArgumentException e2 = new IllegalArgumentException();
+            e2.initCause(e);
+            throw e2;
+        }
+    }
+
+    /**
+     * Writes a variable-length integer. Values are zig-zag encoded so that small negative numbers
+     * are short too.
+     *
+     * @param sb the StringBuilder to write to
+     * @param value the value
+     */
+    static void writeVarLong(StringBuilder sb, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v < 0) || (v >= LAST_LIMIT)) {
+            sb.append((char) (CONTINUATION + (v & 0x3F)));
+            v = v >>> 6;
+        }
+        sb.append((char) (v + 1));
+    }
+
+    /**
+     * Reads a variable-length integer written by writeVarLong.
+     *
+     * @param s the String to read from
+     * @param pos a one-element array holding the position to start reading, which is updated to
+     * the position after the integer
+     * @return the value
+     */
+    static long readVarLong(String s, int[] pos) {
+        long v = 0;
+        int shift = 0;
+        int i = pos[0];
+        char c = s.charAt(i++);
+        while (c >= CONTINUATION) {
+            v |= ((long) (c - CONTINUATION)) << shift;
+            shift += 6;
+            c = s.charAt(i++);
+        }
+        v |= ((long) (c - 1)) << shift;
+        pos[0] = i;
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,345 @@
+package org.intermine.objectstore.intermine;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.objectstore.query.BatchSpillStore;
+import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.util.ShutdownHook;
+import org.intermine.util.Shutdownable;
+
+/**
+ * A BatchSpillStore that writes batches to a temporary file, and reads them back by mapping the
+ * relevant region of the file into memory. InterMineObjects are stored as NotXml, and simple
+ * values are stored in a compact binary form. Batches containing any other type of value (for
+ * example the collections produced by path expressions) are not stored.
+ * <p>
+ * The temporary file is deleted when the store is closed. Files of stores that are still open
+ * when the JVM exits are deleted by a shutdown hook.
+ *
+ * @author Matthew Wakeling
+ */
+public class MappedBatchSpillStore implements BatchSpillStore
+{
+    private static final Logger LOG = Logger.getLogger(MappedBatchSpillStore.class);
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_OBJECT = 1;
+    private static final byte TYPE_PROXY = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_INTEGER = 4;
+    private static final byte TYPE_LONG = 5;
+    private static final byte TYPE_SHORT = 6;
+    private static final byte TYPE_BYTE = 7;
+    private static final byte TYPE_BOOLEAN = 8;
+    private static final byte TYPE_FLOAT = 9;
+    private static final byte TYPE_DOUBLE = 10;
+    private static final byte TYPE_BIGDECIMAL = 11;
+    private static final byte TYPE_DATE = 12;
+    private static final byte TYPE_CHARACTER = 13;
+
+    // Spill files that have not been deleted yet, for deletion at shutdown
+    private static final Set<File> OPEN_FILES = new HashSet<File>();
+
+    static {
+        ShutdownHook.registerObject(new Shutdownable() {
+            public void shutdown() {
+                synchronized (OPEN_FILES) {
+                    for (File openFile : OPEN_FILES) {
+                        openFile.delete();
+                    }
+                    OPEN_FILES.clear();
+                }
+            }
+        });
+    }
+
+    private ObjectStoreInterMineImpl os;
+    private File directory;
+    private File file = null;
+    private RandomAccessFile raf = null;
+    private FileChannel channel = null;
+    private long length = 0;
+    private boolean closed = false;
+    // Map from batch number to the offset and length of the batch in the file
+    private Map<Integer, long[]> index = new HashMap<Integer, long[]>();
+
+    /**
+     * Constructs a new MappedBatchSpillStore. The temporary file is not created until a batch is
+     * stored.
+     *
+     * @param os the ObjectStore from which to create lazy objects when batches are read back
+     * @param directory the directory in which to create the temporary file, or null for the
+     * system default temporary directory
+     */
+    public MappedBatchSpillStore(ObjectStoreInterMineImpl os, File directory) {
+        this.os = os;
+        this.directory = directory;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean store(int batchNo, List<Object> batch) {
+        if (closed) {
+            return false;
+        }
+        Integer key = new Integer(batchNo);
+        if (index.containsKey(key)) {
+            // Batches are immutable, so there is no need to write it again
+            return true;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(batch.size());
+            for (Object rowObj : batch) {
+                if (!(rowObj instanceof ResultsRow<?>)) {
+                    return false;
+                }
+                List<?> row = (List<?>) rowObj;
+                out.writeInt(row.size());
+                for (Object value : row) {
+                    if (!writeValue(out, value)) {
+                        return false;
+                    }
+                }
+            }
+            out.flush();
+            byte[] data = baos.toByteArray();
+            if (channel == null) {
+                file = File.createTempFile("intermine_batches", ".spill", directory);
+                synchronized (OPEN_FILES) {
+                    OPEN_FILES.add(file);
+                }
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = length;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            index.put(key, new long[] {length, data.length});
+            length = position;
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not spill batch " + batchNo + " to " + file + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized List<Object> load(int batchNo) {
+        long[] location = index.get(new Integer(batchNo));
+        if ((location == null) || closed) {
+            return null;
+        }
+        try {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, location[0],
+                    location[1]);
+            int rowCount = in.getInt();
+            List<Object> retval = new ArrayList<Object>(rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                int columnCount = in.getInt();
+                ResultsRow<Object> row = new ResultsRow<Object>();
+                for (int o = 0; o < columnCount; o++) {
+                    row.add(readValue(in));
+                }
+                retval.add(row);
+            }
+            return retval;
+        } catch (IOException e) {
+            LOG.warn("Could not read spilled batch " + batchNo + " from " + file + ": " + e);
+        } catch (ClassNotFoundException e) {
+            LOG.warn("Could not read spilled batch " + batchNo + " from " + file + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean contains(int batchNo) {
+        return index.containsKey(new Integer(batchNo));
+    }
+
+    /**
+     * Returns the number of bytes written to the temporary file.
+     *
+     * @return a number of bytes
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void close() {
+        closed = true;
+        index.clear();
+        if (channel != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing spill file " + file + ": " + e);
+            }
+            if (!file.delete()) {
+                LOG.warn("Could not delete spill file " + file);
+            }
+            synchronized (OPEN_FILES) {
+                OPEN_FILES.remove(file);
+            }
+            channel = null;
+            raf = null;
+        }
+    }
+
+    /**
+     * Deletes the temporary file when this object is garbage collected.
+     *
+     * @throws Throwable if something goes wrong
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        close();
+        super.finalize();
+    }
+
+    private boolean writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof ProxyReference) {
+            // The class hint must be loadable by name when the batch is read back
+            Class<?> clazz = ((ProxyReference) value).getProxiedClass();
+            if ((clazz != InterMineObject.class)
+                    && (os.getModel().getClassDescriptorByName(clazz.getName()) == null)) {
+                return false;
+            }
+            out.writeByte(TYPE_PROXY);
+            out.writeInt(((ProxyReference) value).getId().intValue());
+            writeString(out, clazz.getName());
+        } else if (value instanceof InterMineObject) {
+            out.writeByte(TYPE_OBJECT);
+            writeString(out, NotXmlRenderer.render(value).toString());
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(((Long) value).longValue());
+        } else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort(((Short) value).shortValue());
+        } else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte(((Byte) value).byteValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean(((Boolean) value).booleanValue());
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat(((Float) value).floatValue());
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Double) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TYPE_BIGDECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Character) {
+            out.writeByte(TYPE_CHARACTER);
+            out.writeChar(((Character) value).charValue());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private Object readValue(ByteBuffer in) throws IOException, ClassNotFoundException {
+        byte type = in.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_PROXY:
+                Integer id = new Integer(in.getInt());
+                Class<?> clazz = Class.forName(readString(in));
+                return new ProxyReference(os, id, clazz.asSubclass(InterMineObject.class));
+            case TYPE_OBJECT:
+                return NotXmlParser.parse(readString(in), os);
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_INTEGER:
+                return new Integer(in.getInt());
+            case TYPE_LONG:
+                return new Long(in.getLong());
+            case TYPE_SHORT:
+                return new Short(in.getShort());
+            case TYPE_BYTE:
+                return new Byte(in.get());
+            case TYPE_BOOLEAN:
+                return Boolean.valueOf(in.get() != 0);
+            case TYPE_FLOAT:
+                return new Float(in.getFloat());
+            case TYPE_DOUBLE:
+                return new Double(in.getDouble());
+            case TYPE_BIGDECIMAL:
+                return new BigDecimal(readString(in));
+            case TYPE_DATE:
+                return new Date(in.getLong());
+            case TYPE_CHARACTER:
+                return new Character(in.getChar());
+            default:
+                throw new IOException("Unknown type " + type + " in spill file " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // DataOutputStream.writeUTF is limited to 64kB, which is too small for NotXml
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws UnsupportedEncodingException {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
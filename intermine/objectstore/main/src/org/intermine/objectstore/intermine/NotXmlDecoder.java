@@ -0,0 +1,414 @@
+package org.intermine.objectstore.intermine;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.intermine.objectstore.intermine.NotXmlParser.DELIM;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.cglib.proxy.Factory;
+
+import org.intermine.metadata.CollectionDescriptor;
+import org.intermine.metadata.FieldDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.metadata.ReferenceDescriptor;
+import org.intermine.metadata.TypeUtil;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.proxy.ProxyCollection;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.objectstore.query.ClobAccess;
+import org.intermine.util.DynamicBean;
+import org.intermine.util.DynamicUtil;
+
+/**
+ * Decodes NotXml Strings for a single class, and Strings in the compact format written by
+ * CompactObjectRenderer. Everything that can be worked out from the class and the model is worked
+ * out once when the decoder is created, so that decoding a String is a single pass over its
+ * characters that writes each field straight into the new object, without splitting the String
+ * into an array first.
+ *
+ * @author Matthew Wakeling
+ */
+final class NotXmlDecoder
+{
+    private static final int ATTRIBUTE = 0;
+    private static final int INTEGER = 1;
+    private static final int LONG = 2;
+    private static final int BOOLEAN = 3;
+    private static final int DATE = 4;
+    private static final int STRING = 5;
+    private static final int CLOB = 6;
+    private static final int REFERENCE = 7;
+
+    private static final int DELIM_LENGTH = DELIM.length();
+
+    private final Model model;
+    private final Class<? extends FastPathObject> clazz;
+    private final String[] names;
+    private final int[] kinds;
+    private final Class<?>[] types;
+    private final String[] collectionNames;
+    private final Class<?>[] collectionTypes;
+
+    /**
+     * Creates a decoder for the given class.
+     *
+     * @param model the Model that the class belongs to
+     * @param clazz the class of objects to create
+     */
+    NotXmlDecoder(Model model, Class<? extends FastPathObject> clazz) {
+        this.model = model;
+        this.clazz = clazz;
+        Map<String, TypeUtil.FieldInfo> fieldInfos = TypeUtil.getFieldInfos(clazz);
+        Map<String, FieldDescriptor> fields = model.getFieldDescriptorsForClass(clazz);
+        int count = fieldInfos.size();
+        names = new String[count];
+        kinds = new int[count];
+        types = new Class<?>[count];
+        // The fields are held in the same order as NotXmlRenderer writes them
+        int i = 0;
+        for (TypeUtil.FieldInfo info : fieldInfos.values()) {
+            names[i] = info.getName();
+            FieldDescriptor field = (fields == null ? null : fields.get(info.getName()));
+            Class<?> type = info.getType();
+            if ((field instanceof ReferenceDescriptor)
+                    && (!(field instanceof CollectionDescriptor))) {
+                kinds[i] = REFERENCE;
+                type = ((ReferenceDescriptor) field).getReferencedClassDescriptor().getType();
+            } else if (ClobAccess.class.equals(type)) {
+                kinds[i] = CLOB;
+            } else if (Integer.class.equals(type) || Integer.TYPE.equals(type)) {
+                kinds[i] = INTEGER;
+            } else if (Long.class.equals(type) || Long.TYPE.equals(type)) {
+                kinds[i] = LONG;
+            } else if (Boolean.class.equals(type) || Boolean.TYPE.equals(type)) {
+                kinds[i] = BOOLEAN;
+            } else if (Date.class.equals(type)) {
+                kinds[i] = DATE;
+            } else if (String.class.equals(type)) {
+                kinds[i] = STRING;
+            } else {
+                kinds[i] = ATTRIBUTE;
+            }
+            types[i] = type;
+            i++;
+        }
+        List<String> collNames = new ArrayList<String>();
+        List<Class<?>> collTypes = new ArrayList<Class<?>>();
+        for (Map.Entry<String, Class<?>> collEntry : model.getCollectionsForClass(clazz)
+                .entrySet()) {
+            collNames.add(collEntry.getKey());
+            collTypes.add(collEntry.getValue());
+        }
+        collectionNames = collNames.toArray(new String[collNames.size()]);
+        collectionTypes = collTypes.toArray(new Class<?>[collTypes.size()]);
+    }
+
+    /**
+     * Returns the Model that this decoder was created for.
+     *
+     * @return a Model
+     */
+    Model getModel() {
+        return model;
+    }
+
+    /**
+     * Decodes a NotXml String into a new object.
+     *
+     * @param xml the NotXml String
+     * @param pos the position in the String just after the delimiter that follows the class names
+     * @param os the ObjectStore from which to create lazy objects
+     * @return a new InterMineObject
+     */
+    InterMineObject decode(String xml, int pos, ObjectStoreInterMineImpl os) {
+        InterMineObject retval = (InterMineObject) DynamicUtil.createObject(clazz);
+        Map<String, Object> valueMap = null;
+        if (retval instanceof Factory) {
+            valueMap = ((DynamicBean) ((Factory) retval).getCallback(0)).getMap();
+        }
+        // References of dynamic objects only need the precise type if the objects cannot all be
+        // fetched from the InterMineObject table
+        boolean untypedReferences = (valueMap != null)
+            && os.getSchema().isFetchFromInterMineObject();
+        int length = xml.length();
+        int expected = 0;
+        while (pos < length) {
+            int nameEnd = xml.indexOf(DELIM, pos);
+            if (nameEnd == -1) {
+                nameEnd = length;
+            }
+            char tag = xml.charAt(pos);
+            int field = findField(xml, pos + 1, nameEnd, expected);
+            int valueStart = Math.min(nameEnd + DELIM_LENGTH, length);
+            int valueEnd = xml.indexOf(DELIM, valueStart);
+            if (valueEnd == -1) {
+                valueEnd = length;
+            }
+            String value = null;
+            if ((valueEnd + DELIM_LENGTH < length)
+                    && xml.startsWith(NotXmlParser.ENCODED_DELIM, valueEnd + DELIM_LENGTH)) {
+                // The value contains encoded delimiters, so it must be reassembled
+                StringBuilder string = new StringBuilder();
+                string.append(xml, valueStart, valueEnd);
+                while ((valueEnd + DELIM_LENGTH < length)
+                        && xml.startsWith(NotXmlParser.ENCODED_DELIM, valueEnd + DELIM_LENGTH)) {
+                    int partStart = valueEnd + DELIM_LENGTH + NotXmlParser.ENCODED_DELIM.length();
+                    valueEnd = xml.indexOf(DELIM, partStart);
+                    if (valueEnd == -1) {
+                        valueEnd = length;
+                    }
+                    string.append(DELIM).append(xml, partStart, valueEnd);
+                }
+                value = string.toString();
+            }
+            if (tag == 'a') {
+                if (field == -1) {
+                    throw new RuntimeException("failed to get field "
+                            + xml.substring(pos + 1, nameEnd) + " for object from XML: " + xml);
+                }
+                Object fieldValue;
+                if (value != null) {
+                    fieldValue = decodeAttribute(field, value, 0, value.length(), os);
+                } else {
+                    fieldValue = decodeAttribute(field, xml, valueStart, valueEnd, os);
+                }
+                setFieldValue(retval, valueMap, names[field], fieldValue);
+                expected = field + 1;
+            } else if (tag == 'r') {
+                Integer id = decodeInteger(xml, valueStart, valueEnd);
+                setReference(retval, valueMap, xml, pos + 1, nameEnd, field, id,
+                        untypedReferences, os);
+                if (field != -1) {
+                    expected = field + 1;
+                }
+            }
+            pos = valueEnd + DELIM_LENGTH;
+        }
+        setCollections(retval, valueMap, os);
+        return retval;
+    }
+
+    /**
+     * Decodes a String in the format written by CompactObjectRenderer into a new object.
+     *
+     * @param s the compact String
+     * @param start the position in the String just after the marker that follows the class names
+     * @param os the ObjectStore from which to create lazy objects
+     * @return a new InterMineObject
+     */
+    InterMineObject decodeCompact(String s, int start, ObjectStoreInterMineImpl os) {
+        InterMineObject retval = (InterMineObject) DynamicUtil.createObject(clazz);
+        Map<String, Object> valueMap = null;
+        if (retval instanceof Factory) {
+            valueMap = ((DynamicBean) ((Factory) retval).getCallback(0)).getMap();
+        }
+        boolean untypedReferences = (valueMap != null)
+            && os.getSchema().isFetchFromInterMineObject();
+        int length = s.length();
+        int expected = 0;
+        int[] pos = new int[] {start};
+        while (pos[0] < length) {
+            int nameStart = pos[0];
+            int nameEnd = nameStart;
+            while (s.charAt(nameEnd) >= CompactObjectRenderer.TYPE_LIMIT) {
+                nameEnd++;
+            }
+            char type = s.charAt(nameEnd);
+            int field = findField(s, nameStart, nameEnd, expected);
+            pos[0] = nameEnd + 1;
+            if (type == CompactObjectRenderer.TYPE_REFERENCE) {
+                Integer id = new Integer((int) CompactObjectRenderer.readVarLong(s, pos));
+                setReference(retval, valueMap, s, nameStart, nameEnd, field, id,
+                        untypedReferences, os);
+            } else {
+                if (field == -1) {
+                    throw new RuntimeException("failed to get field "
+                            + s.substring(nameStart, nameEnd) + " for object: " + s);
+                }
+                Object value;
+                switch (type) {
+                    case CompactObjectRenderer.TYPE_INTEGER:
+                        value = new Integer((int) CompactObjectRenderer.readVarLong(s, pos));
+                        break;
+                    case CompactObjectRenderer.TYPE_LONG:
+                        value = new Long(CompactObjectRenderer.readVarLong(s, pos));
+                        break;
+                    case CompactObjectRenderer.TYPE_TRUE:
+                        value = Boolean.TRUE;
+                        break;
+                    case CompactObjectRenderer.TYPE_FALSE:
+                        value = Boolean.FALSE;
+                        break;
+                    case CompactObjectRenderer.TYPE_DATE:
+                        value = new Date(CompactObjectRenderer.readVarLong(s, pos));
+                        break;
+                    case CompactObjectRenderer.TYPE_STRING:
+                    case CompactObjectRenderer.TYPE_OTHER:
+                        int valueLength = (int) CompactObjectRenderer.readVarLong(s, pos);
+                        int valueStart = pos[0];
+                        pos[0] += valueLength;
+                        if (kinds[field] == STRING) {
+                            value = s.substring(valueStart, pos[0]);
+                        } else {
+                            value = decodeAttribute(field, s, valueStart, pos[0], os);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown type " + ((int) type)
+                                + " for field " + names[field] + " in object: " + s);
+                }
+                setFieldValue(retval, valueMap, names[field], value);
+            }
+            if (field != -1) {
+                expected = field + 1;
+            }
+        }
+        setCollections(retval, valueMap, os);
+        return retval;
+    }
+
+    private void setReference(InterMineObject obj, Map<String, Object> valueMap, String s,
+            int nameStart, int nameEnd, int field, Integer id, boolean untypedReferences,
+            ObjectStoreInterMineImpl os) {
+        Class<? extends InterMineObject> refType = InterMineObject.class;
+        if (!untypedReferences) {
+            if ((field == -1) || (kinds[field] != REFERENCE)) {
+                throw new RuntimeException("failed to get field " + s.substring(nameStart, nameEnd)
+                        + " for object from XML: " + s);
+            }
+            @SuppressWarnings("unchecked")
+            Class<? extends InterMineObject> tmpType =
+                (Class<? extends InterMineObject>) types[field];
+            refType = tmpType;
+        }
+        String fieldName = (field == -1 ? s.substring(nameStart, nameEnd).intern()
+                : names[field]);
+        setFieldValue(obj, valueMap, fieldName, new ProxyReference(os, id, refType));
+    }
+
+    private void setCollections(InterMineObject obj, Map<String, Object> valueMap,
+            ObjectStoreInterMineImpl os) {
+        for (int i = 0; i < collectionNames.length; i++) {
+            setFieldValue(obj, valueMap, collectionNames[i], new ProxyCollection<Object>(os,
+                        obj, collectionNames[i], collectionTypes[i]));
+        }
+    }
+
+    /**
+     * Finds the index of the field with the name in the given region of the String. The field
+     * that is expected next is tried first, so that Strings written in the usual order need only
+     * one comparison per field.
+     *
+     * @param xml the NotXml String
+     * @param start the start of the field name
+     * @param end the end of the field name
+     * @param expected the index of the field expected next
+     * @return the field index, or -1 if there is no such field
+     */
+    private int findField(String xml, int start, int end, int expected) {
+        int nameLength = end - start;
+        for (int o = 0; o < names.length; o++) {
+            int i = (expected + o) % names.length;
+            String name = names[i];
+            if ((name.length() == nameLength) && xml.regionMatches(start, name, 0, nameLength)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Object decodeAttribute(int field, String xml, int start, int end,
+            ObjectStoreInterMineImpl os) {
+        switch (kinds[field]) {
+            case INTEGER:
+                return decodeInteger(xml, start, end);
+            case LONG:
+                long longValue = parseLong(xml, start, end);
+                if (longValue != Long.MIN_VALUE) {
+                    return new Long(longValue);
+                }
+                break;
+            case BOOLEAN:
+                if ((end - start == 4) && xml.regionMatches(start, "true", 0, 4)) {
+                    return Boolean.TRUE;
+                } else if ((end - start == 5) && xml.regionMatches(start, "false", 0, 5)) {
+                    return Boolean.FALSE;
+                }
+                break;
+            case DATE:
+                long millis = parseLong(xml, start, end);
+                if (millis != Long.MIN_VALUE) {
+                    return new Date(millis);
+                }
+                break;
+            case STRING:
+                return xml.substring(start, end);
+            case CLOB:
+                return ClobAccess.decodeDbDescription(os, xml.substring(start, end));
+            default:
+                break;
+        }
+        return TypeUtil.stringToObject(types[field], xml.substring(start, end));
+    }
+
+    private static Integer decodeInteger(String xml, int start, int end) {
+        long value = parseLong(xml, start, end);
+        if ((value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE)) {
+            return new Integer((int) value);
+        }
+        return Integer.valueOf(xml.substring(start, end).replace(",", ""));
+    }
+
+    /**
+     * Parses a plain decimal number from a region of a String without creating a substring.
+     *
+     * @param xml the String
+     * @param start the start of the number
+     * @param end the end of the number
+     * @return the number, or Long.MIN_VALUE if the region is not a plain decimal number that fits
+     * in a long, in which case the caller should use the slower general purpose parsing
+     */
+    private static long parseLong(String xml, int start, int end) {
+        boolean negative = false;
+        int i = start;
+        if ((i < end) && (xml.charAt(i) == '-')) {
+            negative = true;
+            i++;
+        }
+        // Limit the number of digits so that the value cannot overflow
+        if ((i == end) || (end - i > 18)) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = xml.charAt(i);
+            if ((c < '0') || (c > '9')) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static void setFieldValue(InterMineObject obj, Map<String, Object> valueMap,
+            String fieldName, Object value) {
+        if (valueMap != null) {
+            valueMap.put(fieldName, value);
+        } else {
+            obj.setFieldValue(fieldName, value);
+        }
+    }
+}
@@ -13,6 +13,7 @@ package org.intermine.objectstore.intermine;
 import static org.intermine.objectstore.query.ResultsBatches.DEFAULT_BATCH_SIZE;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
@@ -24,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,6 +45,7 @@ import org.intermine.metadata.FieldDescriptor;
 import org.intermine.metadata.MetaDataException;
 import org.intermine.metadata.Model;
 import org.intermine.metadata.TypeUtil;
+import org.intermine.metadata.Util;
 import org.intermine.model.InterMineObject;
 import org.intermine.modelproduction.MetadataManager;
 import org.intermine.objectstore.DataChangedException;
@@ -70,10 +73,12 @@ import org.intermine.objectstore.query.QueryObjectPathExpression;
 import org.intermine.objectstore.query.QueryObjectReference;
 import org.intermine.objectstore.query.QueryOrderable;
 import org.intermine.objectstore.query.QuerySelectable;
+import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.Results;
 import org.intermine.objectstore.query.ResultsBatches;
 import org.intermine.objectstore.query.ResultsInfo;
 import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.objectstore.query.SimpleConstraint;
 import org.intermine.objectstore.query.SingletonResults;
 import org.intermine.sql.Database;
 import org.intermine.sql.DatabaseFactory;
@@ -89,7 +94,8 @@ import org.intermine.sql.query.ExplainResult;
 import org.intermine.sql.query.PostgresExplainResult;
 import org.intermine.sql.writebatch.Batch;
 import org.intermine.sql.writebatch.BatchWriterPostgresCopyImpl;
-import org.intermine.util.CacheMap;
+import org.intermine.util.BoundedCacheMap;
+import org.intermine.util.CacheBudget;
 import org.intermine.util.ShutdownHook;
 import org.intermine.util.Shutdownable;
 
@@ -132,9 +138,14 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
     protected static final int SEQUENCE_MULTIPLE = 1000000;
     protected boolean logExplains = false;
     protected boolean disableResultsCache = false;
+    protected boolean compactObjects = false;
+    protected int resultsSpillBatches = 0;
+    protected File resultsSpillDirectory = null;
 
     // don't use a table to represent bags if the bag is smaller than this value
     protected int minBagTableSize = -1;
+    // number of connections that writers use to COPY data at commit boundaries
+    protected int parallelCopyConnections = 1;
     protected Map<Object, String> bagConstraintTables = Collections.synchronizedMap(
             new WeakHashMap<Object, String>());
     protected Set<BagTableToRemove> bagTablesInDatabase = Collections.synchronizedSet(
@@ -146,11 +157,25 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
     protected Map<Query, Integer> goFasterCountMap = new IdentityHashMap<Query, Integer>();
     protected ReferenceQueue<String> bagTablesToRemove = new ReferenceQueue<String>();
     protected String description;
-    protected Map<String, Results> resultsCache = new CacheMap<String, Results>();
-    protected Map<String, SingletonResults> singletonResultsCache
-        = new CacheMap<String, SingletonResults>();
-    protected Map<String, Map<Integer, ResultsBatches>> batchesCache
-        = new CacheMap<String, Map<Integer, ResultsBatches>>();
+    protected BoundedCacheMap<String, Results> resultsCache;
+    protected BoundedCacheMap<String, SingletonResults> singletonResultsCache;
+    protected BoundedCacheMap<String, Map<Integer, ResultsBatches>> batchesCache;
+    // The results caches are accessed while holding the lock for the query string, so that
+    // concurrent requests for different queries do not contend with each other.
+    private static final int CACHE_LOCK_STRIPES = 64;
+    // By default, the results caches of each ObjectStore may use up to this fraction of the
+    // maximum heap size
+    private static final int DEFAULT_RESULTS_CACHE_FRACTION = 8;
+    // A rough figure for the memory used by a cache entry apart from the rows of results, which
+    // are counted against the budget by the ResultsBatches objects themselves
+    private static final long ESTIMATED_ENTRY_OVERHEAD = 4096;
+    private final CacheBudget resultsCacheBudget = new CacheBudget(
+            Runtime.getRuntime().maxMemory() / DEFAULT_RESULTS_CACHE_FRACTION);
+    private final Object[] cacheLocks = new Object[CACHE_LOCK_STRIPES];
+
+    private static final ResultsWeigher RESULTS_WEIGHER = new ResultsWeigher();
+    private static final BatchesWeigher BATCHES_WEIGHER = new BatchesWeigher();
+    private static final SpillCloser SPILL_CLOSER = new SpillCloser();
 
     private static final String[] LOG_TABLE_COLUMNS = new String[] {"timestamp", "optimise",
         "estimated", "execute", "permitted", "convert", "iql", "sql"};
@@ -184,6 +209,7 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
      */
     protected ObjectStoreInterMineImpl(Model model) {
         super(model);
+        initResultsCache();
     }
 
     /**
@@ -206,6 +232,72 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
             limitedContext.setMaxQueryParseTime(maxQueryParseTime.longValue());
         }
         description = "ObjectStoreInterMineImpl(" + db + ")";
+        initResultsCache();
+    }
+
+    private void initResultsCache() {
+        for (int i = 0; i < CACHE_LOCK_STRIPES; i++) {
+            cacheLocks[i] = new Object();
+        }
+        configureResultsCache(resultsCacheBudget.getMaxWeight(), BoundedCacheMap.Policy.LRU);
+    }
+
+    /**
+     * Replaces the results caches with empty caches of the given eviction policy, and sets the
+     * size of the memory budget that they share. The three caches (for Results, SingletonResults,
+     * and the underlying ResultsBatches) of this ObjectStoreInterMineImpl share a budget with the
+     * batches of rows held by the ResultsBatches, and the least recently used entry or batch of
+     * any of them is evicted when it is full. Each batch is weighed by an estimate of the memory
+     * used by its rows, so the limit is approximately a number of bytes. Every
+     * ObjectStoreInterMineImpl has its own budget, so the limits of all the ObjectStores in the
+     * JVM add up.
+     *
+     * @param maxBytes the maximum estimated size of all the results caches in bytes
+     * @param policy the eviction policy
+     */
+    public void configureResultsCache(long maxBytes, BoundedCacheMap.Policy policy) {
+        String prefix = (description == null ? "ObjectStoreInterMineImpl" : description);
+        resultsCacheBudget.setMaxWeight(maxBytes);
+        BoundedCacheMap<String, Map<Integer, ResultsBatches>> newBatchesCache
+            = new BoundedCacheMap<String, Map<Integer, ResultsBatches>>(prefix + " batches cache",
+                    resultsCacheBudget, policy, BATCHES_WEIGHER);
+        newBatchesCache.setEvictionListener(SPILL_CLOSER);
+        BoundedCacheMap<String, Results> newResultsCache = new BoundedCacheMap<String, Results>(
+                prefix + " results cache", resultsCacheBudget, policy, RESULTS_WEIGHER);
+        BoundedCacheMap<String, SingletonResults> newSingletonResultsCache
+            = new BoundedCacheMap<String, SingletonResults>(prefix + " singleton results cache",
+                    resultsCacheBudget, policy, RESULTS_WEIGHER);
+        synchronized (cacheLocks) {
+            if (resultsCache != null) {
+                for (Map<Integer, ResultsBatches> batches : batchesCache.values()) {
+                    closeSpills(batches);
+                }
+                for (BoundedCacheMap<String, ?> old : Arrays.asList(resultsCache,
+                            singletonResultsCache, batchesCache)) {
+                    old.unregisterMBean();
+                    old.clear();
+                    old.unregister();
+                }
+            }
+            batchesCache = newBatchesCache;
+            resultsCache = newResultsCache;
+            singletonResultsCache = newSingletonResultsCache;
+        }
+    }
+
+    /**
+     * Publishes the statistics of the results caches through JMX.
+     */
+    public void registerResultsCacheMBeans() {
+        synchronized (cacheLocks) {
+            resultsCache.registerMBean();
+            singletonResultsCache.registerMBean();
+            batchesCache.registerMBean();
+        }
+    }
+
+    private Object getCacheLock(String batchesKey) {
+        return cacheLocks[(batchesKey.hashCode() & Integer.MAX_VALUE) % CACHE_LOCK_STRIPES];
     }
 
     /**
@@ -341,11 +433,13 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
         String logfile = props.getProperty("logfile");
         String logTable = props.getProperty("logTable");
         String minBagTableSizeString = props.getProperty("minBagTableSize");
+        String parallelCopyConnectionsString = props.getProperty("parallelCopyConnections");
         String logEverythingString = props.getProperty("logEverything");
         String verboseQueryLogString = props.getProperty("verboseQueryLog");
         String logExplainsString = props.getProperty("logExplains");
         String logBeforeExecuteString = props.getProperty("logBeforeExecute");
         String disableResultsCacheString = props.getProperty("disableResultsCache");
+        String objectFormatString = props.getProperty("objectFormat");
 
         synchronized (instances) {
             ObjectStoreInterMineImpl os = instances.get(osAlias);
@@ -494,6 +588,14 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
                         LOG.warn("Error setting minBagTableSize: " + e);
                     }
                 }
+                if (parallelCopyConnectionsString != null) {
+                    try {
+                        os.setParallelCopyConnections(Integer.parseInt(
+                                    parallelCopyConnectionsString));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Error setting parallelCopyConnections: " + e);
+                    }
+                }
                 if ("true".equals(logEverythingString)) {
                     os.setLogEverything(true);
                 }
@@ -509,12 +611,60 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
                 if ("true".equals(disableResultsCacheString)) {
                     os.setDisableResultsCache(true);
                 }
+                if ("compact".equals(objectFormatString)) {
+                    os.setCompactObjects(true);
+                } else if ((objectFormatString != null) && (!"notxml".equals(objectFormatString))) {
+                    LOG.warn("Unknown objectFormat " + objectFormatString + " - using notxml");
+                }
+                os.configureResultsCache(props);
+                os.registerResultsCacheMBeans();
                 instances.put(osAlias, os);
             }
             return os;
         }
     }
 
+    /**
+     * Configures the results caches and the spilling of batches to disc from the resultsCacheSize,
+     * resultsCachePolicy, resultsSpillBatches and resultsSpillDirectory properties.
+     *
+     * @param props the properties used to configure the objectstore
+     */
+    private void configureResultsCache(Properties props) {
+        String resultsCacheSizeString = props.getProperty("resultsCacheSize");
+        String resultsCachePolicyString = props.getProperty("resultsCachePolicy");
+        String resultsSpillBatchesString = props.getProperty("resultsSpillBatches");
+        String resultsSpillDirectoryString = props.getProperty("resultsSpillDirectory");
+        long resultsCacheSize = Runtime.getRuntime().maxMemory() / DEFAULT_RESULTS_CACHE_FRACTION;
+        if (resultsCacheSizeString != null) {
+            try {
+                resultsCacheSize = Long.parseLong(resultsCacheSizeString);
+            } catch (NumberFormatException e) {
+                LOG.warn("Error setting resultsCacheSize: " + e);
+            }
+        }
+        BoundedCacheMap.Policy resultsCachePolicy = BoundedCacheMap.Policy.LRU;
+        if (resultsCachePolicyString != null) {
+            try {
+                resultsCachePolicy = BoundedCacheMap.Policy.parse(resultsCachePolicyString);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Error setting resultsCachePolicy: " + e);
+            }
+        }
+        configureResultsCache(resultsCacheSize, resultsCachePolicy);
+        if (resultsSpillBatchesString != null) {
+            File spillDirectory = null;
+            if (resultsSpillDirectoryString != null) {
+                spillDirectory = new File(resultsSpillDirectoryString);
+            }
+            try {
+                setResultsSpill(Integer.parseInt(resultsSpillBatchesString), spillDirectory);
+            } catch (NumberFormatException e) {
+                LOG.warn("Error setting resultsSpillBatches: " + e);
+            }
+        }
+    }
+
     /**
      * Returns the log used by this objectstore.
      *
@@ -657,6 +807,57 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
         return disableResultsCache;
     }
 
+    /**
+     * Sets whether objects are written to the OBJECT column in the compact format written by
+     * CompactObjectRenderer instead of NotXml. Both formats are always readable.
+     *
+     * @param compactObjects a boolean
+     */
+    public void setCompactObjects(boolean compactObjects) {
+        this.compactObjects = compactObjects;
+    }
+
+    /**
+     * Gets whether objects are written to the OBJECT column in the compact format.
+     *
+     * @return a boolean
+     */
+    public boolean getCompactObjects() {
+        return compactObjects;
+    }
+
+    /**
+     * Configures the spilling of batches of results to disc. If batchesInMemory is greater than
+     * zero, then each ResultsBatches object created by this ObjectStore keeps at most that many
+     * batches in memory, and writes the batches it evicts to a temporary file, from which they are
+     * read back instead of running the query again.
+     *
+     * @param batchesInMemory the number of batches to keep in memory, or zero to disable spilling
+     * @param directory the directory in which to create the temporary files, or null for the
+     * system default temporary directory
+     */
+    public void setResultsSpill(int batchesInMemory, File directory) {
+        this.resultsSpillBatches = batchesInMemory;
+        this.resultsSpillDirectory = directory;
+    }
+
+    /**
+     * Gets the number of batches of each Results object to keep in memory before spilling to disc.
+     *
+     * @return an int, zero if spilling is disabled
+     */
+    public int getResultsSpillBatches() {
+        return resultsSpillBatches;
+    }
+
+    private void addResultsSpill(ResultsBatches batches) {
+        batches.setCacheBudget(resultsCacheBudget);
+        if ((resultsSpillBatches > 0) && (batches.getSpill() == null)) {
+            batches.setSpill(new MappedBatchSpillStore(this, resultsSpillDirectory),
+                    resultsSpillBatches);
+        }
+    }
+
     /**
      * Allows the log table to be flushed, guaranteeing that all log entries are committed to the
      * database.
@@ -715,6 +916,26 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
         return minBagTableSize;
     }
 
+    /**
+     * Sets the number of database connections that writers created after this call use to COPY
+     * data into different tables at the same time when they commit. A value of 1 or less writes
+     * everything over the writer's own connection.
+     *
+     * @param parallelCopyConnections the number of connections
+     */
+    public void setParallelCopyConnections(int parallelCopyConnections) {
+        this.parallelCopyConnections = parallelCopyConnections;
+    }
+
+    /**
+     * Returns the number of database connections that writers use to COPY data when they commit.
+     *
+     * @return an int
+     */
+    public int getParallelCopyConnections() {
+        return parallelCopyConnections;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -729,9 +950,10 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
     @Override
     public Results execute(Query q, int batchSize, boolean optimise, boolean explain,
             boolean prefetch) {
+        String batchesKey = q.toString();
         String cacheKey = "Batchsize: " + batchSize + ", optimise: " + optimise + ", explain: "
-            + explain + ", prefetch: " + prefetch + ", query: " + q;
-        synchronized (resultsCache) {
+            + explain + ", prefetch: " + prefetch + ", query: " + batchesKey;
+        synchronized (getCacheLock(batchesKey)) {
             // if this query has been executed before return a cached copy of the Results
             Results retval = resultsCache.get(cacheKey);
             if (retval != null) {
@@ -742,27 +964,25 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
                 }
             }
             if (retval == null) {
-                String batchesKey = q.toString();
-                synchronized (batchesCache) {
-                    Map<Integer, ResultsBatches> batches = batchesCache.get(batchesKey);
-                    if (batches == null) {
-                        batches = new CacheMap<Integer, ResultsBatches>();
-                        batchesCache.put(batchesKey, batches);
-                    }
-                    ResultsBatches batch = getResultsBatches(batches, batchSize);
-                    if (batch != null) {
-                        // We've executed this query before but with a different batch size, we may
-                        // be able to use the rows from previous batches to seed a new Results. This
-                        // is here because running a query in the webapp and exporting use different
-                        // batch sizes, this way we avoid re-executing queries that have results
-                        // already in cache.
-                        retval = new Results(batch, optimise, explain, prefetch);
-                    } else {
-                        retval = super.execute(q, batchSize, optimise, explain, prefetch);
-                        batches.put(new Integer(batchSize), retval.getResultsBatches());
-                    }
-                    resultsCache.put(cacheKey, retval);
+                Map<Integer, ResultsBatches> batches = batchesCache.get(batchesKey);
+                if (batches == null) {
+                    batches = Collections.synchronizedMap(new HashMap<Integer, ResultsBatches>());
+                }
+                ResultsBatches batch = getResultsBatches(batches, batchSize);
+                if (batch != null) {
+                    // We've executed this query before but with a different batch size, we may
+                    // be able to use the rows from previous batches to seed a new Results. This
+                    // is here because running a query in the webapp and exporting use different
+                    // batch sizes, this way we avoid re-executing queries that have results
+                    // already in cache.
+                    retval = new Results(batch, optimise, explain, prefetch);
+                } else {
+                    retval = super.execute(q, batchSize, optimise, explain, prefetch);
+                    addResultsSpill(retval.getResultsBatches());
+                    batches.put(new Integer(batchSize), retval.getResultsBatches());
                 }
+                batchesCache.put(batchesKey, batches);
+                resultsCache.put(cacheKey, retval);
                 //LOG.error("Results cache miss for " + q);
             //} else {
                 //LOG.error("Results cache hit for " + q);
@@ -785,9 +1005,10 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
     @Override
     public SingletonResults executeSingleton(Query q, int batchSize, boolean optimise,
             boolean explain, boolean prefetch) {
+        String batchesKey = q.toString();
         String cacheKey = "Batchsize: " + batchSize + ", optimise: " + optimise + ", explain: "
-            + explain + ", prefetch: " + prefetch + ", query: " + q;
-        synchronized (singletonResultsCache) {
+            + explain + ", prefetch: " + prefetch + ", query: " + batchesKey;
+        synchronized (getCacheLock(batchesKey)) {
             SingletonResults retval = singletonResultsCache.get(cacheKey);
             if (retval != null) {
                 try {
@@ -797,22 +1018,20 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
                 }
             }
             if (retval == null) {
-                String batchesKey = q.toString();
-                synchronized (batchesCache) {
-                    Map<Integer, ResultsBatches> batches = batchesCache.get(batchesKey);
-                    if (batches == null) {
-                        batches = new CacheMap<Integer, ResultsBatches>();
-                        batchesCache.put(batchesKey, batches);
-                    }
-                    ResultsBatches batch = getResultsBatches(batches, batchSize);
-                    if (batch != null) {
-                        retval = new SingletonResults(batch, optimise, explain, prefetch);
-                    } else {
-                        retval = super.executeSingleton(q, batchSize, optimise, explain, prefetch);
-                        batches.put(new Integer(batchSize), retval.getResultsBatches());
-                    }
-                    singletonResultsCache.put(cacheKey, retval);
+                Map<Integer, ResultsBatches> batches = batchesCache.get(batchesKey);
+                if (batches == null) {
+                    batches = Collections.synchronizedMap(new HashMap<Integer, ResultsBatches>());
                 }
+                ResultsBatches batch = getResultsBatches(batches, batchSize);
+                if (batch != null) {
+                    retval = new SingletonResults(batch, optimise, explain, prefetch);
+                } else {
+                    retval = super.executeSingleton(q, batchSize, optimise, explain, prefetch);
+                    addResultsSpill(retval.getResultsBatches());
+                    batches.put(new Integer(batchSize), retval.getResultsBatches());
+                }
+                batchesCache.put(batchesKey, batches);
+                singletonResultsCache.put(cacheKey, retval);
                 //LOG.error("Results cache miss for " + q);
             //} else {
                 //LOG.error("Results cache hit for " + q);
@@ -858,6 +1077,7 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
             }
             if (batch != null) {
                 batch = batch.makeWithDifferentBatchSize(batchSize);
+                addResultsSpill(batch);
                 batches.put(new Integer(batchSize), batch);
             }
         }
@@ -1293,6 +1513,9 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
                     }
                 }
             }
+            if ((limit != Integer.MAX_VALUE) && (objResults.size() == limit)) {
+                registerKeyset(q, start, objResults);
+            }
             Object firstOrderByObject = q.getEffectiveOrderBy().iterator().next();
             if ((firstOrderByObject instanceof QueryOrderable)
                     && (!(firstOrderByObject instanceof QueryObjectReference))) {
@@ -1328,6 +1551,148 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
         }
     }
 
+    /**
+     * Registers the key of the last row of a full batch with the SqlGenerator, if the ORDER BY of
+     * the query identifies rows uniquely, so that the next batch starts after that key rather
+     * than at an OFFSET.
+     *
+     * @param q the Query
+     * @param start the start row number of the batch
+     * @param objResults the rows of the batch
+     */
+    private void registerKeyset(Query q, int start, List<ResultsRow<Object>> objResults) {
+        List<QueryOrderable> keyset = SqlGenerator.getKeysetOrderBy(q, schema);
+        if (keyset == null) {
+            return;
+        }
+        List<Object> values = SqlGenerator.getKeysetValues(q, keyset,
+                objResults.get(objResults.size() - 1));
+        if (values == null) {
+            return;
+        }
+        SqlGenerator.registerKeyset(q, start + objResults.size(), schema, db, keyset, values,
+                bagConstraintTables);
+    }
+
+    /**
+     * Executes a query by splitting it into ranges of ids of the first object in its ORDER BY,
+     * and fetching each range on its own connection in parallel. The ranges are chosen from the
+     * distribution of ids in the table for that class, so that they hold similar numbers of rows.
+     * The rows are returned in the same order as the Iterator of a Results object for the query.
+     * Queries whose ORDER BY does not start with an object and identify rows uniquely cannot be
+     * split, and are executed normally.
+     *
+     * @param q the Query
+     * @param partitions the number of ranges to fetch in parallel
+     * @param batchSize the number of rows to fetch at a time in each range
+     * @param optimise true if the query should be optimised
+     * @return an Iterator over the rows
+     * @throws ObjectStoreException if an error occurs
+     */
+    public Iterator<Object> executePartitioned(Query q, int partitions, int batchSize,
+            boolean optimise) throws ObjectStoreException {
+        List<QueryOrderable> keyset = SqlGenerator.getKeysetOrderBy(q, schema);
+        QueryClass qc = null;
+        if (keyset != null) {
+            QueryOrderable first = keyset.get(0);
+            if (first instanceof QueryClass) {
+                qc = (QueryClass) first;
+            } else if ("id".equals(((QueryField) first).getFieldName())) {
+                qc = (QueryClass) ((QueryField) first).getFromElement();
+            }
+        }
+        if (qc == null) {
+            return execute(q, batchSize, optimise, false, true).iterator();
+        }
+        List<Integer> boundaries;
+        Connection c = null;
+        try {
+            c = getConnection();
+            if (getMinBagTableSize() != -1) {
+                createTempBagTables(c, q);
+            }
+            boundaries = getIdBoundaries(c, qc, partitions);
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Could not read the distribution of ids for "
+                    + qc.getType(), e);
+        } finally {
+            releaseConnection(c);
+        }
+        QueryField id = new QueryField(qc, "id");
+        List<Constraint> ranges = new ArrayList<Constraint>();
+        Integer lower = null;
+        for (int i = 0; i <= boundaries.size(); i++) {
+            Integer upper = (i < boundaries.size() ? boundaries.get(i) : null);
+            ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+            if (lower != null) {
+                cs.addConstraint(new SimpleConstraint(id, ConstraintOp.GREATER_THAN_EQUALS,
+                            new QueryValue(lower)));
+            }
+            if (upper != null) {
+                cs.addConstraint(new SimpleConstraint(id, ConstraintOp.LESS_THAN,
+                            new QueryValue(upper)));
+            }
+            ranges.add(cs.getConstraints().isEmpty() ? null : cs);
+            lower = upper;
+        }
+        return new PartitionedResultsIterator(this, q, keyset, ranges, batchSize, optimise,
+                getSequence(getComponentsForQuery(q)));
+    }
+
+    /**
+     * Returns ids that split the objects of the class of a QueryClass into the given number of
+     * ranges of similar size. The histogram in the database statistics for the id column is used
+     * if present, otherwise the range between the minimum and maximum ids is split evenly.
+     *
+     * @param c a Connection
+     * @param qc the QueryClass
+     * @param partitions the number of ranges
+     * @return an ascending List of ids, one fewer than the number of ranges, or fewer if the table
+     * is too small
+     * @throws SQLException if an error occurs
+     */
+    protected List<Integer> getIdBoundaries(Connection c, QueryClass qc, int partitions)
+        throws SQLException {
+        ClassDescriptor cld = schema.getModel().getClassDescriptorByName(
+                Util.decomposeClass(qc.getType()).iterator().next().getName());
+        String tableName = DatabaseUtil.getTableName(schema.getTableMaster(cld));
+        List<Integer> bounds = new ArrayList<Integer>();
+        Statement s = c.createStatement();
+        try {
+            ResultSet r = s.executeQuery("SELECT histogram_bounds::text FROM pg_stats"
+                    + " WHERE schemaname = current_schema() AND tablename = '"
+                    + tableName.toLowerCase() + "' AND attname = 'id'");
+            String histogram = (r.next() ? r.getString(1) : null);
+            if (histogram != null) {
+                for (String value : histogram.substring(1, histogram.length() - 1).split(",")) {
+                    bounds.add(Integer.valueOf(value));
+                }
+            } else {
+                r = s.executeQuery("SELECT min(id), max(id) FROM " + tableName);
+                if (r.next() && (r.getObject(1) != null)) {
+                    long min = r.getInt(1);
+                    long max = r.getInt(2);
+                    for (int i = 0; i <= partitions; i++) {
+                        bounds.add(new Integer((int) (min + (max - min) * i / partitions)));
+                    }
+                }
+            }
+        } finally {
+            s.close();
+        }
+        List<Integer> retval = new ArrayList<Integer>();
+        if (bounds.size() > 2) {
+            for (int i = 1; i < partitions; i++) {
+                Integer bound = bounds.get(i * (bounds.size() - 1) / partitions);
+                if (retval.isEmpty() || (bound.intValue() > retval.get(retval.size() - 1)
+                            .intValue())) {
+                    retval.add(bound);
+                }
+            }
+        }
+        return retval;
+    }
+
     /**
      * Generate sql from a Query
      *
@@ -1691,30 +2056,76 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
      * @param tablesAltered a Set of table names that may have been altered
      */
     public void databaseAltered(Set<Object> tablesAltered) {
+        databaseAltered(tablesAltered, null, true);
+    }
+
+    /**
+     * Internal method called by the ObjectStoreWriter, to notify the ObjectStore that some of the
+     * data in the database has changed. Precomputed tables that read the altered tables are brought
+     * up to date in the background, and are not used until they are. If the changes have not been
+     * committed yet, the precomputed tables are only withdrawn, and maintainPrecomputedTables()
+     * must be called with the same changes once they have been committed.
+     *
+     * @param tablesAltered a Set of table names that may have been altered
+     * @param idsAltered a Map from table name to the ids of the objects altered in that table, or
+     * null if they are not known
+     * @param committed true if the changes have been committed
+     */
+    public void databaseAltered(Set<Object> tablesAltered, Map<String, Set<Integer>> idsAltered,
+            boolean committed) {
         if (tablesAltered.size() > 0) {
             changeSequence(tablesAltered);
-            Set<String> tableNames = new HashSet<String>();
-            for (Object o : tablesAltered) {
-                if (o instanceof String) {
-                    tableNames.add((String) o);
-                }
-            }
             // We have just removed the ObjectStoreBags from the Set of altered things. This means
-            // that although the DataChangedException stuff is ObjectStoreBag-specific, the dropping
+            // that although the DataChangedException stuff is ObjectStoreBag-specific, the updating
             // precomputed tables bit is not. Changing any ObjectStoreBag will result in all
-            // Precomputed tables that have an ObjectStoreBag being dropped.
+            // Precomputed tables that have an ObjectStoreBag being rebuilt.
             if ((tablesAltered.size() > 1) || (!tablesAltered.contains(INT_BAG_TABLE_NAME))) {
                 flushObjectById();
             }
             try {
                 PrecomputedTableManager ptm = PrecomputedTableManager.getInstance(db);
-                ptm.dropAffected(tableNames);
+                if (committed) {
+                    ptm.maintainAffected(getTableNames(tablesAltered), idsAltered, false);
+                } else {
+                    ptm.withdrawAffected(getTableNames(tablesAltered));
+                }
+            } catch (SQLException e) {
+                throw new Error("Problem with precomputed tables", e);
+            }
+        }
+    }
+
+    /**
+     * Internal method called by the ObjectStoreWriter once changes that were passed to
+     * databaseAltered() before they were committed have been committed, so that the precomputed
+     * tables that read the altered tables can be brought up to date.
+     *
+     * @param tablesAltered a Set of table names that have been altered
+     * @param idsAltered a Map from table name to the ids of the objects altered in that table, or
+     * null if they are not known
+     */
+    public void maintainPrecomputedTables(Set<Object> tablesAltered,
+            Map<String, Set<Integer>> idsAltered) {
+        if (tablesAltered.size() > 0) {
+            try {
+                PrecomputedTableManager ptm = PrecomputedTableManager.getInstance(db);
+                ptm.maintainAffected(getTableNames(tablesAltered), idsAltered, true);
             } catch (SQLException e) {
                 throw new Error("Problem with precomputed tables", e);
             }
         }
     }
 
+    private static Set<String> getTableNames(Set<Object> tablesAltered) {
+        Set<String> tableNames = new HashSet<String>();
+        for (Object o : tablesAltered) {
+            if (o instanceof String) {
+                tableNames.add((String) o);
+            }
+        }
+        return tableNames;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -2082,6 +2493,36 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
         return (ptm.lookupSql(type, sqlQuery) != null);
     }
 
+    /**
+     * Checks if precompute() has already created the precomputed table for a query, with the
+     * same allFields argument and category. Queries with path expressions in the SELECT list are
+     * never reported as precomputed, because precompute() creates more than one table for them.
+     *
+     * @param q the Query
+     * @param allFields the allFields argument that would be passed to precompute()
+     * @param category the category of the precomputed table
+     * @return true if the precomputed table exists
+     * @throws ObjectStoreException if there is a database problem
+     */
+    public boolean isPrecomputed(Query q, boolean allFields,
+            String category) throws ObjectStoreException {
+        for (QuerySelectable qs : q.getSelect()) {
+            if ((qs instanceof QueryCollectionPathExpression)
+                    || (qs instanceof QueryObjectPathExpression)) {
+                return false;
+            }
+        }
+        Map<Object, String> empty = Collections.emptyMap();
+        String sql = SqlGenerator.generate(q, schema, db, null, (allFields
+                    ? SqlGenerator.QUERY_FOR_PRECOMP : SqlGenerator.QUERY_FOR_GOFASTER), empty);
+        try {
+            PrecomputedTableManager ptm = PrecomputedTableManager.getInstance(db);
+            return (ptm.lookupSql(category, sql) != null);
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Could not get precomputed tables", e);
+        }
+    }
+
     /**
      * Makes a certain Query go faster, using extra resources. The user should release
      * the resources later by calling releaseGoFaster on the same Query. Failure to release
@@ -2267,6 +2708,54 @@ public class ObjectStoreInterMineImpl extends ObjectStoreAbstractImpl implements
         return r.getInt(1);
     }
 
+    /**
+     * Weighs entries in the Results caches. The rows of results are not counted here, as they are
+     * counted by the ResultsBatches objects that hold them.
+     */
+    private static class ResultsWeigher implements BoundedCacheMap.Weigher<String, Results>
+    {
+        public long weigh(String key, Results value) {
+            return (2L * key.length()) + ESTIMATED_ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Weighs entries in the ResultsBatches cache. The rows of results are not counted here, as
+     * they are counted by the ResultsBatches objects that hold them.
+     */
+    private static class BatchesWeigher
+        implements BoundedCacheMap.Weigher<String, Map<Integer, ResultsBatches>>
+    {
+        public long weigh(String key, Map<Integer, ResultsBatches> value) {
+            return (2L * key.length()) + value.size() * ESTIMATED_ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Releases the batches of ResultsBatches objects when they are evicted from the cache, so
+     * that their memory is returned to the budget and the temporary files of their spill stores
+     * are deleted straight away. A Results object that still uses one of them will fetch batches
+     * from the database instead.
+     */
+    private static class SpillCloser
+        implements BoundedCacheMap.EvictionListener<String, Map<Integer, ResultsBatches>>
+    {
+        public void evicted(String key, Map<Integer, ResultsBatches> value) {
+            closeSpills(value);
+        }
+    }
+
+    private static void closeSpills(Map<Integer, ResultsBatches> batchesMap) {
+        synchronized (batchesMap) {
+            for (ResultsBatches batches : batchesMap.values()) {
+                if (batches != null) {
+                    batches.clearBatches();
+                    batches.closeSpill();
+                }
+            }
+        }
+    }
+
     /**
      * Class describing a temporary bag table, which can be removed. A bag table can be forcibly
      * dropped by passing one of these objects to the removeTempBagTable method. Alternatively,
@@ -60,6 +60,7 @@ import org.intermine.sql.DatabaseUtil;
 import org.intermine.sql.precompute.BestQuery;
 import org.intermine.sql.precompute.OptimiserCache;
 import org.intermine.sql.precompute.PrecomputedTable;
+import org.intermine.sql.precompute.PrecomputedTableManager;
 import org.intermine.sql.precompute.QueryOptimiser;
 import org.intermine.sql.precompute.QueryOptimiserContext;
 import org.intermine.sql.writebatch.Batch;
@@ -94,6 +95,12 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
     protected Map<String, Set<CollectionDescriptor>> tableToCollections;
     protected String connectionTakenBy = null;
     protected Set<Object> tablesAltered = new HashSet<Object>();
+    // The ids of the objects written to or deleted from each table in tablesAltered, or null if
+    // they are not known
+    protected Map<String, Set<Integer>> idsAltered = new HashMap<String, Set<Integer>>();
+    // Changes written by the last batchCommitTransaction(), which may not have been committed yet
+    protected Set<Object> batchTablesAltered = new HashSet<Object>();
+    protected Map<String, Set<Integer>> batchIdsAltered = new HashMap<String, Set<Integer>>();
 
     private Long cumulativeWait = new Long(0);    // just for diagnostic, can be removed
     private Integer getConnectionCalls = 0;       // as above
@@ -146,6 +153,7 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
         createSituation = (index < 0 ? createSituation : createSituation.substring(0, index));
         recentSequences = Collections.synchronizedMap(new WeakHashMap<Integer, Boolean>());
         batch = new Batch(new BatchWriterPostgresCopyImpl());
+        batch.setParallelCopy(db, this.os.getParallelCopyConnections());
         tableToInfo = new HashMap<String, TableInfo>();
         tableToColNameArray = new HashMap<String, String[]>();
         tableToCollections = new HashMap<String, Set<CollectionDescriptor>>();
@@ -364,6 +372,16 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
         }
     }
 
+    /**
+     * Returns the Batch that this ObjectStoreWriter uses, so that its statistics can be read.
+     * Rows must not be added to it directly.
+     *
+     * @return a Batch
+     */
+    public Batch getBatch() {
+        return batch;
+    }
+
     /**
      * Set the cutoff value used to decide if a bag should be put in a table.
      *
@@ -559,6 +577,9 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
             // remove reference to this writer from the parent ObjectStore
             this.os.writers.remove(this);
             notifyAll();
+            // The Batch has finished with the last batch commit now, whether or not it succeeded,
+            // so the precomputed tables withdrawn for it can be brought up to date and restored
+            maintainBatchCommitted();
         }
     }
 
@@ -612,7 +633,7 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
                     String tableName = DatabaseUtil.getTableName(tableMaster);
                     if (!schema.getMissingTables().contains(tableName.toLowerCase())) {
                         batch.deleteRow(c, tableName, "id", ((InterMineObject) o).getId());
-                        tablesAltered.add(tableName);
+                        recordAltered(tableName, ((InterMineObject) o).getId());
                     }
                 }
             }
@@ -676,7 +697,9 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
                             value = objectClass;
                         } else if ("OBJECT".equals(tableInfo.colNames[colNo])) {
                             if (xml == null) {
-                                if (o instanceof InterMineObject) {
+                                if (os.getCompactObjects()) {
+                                    xml = CompactObjectRenderer.render(o);
+                                } else if (o instanceof InterMineObject) {
                                     xml = ((InterMineObject) o).getoBJECT();
                                 } else {
                                     xml = NotXmlRenderer.render(o);
@@ -739,7 +762,8 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
                     batch.addRow(c, tableInfo.tableName, (o instanceof InterMineObject
                                 ? ((InterMineObject) o).getId() : null), tableInfo.colNames,
                             values);
-                    tablesAltered.add(tableInfo.tableName);
+                    recordAltered(tableInfo.tableName, (o instanceof InterMineObject
+                                ? ((InterMineObject) o).getId() : null));
                 }
 
                 writeCollections(c, o, collections);
@@ -863,6 +887,43 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
      */
     protected void addToCollectionWithConnection(Connection c, Integer hasId, Class<?> clazz,
             String fieldName, Integer hadId) throws ObjectStoreException {
+        writeCollectionElement(c, hasId, clazz, fieldName, hadId, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeFromCollection(Integer hasId, Class<?> clazz, String fieldName,
+            Integer hadId) throws ObjectStoreException {
+        Connection c = null;
+        try {
+            c = getConnection();
+            removeFromCollectionWithConnection(c, hasId, clazz, fieldName, hadId);
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Could not get connection to database", e);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Performs removeFromCollection with given connection
+     *
+     * @param c the Connection
+     * @param hasId the ID of the object that has the collection
+     * @param clazz the class of the object that has the collection
+     * @param fieldName the name of the collection
+     * @param hadId the ID of the object to remove from the collection
+     * @throws ObjectStoreException if an error occurs
+     */
+    protected void removeFromCollectionWithConnection(Connection c, Integer hasId,
+            Class<?> clazz, String fieldName, Integer hadId) throws ObjectStoreException {
+        writeCollectionElement(c, hasId, clazz, fieldName, hadId, true);
+    }
+
+    private void writeCollectionElement(Connection c, Integer hasId, Class<?> clazz,
+            String fieldName, Integer hadId, boolean remove) throws ObjectStoreException {
         boolean wasInTransaction = isInTransactionWithConnection(c);
         if (!wasInTransaction) {
             beginTransactionWithConnection(c);
@@ -891,8 +952,13 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
                     indirColNames[1] = (swap ? outwardColumnName : inwardColumnName);
                     tableToColNameArray.put(indirectTableName, indirColNames);
                 }
-                batch.addRow(c, indirectTableName, indirColNames[0], indirColNames[1],
-                             (swap ? hasId : hadId).intValue(), (swap ? hadId : hasId).intValue());
+                if (remove) {
+                    batch.deleteRow(c, indirectTableName, indirColNames[0], indirColNames[1],
+                            (swap ? hasId : hadId).intValue(), (swap ? hadId : hasId).intValue());
+                } else {
+                    batch.addRow(c, indirectTableName, indirColNames[0], indirColNames[1],
+                            (swap ? hasId : hadId).intValue(), (swap ? hadId : hasId).intValue());
+                }
                 tablesAltered.add(indirectTableName);
             } else {
                 throw new ObjectStoreException("Field " + clazz.getName() + "." + fieldName
@@ -1392,7 +1458,7 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
                 String tableName = DatabaseUtil.getTableName(tableMaster);
                 if (!schema.getMissingTables().contains(tableName.toLowerCase())) {
                     batch.deleteRow(c, tableName, "id", o.getId());
-                    tablesAltered.add(tableName);
+                    recordAltered(tableName, o.getId());
                 }
             }
             invalidateObjectById(o.getId());
@@ -1560,19 +1626,99 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
      */
     protected void commitTransactionWithConnection(Connection c) throws ObjectStoreException {
         try {
+            if (batch.isParallelCopy() && (!c.getAutoCommit())) {
+                // Lets the batch write the last of the transaction over several connections
+                batch.batchCommit(c);
+            }
             batch.flush(c);
             if (c.getAutoCommit()) {
                 throw new ObjectStoreException("commitTransaction called, but not in transaction");
             }
             c.commit();
             c.setAutoCommit(true);
-            os.databaseAltered(tablesAltered);
+            maintainBatchCommitted();
+            os.databaseAltered(tablesAltered, idsAltered, true);
             tablesAltered.clear();
+            idsAltered.clear();
         } catch (SQLException e) {
             throw new ObjectStoreException("Error committing transaction", e);
         }
     }
 
+    /**
+     * Writes everything in the current transaction and prepares it for a two-phase commit, so
+     * that several ObjectStoreWriters can commit their transactions atomically. The writer is then
+     * no longer in a transaction, and must not be written to until the prepared transaction is
+     * committed by commitPreparedTransaction or rolled back by rollbackPreparedTransaction. The
+     * database must allow prepared transactions - see DatabaseUtil.isTwoPhaseCommitSupported().
+     *
+     * @param id the identifier for the prepared transaction, from
+     * DatabaseUtil.newPreparedTransactionId()
+     * @throws ObjectStoreException if we are not in a transaction, or the transaction cannot be
+     * prepared, in which case it has been rolled back
+     */
+    public void prepareTransaction(String id) throws ObjectStoreException {
+        Connection c = null;
+        try {
+            c = getConnection();
+            if (c.getAutoCommit()) {
+                throw new ObjectStoreException("prepareTransaction called, but not in"
+                        + " transaction");
+            }
+            batch.flush(c);
+            DatabaseUtil.prepareTransaction(c, id);
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Error preparing transaction " + id, e);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Commits a transaction prepared by prepareTransaction.
+     *
+     * @param id the identifier of the prepared transaction
+     * @throws ObjectStoreException if an error occurs, in which case the transaction stays
+     * prepared, and may still be committed with COMMIT PREPARED
+     */
+    public void commitPreparedTransaction(String id) throws ObjectStoreException {
+        Connection c = null;
+        try {
+            c = getConnection();
+            DatabaseUtil.commitPrepared(c, id);
+            maintainBatchCommitted();
+            os.databaseAltered(tablesAltered, idsAltered, true);
+            tablesAltered.clear();
+            idsAltered.clear();
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Error committing prepared transaction " + id, e);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Rolls back a transaction prepared by prepareTransaction.
+     *
+     * @param id the identifier of the prepared transaction
+     * @throws ObjectStoreException if an error occurs
+     */
+    public void rollbackPreparedTransaction(String id) throws ObjectStoreException {
+        Connection c = null;
+        try {
+            c = getConnection();
+            DatabaseUtil.rollbackPrepared(c, id);
+            os.flushObjectById();
+            maintainBatchCommitted();
+            tablesAltered.clear();
+            idsAltered.clear();
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Error rolling back prepared transaction " + id, e);
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1604,7 +1750,9 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
             c.rollback();
             c.setAutoCommit(true);
             os.flushObjectById();
+            maintainBatchCommitted();
             tablesAltered.clear();
+            idsAltered.clear();
         } catch (SQLException e) {
             throw new ObjectStoreException("Error aborting transaction", e);
         }
@@ -1636,13 +1784,53 @@ public class ObjectStoreWriterInterMineImpl extends ObjectStoreInterMineImpl
     public void batchCommitTransactionWithConnection(Connection c) throws ObjectStoreException {
         try {
             batch.batchCommit(c);
-            os.databaseAltered(tablesAltered);
+            // This batch commit may still be in progress, but the previous one has finished
+            maintainBatchCommitted();
+            os.databaseAltered(tablesAltered, idsAltered, false);
+            batchTablesAltered.addAll(tablesAltered);
+            batchIdsAltered.putAll(idsAltered);
             tablesAltered.clear();
+            idsAltered.clear();
         } catch (SQLException e) {
             throw new ObjectStoreException("Error batch-committing transaction", e);
         }
     }
 
+    /**
+     * Records that a row of a table has been written or deleted, so that the precomputed tables
+     * that read the table only need to have the rows for the altered objects replaced.
+     *
+     * @param tableName the name of the table
+     * @param id the id of the object, or null if the row is not for an InterMineObject
+     */
+    protected void recordAltered(String tableName, Integer id) {
+        Set<Integer> ids = idsAltered.get(tableName);
+        if ((!tablesAltered.contains(tableName)) && (id != null)) {
+            ids = new HashSet<Integer>();
+        }
+        tablesAltered.add(tableName);
+        if ((ids == null) || (id == null)
+                || (ids.size() >= PrecomputedTableManager.MAX_DELTA_IDS)) {
+            idsAltered.put(tableName, null);
+        } else {
+            ids.add(id);
+            idsAltered.put(tableName, ids);
+        }
+    }
+
+    /**
+     * Tells the ObjectStore that the changes written by the last batch commit have been committed,
+     * so that the precomputed tables withdrawn for them can be brought up to date. This must only
+     * be called when the Batch has finished writing that commit.
+     */
+    protected void maintainBatchCommitted() {
+        if (!batchTablesAltered.isEmpty()) {
+            os.maintainPrecomputedTables(batchTablesAltered, batchIdsAltered);
+            batchTablesAltered.clear();
+            batchIdsAltered.clear();
+        }
+    }
+
     /**
      * {@inheritDoc}
      * This method should never be called on an ObjectStoreWriter.
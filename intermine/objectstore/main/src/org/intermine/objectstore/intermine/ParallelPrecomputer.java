@@ -13,19 +13,30 @@ package org.intermine.objectstore.intermine;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
+import org.intermine.metadata.ConstraintOp;
 import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.query.BagConstraint;
+import org.intermine.objectstore.query.ClassConstraint;
+import org.intermine.objectstore.query.Constraint;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.FromElement;
 import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
 import org.intermine.objectstore.query.QueryNode;
+import org.intermine.objectstore.query.QueryReference;
+import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.ResultsInfo;
-import org.intermine.util.SynchronisedIterator;
+import org.intermine.objectstore.query.SimpleConstraint;
 
 /**
  * An object that can perform a set of precomputes in parallel.
@@ -71,55 +82,57 @@ public class ParallelPrecomputer
 
     /**
      * Perform a load of precompute operations in parallel. Jobs with fewer expected rows than the
-     * minRows parameter are not processed. Jobs are processed in decreasing order of expected
-     * time taken, which tends to reduce the total time taken.
+     * minRows parameter are not processed, and nor are jobs whose precomputed table already
+     * exists, so a run that failed part of the way through can be repeated without redoing the
+     * tables that it finished.
+     * <p>
+     * A job whose query joins a subset of the classes of another job's query, with no constraint
+     * that the other query does not also have, is run before it, as the database may be able to
+     * use its precomputed table to build the larger one. Otherwise
+     * jobs are started in decreasing order of the expected time taken by the job and all the jobs
+     * waiting for it, which tends to reduce the total time taken. Every thread is kept busy while
+     * there is a job that it can start. If a job fails, the remaining jobs are still run, and the
+     * first exception is thrown at the end.
      *
      * @param jobs a collection of jobs to precompute
      * @throws ObjectStoreException if an error occurs
      */
     public void precompute(Collection<Job> jobs) throws ObjectStoreException {
-        TreeSet<Job> todo = new TreeSet<Job>();
+        Map<String, Job> todo = new TreeMap<String, Job>();
+        int skipped = 0;
         for (Job job : jobs) {
-            job.prepare(this);
-            if (job.getInfo().getRows() >= minRows) {
-                todo.add(job);
+            String signature = job.getSignature();
+            if (todo.containsKey(signature)) {
+                LOG.info("Ignoring duplicate job with key " + job.getKey());
+            } else if (isPrecomputed(job.query, job.allFields, job.category)) {
+                LOG.info("Job with key " + job.getKey() + " is already precomputed");
+                skipped++;
+            } else {
+                job.prepare(this);
+                if (job.getInfo().getRows() >= minRows) {
+                    todo.put(signature, job);
+                }
             }
         }
+        if (skipped > 0) {
+            LOG.info("Skipped " + skipped + " jobs that were already precomputed");
+        }
 
-        Iterator<Job> jobIter = new SynchronisedIterator<Job>(todo.iterator());
+        Scheduler scheduler = new Scheduler(todo.values());
         Map<Integer, String> threads = new TreeMap<Integer, String>();
         List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
 
         synchronized (threads) {
             for (int i = 1; i < threadCount; i++) {
-                Thread worker = new Thread(new Worker(threads, jobIter, i, exceptions));
+                Thread worker = new Thread(new Worker(threads, scheduler, i, exceptions));
                 threads.put(new Integer(i), "");
                 worker.setName("PrecomputeTask extra thread " + i);
                 worker.start();
             }
+            threads.put(new Integer(0), "");
         }
-
-        try {
-            while (jobIter.hasNext()) {
-                Job job = jobIter.next();
-                synchronized (threads) {
-                    threads.put(new Integer(0), job.getKey());
-                    LOG.info("Threads doing: " + threads);
-                }
-                executeJob(job, 0);
-                if (!exceptions.isEmpty()) {
-                    throw new ObjectStoreException("Exception while executing in worker thread",
-                            exceptions.get(0));
-                }
-            }
-        } catch (NoSuchElementException e) {
-            // This is fine - just a consequence of concurrent access to the iterator. It means the
-            // end of the iterator has been reached, so there is no more work to do.
-        }
-        LOG.info("Thread 0 finished");
+        new Worker(threads, scheduler, 0, exceptions).run();
         synchronized (threads) {
-            threads.remove(new Integer(0));
-            LOG.info("Threads doing: " + threads);
             while (threads.size() != 0) {
                 LOG.info(threads.size() + " threads left");
                 try {
@@ -130,12 +143,38 @@ public class ParallelPrecomputer
             }
         }
         if (!exceptions.isEmpty()) {
-            throw new ObjectStoreException("Exception while executing in worker thread",
-                    exceptions.get(0));
+            throw new ObjectStoreException(exceptions.size() + " of " + todo.size()
+                    + " precompute jobs failed - the rest were completed, and will not be run"
+                    + " again if the precompute is repeated. First failure:", exceptions.get(0));
         }
         LOG.info("All threads finished");
     }
 
+    /**
+     * Checks whether the precomputed table for a job already exists.
+     *
+     * @param query the query of the job
+     * @param allFields whether the job includes all fields in the precomputed table
+     * @param category the category of the precomputed table
+     * @return true if the table exists
+     * @throws ObjectStoreException if an error occurs
+     */
+    protected boolean isPrecomputed(Query query, boolean allFields,
+            String category) throws ObjectStoreException {
+        return os.isPrecomputed(query, allFields, category);
+    }
+
+    /**
+     * Estimates the time that a query will take to run, and the number of rows it will return.
+     *
+     * @param query the query of a job
+     * @return a ResultsInfo
+     * @throws ObjectStoreException if an error occurs
+     */
+    protected ResultsInfo estimate(Query query) throws ObjectStoreException {
+        return os.estimate(query);
+    }
+
     /**
      * Class representing a precomputing job to be performed.
      *
@@ -149,6 +188,14 @@ public class ParallelPrecomputer
         private boolean allFields;
         private String category;
         private ResultsInfo info;
+        // Scheduling state, set up by the Scheduler
+        private int sequence;
+        private long rank;
+        private int waitingFor;
+        private List<Job> dependants;
+        private Map<Class<?>, Integer> fromClasses;
+        private List<String> constraints;
+        private boolean constraintsDescribed = false;
 
         /**
          * Constructor - takes the same arguments as ObjectStoreInterMineImpl.precompute().
@@ -178,7 +225,7 @@ public class ParallelPrecomputer
          * @throws ObjectStoreException if an error occurs
          */
         private void prepare(ParallelPrecomputer pp) throws ObjectStoreException {
-            info = pp.getObjectStore().estimate(query);
+            info = pp.estimate(query);
         }
 
         /**
@@ -198,7 +245,8 @@ public class ParallelPrecomputer
          * @throws ObjectStoreException if something goes wrong
          */
         private void execute(ParallelPrecomputer pp, int threadNo) throws ObjectStoreException {
-            LOG.info("Job with key " + key + " has expected time " + info.getComplete());
+            LOG.info("Job with key " + key + " has expected time " + info.getComplete()
+                    + ", and expected time including dependent jobs " + rank);
             pp.precomputeQuery(key, query, indexes, allFields, category, threadNo);
         }
 
@@ -211,36 +259,307 @@ public class ParallelPrecomputer
             return key;
         }
 
+        /**
+         * Returns a String that is the same for two jobs that would create the same tables.
+         *
+         * @return a String
+         */
+        private String getSignature() {
+            return query.toString() + " " + allFields + " " + category + " " + indexes;
+        }
+
+        /**
+         * Returns the number of each class in the FROM list of the query.
+         *
+         * @return a Map from Class to count
+         */
+        private Map<Class<?>, Integer> getFromClasses() {
+            if (fromClasses == null) {
+                fromClasses = new HashMap<Class<?>, Integer>();
+                for (FromElement fe : query.getFrom()) {
+                    if (fe instanceof QueryClass) {
+                        Integer count = fromClasses.get(((QueryClass) fe).getType());
+                        fromClasses.put(((QueryClass) fe).getType(),
+                                new Integer(count == null ? 1 : count.intValue() + 1));
+                    }
+                }
+            }
+            return fromClasses;
+        }
+
+        /**
+         * Returns descriptions of the constraints ANDed together in the WHERE clause of the
+         * query. The descriptions name the classes rather than the aliases of the query, so that
+         * the constraints of two queries can be compared.
+         *
+         * @return a List of Strings, or null if the query has a constraint that cannot be
+         * described
+         */
+        private List<String> getConstraints() {
+            if (!constraintsDescribed) {
+                constraints = new ArrayList<String>();
+                if (!describeAnd(query.getConstraint(), constraints)) {
+                    constraints = null;
+                }
+                constraintsDescribed = true;
+            }
+            return constraints;
+        }
+
+        /**
+         * Returns whether this job should be run before another, because the other job's query
+         * joins all the classes that this job's query does, and more, and has all the
+         * constraints of this job's query. Otherwise the precomputed table of this job would not
+         * help to build that of the other job, as it would be missing some of the rows needed.
+         *
+         * @param job another Job
+         * @return true if this job should be run first
+         */
+        private boolean isPrerequisiteOf(Job job) {
+            Map<Class<?>, Integer> mine = getFromClasses();
+            Map<Class<?>, Integer> theirs = job.getFromClasses();
+            if (mine.isEmpty() || (countOf(mine) < query.getFrom().size())
+                    || (query.getFrom().size() >= job.query.getFrom().size())) {
+                return false;
+            }
+            for (Map.Entry<Class<?>, Integer> entry : mine.entrySet()) {
+                Integer count = theirs.get(entry.getKey());
+                if ((count == null) || (count.intValue() < entry.getValue().intValue())) {
+                    return false;
+                }
+            }
+            List<String> myConstraints = getConstraints();
+            List<String> theirConstraints = job.getConstraints();
+            if ((myConstraints == null) || (theirConstraints == null)) {
+                return false;
+            }
+            List<String> unmatched = new ArrayList<String>(theirConstraints);
+            for (String constraint : myConstraints) {
+                if (!unmatched.remove(constraint)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * {@inheritDoc}
          */
         public int compareTo(Job job) {
-            long thisTime = info.getComplete();
-            long otherTime = job.info.getComplete();
+            long thisTime = rank;
+            long otherTime = job.rank;
             return (otherTime > thisTime ? 1 : (otherTime < thisTime ? -1
-                        : query.toString().compareTo(job.query.toString())));
+                        : sequence - job.sequence));
+        }
+    }
+
+    private static int countOf(Map<Class<?>, Integer> fromClasses) {
+        int retval = 0;
+        for (Integer count : fromClasses.values()) {
+            retval += count.intValue();
+        }
+        return retval;
+    }
+
+    /**
+     * Adds descriptions of the constraints ANDed together in a constraint to a List.
+     *
+     * @param c a Constraint, or null
+     * @param descriptions the List to add to
+     * @return false if one of the constraints cannot be described
+     */
+    private static boolean describeAnd(Constraint c, List<String> descriptions) {
+        if (c == null) {
+            return true;
+        }
+        if ((c instanceof ConstraintSet) && (c.getOp() == ConstraintOp.AND)) {
+            for (Constraint sub : ((ConstraintSet) c).getConstraints()) {
+                if (!describeAnd(sub, descriptions)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        String description = describe(c);
+        if (description == null) {
+            return false;
+        }
+        descriptions.add(description);
+        return true;
+    }
+
+    /**
+     * Describes a constraint in terms of the classes and fields that it names.
+     *
+     * @param c a Constraint
+     * @return a String, or null if the constraint cannot be described
+     */
+    private static String describe(Constraint c) {
+        String retval = null;
+        if (c instanceof ConstraintSet) {
+            List<String> parts = new ArrayList<String>();
+            for (Constraint sub : ((ConstraintSet) c).getConstraints()) {
+                String part = describe(sub);
+                if (part == null) {
+                    return null;
+                }
+                parts.add(part);
+            }
+            Collections.sort(parts);
+            return c.getOp() + " " + parts;
+        } else if (c instanceof SimpleConstraint) {
+            SimpleConstraint sc = (SimpleConstraint) c;
+            String arg1 = describeNode(sc.getArg1());
+            String arg2 = (sc.getArg2() == null ? "" : describeNode(sc.getArg2()));
+            if ((arg1 != null) && (arg2 != null)) {
+                retval = arg1 + " " + c.getOp() + " " + arg2;
+            }
+        } else if (c instanceof ContainsConstraint) {
+            ContainsConstraint cc = (ContainsConstraint) c;
+            String ref = describeNode(cc.getReference());
+            String target = (cc.getQueryClass() != null ? describeNode(cc.getQueryClass())
+                    : (cc.getObject() != null ? "object " + cc.getObject().getId() : ""));
+            if (ref != null) {
+                retval = ref + " " + c.getOp() + " " + target;
+            }
+        } else if (c instanceof ClassConstraint) {
+            ClassConstraint cc = (ClassConstraint) c;
+            String target = (cc.getArg2QueryClass() != null ? describeNode(cc.getArg2QueryClass())
+                    : "object " + cc.getArg2Object().getId());
+            retval = describeNode(cc.getArg1()) + " " + c.getOp() + " " + target;
+        } else if (c instanceof BagConstraint) {
+            BagConstraint bc = (BagConstraint) c;
+            String node = describeNode(bc.getQueryNode());
+            if (node != null) {
+                retval = node + " " + c.getOp() + " " + (bc.getOsb() != null
+                        ? "bag " + bc.getOsb().getBagId() : String.valueOf(bc.getBag()));
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Describes a QueryNode or QueryReference in terms of the classes and fields that it names.
+     *
+     * @param node a QueryNode or QueryReference
+     * @return a String, or null if the node cannot be described
+     */
+    private static String describeNode(Object node) {
+        String retval = null;
+        if (node instanceof QueryClass) {
+            retval = ((QueryClass) node).getType().getName();
+        } else if (node instanceof QueryField) {
+            QueryField qf = (QueryField) node;
+            if (qf.getFromElement() instanceof QueryClass) {
+                retval = describeNode((QueryClass) qf.getFromElement()) + "." + qf.getFieldName()
+                    + (qf.getSecondFieldName() == null ? "" : "." + qf.getSecondFieldName());
+            }
+        } else if (node instanceof QueryReference) {
+            QueryReference qr = (QueryReference) node;
+            if (qr.getQueryClass() != null) {
+                retval = describeNode(qr.getQueryClass()) + "." + qr.getFieldName();
+            }
+        } else if (node instanceof QueryValue) {
+            Object value = ((QueryValue) node).getValue();
+            retval = (value == null ? "null" : value.getClass().getName() + " '" + value + "'");
+        }
+        return retval;
+    }
+
+    /**
+     * Hands out jobs to the worker threads, starting each job once the jobs that it depends on
+     * have finished.
+     */
+    private static class Scheduler
+    {
+        private TreeSet<Job> ready = new TreeSet<Job>();
+        private int unfinished;
+
+        public Scheduler(Collection<Job> jobs) {
+            List<Job> sorted = new ArrayList<Job>(jobs);
+            // Sort by decreasing FROM list size, so that dependants come before their
+            // prerequisites, and have their ranks already calculated
+            Collections.sort(sorted, new Comparator<Job>() {
+                public int compare(Job a, Job b) {
+                    return b.query.getFrom().size() - a.query.getFrom().size();
+                }
+            });
+            int sequence = 0;
+            for (Job job : sorted) {
+                job.sequence = sequence++;
+                job.waitingFor = 0;
+                job.dependants = new ArrayList<Job>();
+                long maxDependantRank = 0;
+                for (Job other : sorted) {
+                    if (job.isPrerequisiteOf(other)) {
+                        job.dependants.add(other);
+                        other.waitingFor++;
+                        maxDependantRank = Math.max(maxDependantRank, other.rank);
+                    }
+                }
+                job.rank = job.getInfo().getComplete() + maxDependantRank;
+            }
+            for (Job job : sorted) {
+                if (job.waitingFor == 0) {
+                    ready.add(job);
+                }
+            }
+            unfinished = sorted.size();
+        }
+
+        /**
+         * Returns the next job to run, waiting until one is ready if necessary.
+         *
+         * @return a Job, or null if there are no more jobs to start
+         */
+        public synchronized Job nextJob() {
+            while (ready.isEmpty() && (unfinished > 0)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Do nothing
+                }
+            }
+            return ready.pollFirst();
+        }
+
+        /**
+         * Records that a job has finished, successfully or not. Jobs that depend on it are
+         * started even if it failed, as they only use it to go faster.
+         *
+         * @param job the Job
+         */
+        public synchronized void finished(Job job) {
+            unfinished--;
+            for (Job dependant : job.dependants) {
+                dependant.waitingFor--;
+                if (dependant.waitingFor == 0) {
+                    ready.add(dependant);
+                }
+            }
+            notifyAll();
         }
     }
 
     private class Worker implements Runnable
     {
         private Map<Integer, String> threads;
-        private Iterator<Job> jobIter;
+        private Scheduler scheduler;
         private int threadNo;
         private List<Exception> exceptions;
 
-        public Worker(Map<Integer, String> threads, Iterator<Job> jobIter, int threadNo,
+        public Worker(Map<Integer, String> threads, Scheduler scheduler, int threadNo,
                 List<Exception> exceptions) {
             this.threads = threads;
-            this.jobIter = jobIter;
+            this.scheduler = scheduler;
             this.threadNo = threadNo;
             this.exceptions = exceptions;
         }
 
         public void run() {
             try {
-                while (jobIter.hasNext()) {
-                    Job job = jobIter.next();
+                Job job = scheduler.nextJob();
+                while (job != null) {
                     synchronized (threads) {
                         threads.put(new Integer(threadNo), job.getKey());
                         LOG.info("Threads doing: " + threads);
@@ -250,10 +569,11 @@ public class ParallelPrecomputer
                     } catch (Exception e) {
                         // Something has gone wrong.
                         exceptions.add(e);
+                    } finally {
+                        scheduler.finished(job);
                     }
+                    job = scheduler.nextJob();
                 }
-            } catch (NoSuchElementException e) {
-                // Empty
             } finally {
                 LOG.info("Thread " + threadNo + " finished");
                 synchronized (threads) {
@@ -0,0 +1,406 @@
+package org.intermine.objectstore.intermine;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ConstraintOp;
+import org.intermine.objectstore.DataChangedException;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.query.BatchSpillStore;
+import org.intermine.objectstore.query.Constraint;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryOrderable;
+import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.sql.precompute.QueryOptimiser;
+import org.intermine.sql.precompute.QueryOptimiserContext;
+
+/**
+ * An Iterator over the results of a query that is split into partitions, each of which is
+ * fetched by its own thread on its own database connection. The partitions must be in the order
+ * of the query, so that reading them one after another returns the rows in the same order as a
+ * Results object would. Each partition is read in batches using the keyset of the query, and a
+ * small number of batches are held in memory ahead of the reader. Batches fetched beyond that
+ * are written to a temporary MappedBatchSpillStore in the results spill directory of the
+ * ObjectStore, so that the partitions that the reader has not reached yet can carry on fetching
+ * rather than waiting for it. A partition whose batches cannot be spilled waits for the reader.
+ * <p>
+ * Each thread only holds a database connection while it is fetching a batch, so threads that are
+ * waiting for the reader do not tie up connections. If the Iterator is not read to the end, the
+ * close() method (or the garbage collector) stops the threads and deletes their spill files. As
+ * with a Results object, a ConcurrentModificationException is thrown if the data in the database
+ * changes while the rows are being fetched.
+ *
+ * @author Matthew Wakeling
+ */
+public class PartitionedResultsIterator implements Iterator<Object>
+{
+    private static final Logger LOG = Logger.getLogger(PartitionedResultsIterator.class);
+    // The number of batches each partition may hold in memory ahead of the reader
+    private static final int QUEUED_BATCHES = 2;
+    private static final List<ResultsRow<Object>> END = Collections.emptyList();
+    private static int threadNo = 0;
+
+    private List<Partition> partitions = new ArrayList<Partition>();
+
+    private int partitionNo = 0;
+    private List<ResultsRow<Object>> batch = null;
+    private int rowNo = 0;
+
+    /**
+     * Creates a new PartitionedResultsIterator, and starts the threads that fetch the partitions.
+     *
+     * @param os the ObjectStoreInterMineImpl to fetch from
+     * @param q the Query, which must have a keyset
+     * @param keyset the keyset of the query, as returned by SqlGenerator.getKeysetOrderBy
+     * @param ranges a Constraint for each partition, in the order of the query
+     * @param batchSize the number of rows to fetch at a time in each partition
+     * @param optimise true if the query should be optimised
+     * @param sequence the ObjectStore-specific sequence data
+     */
+    public PartitionedResultsIterator(ObjectStoreInterMineImpl os, Query q,
+            List<QueryOrderable> keyset, List<Constraint> ranges, int batchSize, boolean optimise,
+            Map<Object, Integer> sequence) {
+        for (Constraint range : ranges) {
+            // The partitions must not refer back to this object, so that it can be garbage
+            // collected (and the threads stopped) while the threads are still running
+            Partition partition = new Partition(os, q, keyset, range, batchSize, optimise,
+                    sequence);
+            partitions.add(partition);
+            Thread thread = new Thread(partition, "PartitionedResults-" + nextThreadNo());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static synchronized int nextThreadNo() {
+        return threadNo++;
+    }
+
+    /**
+     * Returns the number of partitions.
+     *
+     * @return an int
+     */
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+        while ((batch == null) || (rowNo >= batch.size())) {
+            if (partitionNo >= partitions.size()) {
+                return false;
+            }
+            Partition partition = partitions.get(partitionNo);
+            try {
+                batch = partition.take();
+            } catch (InterruptedException e) {
+                close();
+                throw new RuntimeException("Interrupted while waiting for results", e);
+            }
+            rowNo = 0;
+            if (batch == END) {
+                Exception error = partition.error;
+                if (error instanceof DataChangedException) {
+                    close();
+                    ConcurrentModificationException e2 = new ConcurrentModificationException(
+                            "ObjectStore error has occurred (in partitioned execute) - data "
+                            + "changed");
+                    e2.initCause(error);
+                    throw e2;
+                } else if (error != null) {
+                    close();
+                    throw new RuntimeException("ObjectStore error has occurred (in partitioned "
+                            + "execute)", error);
+                }
+                batch = null;
+                partitionNo++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.get(rowNo++);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the threads fetching the partitions, cancelling any queries they are running, and
+     * deletes their spill files. This is only necessary if the Iterator is not read to the end.
+     * The Iterator has no more rows afterwards.
+     */
+    public void close() {
+        for (Partition partition : partitions) {
+            partition.cancel();
+        }
+        partitionNo = partitions.size();
+        batch = null;
+    }
+
+    /**
+     * Stops the threads when this object is garbage collected.
+     *
+     * @throws Throwable if something goes wrong
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        close();
+        super.finalize();
+    }
+
+    /**
+     * Fetches one partition of the query, in a thread of its own. The batches are numbered in the
+     * order they are fetched, and each one is either held in memory or written to the spill store
+     * until the reader takes it.
+     */
+    private static class Partition implements Runnable
+    {
+        private ObjectStoreInterMineImpl os;
+        private Query q;
+        private List<QueryOrderable> keyset;
+        private Constraint range;
+        private int batchSize;
+        private boolean optimise;
+        private Map<Object, Integer> sequence;
+        // Guarded by this object
+        private Map<Integer, List<ResultsRow<Object>>> inMemory
+            = new HashMap<Integer, List<ResultsRow<Object>>>();
+        private BatchSpillStore spill = null;
+        private boolean canSpill = true;
+        private int produced = 0;
+        private int consumed = 0;
+        private boolean finished = false;
+        private volatile Exception error = null;
+        private volatile boolean cancelled = false;
+        private volatile Statement statement = null;
+
+        public Partition(ObjectStoreInterMineImpl os, Query q, List<QueryOrderable> keyset,
+                Constraint range, int batchSize, boolean optimise, Map<Object, Integer> sequence) {
+            this.os = os;
+            this.q = q;
+            this.keyset = keyset;
+            this.range = range;
+            this.batchSize = batchSize;
+            this.optimise = optimise;
+            this.sequence = sequence;
+        }
+
+        public void run() {
+            try {
+                List<Object> lastKey = null;
+                boolean done = false;
+                while (!done) {
+                    if (cancelled) {
+                        return;
+                    }
+                    List<ResultsRow<Object>> rows = fetch(lastKey);
+                    if (rows.size() < batchSize) {
+                        done = true;
+                    } else {
+                        lastKey = SqlGenerator.getKeysetValues(q, keyset,
+                                rows.get(rows.size() - 1));
+                    }
+                    if (!rows.isEmpty() && !put(rows)) {
+                        return;
+                    }
+                }
+            } catch (SQLException e) {
+                error = e;
+            } catch (ObjectStoreException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            if (cancelled) {
+                return;
+            }
+            if (error != null) {
+                LOG.warn("Error fetching partition " + range + " of query " + q, error);
+            }
+            finish();
+        }
+
+        /**
+         * Stops this partition. The query being run, if any, is cancelled, the thread finishes,
+         * and the spill file is deleted.
+         */
+        public void cancel() {
+            cancelled = true;
+            synchronized (this) {
+                inMemory.clear();
+                if (spill != null) {
+                    spill.close();
+                }
+                notifyAll();
+            }
+            Statement current = statement;
+            if (current != null) {
+                try {
+                    current.cancel();
+                } catch (SQLException e) {
+                    LOG.info("Could not cancel query for partition " + range + ": " + e);
+                }
+            }
+        }
+
+        /**
+         * Returns the next batch of this partition, waiting for it to be fetched if necessary.
+         *
+         * @return a List of rows, or END if there are no more
+         * @throws InterruptedException if the Thread is interrupted while waiting
+         */
+        public synchronized List<ResultsRow<Object>> take() throws InterruptedException {
+            while ((consumed >= produced) && (!finished)) {
+                wait();
+            }
+            if (consumed >= produced) {
+                if (spill != null) {
+                    spill.close();
+                }
+                return END;
+            }
+            Integer batchNo = new Integer(consumed++);
+            List<ResultsRow<Object>> retval = inMemory.remove(batchNo);
+            notifyAll();
+            if (retval == null) {
+                @SuppressWarnings("unchecked") List<ResultsRow<Object>> spilled
+                    = (spill == null ? null : (List) spill.load(batchNo.intValue()));
+                if (spilled == null) {
+                    throw new RuntimeException("Could not read batch " + batchNo + " of partition "
+                            + range + " back from the spill file");
+                }
+                retval = spilled;
+            }
+            return retval;
+        }
+
+        private List<ResultsRow<Object>> fetch(List<Object> lastKey)
+            throws SQLException, ObjectStoreException {
+            os.checkSequence(sequence, q, "Partitioned execute (" + range + ") ");
+            Constraint con = range;
+            if (lastKey != null) {
+                ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+                if (range != null) {
+                    cs.addConstraint(range);
+                }
+                cs.addConstraint(SqlGenerator.getKeysetConstraint(keyset, lastKey));
+                con = cs;
+            }
+            String sql;
+            try {
+                sql = SqlGenerator.generate(q, os.getSchema(), os.getDatabase(), con,
+                        SqlGenerator.QUERY_NORMAL, os.bagConstraintTables) + " LIMIT "
+                    + batchSize;
+            } catch (CompletelyFalseException e) {
+                return Collections.emptyList();
+            }
+            Connection c = os.getConnection();
+            try {
+                if (optimise && os.everOptimise()) {
+                    sql = QueryOptimiser.optimise(sql, null, os.getDatabase(), c,
+                            QueryOptimiserContext.DEFAULT).getBestQueryString();
+                }
+                Statement s = c.createStatement();
+                statement = s;
+                try {
+                    if (cancelled) {
+                        return Collections.emptyList();
+                    }
+                    ResultSet sqlResults = s.executeQuery(sql);
+                    return ResultsConverter.convert(sqlResults, q, os, c, sequence, optimise,
+                            new ExtraQueryTime(), null, null);
+                } finally {
+                    statement = null;
+                    s.close();
+                }
+            } finally {
+                os.releaseConnection(c);
+            }
+        }
+
+        /**
+         * Hands a batch to the reader. It is held in memory if there is room, otherwise it is
+         * written to the spill store, and if it cannot be spilled this waits until the reader
+         * has made room for it.
+         *
+         * @param rows the batch
+         * @return false if the partition has been cancelled
+         */
+        private synchronized boolean put(List<ResultsRow<Object>> rows) {
+            Integer batchNo = new Integer(produced);
+            boolean spilled = false;
+            try {
+                while ((inMemory.size() > QUEUED_BATCHES) && (!spilled)) {
+                    if (cancelled) {
+                        return false;
+                    }
+                    if (canSpill) {
+                        if (spill == null) {
+                            spill = new MappedBatchSpillStore(os, os.resultsSpillDirectory);
+                        }
+                        @SuppressWarnings("unchecked") List<Object> batch = (List) rows;
+                        spilled = spill.store(batchNo.intValue(), batch);
+                        // The rows of a query are all of the same types, so if this batch could
+                        // not be spilled, neither can the others
+                        canSpill = spilled;
+                    } else {
+                        wait(1000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (cancelled) {
+                return false;
+            }
+            if (!spilled) {
+                inMemory.put(batchNo, rows);
+            }
+            produced++;
+            notifyAll();
+            return true;
+        }
+
+        private synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+    }
+}
@@ -133,6 +133,13 @@ public final class SqlGenerator
         = new WeakHashMap<DatabaseSchema, Map<Query, CacheEntry>>();
     protected static Map<DatabaseSchema, Map<Query, Set<Object>>> tablenamesCache
         = new WeakHashMap<DatabaseSchema, Map<Query, Set<Object>>>();
+    // Attribute types that may be used in a keyset as well as ids
+    private static final Set<String> KEYSET_TYPES = new HashSet<String>();
+    static {
+        KEYSET_TYPES.add("short");
+        KEYSET_TYPES.add("int");
+        KEYSET_TYPES.add("long");
+    }
 
     /**
      * Generates a query to retrieve a single object from the database, by id.
@@ -351,6 +358,156 @@ public final class SqlGenerator
         }
     }
 
+    /**
+     * Returns the leading elements of the effective ORDER BY of a query that together identify a
+     * row uniquely, if the query can be paged through using those elements alone. This is the
+     * case when every element of the FROM list is a QueryClass, all the ORDER BY elements before
+     * the last QueryClass is reached are ascending, cannot be null, and are in the SELECT list,
+     * and there is no GROUP BY. Otherwise, this method returns null.
+     *
+     * @param q the Query
+     * @param schema the DatabaseSchema in which to look up metadata
+     * @return a List of QueryClass and QueryField objects from the SELECT list, or null
+     */
+    public static List<QueryOrderable> getKeysetOrderBy(Query q, DatabaseSchema schema) {
+        if ((!q.getGroupBy().isEmpty()) || q.getFrom().isEmpty()) {
+            return null;
+        }
+        Set<FromElement> uncovered = new HashSet<FromElement>();
+        for (FromElement fe : q.getFrom()) {
+            if (!((fe instanceof QueryClass) && InterMineObject.class.isAssignableFrom(
+                            ((QueryClass) fe).getType()))) {
+                return null;
+            }
+            uncovered.add(fe);
+        }
+        List<QueryOrderable> retval = new ArrayList<QueryOrderable>();
+        for (Object node : q.getEffectiveOrderBy()) {
+            if (uncovered.isEmpty()) {
+                break;
+            }
+            if (!q.getSelect().contains(node)) {
+                return null;
+            }
+            if (node instanceof QueryClass) {
+                uncovered.remove(node);
+            } else if (node instanceof QueryField) {
+                QueryField field = (QueryField) node;
+                if (!(field.getFromElement() instanceof QueryClass)) {
+                    return null;
+                }
+                if ("id".equals(field.getFieldName())) {
+                    uncovered.remove(field.getFromElement());
+                } else {
+                    FieldDescriptor desc = schema.getModel().getFieldDescriptorsForClass(
+                            ((QueryClass) field.getFromElement()).getType())
+                        .get(field.getFieldName());
+                    // Only exact types that cannot be null are safe to compare for equality
+                    if (!((desc instanceof AttributeDescriptor) && KEYSET_TYPES.contains(
+                                    ((AttributeDescriptor) desc).getType()))) {
+                        return null;
+                    }
+                }
+            } else {
+                return null;
+            }
+            retval.add((QueryOrderable) node);
+        }
+        return (uncovered.isEmpty() ? retval : null);
+    }
+
+    /**
+     * Returns the values of the keyset elements in a row of results, with objects replaced by
+     * their ids.
+     *
+     * @param q the Query
+     * @param keyset the List returned by getKeysetOrderBy for the query
+     * @param row a row of results of the query
+     * @return a List of values, or null if any of them is null
+     */
+    public static List<Object> getKeysetValues(Query q, List<QueryOrderable> keyset,
+            List<Object> row) {
+        List<Object> retval = new ArrayList<Object>();
+        for (QueryOrderable node : keyset) {
+            Object value = row.get(q.getSelect().indexOf(node));
+            if (value instanceof InterMineObject) {
+                value = ((InterMineObject) value).getId();
+            }
+            if (value == null) {
+                return null;
+            }
+            retval.add(value);
+        }
+        return retval;
+    }
+
+    /**
+     * Registers the key of the last row of a batch of results for a given query, for a query
+     * with an ORDER BY that identifies rows uniquely. Later requests for the following rows use
+     * a WHERE clause that starts after that key instead of a large OFFSET, so fetching a batch
+     * far into the results costs the same as fetching the first. Only the furthest key is kept.
+     *
+     * @param q the Query
+     * @param start the number of rows before the row after the key
+     * @param schema the DatabaseSchema in which to look up metadata
+     * @param db the Database that the ObjectStore uses
+     * @param keyset the List returned by getKeysetOrderBy for the query
+     * @param values the values of the keyset elements in the last row, with the ids of objects
+     * @param bagTableNames a Map from BagConstraints to table names, where the table contains the
+     *        contents of the bag that are relevant for the BagConstraint
+     */
+    public static void registerKeyset(Query q, int start, DatabaseSchema schema, Database db,
+            List<QueryOrderable> keyset, List<Object> values, Map<Object, String> bagTableNames) {
+        try {
+            synchronized (q) {
+                Map<Query, CacheEntry> schemaCache = getCacheForSchema(schema);
+                CacheEntry cacheEntry = schemaCache.get(q);
+                if ((cacheEntry != null) && (cacheEntry.getKeysetOffset() >= start)) {
+                    return;
+                }
+                Constraint keysetConstraint = getKeysetConstraint(keyset, values);
+                String sql = generate(q, schema, db, keysetConstraint, QUERY_NORMAL,
+                        bagTableNames);
+                if (cacheEntry == null) {
+                    cacheEntry = new CacheEntry(-1, null);
+                    schemaCache.put(q, cacheEntry);
+                }
+                cacheEntry.setKeyset(start, sql);
+            }
+        } catch (ObjectStoreException e) {
+            LOG.warn("Error while registering keyset for query " + q + ": " + e);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Error while registering keyset for query " + q + ": " + e);
+        }
+    }
+
+    /**
+     * Create a constraint to add to the main query that selects rows after the given key. For
+     * keyset elements a, b and values x, y this is: 'a &gt; x OR (a = x AND b &gt; y)'.
+     *
+     * @param keyset the List returned by getKeysetOrderBy for the query
+     * @param values the values of the keyset elements, with the ids of objects
+     * @return a Constraint
+     */
+    protected static Constraint getKeysetConstraint(List<QueryOrderable> keyset,
+            List<Object> values) {
+        ConstraintSet retval = new ConstraintSet(ConstraintOp.OR);
+        for (int i = 0; i < keyset.size(); i++) {
+            ConstraintSet and = new ConstraintSet(ConstraintOp.AND);
+            for (int o = 0; o <= i; o++) {
+                QueryOrderable node = keyset.get(o);
+                QueryEvaluable qe = (node instanceof QueryClass
+                        ? new QueryField((QueryClass) node, "id") : (QueryEvaluable) node);
+                and.addConstraint(new SimpleConstraint(qe, (o == i ? ConstraintOp.GREATER_THAN
+                                : ConstraintOp.EQUALS), new QueryValue(values.get(o))));
+            }
+            retval.addConstraint(and.getConstraints().size() == 1
+                    ? and.getConstraints().iterator().next() : and);
+        }
+        return (retval.getConstraints().size() == 1 ? retval.getConstraints().iterator().next()
+                : retval);
+    }
+
     /**
      * Converts a Query object into an SQL String. To produce an SQL query that does not have
      * OFFSET and LIMIT clauses, set start to 0, and limit to Integer.MAX_VALUE.
@@ -387,20 +544,26 @@ public final class SqlGenerator
                 } catch (NoSuchElementException e) {
                     // ignore
                 }
+                int offset = -1;
+                String sql = null;
                 if (lastKey != null) {
-                    int offset = lastKey.intValue();
-                    if ((offset > cacheEntry.getLastOffset())
-                            || (cacheEntry.getLastOffset() > start)) {
-                        return cacheEntry.getCached().get(lastKey)
-                            + (limit == Integer.MAX_VALUE ? "" : " LIMIT " + limit)
-                            + (start == offset ? "" : " OFFSET " + (start - offset));
-                    } else {
-                        return cacheEntry.getLastSQL()
-                            + (limit == Integer.MAX_VALUE ? "" : " LIMIT " + limit)
-                            + (start == cacheEntry.getLastOffset() ? ""
-                                    : " OFFSET " + (start - cacheEntry.getLastOffset()));
+                    offset = lastKey.intValue();
+                    sql = cacheEntry.getCached().get(lastKey);
+                    if ((offset <= cacheEntry.getLastOffset())
+                            && (cacheEntry.getLastOffset() <= start)) {
+                        offset = cacheEntry.getLastOffset();
+                        sql = cacheEntry.getLastSQL();
                     }
                 }
+                if ((cacheEntry.getKeysetOffset() > offset)
+                        && (cacheEntry.getKeysetOffset() <= start)) {
+                    offset = cacheEntry.getKeysetOffset();
+                    sql = cacheEntry.getKeysetSQL();
+                }
+                if (sql != null) {
+                    return sql + (limit == Integer.MAX_VALUE ? "" : " LIMIT " + limit)
+                        + (start == offset ? "" : " OFFSET " + (start - offset));
+                }
             }
             String sql = generate(q, schema, db, null, QUERY_NORMAL, bagTableNames);
             /*if (cached == null) {
@@ -2850,6 +3013,8 @@ public final class SqlGenerator
         private TreeMap<Integer, String> cached = new TreeMap<Integer, String>();
         private int lastOffset;
         private String lastSQL;
+        private int keysetOffset = -1;
+        private String keysetSQL = null;
 
         public CacheEntry(int lastOffset, String lastSQL) {
             this.lastOffset = lastOffset;
@@ -2872,6 +3037,19 @@ public final class SqlGenerator
         public String getLastSQL() {
             return lastSQL;
         }
+
+        public void setKeyset(int keysetOffset, String keysetSQL) {
+            this.keysetOffset = keysetOffset;
+            this.keysetSQL = keysetSQL;
+        }
+
+        public int getKeysetOffset() {
+            return keysetOffset;
+        }
+
+        public String getKeysetSQL() {
+            return keysetSQL;
+        }
     }
 
     private static class ClassDescriptorAndAlias
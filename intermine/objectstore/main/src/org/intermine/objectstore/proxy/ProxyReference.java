@@ -95,6 +95,15 @@ public class ProxyReference implements InterMineObject, Lazy
         return os;
     }
 
+    /**
+     * Returns the class hint that this proxy was created with
+     *
+     * @return a Class
+     */
+    public Class<? extends InterMineObject> getProxiedClass() {
+        return clazz;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,55 @@
+package org.intermine.objectstore.query;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.List;
+
+/**
+ * Interface for a secondary store of batches of rows for a ResultsBatches object. Batches that are
+ * evicted from memory are written to the store, and read back from it instead of running the
+ * query again when they are next needed.
+ *
+ * @author Matthew Wakeling
+ */
+public interface BatchSpillStore
+{
+    /**
+     * Writes a batch to the store. If the store is unable to represent the contents of the batch,
+     * it should return false, and the batch will be fetched from the ObjectStore again when next
+     * needed.
+     *
+     * @param batchNo the batch number
+     * @param batch a List of rows
+     * @return true if the batch was stored, or was already present in the store
+     */
+    boolean store(int batchNo, List<Object> batch);
+
+    /**
+     * Reads a batch from the store.
+     *
+     * @param batchNo the batch number
+     * @return a List of rows, or null if the batch is not present in the store
+     */
+    List<Object> load(int batchNo);
+
+    /**
+     * Returns true if the given batch is present in the store.
+     *
+     * @param batchNo the batch number
+     * @return a boolean
+     */
+    boolean contains(int batchNo);
+
+    /**
+     * Discards the contents of the store and releases any resources it holds.
+     */
+    void close();
+}
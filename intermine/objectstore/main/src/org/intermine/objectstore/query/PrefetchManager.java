@@ -12,14 +12,22 @@ package org.intermine.objectstore.query;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.util.PropertiesUtil;
 
 /**
- * A manager for the prefetch mechanism for the Results object.
+ * A manager for the prefetch mechanism for the Results object. Requests are serviced in the order
+ * they were made by a bounded pool of service threads. Requests are refused when there are too
+ * many outstanding, or when the heap is nearly full, so that prefetching cannot run the system out
+ * of memory. The limits may be set with the os.prefetch.max-threads, os.prefetch.max-pending,
+ * os.prefetch.max-window and os.prefetch.memory-limit properties.
  *
  * @author Matthew Wakeling
  */
@@ -29,8 +37,9 @@ public final class PrefetchManager
     }
 
     private static final Logger LOG = Logger.getLogger(PrefetchManager.class);
-    /** Pending set of requests - always accessed inside a synchronise on sync. */
-    protected static Set<Request> pending = new HashSet<Request>();
+    /** Pending set of requests, in the order they were made - always accessed inside a
+     * synchronise on sync. */
+    protected static Set<Request> pending = new LinkedHashSet<Request>();
     /** Set of requests currently being serviced. This Set is not accessed inside a block
      * synchronised on any global object, so it must be able to handle concurrent access. */
     protected static Set<Request> serviced = Collections.synchronizedSet(new HashSet<Request>());
@@ -39,6 +48,37 @@ public final class PrefetchManager
 
     protected static final int LOADING = 3;
 
+    private static final int DEFAULT_MAX_SERVICE_THREADS = 8;
+    private static final int DEFAULT_MAX_PENDING = 64;
+    private static final int DEFAULT_MAX_WINDOW = 8;
+    private static final double DEFAULT_MEMORY_LIMIT = 0.85;
+    private static int maxServiceThreads = DEFAULT_MAX_SERVICE_THREADS;
+    private static int maxPending = DEFAULT_MAX_PENDING;
+    private static int maxWindow = DEFAULT_MAX_WINDOW;
+    private static double memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private static AtomicInteger refusedRequests = new AtomicInteger(0);
+
+    static {
+        Properties props = PropertiesUtil.getPropertiesStartingWith("os.prefetch");
+        props = PropertiesUtil.stripStart("os.prefetch", props);
+        try {
+            if (props.get("max-threads") != null) {
+                maxServiceThreads = Integer.parseInt((String) props.get("max-threads"));
+            }
+            if (props.get("max-pending") != null) {
+                maxPending = Integer.parseInt((String) props.get("max-pending"));
+            }
+            if (props.get("max-window") != null) {
+                maxWindow = Integer.parseInt((String) props.get("max-window"));
+            }
+            if (props.get("memory-limit") != null) {
+                memoryLimit = Double.parseDouble((String) props.get("memory-limit"));
+            }
+        } catch (NumberFormatException e) {
+            LOG.warn("Error reading os.prefetch properties: " + e);
+        }
+    }
+
     /*
      * This class provides methods for cancelling requests, so here is an explanation of how this
      * magic works.
@@ -82,15 +122,22 @@ public final class PrefetchManager
      */
 
     /**
-     * Adds a request to the Set of pending requests, and wakes up a Thread to handle it.
+     * Adds a request to the Set of pending requests, and wakes up a Thread to handle it. The
+     * request is refused if there are too many pending requests or memory is tight.
      *
      * @param result a ResultsBatches object that is making the request
      * @param batchNo the batch number to be fetched
      * @param optimise true if queries should be optimised
      * @param explain true if this method should explain each query first
+     * @return false if the request was refused
      */
-    public static void addRequest(ResultsBatches result, int batchNo, boolean optimise,
+    public static boolean addRequest(ResultsBatches result, int batchNo, boolean optimise,
             boolean explain) {
+        if (isMemoryTight()) {
+            // Back off - the batch will be fetched by the consumer when it needs it
+            refusedRequests.incrementAndGet();
+            return false;
+        }
         Request request = new Request(result, batchNo, optimise, explain);
         synchronized (sync) {
             synchronized (result) {
@@ -103,8 +150,14 @@ public final class PrefetchManager
                         //    LOG.debug("addRequest - adding request:                          "
                         //            + request);
                         //}
+                        if ((!pending.contains(request)) && (pending.size() >= maxPending)) {
+                            // The service threads are not keeping up - back off.
+                            refusedRequests.incrementAndGet();
+                            return false;
+                        }
                         pending.add(request);
-                        if ((pending.size() + serviced.size()) > (serviceThreads * LOADING)) {
+                        if (((pending.size() + serviced.size()) > (serviceThreads * LOADING))
+                                && (serviceThreads < maxServiceThreads)) {
                             // There are too many requests for the servicing threads.
                             Thread newThread = new ServiceThread();
                             newThread.setDaemon(true);
@@ -127,6 +180,56 @@ public final class PrefetchManager
                 }
             }
         }
+        return true;
+    }
+
+    /**
+     * Returns true if the heap is so full that batches should not be fetched before they are
+     * needed.
+     *
+     * @return a boolean
+     */
+    public static boolean isMemoryTight() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used > runtime.maxMemory() * memoryLimit;
+    }
+
+    /**
+     * Returns the maximum number of batches that a single Results object should request ahead of
+     * the batch it is reading.
+     *
+     * @return an int
+     */
+    public static int getMaxWindow() {
+        return maxWindow;
+    }
+
+    /**
+     * Sets the limits on the prefetch mechanism.
+     *
+     * @param maxServiceThreads the maximum number of threads servicing requests
+     * @param maxPending the maximum number of requests waiting for a service thread
+     * @param maxWindow the maximum number of batches requested ahead by one Results object
+     * @param memoryLimit the fraction of the maximum heap size above which requests are refused
+     */
+    public static void setLimits(int maxServiceThreads, int maxPending, int maxWindow,
+            double memoryLimit) {
+        synchronized (sync) {
+            PrefetchManager.maxServiceThreads = maxServiceThreads;
+            PrefetchManager.maxPending = maxPending;
+            PrefetchManager.maxWindow = maxWindow;
+            PrefetchManager.memoryLimit = memoryLimit;
+        }
+    }
+
+    /**
+     * Returns the number of requests that have been refused because of back-pressure.
+     *
+     * @return an int
+     */
+    public static int getRefusedRequests() {
+        return refusedRequests.get();
     }
 
     /**
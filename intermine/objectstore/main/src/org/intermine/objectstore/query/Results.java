@@ -52,8 +52,16 @@ public class Results extends AbstractList<Object> implements LazyCollection<Obje
     protected int sequential = 0;
     private static final int PREFETCH_SEQUENTIAL_THRESHOLD = 6;
     // Basically, this keeps a tally of how many times in a row accesses have been sequential.
-    // If sequential gets above a PREFETCH_SEQUENTIAL_THRESHOLD, then we prefetch the batch after
+    // If sequential gets above a PREFETCH_SEQUENTIAL_THRESHOLD, then we prefetch the batches after
     // the one we are currently using.
+    protected int currentBatch = -1;
+    protected long batchStartTime = 0;
+    protected long consumeTime = -1;
+    // The time taken by the consumer to read through a batch, in milliseconds, is compared with
+    // the time taken to fetch one, in order to decide how many batches to prefetch.
+    protected int prefetchedBatch = -1;
+    // The batch that was being read when batches were last prefetched. Prefetching is only done
+    // once per batch, rather than on every row, because it locks the PrefetchManager.
 
     /**
      * No argument constructor for testing purposes
@@ -199,21 +207,50 @@ public class Results extends AbstractList<Object> implements LazyCollection<Obje
 
         if (start - 1 == lastGet) {
             sequential += end - start + 1;
+            if (endBatch != currentBatch) {
+                long now = System.currentTimeMillis();
+                if (endBatch == currentBatch + 1) {
+                    consumeTime = now - batchStartTime;
+                }
+                currentBatch = endBatch;
+                batchStartTime = now;
+            }
         } else {
             sequential = 0;
+            currentBatch = -1;
+            consumeTime = -1;
+            prefetchedBatch = -1;
         }
-        if ((resultsBatches.getObjectStore() != null)
+        if ((endBatch != prefetchedBatch)
+                && (resultsBatches.getObjectStore() != null)
                 && prefetch
                 && resultsBatches.getObjectStore().isMultiConnection()
                 && (sequential > PREFETCH_SEQUENTIAL_THRESHOLD)
                 && (getBatchNoForRow(resultsBatches.getMaxSize()) > endBatch)) {
-            resultsBatches.prefetch(endBatch + 1, optimise, explain);
+            prefetchedBatch = endBatch;
+            resultsBatches.prefetch(endBatch + 1, getPrefetchWindow(), optimise, explain);
         }
         lastGet = end;
 
         return ret;
     }
 
+    /**
+     * Returns the number of batches to prefetch ahead of the batch being read. Enough batches
+     * are requested to keep the consumer busy while the next one is fetched, so a consumer that
+     * reads quickly compared to the speed of the database gets a larger window.
+     *
+     * @return a number of batches
+     */
+    protected int getPrefetchWindow() {
+        long fetchTime = resultsBatches.getAverageFetchTime();
+        if ((consumeTime < 0) || (fetchTime < 0)) {
+            return 1;
+        }
+        long window = fetchTime / Math.max(1, consumeTime) + 1;
+        return (int) Math.min(window, PrefetchManager.getMaxWindow());
+    }
+
     /**
      * {@inheritDoc}
      * @param index of the ResultsRow required
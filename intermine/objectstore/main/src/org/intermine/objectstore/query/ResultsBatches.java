@@ -19,7 +19,8 @@ import java.util.Map;
 import org.intermine.objectstore.DataChangedException;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.util.CacheMap;
+import org.intermine.util.BoundedCacheMap;
+import org.intermine.util.CacheBudget;
 
 /**
  * Class holding the data batches for the Results object. Possibly multiple Results objects with
@@ -31,6 +32,16 @@ public class ResultsBatches
 {
     /** This is the default batch size for Results objects */
     public static final int DEFAULT_BATCH_SIZE = 1000;
+    // Rough figures used to weigh batches - an average InterMineObject or value in a row, and the
+    // fixed cost of a batch.
+    private static final long ESTIMATED_BYTES_PER_CELL = 256;
+    private static final long ESTIMATED_BYTES_PER_BATCH = 64;
+    // The batches of ResultsBatches objects whose ObjectStore does not give them a CacheBudget
+    // share this one, which is sized once from the maximum heap size when the class is loaded.
+    private static final int DEFAULT_CACHE_FRACTION = 8;
+    private static final CacheBudget DEFAULT_CACHE_BUDGET = new CacheBudget(
+            Runtime.getRuntime().maxMemory() / DEFAULT_CACHE_FRACTION);
+    private static final BatchWeigher BATCH_WEIGHER = new BatchWeigher();
 
     protected Query query;
     protected ObjectStore os;
@@ -44,9 +55,15 @@ public class ResultsBatches
 
     protected ResultsInfo info;
 
+    // The budget against which the memory used by the batches is counted
+    protected CacheBudget budget = DEFAULT_CACHE_BUDGET;
     // A map of batch number against a List of ResultsRows
-    protected Map<Integer, List<Object>> batches = Collections.synchronizedMap(
-            new CacheMap<Integer, List<Object>>("Results batches"));
+    protected volatile Map<Integer, List<Object>> batches = newBatches(DEFAULT_CACHE_BUDGET, null);
+    // An optional store for batches evicted from the batches Map
+    protected volatile BatchSpillStore spill = null;
+    protected volatile int batchesInMemory = Integer.MAX_VALUE;
+    // A moving average of the time taken to fetch a batch from the ObjectStore, in milliseconds
+    protected volatile long averageFetchTime = -1;
 
     /**
      * Construct a new ResultsBatches object. This is generally only called by the Results object.
@@ -61,6 +78,124 @@ public class ResultsBatches
         this.sequence = sequence;
     }
 
+    /**
+     * Sets the CacheBudget against which the memory used by the batches held by this object is
+     * counted. When the budget is full, the least recently used batches of all the ResultsBatches
+     * objects sharing it are discarded, or written to the spill store if there is one.
+     *
+     * @param budget a CacheBudget
+     */
+    public synchronized void setCacheBudget(CacheBudget budget) {
+        this.budget = budget;
+        replaceBatches(newBatches(budget, spill));
+    }
+
+    /**
+     * Sets a store to which batches are written when they are evicted from memory, and from which
+     * they are read back instead of running the query again. At most the given number of batches
+     * are then kept in memory, as well as being limited by the CacheBudget.
+     *
+     * @param spill a BatchSpillStore
+     * @param batchesInMemory the maximum number of batches to keep in memory
+     */
+    public synchronized void setSpill(BatchSpillStore spill, int batchesInMemory) {
+        Map<Integer, List<Object>> newBatches = newBatches(budget, spill);
+        // The spill must be visible before the new Map, as readers look at the Map first
+        this.spill = spill;
+        this.batchesInMemory = batchesInMemory;
+        replaceBatches(newBatches);
+    }
+
+    /**
+     * Discards the batches held in memory. This is called when this object is evicted from the
+     * ObjectStore's cache of Results, so that its memory is released from the CacheBudget
+     * straight away. Batches are fetched again if they are needed.
+     */
+    public void clearBatches() {
+        batches.clear();
+    }
+
+    private static BoundedCacheMap<Integer, List<Object>> newBatches(CacheBudget budget,
+            final BatchSpillStore spill) {
+        // A single segment, as the batches of one object are only used by a few threads
+        BoundedCacheMap<Integer, List<Object>> retval
+            = new BoundedCacheMap<Integer, List<Object>>("Results batches", budget,
+                    BoundedCacheMap.Policy.LRU, BATCH_WEIGHER, 1);
+        if (spill != null) {
+            retval.setEvictionListener(new BoundedCacheMap.EvictionListener<Integer,
+                    List<Object>>() {
+                public void evicted(Integer batchNo, List<Object> batch) {
+                    spill.store(batchNo.intValue(), batch);
+                }
+            });
+        }
+        return retval;
+    }
+
+    private void replaceBatches(Map<Integer, List<Object>> newBatches) {
+        Map<Integer, List<Object>> oldBatches = batches;
+        synchronized (oldBatches) {
+            for (Map.Entry<Integer, List<Object>> entry : oldBatches.entrySet()) {
+                if (entry.getValue() != null) {
+                    newBatches.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        batches = newBatches;
+        if (oldBatches instanceof BoundedCacheMap<?, ?>) {
+            // Release the weight of the old batches from the budget
+            oldBatches.clear();
+            ((BoundedCacheMap<?, ?>) oldBatches).unregister();
+        }
+        trimBatches();
+    }
+
+    /**
+     * Adds a batch to the batches held in memory, where it is counted against the CacheBudget,
+     * and then evicts the least recently used batches if there are more than the number allowed
+     * by setSpill().
+     *
+     * @param batchNo the batch number
+     * @param rows the batch
+     */
+    protected void putBatch(int batchNo, List<Object> rows) {
+        batches.put(new Integer(batchNo), rows);
+        trimBatches();
+    }
+
+    private void trimBatches() {
+        Map<Integer, List<Object>> currentBatches = batches;
+        if (currentBatches instanceof BoundedCacheMap<?, ?>) {
+            BoundedCacheMap<?, ?> bounded = (BoundedCacheMap<?, ?>) currentBatches;
+            while (bounded.size() > batchesInMemory) {
+                if (!bounded.evictOldest()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the spill store, if there is one, releasing its resources. Batches are then fetched
+     * from the ObjectStore again when they are not in memory. This is called when this object is
+     * evicted from the ObjectStore's cache of Results.
+     */
+    public void closeSpill() {
+        BatchSpillStore currentSpill = spill;
+        if (currentSpill != null) {
+            currentSpill.close();
+        }
+    }
+
+    /**
+     * Returns the store to which batches are written when they are evicted from memory.
+     *
+     * @return a BatchSpillStore, or null if there is none
+     */
+    public BatchSpillStore getSpill() {
+        return spill;
+    }
+
     /**
      * Get the Query that produced this ResultsBatches object. Note that due to the ObjectStore's
      * Results cache, this may not be the exact same Query as you passed to ObjectStore.execute. The
@@ -117,11 +252,44 @@ public class ResultsBatches
      * @param explain true if this method should explain each query first
      */
     public void prefetch(int batchNo, boolean optimise, boolean explain) {
-        if (!batches.containsKey(new Integer(batchNo))) {
-            PrefetchManager.addRequest(this, batchNo, optimise, explain);
+        prefetch(batchNo, 1, optimise, explain);
+    }
+
+    /**
+     * Prefetch into memory a number of batches starting with the given batch number. Batches
+     * beyond the known end of the results are not requested, and no more batches are requested
+     * than can be held in memory at once. Requesting stops if the PrefetchManager refuses a
+     * request.
+     *
+     * @param batchNo the first batch number
+     * @param window the number of batches to prefetch
+     * @param optimise true if queries should be optimised
+     * @param explain true if this method should explain each query first
+     */
+    public void prefetch(int batchNo, int window, boolean optimise, boolean explain) {
+        // Leave room in memory for the batch being read
+        int end = batchNo + Math.min(window, Math.max(1, batchesInMemory - 1));
+        for (int i = batchNo; i < end; i++) {
+            if (i * batchSize >= maxSize) {
+                break;
+            }
+            if (!batches.containsKey(new Integer(i))) {
+                if (!PrefetchManager.addRequest(this, i, optimise, explain)) {
+                    break;
+                }
+            }
         }
     }
 
+    /**
+     * Returns a moving average of the time taken to fetch a batch from the ObjectStore.
+     *
+     * @return a number of milliseconds, or -1 if no batch has been fetched
+     */
+    public long getAverageFetchTime() {
+        return averageFetchTime;
+    }
+
     /**
      * Gets a range of rows from within a batch
      *
@@ -167,7 +335,7 @@ public class ResultsBatches
     }
 
     /**
-     * Gets a batch from the ObjectStore.
+     * Gets a batch from the spill store if it is present there, otherwise from the ObjectStore.
      *
      * @param batchNo the batch number to get (zero-indexed)
      * @param optimise true if queries should be optimised
@@ -177,6 +345,15 @@ public class ResultsBatches
      */
     protected List<Object> fetchBatchFromObjectStore(int batchNo, boolean optimise, boolean explain)
         throws ObjectStoreException {
+        BatchSpillStore currentSpill = spill;
+        if (currentSpill != null) {
+            List<Object> rows = currentSpill.load(batchNo);
+            if (rows != null) {
+                // The size information was recorded when the batch was first fetched
+                putBatch(batchNo, rows);
+                return rows;
+            }
+        }
         int start = batchNo * batchSize;
         int limit = batchSize;
         //int end = start + batchSize - 1;
@@ -189,9 +366,13 @@ public class ResultsBatches
 
         List<Object> rows = null;
         try {
+            long startTime = System.currentTimeMillis();
             @SuppressWarnings("unchecked") List<Object> tmpRows =
                 (List) os.execute(query, start, limit, optimise, explain, sequence);
             rows = tmpRows;
+            long fetchTime = System.currentTimeMillis() - startTime;
+            long oldAverage = averageFetchTime;
+            averageFetchTime = (oldAverage < 0 ? fetchTime : (oldAverage * 3 + fetchTime) / 4);
 
             synchronized (this) {
                 // Now deal with a partial batch, so we can update the maximum size
@@ -205,8 +386,7 @@ public class ResultsBatches
                     minSize = (minSize > size ? minSize : size);
                 }
 
-                Integer key = new Integer(batchNo);
-                batches.put(key, rows);
+                putBatch(batchNo, rows);
             }
         } catch (IndexOutOfBoundsException e) {
             synchronized (this) {
@@ -347,6 +527,7 @@ public class ResultsBatches
     public ResultsBatches makeWithDifferentBatchSize(int newBatchSize) {
         ResultsBatches retval = new ResultsBatches(query, os, sequence);
         retval.setBatchSize(newBatchSize);
+        retval.setCacheBudget(budget);
         List<Object> firstBatch = batches.get(new Integer(0));
         if ((firstBatch != null) && (isSingleBatch() || (firstBatch.size() >= newBatchSize))) {
             if (firstBatch.size() > newBatchSize) {
@@ -357,7 +538,7 @@ public class ResultsBatches
                 }
                 firstBatch = newFirstBatch;
             }
-            retval.batches.put(new Integer(0), firstBatch);
+            retval.putBatch(0, firstBatch);
             retval.minSize = minSize;
             retval.maxSize = maxSize;
             retval.initialised = true;
@@ -379,4 +560,18 @@ public class ResultsBatches
             return null;
         }
     }
+
+    /**
+     * Weighs batches by the estimated memory used by their rows.
+     */
+    private static class BatchWeigher implements BoundedCacheMap.Weigher<Integer, List<Object>>
+    {
+        public long weigh(Integer batchNo, List<Object> rows) {
+            long bytesPerRow = ESTIMATED_BYTES_PER_CELL;
+            if ((!rows.isEmpty()) && (rows.get(0) instanceof List<?>)) {
+                bytesPerRow *= Math.max(1, ((List<?>) rows.get(0)).size());
+            }
+            return ESTIMATED_BYTES_PER_BATCH + rows.size() * bytesPerRow;
+        }
+    }
 }
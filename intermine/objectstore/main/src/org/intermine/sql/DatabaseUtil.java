@@ -22,6 +22,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import org.apache.commons.lang.CharUtils;
 import org.apache.commons.lang.StringUtils;
@@ -598,6 +599,92 @@ public final class DatabaseUtil
         con.createStatement().execute("DROP SEQUENCE " + sequence);
     }
 
+    /**
+     * Tests if the database allows transactions to be prepared for a two-phase commit, which
+     * needs the max_prepared_transactions setting of the server to be greater than zero.
+     *
+     * @param con a Connection to the database
+     * @return true if PREPARE TRANSACTION can be used
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    public static boolean isTwoPhaseCommitSupported(Connection con) throws SQLException {
+        Statement s = con.createStatement();
+        try {
+            ResultSet res = s.executeQuery("SHOW max_prepared_transactions");
+            return res.next() && (Integer.parseInt(res.getString(1).trim()) > 0);
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Creates a new identifier for a prepared transaction, which is unique across the whole
+     * database server.
+     *
+     * @param prefix a prefix for the identifier, made of letters, digits and underscores only
+     * @return a String
+     */
+    public static String newPreparedTransactionId(String prefix) {
+        return prefix + "_" + UUID.randomUUID().toString().replace('-', '_');
+    }
+
+    /**
+     * Prepares the current transaction of a Connection for a two-phase commit. The transaction
+     * is then no longer associated with the Connection, and survives a crash of the client or the
+     * server until it is committed or rolled back by commitPrepared or rollbackPrepared, which may
+     * be called on any Connection to the same database. The Connection is left in auto-commit
+     * mode.
+     *
+     * @param con a Connection that is in a transaction
+     * @param id the identifier for the prepared transaction, from newPreparedTransactionId
+     * @throws SQLException if the transaction cannot be prepared, in which case it is rolled back
+     */
+    public static void prepareTransaction(Connection con, String id) throws SQLException {
+        if (con.getAutoCommit()) {
+            throw new SQLException("Cannot prepare transaction " + id + " - not in a transaction");
+        }
+        Statement s = con.createStatement();
+        try {
+            s.execute("PREPARE TRANSACTION '" + id + "'");
+        } finally {
+            s.close();
+        }
+        con.setAutoCommit(true);
+    }
+
+    /**
+     * Commits a transaction that was prepared by prepareTransaction.
+     *
+     * @param con a Connection to the database, in auto-commit mode
+     * @param id the identifier of the prepared transaction
+     * @throws SQLException if an error occurs in the underlying database, in which case the
+     * transaction stays prepared, and may still be committed
+     */
+    public static void commitPrepared(Connection con, String id) throws SQLException {
+        Statement s = con.createStatement();
+        try {
+            s.execute("COMMIT PREPARED '" + id + "'");
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Rolls back a transaction that was prepared by prepareTransaction.
+     *
+     * @param con a Connection to the database, in auto-commit mode
+     * @param id the identifier of the prepared transaction
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    public static void rollbackPrepared(Connection con, String id) throws SQLException {
+        Statement s = con.createStatement();
+        try {
+            s.execute("ROLLBACK PREPARED '" + id + "'");
+        } finally {
+            s.close();
+        }
+    }
+
     /**
      * Creates a table name for a class descriptor
      *
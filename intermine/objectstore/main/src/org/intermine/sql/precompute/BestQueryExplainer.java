@@ -13,31 +13,65 @@ package org.intermine.sql.precompute;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.log4j.Logger;
+import org.intermine.sql.Database;
 import org.intermine.sql.query.ExplainResult;
 import org.intermine.sql.query.Query;
 
 /**
  * Gets the database to explain each Query added and keeps hold of the best one so far.
+ * <p>
+ * If a Database is provided, the candidates that are not explained straight away are ordered
+ * and pruned using a QueryCostModel, and may be explained concurrently on several connections
+ * from the Database. The thread that is optimising always explains candidates on its own
+ * connection as well, so it does not depend on getting another connection.
  *
  * @author Andrew Varley
  */
 public class BestQueryExplainer extends BestQuery
 {
+    private static final Logger LOG = Logger.getLogger(BestQueryExplainer.class);
     private static final int OVERHEAD = 300;
     protected static final int ALWAYS_EXPLAIN_TABLES = 3;
     protected static final int NEVER_EXPLAIN_TABLES = 8;
+    // Candidates estimated to cost this many times more than the cheapest are not explained
+    protected static final long PRUNE_FACTOR = 100;
+    // Estimates below this number of rows are too small to prune against
+    protected static final long PRUNE_MIN_ROWS = 10000;
+
+    private static ThreadPoolExecutor explainPool = null;
+    private static int explainThreadNo = 0;
 
     protected List<Candidate> candidates = new ArrayList<Candidate>();
+    protected List<Candidate> mustExplain = new ArrayList<Candidate>();
     protected int candidateTables = Integer.MAX_VALUE;
     protected Candidate bestCandidate;
     protected Connection con;
+    protected Database db = null;
+    protected int threads = 1;
+    protected QueryCostModel costModel = null;
     protected Date start = new Date();
     protected long timeLimit = 0;
 
+    protected AtomicInteger candidateCount = new AtomicInteger();
+    protected AtomicInteger explainCount = new AtomicInteger();
+    protected AtomicInteger prunedCount = new AtomicInteger();
+    protected AtomicLong explainTime = new AtomicLong();
+
     /**
      * Constructs an empty BestQueryExplainer for testing purposes
      *
@@ -61,6 +95,24 @@ public class BestQueryExplainer extends BestQuery
         this.timeLimit = timeLimit;
     }
 
+    /**
+     * Constructs a BestQueryExplainer that will use the given Connection to explain Queries, and
+     * the given Database for the cost model and for extra connections.
+     *
+     * @param con the Connection to use
+     * @param db the Database that the Connection is from
+     * @param timeLimit a time limit in milliseconds
+     * @param threads the maximum number of queries to explain at once
+     */
+    public BestQueryExplainer(Connection con, Database db, long timeLimit, int threads) {
+        this(con, timeLimit);
+        if (db != null) {
+            this.db = db;
+            this.threads = threads;
+            this.costModel = QueryCostModel.getInstance(db);
+        }
+    }
+
     /**
      * Allows a Query to be added to this tracker.
      *
@@ -98,6 +150,7 @@ public class BestQueryExplainer extends BestQuery
      * @throws SQLException if an error occurs in the underlying database
      */
     protected void add(Candidate c) throws BestQueryException, SQLException {
+        candidateCount.incrementAndGet();
         int tableCount = c.getTableCount();
         boolean doExplain = (tableCount <= ALWAYS_EXPLAIN_TABLES);
         if (tableCount < candidateTables) {
@@ -108,7 +161,10 @@ public class BestQueryExplainer extends BestQuery
             }
         }
         if (doExplain) {
-            if (c.betterThan(bestCandidate)) {
+            if ((threads > 1) && (bestCandidate != null)) {
+                // Explain it later with the others, in parallel
+                mustExplain.add(c);
+            } else if (c.betterThan(bestCandidate)) {
                 bestCandidate = c;
             }
         } else {
@@ -135,25 +191,53 @@ public class BestQueryExplainer extends BestQuery
     }
 
     /**
-     * Internal method that creates an ExplainResult. It can be overridden by subclasses.
+     * Internal method that creates an ExplainResult using this object's own Connection.
      *
      * @param q the Query
      * @return an ExplainResult
      * @throws SQLException if an error occurs in the underlying database
      */
     protected ExplainResult getExplainResult(Query q) throws SQLException {
-        return ExplainResult.getInstance(q, con);
+        return getExplainResult(q, con);
     }
 
     /**
-     * Internal method that creates an ExplainResult. It can be overridden by subclasses.
+     * Internal method that creates an ExplainResult using this object's own Connection.
      *
      * @param q the query String
      * @return an ExplainResult
      * @throws SQLException if an error occurs in the underlying database
      */
     protected ExplainResult getExplainResult(String q) throws SQLException {
-        return ExplainResult.getInstance(q, con);
+        return getExplainResult(q, con);
+    }
+
+    /**
+     * Internal method that creates an ExplainResult. It can be overridden by subclasses. It is
+     * called by several threads at once, with different Connections, when candidates are
+     * explained in parallel.
+     *
+     * @param q the Query
+     * @param c the Connection to use
+     * @return an ExplainResult
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    protected ExplainResult getExplainResult(Query q, Connection c) throws SQLException {
+        return ExplainResult.getInstance(q, c);
+    }
+
+    /**
+     * Internal method that creates an ExplainResult. It can be overridden by subclasses. It is
+     * called by several threads at once, with different Connections, when candidates are
+     * explained in parallel.
+     *
+     * @param q the query String
+     * @param c the Connection to use
+     * @return an ExplainResult
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    protected ExplainResult getExplainResult(String q, Connection c) throws SQLException {
+        return ExplainResult.getInstance(q, c);
     }
 
     /**
@@ -217,23 +301,30 @@ public class BestQueryExplainer extends BestQuery
      * @throws SQLException if an error occurs in the underlying database
      */
     protected Candidate getBest() throws SQLException {
-        Iterator<Candidate> iter = candidates.iterator();
-        while (iter.hasNext()) {
-            if (bestCandidate != null) {
+        if (candidates.isEmpty() && mustExplain.isEmpty()) {
+            return bestCandidate;
+        }
+        List<Candidate> toExplain = new ArrayList<Candidate>(mustExplain);
+        toExplain.addAll(prune(candidates));
+        mustExplain.clear();
+        candidates.clear();
+        if ((threads > 1) && (toExplain.size() > 1)) {
+            explainInParallel(toExplain);
+        }
+        for (Candidate c : toExplain) {
+            if ((c.explainResult == null) && (bestCandidate != null)) {
                 long elapsed = System.currentTimeMillis() - start.getTime();
                 if ((timeLimit >= 0) && (elapsed > timeLimit)) {
                     //System.out .println("QueryOptimiser: bailing out early: Time limit reached");
-                    return bestCandidate;
+                    continue;
                 }
                 if (bestCandidate.getExplain().getTime() < (elapsed + OVERHEAD)) {
                     //System.out .println("QueryOptimiser: bailing out early: Explain time: "
                     //        + bestCandidate.getExplain().getTime() + ", elapsed time: " + elapsed
                     //        + ", time limit: " + timeLimit);
-                    return bestCandidate;
+                    continue;
                 }
             }
-            Candidate c = iter.next();
-            iter.remove();
             if (c.betterThan(bestCandidate)) {
                 bestCandidate = c;
             }
@@ -241,6 +332,126 @@ public class BestQueryExplainer extends BestQuery
         return bestCandidate;
     }
 
+    /**
+     * Orders candidates by their cost estimated by the cost model, and removes those that are
+     * estimated to be much more expensive than the cheapest. Candidates that the cost model
+     * cannot estimate are kept, after the others.
+     *
+     * @param list a List of Candidates
+     * @return a new List of Candidates
+     */
+    protected List<Candidate> prune(List<Candidate> list) {
+        if ((costModel == null) || (list.size() < 2)) {
+            return list;
+        }
+        final Map<Candidate, Long> estimates = new HashMap<Candidate, Long>();
+        long cheapest = Long.MAX_VALUE;
+        try {
+            for (Candidate c : list) {
+                long estimate = (c.query == null ? -1 : costModel.estimate(c.query, con));
+                estimates.put(c, new Long(estimate < 0 ? Long.MAX_VALUE : estimate));
+                if (estimate >= 0) {
+                    cheapest = Math.min(cheapest, estimate);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.warn("Could not estimate costs of candidate queries", e);
+            return list;
+        }
+        List<Candidate> retval = new ArrayList<Candidate>(list);
+        Collections.sort(retval, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b) {
+                return estimates.get(a).compareTo(estimates.get(b));
+            }
+        });
+        if (cheapest != Long.MAX_VALUE) {
+            long limit = Math.max(cheapest, PRUNE_MIN_ROWS) * PRUNE_FACTOR;
+            for (int i = retval.size() - 1; i > 0; i--) {
+                long estimate = estimates.get(retval.get(i)).longValue();
+                if ((estimate != Long.MAX_VALUE) && (estimate > limit)) {
+                    didNotExplain(retval.remove(i));
+                    prunedCount.incrementAndGet();
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Explains the given candidates using several connections at once. The current thread
+     * explains candidates on this object's own connection, and helper threads explain the others
+     * on connections from the Database. Candidates not explained because the time limit was
+     * reached or a good enough candidate was found are left without an ExplainResult.
+     *
+     * @param list a List of Candidates
+     */
+    protected void explainInParallel(List<Candidate> list) {
+        ExplainBatch batch = new ExplainBatch(list);
+        int helpers = Math.min(threads - 1, list.size() - 1);
+        ThreadPoolExecutor pool = getExplainPool(threads - 1);
+        for (int i = 0; i < helpers; i++) {
+            pool.execute(batch);
+        }
+        batch.work(con);
+        batch.await();
+    }
+
+    private static synchronized ThreadPoolExecutor getExplainPool(int size) {
+        if (explainPool == null) {
+            explainPool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread retval = new Thread(r, "QueryOptimiser-explain-"
+                                    + (explainThreadNo++));
+                            retval.setDaemon(true);
+                            return retval;
+                        }
+                    });
+            explainPool.allowCoreThreadTimeOut(true);
+        } else if (explainPool.getMaximumPoolSize() < size) {
+            explainPool.setMaximumPoolSize(size);
+            explainPool.setCorePoolSize(size);
+        }
+        return explainPool;
+    }
+
+    /**
+     * Returns the number of candidate queries added to this object.
+     *
+     * @return an int
+     */
+    public int getCandidateCount() {
+        return candidateCount.get();
+    }
+
+    /**
+     * Returns the number of candidate queries explained by the database.
+     *
+     * @return an int
+     */
+    public int getExplainCount() {
+        return explainCount.get();
+    }
+
+    /**
+     * Returns the number of candidate queries pruned by the cost model without being explained.
+     *
+     * @return an int
+     */
+    public int getPrunedCount() {
+        return prunedCount.get();
+    }
+
+    /**
+     * Returns the total time spent explaining candidate queries, which may be more than the
+     * elapsed time if they were explained in parallel.
+     *
+     * @return a time in milliseconds
+     */
+    public long getExplainTime() {
+        return explainTime.get();
+    }
+
     /**
      * Throws an exception. This gives the subclasses a chance to intercept it.
      *
@@ -258,7 +469,7 @@ public class BestQueryExplainer extends BestQuery
     {
         protected String queryString;
         protected Query query;
-        protected ExplainResult explainResult = null;
+        protected volatile ExplainResult explainResult = null;
         protected int tableCount;
 
         /**
@@ -338,12 +549,30 @@ public class BestQueryExplainer extends BestQuery
          */
         public ExplainResult getExplain() throws SQLException {
             if (explainResult == null) {
+                long startTime = System.currentTimeMillis();
                 explainResult = (query == null ? getExplainResult(queryString)
                         : getExplainResult(query));
+                explainCount.incrementAndGet();
+                explainTime.addAndGet(System.currentTimeMillis() - startTime);
             }
             return explainResult;
         }
 
+        /**
+         * Explains this Candidate using the given Connection.
+         *
+         * @param c a Connection
+         * @throws SQLException if an error occurs in the underlying database
+         */
+        public void explain(Connection c) throws SQLException {
+            long startTime = System.currentTimeMillis();
+            ExplainResult result = (query == null ? getExplainResult(queryString, c)
+                    : getExplainResult(query, c));
+            explainCount.incrementAndGet();
+            explainTime.addAndGet(System.currentTimeMillis() - startTime);
+            explainResult = result;
+        }
+
         /**
          * Returns true if the argument is slower than this, or if the argument is null.
          *
@@ -364,4 +593,93 @@ public class BestQueryExplainer extends BestQuery
                     : ", queryString = " + queryString);
         }
     }
+
+    /**
+     * A set of candidates being explained by several threads. Each thread takes candidates until
+     * there are none left, or until it is not worth explaining any more.
+     */
+    private class ExplainBatch implements Runnable
+    {
+        private LinkedList<Candidate> queue;
+        private int inFlight = 0;
+        private long bestTime = Long.MAX_VALUE;
+
+        public ExplainBatch(List<Candidate> list) {
+            queue = new LinkedList<Candidate>(list);
+            if ((bestCandidate != null) && (bestCandidate.explainResult != null)) {
+                bestTime = bestCandidate.explainResult.getTime();
+            }
+        }
+
+        private synchronized Candidate next() {
+            if (queue.isEmpty()) {
+                return null;
+            }
+            long elapsed = System.currentTimeMillis() - start.getTime();
+            if (((timeLimit >= 0) && (elapsed > timeLimit)) || (bestTime < elapsed + OVERHEAD)) {
+                queue.clear();
+                return null;
+            }
+            inFlight++;
+            return queue.removeFirst();
+        }
+
+        private synchronized void done(Candidate c) {
+            inFlight--;
+            if (c.explainResult != null) {
+                bestTime = Math.min(bestTime, c.explainResult.getTime());
+            }
+            notifyAll();
+        }
+
+        private synchronized boolean hasWork() {
+            return !queue.isEmpty();
+        }
+
+        public void work(Connection c) {
+            Candidate candidate = next();
+            while (candidate != null) {
+                try {
+                    candidate.explain(c);
+                } catch (SQLException e) {
+                    // The candidate will be explained again on the main connection if needed
+                    LOG.debug("Failed to explain candidate " + candidate, e);
+                } finally {
+                    done(candidate);
+                }
+                candidate = next();
+            }
+        }
+
+        public synchronized void await() {
+            try {
+                while (inFlight > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            if (!hasWork()) {
+                return;
+            }
+            Connection c = null;
+            try {
+                c = db.getConnection();
+                work(c);
+            } catch (SQLException e) {
+                LOG.warn("Could not get a connection to explain candidate queries", e);
+            } finally {
+                if (c != null) {
+                    try {
+                        c.close();
+                    } catch (SQLException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+    }
 }
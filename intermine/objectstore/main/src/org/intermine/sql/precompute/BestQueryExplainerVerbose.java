@@ -40,13 +40,13 @@ public class BestQueryExplainerVerbose extends BestQueryExplainer
      * {@inheritDoc}
      */
     @Override
-    protected ExplainResult getExplainResult(Query q) throws SQLException {
+    protected ExplainResult getExplainResult(Query q, Connection c) throws SQLException {
         if (unexplained != 0) {
             System.out .println("Did not explain " + unexplained + " queries");
             unexplained = 0;
         }
         long startTime = System.currentTimeMillis();
-        ExplainResult retval = ExplainResult.getInstance(q, con);
+        ExplainResult retval = ExplainResult.getInstance(q, c);
         //System.out .println("Optimiser: Explained query with " + q.getFrom().size()
         //        + " FROM entries took " + (System.currentTimeMillis() - startTime) + " ms, "
         //        + retval.toString());
@@ -59,13 +59,13 @@ public class BestQueryExplainerVerbose extends BestQueryExplainer
      * {@inheritDoc}
      */
     @Override
-    protected ExplainResult getExplainResult(String q) throws SQLException {
+    protected ExplainResult getExplainResult(String q, Connection c) throws SQLException {
         if (unexplained != 0) {
             System.out .println("Did not explain " + unexplained + " queries");
             unexplained = 0;
         }
         long startTime = System.currentTimeMillis();
-        ExplainResult retval = ExplainResult.getInstance(q, con);
+        ExplainResult retval = ExplainResult.getInstance(q, c);
         System.out .println("Optimiser: Explained query " + q + ", took "
                 + (System.currentTimeMillis() - startTime) + " ms, " + retval.toString());
         return retval;
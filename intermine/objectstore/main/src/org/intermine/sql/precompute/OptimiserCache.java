@@ -10,25 +10,69 @@ package org.intermine.sql.precompute;
  *
  */
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.log4j.Logger;
+import org.intermine.modelproduction.MetadataManager;
 import org.intermine.sql.Database;
 import org.intermine.util.CacheMap;
+import org.intermine.util.PropertiesUtil;
+import org.intermine.util.ShutdownHook;
+import org.intermine.util.Shutdownable;
 
 /**
  * A class that provides an implementation of a cache for String-based SQL query optimisation.
+ * <p>
+ * The cache for a Database is also stored in the metadata table of that database, so that the
+ * optimiser decisions survive a restart and are shared between all the JVMs using the database.
+ * The stored copy is tagged with the signature of the set of precomputed tables it was made
+ * with, and is ignored once the precomputed tables have changed. Queries are keyed by their SQL
+ * with the whitespace normalised.
+ * <p>
+ * New cache lines are stored by a background thread, and when the JVM shuts down, so that
+ * queries never wait for the database. The stored copy is locked while it is merged with the
+ * lines in memory, so that lines stored by other JVMs at the same time are not lost.
  *
  * @author Matthew Wakeling
  */
-public class OptimiserCache
+public class OptimiserCache implements Shutdownable
 {
+    private static final Logger LOG = Logger.getLogger(OptimiserCache.class);
+
     /** Maximum number of cache linesets in the cache. */
     public static final int MAX_LINESETS = 1000;
     /** Number of events to happen before an expiration run. */
     public static final int EXPIRE_INTERVAL = 100;
+    /** The key of the stored cache in the metadata table. */
+    public static final String METADATA_KEY = "optimiserCache";
+    /** Number of new cache lines after which the cache is stored. */
+    public static final int SAVE_INTERVAL = 20;
+    /** Time in milliseconds after which new cache lines are stored, however few there are. */
+    public static final long SAVE_PERIOD = 60000;
+
+    // Woken when a cache has SAVE_INTERVAL new lines
+    private static final Object SAVER_LOCK = new Object();
+    private static Thread saver = null;
+
+    private static boolean persistent = true;
+
+    static {
+        String value = PropertiesUtil.getProperties()
+            .getProperty("os.query.persistent-optimiser-cache");
+        if (value != null) {
+            persistent = Boolean.parseBoolean(value.trim());
+        }
+    }
 
     // Caches need to be per-database, so we will provide a static method to retrieve a cache object
     // given a database. We need to be careful about synchronisation in this whole class.
@@ -42,11 +86,26 @@ public class OptimiserCache
      */
     public static synchronized OptimiserCache getInstance(Database db) {
         if (!caches.containsKey(db)) {
-            caches.put(db, new OptimiserCache());
+            if (persistent && (db != null)) {
+                OptimiserCache cache = new OptimiserCache(db);
+                ShutdownHook.registerObject(cache);
+                if (saver == null) {
+                    saver = new Saver();
+                    saver.setDaemon(true);
+                    saver.setName("OptimiserCache saver");
+                    saver.start();
+                }
+                caches.put(db, cache);
+            } else {
+                caches.put(db, new OptimiserCache());
+            }
         }
         return caches.get(db);
     }
 
+    private static synchronized List<OptimiserCache> getInstances() {
+        return new ArrayList<OptimiserCache>(caches.values());
+    }
 
     /**
      * A Map that holds a mapping from unoptimised query string (with LIMIT and OFFSET stripped off)
@@ -54,6 +113,14 @@ public class OptimiserCache
      */
     protected Map<String, Set<OptimiserCacheLine>> cacheLines;
 
+    // The Database that the cache is stored in, or null if it is not stored
+    private Database db = null;
+    // The signature of the precomputed tables that the cache lines were made with
+    private String signature = null;
+    private int unsaved = 0;
+    // Held while storing the cache, so that only one thread stores it at a time
+    private final Object saveLock = new Object();
+
     /**
      * Constructor for this object.
      */
@@ -62,10 +129,68 @@ public class OptimiserCache
     }
 
     /**
-     * Removes all entries from the cache.
+     * Constructor for a cache that is stored in the metadata table of a database.
+     *
+     * @param db the Database to store the cache in
+     */
+    public OptimiserCache(Database db) {
+        this();
+        this.db = db;
+    }
+
+    /**
+     * Removes all entries from the cache, including the stored copy.
      */
-    public synchronized void flush() {
-        cacheLines.clear();
+    public void flush() {
+        synchronized (this) {
+            cacheLines.clear();
+            unsaved = 0;
+        }
+        if (db != null) {
+            synchronized (saveLock) {
+                try {
+                    MetadataManager.store(db, METADATA_KEY, null);
+                } catch (SQLException e) {
+                    LOG.warn("Could not remove stored optimiser cache", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the cache which set of precomputed tables the optimiser is using. If the set has
+     * changed since the cache lines were made, they are discarded. If the set is seen for the
+     * first time, the cache lines that were stored with the same set are loaded.
+     *
+     * @param newSignature the signature of the precomputed tables, from
+     * PrecomputedTableManager.getSignature()
+     */
+    public void validate(String newSignature) {
+        synchronized (this) {
+            if (newSignature.equals(signature)) {
+                return;
+            }
+            if (signature != null) {
+                LOG.info("Precomputed tables have changed - discarding " + cacheLines.size()
+                        + " optimiser cache entries");
+            }
+            cacheLines.clear();
+            unsaved = 0;
+            signature = newSignature;
+        }
+        if (db != null) {
+            long start = System.currentTimeMillis();
+            List<OptimiserCacheLine> stored = load(newSignature);
+            synchronized (this) {
+                if (newSignature.equals(signature)) {
+                    for (OptimiserCacheLine line : stored) {
+                        addLine(line);
+                    }
+                }
+            }
+            LOG.info("Loaded " + stored.size() + " stored optimiser cache lines in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
     }
 
     /**
@@ -75,22 +200,176 @@ public class OptimiserCache
      * @param optimised the optimised SQL string (stripped of LIMIT and OFFSET)
      * @param limit the limit that was used during the optimisation
      */
-    public synchronized void addCacheLine(String original, String optimised, int limit) {
+    public void addCacheLine(String original, String optimised, int limit) {
         if (original.toUpperCase().startsWith("EXPLAIN ")) {
             original = original.substring(8);
         }
         if (optimised.toUpperCase().startsWith("EXPLAIN ")) {
             optimised = optimised.substring(8);
         }
-        Set<OptimiserCacheLine> lines = cacheLines.get(original);
+        boolean save;
+        synchronized (this) {
+            addLine(new OptimiserCacheLine(optimised, limit, normalise(original)));
+            unsaved++;
+            save = (db != null) && (unsaved == SAVE_INTERVAL);
+        }
+        if (save) {
+            // The cache is stored by the saver thread, not by the thread running the query
+            synchronized (SAVER_LOCK) {
+                SAVER_LOCK.notifyAll();
+            }
+        }
+    }
+
+    private void addLine(OptimiserCacheLine line) {
+        Set<OptimiserCacheLine> lines = cacheLines.get(line.getOriginal());
         if (lines == null) {
             lines = new HashSet<OptimiserCacheLine>();
-            cacheLines.put(original, lines);
+            cacheLines.put(line.getOriginal(), lines);
         }
+        lines.add(line);
+    }
 
-        OptimiserCacheLine line = new OptimiserCacheLine(optimised, limit, original);
+    /**
+     * Stores the cache in the metadata table of the database, merged with the lines stored there
+     * by other JVMs for the same precomputed tables, if there are any new lines. The stored copy
+     * is limited to MAX_LINESETS queries. This is normally called by a background thread and
+     * when the JVM shuts down.
+     */
+    public void save() {
+        if (db == null) {
+            return;
+        }
+        synchronized (saveLock) {
+            String saveSignature;
+            int saving;
+            synchronized (this) {
+                if ((signature == null) || (unsaved == 0)) {
+                    return;
+                }
+                saveSignature = signature;
+                saving = unsaved;
+                unsaved = 0;
+            }
+            try {
+                storeMerged(saveSignature);
+            } catch (SQLException e) {
+                LOG.warn("Could not store optimiser cache", e);
+                synchronized (this) {
+                    if (saveSignature.equals(signature)) {
+                        // Try again next time
+                        unsaved += saving;
+                    }
+                }
+            }
+        }
+    }
 
-        lines.add(line);
+    /**
+     * Stores the cache when the JVM shuts down.
+     */
+    public void shutdown() {
+        save();
+    }
+
+    /**
+     * Merges the stored copy of the cache into this cache, and stores the result, in a single
+     * transaction. The row holding the stored copy is locked throughout, so that another JVM
+     * cannot store its lines between the read and the write.
+     *
+     * @param saveSignature the signature of the precomputed tables of the lines in memory
+     * @throws SQLException if something goes wrong
+     */
+    private void storeMerged(String saveSignature) throws SQLException {
+        Connection c = db.getConnection();
+        boolean autoCommit = c.getAutoCommit();
+        try {
+            c.setAutoCommit(false);
+            String[] stored = selectForUpdate(c);
+            if (stored == null) {
+                // There is no row to lock yet, so lock out other writers while creating it
+                Statement s = c.createStatement();
+                try {
+                    s.execute("LOCK TABLE " + MetadataManager.METADATA_TABLE
+                            + " IN SHARE ROW EXCLUSIVE MODE");
+                } finally {
+                    s.close();
+                }
+                stored = selectForUpdate(c);
+            }
+            List<OptimiserCacheLine> lines = new ArrayList<OptimiserCacheLine>();
+            synchronized (this) {
+                if (!saveSignature.equals(signature)) {
+                    c.rollback();
+                    return;
+                }
+                if ((stored != null) && (stored[0] != null)) {
+                    for (OptimiserCacheLine line : decode(saveSignature, stored[0])) {
+                        addLine(line);
+                    }
+                }
+                int linesets = 0;
+                for (Set<OptimiserCacheLine> lineset : cacheLines.values()) {
+                    if (linesets++ >= MAX_LINESETS) {
+                        break;
+                    }
+                    lines.addAll(lineset);
+                }
+            }
+            String sql = (stored == null ? "INSERT INTO " + MetadataManager.METADATA_TABLE
+                    + " (value, key) VALUES (?, ?)" : "UPDATE " + MetadataManager.METADATA_TABLE
+                    + " SET value = ? WHERE key = ?");
+            PreparedStatement write = c.prepareStatement(sql);
+            try {
+                write.setString(1, encode(saveSignature, lines));
+                write.setString(2, METADATA_KEY);
+                write.executeUpdate();
+            } finally {
+                write.close();
+            }
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(autoCommit);
+            c.close();
+        }
+    }
+
+    /**
+     * Reads and locks the stored copy of the cache.
+     *
+     * @param c a Connection, in a transaction
+     * @return an array containing the stored value, which may be null, or null if there is no
+     * stored copy
+     * @throws SQLException if something goes wrong
+     */
+    private static String[] selectForUpdate(Connection c) throws SQLException {
+        PreparedStatement select = c.prepareStatement("SELECT value FROM "
+                + MetadataManager.METADATA_TABLE + " WHERE key = ? FOR UPDATE");
+        try {
+            select.setString(1, METADATA_KEY);
+            ResultSet r = select.executeQuery();
+            if (r.next()) {
+                return new String[] {r.getString(1)};
+            }
+            return null;
+        } finally {
+            select.close();
+        }
+    }
+
+    private List<OptimiserCacheLine> load(String loadSignature) {
+        try {
+            String value = MetadataManager.retrieve(db, METADATA_KEY);
+            if (value != null) {
+                return decode(loadSignature, value);
+            }
+        } catch (SQLException e) {
+            LOG.warn("Could not load stored optimiser cache", e);
+        }
+        return new ArrayList<OptimiserCacheLine>();
     }
 
     /**
@@ -108,7 +387,7 @@ public class OptimiserCache
             original = original.substring(8);
             originalWasExplain = true;
         }
-        Set<OptimiserCacheLine> lines = cacheLines.get(original);
+        Set<OptimiserCacheLine> lines = cacheLines.get(normalise(original));
         if (lines == null) {
             // Couldn't find anything.
             //LOG.debug("Complete cache miss");
@@ -130,4 +409,145 @@ public class OptimiserCache
         //LOG.debug("Cache hit");
         return (originalWasExplain ? "EXPLAIN " : "") + bestLine.getOptimised();
     }
+
+    /**
+     * Normalises the whitespace in an SQL string, so that queries that differ only in their
+     * layout share cache lines. Runs of whitespace outside quotes are replaced by a single space.
+     *
+     * @param sql the SQL string
+     * @return the normalised SQL string
+     */
+    static String normalise(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = true;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if ((quote == 0) && Character.isWhitespace(c)) {
+                if (!space) {
+                    sb.append(' ');
+                    space = true;
+                }
+            } else {
+                if (quote == 0) {
+                    if ((c == '\'') || (c == '"')) {
+                        quote = c;
+                    }
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                sb.append(c);
+                space = false;
+            }
+        }
+        int length = sb.length();
+        if ((length > 0) && (sb.charAt(length - 1) == ' ')) {
+            sb.setLength(length - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes cache lines for storage. The first line is the signature of the precomputed tables,
+     * and each following line is the limit, the original SQL and the optimised SQL, separated by
+     * tabs. Backslashes, tabs and newlines in the SQL are escaped.
+     *
+     * @param signature the signature of the precomputed tables
+     * @param lines the cache lines
+     * @return a String
+     */
+    static String encode(String signature, List<OptimiserCacheLine> lines) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(signature);
+        for (OptimiserCacheLine line : lines) {
+            sb.append('\n').append(line.getLimit()).append('\t');
+            escape(sb, line.getOriginal());
+            sb.append('\t');
+            escape(sb, line.getOptimised());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes cache lines written by encode.
+     *
+     * @param signature the signature of the current precomputed tables
+     * @param value the encoded String
+     * @return a List of cache lines, which is empty if the lines were made with a different set
+     * of precomputed tables
+     */
+    static List<OptimiserCacheLine> decode(String signature, String value) {
+        List<OptimiserCacheLine> retval = new ArrayList<OptimiserCacheLine>();
+        String[] rows = value.split("\n");
+        if (!rows[0].equals(signature)) {
+            return retval;
+        }
+        for (int i = 1; i < rows.length; i++) {
+            String[] parts = rows[i].split("\t");
+            if (parts.length == 3) {
+                retval.add(new OptimiserCacheLine(unescape(parts[2]), Integer.parseInt(parts[0]),
+                            unescape(parts[1])));
+            }
+        }
+        return retval;
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') == -1) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '\\') && (i + 1 < s.length())) {
+                c = s.charAt(++i);
+                sb.append(c == 't' ? '\t' : (c == 'n' ? '\n' : c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stores the caches that have new lines, every SAVE_PERIOD or when a cache has SAVE_INTERVAL
+     * new lines.
+     */
+    private static class Saver extends Thread
+    {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    synchronized (SAVER_LOCK) {
+                        SAVER_LOCK.wait(SAVE_PERIOD);
+                    }
+                } catch (InterruptedException e) {
+                    // Ignore interruption
+                }
+                for (OptimiserCache cache : getInstances()) {
+                    try {
+                        cache.save();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Could not store optimiser cache", e);
+                    }
+                }
+            }
+        }
+    }
 }
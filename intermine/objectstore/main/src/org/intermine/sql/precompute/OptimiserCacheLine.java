@@ -60,6 +60,15 @@ public class OptimiserCacheLine
         return optimised;
     }
 
+    /**
+     * Returns the limit that was used to generate the optimised query.
+     *
+     * @return the limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
     /**
      * Returns the original SQL string.
      *
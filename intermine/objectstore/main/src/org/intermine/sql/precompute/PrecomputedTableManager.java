@@ -17,10 +17,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +34,7 @@ import org.intermine.sql.Database;
 import org.intermine.sql.DatabaseUtil;
 import org.intermine.sql.query.AbstractTable;
 import org.intermine.sql.query.AbstractValue;
+import org.intermine.sql.query.Field;
 import org.intermine.sql.query.OrderDescending;
 import org.intermine.sql.query.Query;
 import org.intermine.sql.query.SelectValue;
@@ -52,9 +55,23 @@ public class PrecomputedTableManager
         = new HashMap<String, Map<String, PrecomputedTable>>();
     protected Database database = null;
     protected Connection conn = null;
+    protected String signature = null;
     protected static final String TABLE_INDEX = "precompute_index";
     protected static Map<Object, PrecomputedTableManager> instances
         = new HashMap<Object, PrecomputedTableManager>();
+    /** The largest number of changed objects that is applied to a precomputed table as a delta. */
+    public static final int MAX_DELTA_IDS = 10000;
+    private static final String REBUILD_SUFFIX = "_rebuild";
+
+    // Tables withdrawn from the optimiser while they are brought up to date
+    protected Set<PrecomputedTable> maintaining = new HashSet<PrecomputedTable>();
+    // The changes still to be applied to each withdrawn table, in the order they were made
+    protected Map<PrecomputedTable, Maintenance> pending
+        = new LinkedHashMap<PrecomputedTable, Maintenance>();
+    // The number of uncommitted changes to each withdrawn table, from withdrawAffected()
+    protected Map<PrecomputedTable, Integer> holds = new HashMap<PrecomputedTable, Integer>();
+    private PrecomputedTable inProgress = null;
+    private Thread maintainer = null;
 
     /**
      * Create a PrecomputedTableManager for a given Connection.
@@ -156,7 +173,8 @@ public class PrecomputedTableManager
      * @throws NullPointerException if pt is null
      * @throws IllegalArgumentException if the precomputed table already exists
      */
-    public void add(PrecomputedTable pt, Collection<String> indexes) throws SQLException {
+    public synchronized void add(PrecomputedTable pt, Collection<String> indexes)
+        throws SQLException {
         if (pt == null) {
             throw new NullPointerException("PrecomputedTable cannot be null");
         }
@@ -172,6 +190,7 @@ public class PrecomputedTableManager
             addTableToDatabase(pt, indexes, true);
             precomputedTables.add(pt);
             queryStrings.put(queryString, pt);
+            signature = null;
         }
     }
 
@@ -180,14 +199,21 @@ public class PrecomputedTableManager
      *
      * @throws SQLException if something goes wrong
      */
-    public void dropEverything() throws SQLException {
+    public synchronized void dropEverything() throws SQLException {
         Iterator<PrecomputedTable> iter = precomputedTables.iterator();
         while (iter.hasNext()) {
             PrecomputedTable pt = iter.next();
             deleteTableFromDatabase(pt.getName());
             iter.remove();
         }
+        for (PrecomputedTable pt : maintaining) {
+            deleteTableFromDatabase(pt.getName());
+        }
+        maintaining.clear();
+        pending.clear();
+        holds.clear();
         types.clear();
+        signature = null;
     }
 
     /**
@@ -197,26 +223,471 @@ public class PrecomputedTableManager
      * @param tablesAltered a Set of table names that may have alterations
      * @throws SQLException if something goes wrong
      */
-    public void dropAffected(Set<String> tablesAltered) throws SQLException {
+    public synchronized void dropAffected(Set<String> tablesAltered) throws SQLException {
         Iterator<PrecomputedTable> iter = precomputedTables.iterator();
         while (iter.hasNext()) {
             PrecomputedTable pt = iter.next();
-            Query q = pt.getQuery();
-            boolean drop = false;
-            for (AbstractTable table : q.getFrom()) {
-                if (table instanceof Table) {
-                    if (tablesAltered.contains(((Table) table).getName())) {
-                        drop = true;
-                        break;
-                    }
-                }
-            }
-            if (drop) {
+            if (isAffected(pt, tablesAltered)) {
                 deleteTableFromDatabase(pt.getName());
                 iter.remove();
                 String queryString = pt.getOriginalSql();
                 Map<String, PrecomputedTable> queryStrings = types.get(pt.getCategory());
                 queryStrings.remove(queryString);
+                signature = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the optimiser from using the precomputed tables that would be affected by changes in
+     * any table in a given list of table names, because those changes are about to be written to
+     * the database but have not yet been committed. The tables are also removed from the index
+     * table, so that they are not used after a restart. Each call must be followed by a call to
+     * maintainAffected() with the same tables and withdrawn set to true once the changes have been
+     * committed, before the tables can be used again.
+     *
+     * @param tablesAltered a Set of table names that are being altered
+     * @throws SQLException if something goes wrong
+     */
+    public synchronized void withdrawAffected(Set<String> tablesAltered) throws SQLException {
+        if (database == null) {
+            dropAffected(tablesAltered);
+            return;
+        }
+        for (PrecomputedTable pt : getAffected(tablesAltered)) {
+            withdraw(pt);
+            Integer count = holds.get(pt);
+            holds.put(pt, new Integer(count == null ? 1 : count.intValue() + 1));
+        }
+    }
+
+    /**
+     * Brings up to date all precomputed tables that would be affected by changes in any table in a
+     * given list of table names, which have been committed to the database. The tables are
+     * withdrawn from use straight away, and are updated by a background Thread, which makes them
+     * available again when it has finished. Where the ids of the objects that have changed in a
+     * table are known, and the precomputed table is a plain join that holds the id of the object
+     * from that table in each row, only the rows for those objects are replaced. Otherwise the
+     * whole precomputed table is rebuilt. A precomputed table that cannot be updated is dropped.
+     * If this manager was created for a single Connection, the affected tables are dropped
+     * instead.
+     *
+     * @param tablesAltered a Set of table names that have been altered
+     * @param idsAltered a Map from table name to the Set of ids of the objects that have been
+     * written to or deleted from that table. A table that has no entry, or a null entry, has
+     * changes that are not known
+     * @param withdrawn true if the changes were announced to withdrawAffected() before they were
+     * committed
+     * @throws SQLException if something goes wrong
+     */
+    public synchronized void maintainAffected(Set<String> tablesAltered,
+            Map<String, Set<Integer>> idsAltered, boolean withdrawn) throws SQLException {
+        if (database == null) {
+            dropAffected(tablesAltered);
+            return;
+        }
+        for (PrecomputedTable pt : getAffected(tablesAltered)) {
+            withdraw(pt);
+            if (withdrawn) {
+                Integer count = holds.remove(pt);
+                if ((count != null) && (count.intValue() > 1)) {
+                    holds.put(pt, new Integer(count.intValue() - 1));
+                }
+            }
+            Maintenance maintenance = pending.get(pt);
+            if (maintenance == null) {
+                maintenance = new Maintenance();
+                pending.put(pt, maintenance);
+            }
+            planMaintenance(pt, tablesAltered, idsAltered, maintenance);
+        }
+        if (!pending.isEmpty()) {
+            if (maintainer == null) {
+                maintainer = new Thread(new Maintainer(), "PrecomputedTableManager maintainer");
+                maintainer.setDaemon(true);
+                maintainer.start();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all the changes passed to maintainAffected() have been applied to the
+     * precomputed tables, and the tables are available again.
+     *
+     * @throws InterruptedException if the Thread is interrupted while waiting
+     */
+    public synchronized void waitForMaintenance() throws InterruptedException {
+        while (!(pending.isEmpty() && (inProgress == null))) {
+            wait();
+        }
+    }
+
+    private static boolean isAffected(PrecomputedTable pt, Set<String> tablesAltered) {
+        for (AbstractTable table : pt.getQuery().getFrom()) {
+            if (table instanceof Table) {
+                if (tablesAltered.contains(((Table) table).getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<PrecomputedTable> getAffected(Set<String> tablesAltered) {
+        List<PrecomputedTable> retval = new ArrayList<PrecomputedTable>();
+        for (PrecomputedTable pt : precomputedTables) {
+            if (isAffected(pt, tablesAltered)) {
+                retval.add(pt);
+            }
+        }
+        for (PrecomputedTable pt : maintaining) {
+            if (isAffected(pt, tablesAltered)) {
+                retval.add(pt);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Removes a precomputed table from the set used by the optimiser, without dropping it from
+     * the database, so that it can be brought up to date. Its entry in the index table is removed
+     * first, so that it is not used after a restart while it is out of date. If the process stops
+     * before the table is brought up to date, the table is left in the database unused.
+     *
+     * @param pt the PrecomputedTable
+     * @throws SQLException if the entry in the index table cannot be removed
+     */
+    private void withdraw(PrecomputedTable pt) throws SQLException {
+        if (precomputedTables.contains(pt)) {
+            unregister(pt);
+            precomputedTables.remove(pt);
+            Map<String, PrecomputedTable> queryStrings = types.get(pt.getCategory());
+            queryStrings.remove(pt.getOriginalSql());
+            maintaining.add(pt);
+            signature = null;
+            OptimiserCache.getInstance(database).flush();
+        }
+    }
+
+    /**
+     * Removes the entry for a precomputed table from the index table, without dropping it.
+     *
+     * @param pt the PrecomputedTable
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    private void unregister(PrecomputedTable pt) throws SQLException {
+        Connection con = database.getConnection();
+        try {
+            con.setAutoCommit(true);
+            PreparedStatement pstmt = con.prepareStatement("DELETE FROM " + TABLE_INDEX
+                    + " WHERE name = ?");
+            pstmt.setString(1, pt.getName());
+            pstmt.execute();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Adds the entry for a precomputed table back to the index table.
+     *
+     * @param pt the PrecomputedTable
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    private void register(PrecomputedTable pt) throws SQLException {
+        Connection con = database.getConnection();
+        try {
+            con.setAutoCommit(true);
+            PreparedStatement pstmt = con.prepareStatement("INSERT INTO " + TABLE_INDEX
+                    + " VALUES(?,?,?)");
+            pstmt.setString(1, pt.getName());
+            pstmt.setString(2, pt.getOriginalSql());
+            pstmt.setString(3, pt.getCategory());
+            pstmt.execute();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Works out the changes that bring a precomputed table up to date, and adds them to a
+     * Maintenance. A row of the table can only be replaced on its own if the query is a plain
+     * join with no aggregation, so that each row comes from one row of each table, and if the
+     * row contains the id of the object from each table that has changed.
+     *
+     * @param pt the PrecomputedTable
+     * @param tablesAltered a Set of table names that have been altered
+     * @param idsAltered a Map from table name to the Set of ids that have changed
+     * @param maintenance the Maintenance to add to
+     */
+    protected static void planMaintenance(PrecomputedTable pt, Set<String> tablesAltered,
+            Map<String, Set<Integer>> idsAltered, Maintenance maintenance) {
+        Query q = pt.getQuery();
+        boolean plain = (q.getUnion().size() == 1) && (!q.isDistinct())
+            && q.getGroupBy().isEmpty() && q.getHaving().isEmpty() && (q.getLimit() == 0)
+            && (q.getOffset() == 0);
+        for (SelectValue sv : q.getSelect()) {
+            plain = plain && (!sv.getValue().isAggregate());
+        }
+        for (AbstractTable table : q.getFrom()) {
+            if ((table instanceof Table) && tablesAltered.contains(((Table) table).getName())) {
+                Set<Integer> ids = (idsAltered == null ? null
+                        : idsAltered.get(((Table) table).getName()));
+                String column = null;
+                for (SelectValue sv : q.getSelect()) {
+                    AbstractValue value = sv.getValue();
+                    if ((value instanceof Field) && table.equals(((Field) value).getTable())
+                            && "id".equalsIgnoreCase(((Field) value).getName())) {
+                        column = sv.getAlias();
+                    }
+                }
+                if (plain && (ids != null) && (column != null)) {
+                    maintenance.addIds(column, ids);
+                } else {
+                    maintenance.rebuild();
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a Maintenance to a precomputed table in the database.
+     *
+     * @param pt the PrecomputedTable
+     * @param maintenance the changes to apply
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    protected void applyMaintenance(PrecomputedTable pt,
+            Maintenance maintenance) throws SQLException {
+        long start = System.currentTimeMillis();
+        Connection con = database.getConnection();
+        try {
+            if (maintenance.isRebuild()) {
+                rebuild(pt, con);
+            } else {
+                applyDelta(pt, maintenance, con);
+            }
+        } finally {
+            con.close();
+        }
+        LOG.info((maintenance.isRebuild() ? "Rebuilt" : "Updated " + maintenance.getIdCount()
+                    + " objects in") + " precomputed table " + pt.getName() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Replaces the rows of a precomputed table for the objects that have changed, in one
+     * transaction.
+     *
+     * @param pt the PrecomputedTable
+     * @param maintenance the changes to apply
+     * @param con a Connection to use
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    private void applyDelta(PrecomputedTable pt, Maintenance maintenance,
+            Connection con) throws SQLException {
+        StringBuilder where = new StringBuilder();
+        for (Map.Entry<String, Set<Integer>> entry : maintenance.getIds().entrySet()) {
+            if (where.length() > 0) {
+                where.append(" OR ");
+            }
+            where.append(entry.getKey()).append(" IN (");
+            boolean needComma = false;
+            for (Integer id : entry.getValue()) {
+                if (needComma) {
+                    where.append(", ");
+                }
+                needComma = true;
+                where.append(id);
+            }
+            where.append(")");
+        }
+        con.setAutoCommit(true);
+        String sql = getOptimisedSQLString(pt, con);
+        con.setAutoCommit(false);
+        try {
+            Statement stmt = con.createStatement();
+            stmt.execute("DELETE FROM " + pt.getName() + " WHERE " + where);
+            stmt.execute("INSERT INTO " + pt.getName() + " SELECT * FROM (" + sql
+                    + ") AS delta WHERE " + where);
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Rebuilds a precomputed table from scratch. The rows are written to a new table, which is
+     * given the same indexes as the old one and then swapped in for it, so that the old table is
+     * only locked for as long as it takes to drop it and rename the new one, rather than for the
+     * whole rebuild.
+     *
+     * @param pt the PrecomputedTable
+     * @param con a Connection to use
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    private void rebuild(PrecomputedTable pt, Connection con) throws SQLException {
+        String name = pt.getName();
+        String newName = name + REBUILD_SUFFIX;
+        con.setAutoCommit(true);
+        Statement stmt = con.createStatement();
+        // Left behind if an earlier rebuild was interrupted
+        stmt.execute("DROP TABLE IF EXISTS " + newName);
+        Map<String, String> indexes = new LinkedHashMap<String, String>();
+        PreparedStatement pstmt = con.prepareStatement("SELECT indexname, indexdef FROM pg_indexes"
+                + " WHERE tablename = ? AND schemaname = current_schema()");
+        pstmt.setString(1, name.toLowerCase());
+        ResultSet res = pstmt.executeQuery();
+        while (res.next()) {
+            indexes.put(res.getString(1), res.getString(2));
+        }
+        boolean swapped = false;
+        try {
+            stmt.execute("CREATE TABLE " + newName + " AS " + getOptimisedSQLString(pt, con));
+            int indexNo = 0;
+            for (String definition : indexes.values()) {
+                stmt.execute(copyIndexDefinition(definition, newName + "_" + (indexNo++),
+                            newName));
+            }
+            stmt.execute("ANALYSE " + newName);
+            con.setAutoCommit(false);
+            stmt.execute("DROP TABLE " + name);
+            stmt.execute("ALTER TABLE " + newName + " RENAME TO " + name);
+            indexNo = 0;
+            for (String indexName : indexes.keySet()) {
+                stmt.execute("ALTER INDEX " + newName + "_" + (indexNo++) + " RENAME TO \""
+                        + indexName + "\"");
+            }
+            con.commit();
+            swapped = true;
+        } finally {
+            if (!swapped) {
+                try {
+                    if (!con.getAutoCommit()) {
+                        con.rollback();
+                        con.setAutoCommit(true);
+                    }
+                    stmt.execute("DROP TABLE IF EXISTS " + newName);
+                } catch (SQLException e) {
+                    LOG.warn("Could not drop partly rebuilt precomputed table " + newName, e);
+                }
+            }
+            con.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Returns the SQL that produces the rows of a precomputed table, rewritten by the optimiser to
+     * use other precomputed tables in the same way as when the table was first created.
+     *
+     * @param pt the PrecomputedTable
+     * @param con a Connection to use
+     * @return an SQL String
+     * @throws SQLException if an error occurs in the underlying database
+     */
+    private String getOptimisedSQLString(PrecomputedTable pt, Connection con)
+        throws SQLException {
+        BestQuery bq = QueryOptimiser.optimise(pt.getSQLString(), null, this, con,
+                QueryOptimiserContext.DEFAULT);
+        return bq.getBestQueryString();
+    }
+
+    /**
+     * Turns the definition of an index, as given by pg_indexes, into one for an index with a
+     * different name on a different table.
+     *
+     * @param definition a CREATE INDEX statement
+     * @param indexName the name of the new index
+     * @param tableName the name of the table to create the new index on
+     * @return a CREATE INDEX statement
+     * @throws SQLException if the definition is not understood
+     */
+    protected static String copyIndexDefinition(String definition, String indexName,
+            String tableName) throws SQLException {
+        int indexPos = definition.indexOf(" INDEX ");
+        int onPos = definition.indexOf(" ON ");
+        int tablePos = (onPos < 0 ? -1 : definition.indexOf(' ', onPos + 4));
+        if ((indexPos < 0) || (onPos < indexPos) || (tablePos < 0)) {
+            throw new SQLException("Could not understand index definition " + definition);
+        }
+        return definition.substring(0, indexPos + 7) + indexName + " ON " + tableName
+            + definition.substring(tablePos);
+    }
+
+    /**
+     * Takes the next precomputed table to be brought up to date, with the changes to apply.
+     *
+     * @return a Map.Entry from PrecomputedTable to Maintenance
+     * @throws InterruptedException if the Thread is interrupted while waiting
+     */
+    private synchronized Map.Entry<PrecomputedTable, Maintenance> nextMaintenance()
+        throws InterruptedException {
+        inProgress = null;
+        notifyAll();
+        while (pending.isEmpty()) {
+            wait();
+        }
+        Iterator<Map.Entry<PrecomputedTable, Maintenance>> iter = pending.entrySet().iterator();
+        Map.Entry<PrecomputedTable, Maintenance> entry = iter.next();
+        iter.remove();
+        inProgress = entry.getKey();
+        return entry;
+    }
+
+    /**
+     * Makes a precomputed table available again once it has been brought up to date, unless more
+     * changes have been made to it in the meantime. If it could not be brought up to date, it is
+     * dropped.
+     *
+     * @param pt the PrecomputedTable
+     * @param success false if the changes could not be applied
+     */
+    private synchronized void finishMaintenance(PrecomputedTable pt, boolean success) {
+        if (!maintaining.contains(pt)) {
+            // Dropped while it was being updated
+            return;
+        }
+        if (!success) {
+            pending.remove(pt);
+            holds.remove(pt);
+            maintaining.remove(pt);
+            try {
+                deleteTableFromDatabase(pt.getName());
+            } catch (SQLException e) {
+                LOG.error("Could not drop precomputed table " + pt.getName(), e);
+            }
+        } else if (!(pending.containsKey(pt) || holds.containsKey(pt))) {
+            maintaining.remove(pt);
+            Map<String, PrecomputedTable> queryStrings = lookupCategory(pt.getCategory());
+            if (queryStrings.containsKey(pt.getOriginalSql())) {
+                // The same query has been precomputed again while this table was withdrawn
+                try {
+                    deleteTableFromDatabase(pt.getName());
+                } catch (SQLException e) {
+                    LOG.error("Could not drop precomputed table " + pt.getName(), e);
+                }
+            } else {
+                // Only now that the table is up to date is it recorded as usable after a restart
+                try {
+                    register(pt);
+                } catch (SQLException e) {
+                    LOG.error("Could not record precomputed table " + pt.getName()
+                            + " as up to date - dropping it", e);
+                    try {
+                        deleteTableFromDatabase(pt.getName());
+                    } catch (SQLException e2) {
+                        LOG.error("Could not drop precomputed table " + pt.getName(), e2);
+                    }
+                    return;
+                }
+                precomputedTables.add(pt);
+                queryStrings.put(pt.getOriginalSql(), pt);
+                signature = null;
+                OptimiserCache.getInstance(database).flush();
             }
         }
     }
@@ -229,7 +700,7 @@ public class PrecomputedTableManager
      * @throws NullPointerException if pt is null
      * @throws IllegalArgumentException if pt is not a valid table
      */
-    public void delete(PrecomputedTable pt) throws SQLException {
+    public synchronized void delete(PrecomputedTable pt) throws SQLException {
         if (pt == null) {
             throw new NullPointerException("PrecomputedTable cannot be null");
         }
@@ -242,15 +713,45 @@ public class PrecomputedTableManager
         String queryString = pt.getOriginalSql();
         Map<String, PrecomputedTable> queryStrings = types.get(pt.getCategory());
         queryStrings.remove(queryString);
+        signature = null;
     }
 
     /**
      * Get all the precomputed tables in the underlying database.
      *
-     * @return a Set of PrecomputedTables present in the database
+     * @return a Set of PrecomputedTables present in the database, which is a copy so that it may
+     * be read while other threads add or drop tables
      */
-    public Set<PrecomputedTable> getPrecomputedTables() {
-        return precomputedTables;
+    public synchronized Set<PrecomputedTable> getPrecomputedTables() {
+        return new TreeSet<PrecomputedTable>(precomputedTables);
+    }
+
+    /**
+     * Returns a String that identifies the current set of precomputed tables. It changes whenever
+     * a table is added or deleted, so it can be used to tell whether optimiser decisions made
+     * with an earlier set of tables are still valid.
+     *
+     * @return a hex MD5 digest of the names of the precomputed tables
+     */
+    public synchronized String getSignature() {
+        if (signature == null) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            for (PrecomputedTable pt : precomputedTables) {
+                md.update(pt.getName().getBytes());
+                md.update((byte) ' ');
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+            }
+            signature = sb.toString();
+        }
+        return signature;
     }
 
     /**
@@ -576,4 +1077,102 @@ public class PrecomputedTableManager
         }
         return queryStrings;
     }
+
+    /**
+     * The changes to be applied to a precomputed table - either the ids of the objects whose rows
+     * must be replaced, for each column of the table that holds ids, or a complete rebuild.
+     */
+    protected static class Maintenance
+    {
+        private Map<String, Set<Integer>> ids = new HashMap<String, Set<Integer>>();
+
+        /**
+         * Adds some objects whose rows must be replaced.
+         *
+         * @param column the column of the precomputed table that holds the ids
+         * @param changed the ids of the objects
+         */
+        public void addIds(String column, Set<Integer> changed) {
+            if (ids != null) {
+                Set<Integer> existing = ids.get(column);
+                if (existing == null) {
+                    existing = new TreeSet<Integer>();
+                    ids.put(column, existing);
+                }
+                existing.addAll(changed);
+                if (existing.size() > MAX_DELTA_IDS) {
+                    ids = null;
+                }
+            }
+        }
+
+        /**
+         * Makes this Maintenance rebuild the whole table.
+         */
+        public void rebuild() {
+            ids = null;
+        }
+
+        /**
+         * Returns whether the whole table must be rebuilt.
+         *
+         * @return a boolean
+         */
+        public boolean isRebuild() {
+            return ids == null;
+        }
+
+        /**
+         * Returns the objects whose rows must be replaced, if the table is not to be rebuilt.
+         *
+         * @return a Map from column name to Set of ids
+         */
+        public Map<String, Set<Integer>> getIds() {
+            return ids;
+        }
+
+        /**
+         * Returns the number of objects whose rows must be replaced.
+         *
+         * @return an int
+         */
+        public int getIdCount() {
+            int retval = 0;
+            if (ids != null) {
+                for (Set<Integer> columnIds : ids.values()) {
+                    retval += columnIds.size();
+                }
+            }
+            return retval;
+        }
+    }
+
+    /**
+     * The background Thread that brings withdrawn precomputed tables up to date, one at a time.
+     */
+    private class Maintainer implements Runnable
+    {
+        public void run() {
+            try {
+                while (true) {
+                    Map.Entry<PrecomputedTable, Maintenance> entry = nextMaintenance();
+                    PrecomputedTable pt = entry.getKey();
+                    boolean success = false;
+                    try {
+                        applyMaintenance(pt, entry.getValue());
+                        success = true;
+                    } catch (SQLException e) {
+                        LOG.error("Could not bring precomputed table " + pt.getName()
+                                + " up to date - dropping it", e);
+                    } catch (RuntimeException e) {
+                        LOG.error("Could not bring precomputed table " + pt.getName()
+                                + " up to date - dropping it", e);
+                    }
+                    finishMaintenance(pt, success);
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Precomputed table maintainer interrupted", e);
+            }
+        }
+    }
 }
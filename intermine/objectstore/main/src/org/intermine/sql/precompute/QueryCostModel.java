@@ -0,0 +1,154 @@
+package org.intermine.sql.precompute;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.intermine.sql.Database;
+import org.intermine.sql.query.AbstractTable;
+import org.intermine.sql.query.Query;
+import org.intermine.sql.query.SubQuery;
+import org.intermine.sql.query.Table;
+
+/**
+ * A cheap in-memory cost model for candidate queries, which lets the optimiser order and prune
+ * its candidates before asking the database to explain them. The estimated cost of a query is
+ * the total number of rows in the tables it reads, using the row counts that the database keeps
+ * in pg_class. The row counts are loaded once for each Database and refreshed occasionally.
+ *
+ * @author Matthew Wakeling
+ */
+public class QueryCostModel
+{
+    private static final Logger LOG = Logger.getLogger(QueryCostModel.class);
+
+    /** Time in milliseconds after which the row counts are reloaded. */
+    public static final long EXPIRY = 600000;
+    /** Minimum time in milliseconds between reloads caused by an unknown table. */
+    public static final long MIN_RELOAD_INTERVAL = 60000;
+
+    private static Map<Database, QueryCostModel> models = new HashMap<Database, QueryCostModel>();
+
+    /**
+     * Returns the QueryCostModel for a database.
+     *
+     * @param db a Database
+     * @return a QueryCostModel
+     */
+    public static synchronized QueryCostModel getInstance(Database db) {
+        QueryCostModel retval = models.get(db);
+        if (retval == null) {
+            retval = new QueryCostModel();
+            models.put(db, retval);
+        }
+        return retval;
+    }
+
+    protected Map<String, Long> tableSizes = null;
+    protected long loaded = 0;
+
+    /**
+     * Constructs an empty QueryCostModel, which loads row counts when it is first used.
+     */
+    public QueryCostModel() {
+        // empty
+    }
+
+    /**
+     * Constructs a QueryCostModel with a fixed set of row counts, for testing purposes.
+     *
+     * @param tableSizes a Map from lower-case table name to number of rows
+     */
+    public QueryCostModel(Map<String, Long> tableSizes) {
+        this.tableSizes = new HashMap<String, Long>(tableSizes);
+        this.loaded = Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the estimated cost of a query, which is the total number of rows in the tables it
+     * reads from, including those of subqueries in the FROM list.
+     *
+     * @param q the Query
+     * @param con a Connection to use to load the row counts, or null to use only those already
+     * loaded
+     * @return the estimated cost, or -1 if the query reads a table that is not known
+     * @throws SQLException if an error occurs loading the row counts
+     */
+    public long estimate(Query q, Connection con) throws SQLException {
+        long retval = 0;
+        for (AbstractTable table : q.getFrom()) {
+            long rows;
+            if (table instanceof Table) {
+                rows = getRows(((Table) table).getName().toLowerCase(), con);
+            } else if (table instanceof SubQuery) {
+                rows = estimate(((SubQuery) table).getQuery(), con);
+            } else {
+                rows = -1;
+            }
+            if (rows < 0) {
+                return -1;
+            }
+            retval += rows;
+        }
+        return retval;
+    }
+
+    /**
+     * Discards the row counts, so that they will be reloaded when next needed.
+     */
+    public synchronized void flush() {
+        tableSizes = null;
+        loaded = 0;
+    }
+
+    private synchronized long getRows(String table, Connection con) throws SQLException {
+        long now = System.currentTimeMillis();
+        if ((con != null) && ((tableSizes == null) || (now - loaded > EXPIRY))) {
+            load(con);
+        }
+        if (tableSizes == null) {
+            return -1;
+        }
+        Long retval = tableSizes.get(table);
+        if ((retval == null) && (con != null) && (now - loaded > MIN_RELOAD_INTERVAL)) {
+            // Probably a new precomputed table
+            load(con);
+            retval = tableSizes.get(table);
+        }
+        return (retval == null ? -1 : retval.longValue());
+    }
+
+    private void load(Connection con) throws SQLException {
+        long start = System.currentTimeMillis();
+        Map<String, Long> newSizes = new HashMap<String, Long>();
+        Statement s = con.createStatement();
+        try {
+            ResultSet r = s.executeQuery("SELECT c.relname, c.reltuples FROM pg_class c,"
+                    + " pg_namespace n WHERE c.relnamespace = n.oid AND c.relkind = 'r'"
+                    + " AND n.nspname = current_schema()");
+            while (r.next()) {
+                newSizes.put(r.getString(1), new Long((long) r.getDouble(2)));
+            }
+        } finally {
+            s.close();
+        }
+        tableSizes = newSizes;
+        loaded = System.currentTimeMillis();
+        LOG.debug("Loaded row counts for " + newSizes.size() + " tables in "
+                + (loaded - start) + " ms");
+    }
+}
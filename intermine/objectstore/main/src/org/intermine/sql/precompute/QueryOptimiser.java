@@ -23,9 +23,11 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.intermine.metadata.StringUtil;
@@ -50,6 +52,7 @@ import org.intermine.sql.query.Table;
 import org.intermine.util.ConsistentSet;
 import org.intermine.util.IdentityMap;
 import org.intermine.util.MappingUtil;
+import org.intermine.util.PropertiesUtil;
 
 /**
  * A static class providing the code to optimise a query, given a database (presumably with a table
@@ -67,7 +70,103 @@ public final class QueryOptimiser
     private static final int REPORT_INTERVAL = 10000;
 
     private static final String ALIAS_PREFIX = "P";
+    private static final int DEFAULT_EXPLAIN_THREADS = 1;
+    // Tables that only exist in the transaction of the connection running the query - temporary
+    // bag tables, named by ObjectStoreInterMineImpl.createTempBagTable(), and goFaster tables
+    private static final Pattern TEMPORARY_TABLE = Pattern.compile(
+            "\\b(\\w+_bag_\\d+|temporary_precomp_\\d+)\\b");
+    private static final long DEFAULT_SLOW_OPTIMISE_TIME = 1000;
     private static int callCount = 0;
+    private static int cacheHitCount = 0;
+    private static long totalOptimiseTime = 0;
+    private static int explainThreads = DEFAULT_EXPLAIN_THREADS;
+    private static long slowOptimiseTime = DEFAULT_SLOW_OPTIMISE_TIME;
+
+    static {
+        Properties props = PropertiesUtil.getPropertiesStartingWith("os.query");
+        props = PropertiesUtil.stripStart("os.query", props);
+        if (props.get("optimiser-explain-threads") != null) {
+            explainThreads = Integer.parseInt((String) props.get("optimiser-explain-threads"));
+        }
+        if (props.get("optimiser-slow-time") != null) {
+            slowOptimiseTime = Long.parseLong((String) props.get("optimiser-slow-time"));
+        }
+    }
+
+    /**
+     * Sets the maximum number of candidate queries that the optimiser will explain at once for a
+     * single query, each on its own database connection. A value of 1, the default, explains them
+     * one after another on the connection of the query. Queries that use temporary tables are
+     * always explained on the connection of the query, as other connections cannot see the
+     * tables.
+     *
+     * @param threads the number of queries to explain at once
+     */
+    public static void setExplainThreads(int threads) {
+        explainThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns true if a query, or a candidate made from it with the given precomputed tables,
+     * may read tables that other database connections cannot see.
+     *
+     * @param query the query String
+     * @param precomputedTables the PrecomputedTables that candidates may use
+     * @return a boolean
+     */
+    protected static boolean usesTemporaryTables(String query,
+            Set<PrecomputedTable> precomputedTables) {
+        for (PrecomputedTable pt : precomputedTables) {
+            if ("goFaster".equals(pt.getCategory())
+                    || TEMPORARY_TABLE.matcher(pt.getName()).matches()) {
+                return true;
+            }
+        }
+        return TEMPORARY_TABLE.matcher(query).find();
+    }
+
+    /**
+     * Returns the number of times the optimiser has been called.
+     *
+     * @return an int
+     */
+    public static synchronized int getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * Returns the number of times the optimiser found the query in its cache.
+     *
+     * @return an int
+     */
+    public static synchronized int getCacheHitCount() {
+        return cacheHitCount;
+    }
+
+    /**
+     * Returns the total time the optimiser has spent optimising queries.
+     *
+     * @return a time in milliseconds
+     */
+    public static synchronized long getTotalOptimiseTime() {
+        return totalOptimiseTime;
+    }
+
+    private static synchronized void recordOptimisation(long time, boolean cacheHit) {
+        totalOptimiseTime += time;
+        if (cacheHit) {
+            cacheHitCount++;
+        }
+    }
+
+    private static synchronized void countCall() {
+        callCount++;
+        if (callCount % REPORT_INTERVAL == 0) {
+            LOG.info("Optimiser called " + callCount + " times, " + cacheHitCount
+                    + " cache hits, average optimisation time "
+                    + (totalOptimiseTime / callCount) + " ms");
+        }
+    }
 
     /**
      * Runs the optimiser through the query represented in the String, given the database. If
@@ -159,6 +258,7 @@ public final class QueryOptimiser
         }
         Set<PrecomputedTable> precomputedTables = ptm.getPrecomputedTables();
         OptimiserCache cache = OptimiserCache.getInstance(database);
+        cache.validate(ptm.getSignature());
         return optimiseWith(query, originalQuery, database, explainConnection, context,
                             precomputedTables, cache);
     }
@@ -182,10 +282,7 @@ public final class QueryOptimiser
             Set<PrecomputedTable> precomputedTables, OptimiserCache cache) throws SQLException {
         Connection explainConnection = connection;
         Query optimiseQuery = originalQuery;
-        callCount++;
-        if (callCount % REPORT_INTERVAL == 0) {
-            LOG.info("Optimiser called " + callCount + " times");
-        }
+        countCall();
         long start = new Date().getTime();
         long parseTime = 0;
         // If we want to do any query caching, here is where we should do it.
@@ -196,8 +293,8 @@ public final class QueryOptimiser
         if (!context.isVerbose()) {
             cachedQuery = cache.lookup(limitOffsetQuery.getQuery(), limitOffsetQuery.getLimit());
         }
-        // TODO: fix so that the OptimiserCache is updated when precomputed tables are deleted
         if (cachedQuery != null) {
+            recordOptimisation((new Date()).getTime() - start, true);
             LOG.debug("Optimising query took " + ((new Date()).getTime() - start)
                     + " ms - cache hit: " + query);
             return new BestQueryFallback(null, limitOffsetQuery.reconstruct(cachedQuery));
@@ -217,7 +314,9 @@ public final class QueryOptimiser
             } else if (context.getMode() == QueryOptimiserContext.MODE_VERBOSE_SUMMARY) {
                 bestQuery = new BestQueryLogger(false);
             } else {
-                bestQuery = new BestQueryExplainer(explainConnection, context.getTimeLimit());
+                bestQuery = new BestQueryExplainer(explainConnection, database,
+                        context.getTimeLimit(), (usesTemporaryTables(query, precomputedTables)
+                            ? 1 : explainThreads));
             }
             String optimisedQuery = null;
             int expectedTime = 0;
@@ -267,10 +366,26 @@ public final class QueryOptimiser
             LOG.debug("New cache line produced - limit = " + limitOffsetQuery.getLimit());
             cache.addCacheLine(limitOffsetQuery.getQuery(), limitOffsetOptimisedQuery.getQuery(),
                     limitOffsetQuery.getLimit());
-            LOG.debug("Optimising " + (expectedTime == 0 ? "" : expectedTime + " ms ")
-                    + "query took " + ((new Date()).getTime() - start)
+            long optimiseTime = (new Date()).getTime() - start;
+            recordOptimisation(optimiseTime, false);
+            if ((optimiseTime >= slowOptimiseTime) || LOG.isDebugEnabled()) {
+                String message = "Optimising " + (expectedTime == 0 ? "" : expectedTime + " ms ")
+                    + "query took " + optimiseTime
                     + (parseTime == 0 ? " ms without parsing " : " ms including "
-                        + (parseTime - start) + " ms for parse ") + "- cache miss: " + query);
+                        + (parseTime - start) + " ms for parse ");
+                if (bestQuery instanceof BestQueryExplainer) {
+                    BestQueryExplainer bqe = (BestQueryExplainer) bestQuery;
+                    message += "(" + bqe.getCandidateCount() + " candidates, "
+                        + bqe.getExplainCount() + " explained in " + bqe.getExplainTime()
+                        + " ms, " + bqe.getPrunedCount() + " pruned) ";
+                }
+                message += "- cache miss: " + query;
+                if (optimiseTime >= slowOptimiseTime) {
+                    LOG.info(message);
+                } else {
+                    LOG.debug(message);
+                }
+            }
             return bestQuery;
         } catch (RuntimeException e) {
             if (context.isVerbose()) {
@@ -15,11 +15,14 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
+import org.intermine.sql.Database;
 
 /**
  * A class representing a collection of writes to an SQL database. This class is intended for the
@@ -35,18 +38,39 @@ import org.apache.log4j.Logger;
 public class Batch
 {
     private static final Logger LOG = Logger.getLogger(Batch.class);
-    private static final int OPP_BATCH_SIZE = 10000000;
+    private static final int MIN_BATCH_SIZE = 1000000;
+    private static final int INITIAL_BATCH_SIZE = 10000000;
     private static final int MAX_BATCH_SIZE = 100000000;
+    // Opportunistic flushes happen every time this fraction of the batch size has been added
+    private static final int OPP_BATCH_FRACTION = 10;
+    private static final int DEFAULT_TARGET_FLUSH_TIME = 2000;
 
     private Map<String, Table> tables = new HashMap<String, Table>();
     private BatchWriter batchWriter;
     private int batchSize = 0;
     private int lastCheckBatchSize = 0;
+    private volatile int flushBatchSize = INITIAL_BATCH_SIZE;
+    private volatile int targetFlushTime = DEFAULT_TARGET_FLUSH_TIME;
+    private double bytesPerMilli = -1.0;
+    private Map<String, TableStatistics> tableStatistics = new HashMap<String, TableStatistics>();
 
     private List<FlushJob> flushJobs = Collections.emptyList();
+    // The rows and bytes of each table in flushJobs
+    private Map<String, long[]> flushSizes = null;
+    private volatile int inFlightSize = 0;
     private SQLException problem = null;
+    // A problem that leaves the database inconsistent, which stops the Batch being used again
+    private PartialCommitException fatalProblem = null;
 
     private volatile int lastDutyCycle = 100;
+    private volatile long timeSpentFlushing = 0;
+    private volatile long timeSpentWaiting = 0;
+    private volatile long timeSpentBackedUp = 0;
+    private volatile int flushCount = 0;
+    private Database parallelDatabase = null;
+    private int parallelConnections = 1;
+    // Tables that have had rows deleted since the last commit
+    private Set<String> tablesDeletedFrom = new HashSet<String>();
     private boolean closed = false;
     private static final List<FlushJob> CLOSE_DOWN_COMMAND = new ArrayList<FlushJob>();
     private static int batchId = 0;
@@ -185,9 +209,10 @@ public class Batch
     }
 
     private void maybeBackgroundFlush(Connection con) throws SQLException {
-        if (batchSize > MAX_BATCH_SIZE) {
+        if (batchSize > flushBatchSize) {
             backgroundFlush(con, null);
-        } else if (batchSize - lastCheckBatchSize > OPP_BATCH_SIZE) {
+        } else if ((parallelDatabase == null)
+                && (batchSize - lastCheckBatchSize > flushBatchSize / OPP_BATCH_FRACTION)) {
             if (isFreeConnection()) {
                 backgroundFlush(con, null);
             } else {
@@ -221,7 +246,7 @@ public class Batch
         //LOG.error("Flushed", e);
         backgroundFlush(con, filter);
         List<FlushJob> empty = Collections.emptyList();
-        putFlushJobs(empty);
+        putFlushJobs(empty, null, 0);
     }
 
     /**
@@ -270,6 +295,22 @@ public class Batch
             throw new SQLException("Batch is closed");
         }
         //long start = System.currentTimeMillis();
+        Map<String, long[]> sizes = new HashMap<String, long[]>();
+        for (Map.Entry<String, Table> tableEntry : tables.entrySet()) {
+            if ((filter == null) || filter.contains(tableEntry.getKey())) {
+                Table table = tableEntry.getValue();
+                if (table.getRowCount() > 0) {
+                    sizes.put(tableEntry.getKey(), new long[] {table.getRowCount(),
+                        table.getSize()});
+                }
+                Set<?> toDelete = (table instanceof TableBatch
+                        ? ((TableBatch) table).getIdsToDelete()
+                        : ((IndirectionTableBatch) table).getRowsToDelete());
+                if ((toDelete != null) && (!toDelete.isEmpty())) {
+                    tablesDeletedFrom.add(tableEntry.getKey());
+                }
+            }
+        }
         List<FlushJob> jobs = batchWriter.write(con, tables, filter);
         int oldBatchSize = batchSize;
         batchSize = 0;
@@ -278,12 +319,15 @@ public class Batch
             batchSize += table.getSize();
         }
         lastCheckBatchSize = batchSize;
-        if (needBatchCommit) {
+        if (needBatchCommit && (parallelDatabase != null)) {
+            jobs = parallelise(con, jobs);
+            tablesDeletedFrom.clear();
+        } else if (needBatchCommit) {
             jobs.add(new FlushJobBatchCommit(con));
             needBatchCommit = false;
         }
         //long middle = System.currentTimeMillis();
-        putFlushJobs(jobs);
+        putFlushJobs(jobs, sizes, oldBatchSize - batchSize);
         //long end = System.currentTimeMillis();
         //if ((end > middle + 10) && (lastDutyCycle < 75)) {
         //    LOG.info("Enqueued " + (oldBatchSize - batchSize) + " of " + oldBatchSize
@@ -292,12 +336,35 @@ public class Batch
         //    LOG.debug("Enqueued " + (oldBatchSize - batchSize) + " of " + oldBatchSize
         //            + " byte batch - took " + (middle - start) + " + " + (end - middle) + " ms");
         //}
-        if (oldBatchSize - batchSize > OPP_BATCH_SIZE / 2) {
+        if (oldBatchSize - batchSize > INITIAL_BATCH_SIZE / 2) {
             LOG.info("Enqueued " + (oldBatchSize - batchSize) + " of " + oldBatchSize
                     + " byte batch.");
         }
     }
 
+    /**
+     * Moves the COPY jobs for tables that have had no rows deleted in the current transaction
+     * from a List of flush jobs into a FlushJobParallelCopyImpl, which is added at the end to
+     * write them and commit.
+     */
+    private List<FlushJob> parallelise(Connection con, List<FlushJob> jobs) {
+        List<FlushJob> retval = new ArrayList<FlushJob>();
+        List<FlushJobPostgresCopyImpl> copies = new ArrayList<FlushJobPostgresCopyImpl>();
+        for (FlushJob job : jobs) {
+            if ((job instanceof FlushJobPostgresCopyImpl)
+                    && (((FlushJobPostgresCopyImpl) job).getTableName() != null)
+                    && (!tablesDeletedFrom.contains(((FlushJobPostgresCopyImpl) job)
+                            .getTableName()))) {
+                copies.add((FlushJobPostgresCopyImpl) job);
+            } else {
+                retval.add(job);
+            }
+        }
+        retval.add(new FlushJobParallelCopyImpl(con, parallelDatabase, parallelConnections,
+                    copies));
+        return retval;
+    }
+
     /**
      * Closes this BatchWriter. This method guarantees that the Connection is no longer in use by
      * the batch, and the background writer Thread will die soon, even if it does not return
@@ -315,7 +382,7 @@ public class Batch
         } catch (SQLException e) {
         }
         closed = true;
-        putFlushJobs(CLOSE_DOWN_COMMAND);
+        putFlushJobs(CLOSE_DOWN_COMMAND, null, 0);
     }
 
     /**
@@ -335,10 +402,37 @@ public class Batch
         }
         batchSize = 0;
         lastCheckBatchSize = 0;
+        tablesDeletedFrom.clear();
         waitForFreeConnection();
         clearProblem();
     }
 
+    /**
+     * Makes batchCommit() write the COPY jobs of tables that have had no rows deleted since the
+     * last commit over several extra Connections at once, which are committed with the main
+     * Connection by a two-phase commit, or not used if the database does not allow prepared
+     * transactions. Only commit boundaries are written in parallel, because the extra
+     * Connections cannot see the uncommitted data of the main transaction. To give them more to
+     * do, opportunistic flushes are switched off, so data is only flushed within a transaction
+     * when the batch is full. This only has an effect with a BatchWriterPostgresCopyImpl.
+     *
+     * @param db the Database to get the extra Connections from, or null to switch this off
+     * @param connections the maximum number of extra Connections to use
+     */
+    public void setParallelCopy(Database db, int connections) {
+        this.parallelDatabase = (connections > 1 ? db : null);
+        this.parallelConnections = connections;
+    }
+
+    /**
+     * Returns whether commit boundaries are written over several Connections.
+     *
+     * @return true if setParallelCopy() has been called with a Database
+     */
+    public boolean isParallelCopy() {
+        return parallelDatabase != null;
+    }
+
     /**
      * Changes the BatchWriter for a new one.
      *
@@ -360,6 +454,7 @@ public class Batch
      */
     private synchronized List<FlushJob> getFlushJobs() {
         flushJobs = null;
+        inFlightSize = 0;
         notifyAll();
         while (flushJobs == null) {
             if (Thread.interrupted()) {
@@ -400,11 +495,16 @@ public class Batch
      * it.
      *
      * @param jobs a List of jobs
+     * @param sizes a Map from table name to the number of rows and bytes of the table in the jobs,
+     * or null
+     * @param size the total number of bytes in the jobs
      * @throws SQLException if the last background flush resulted in an error - note that the
      * operation will go ahead anyway (although it is likely to throw another exception of its own,
-     * because the transaction will be invalid).
+     * because the transaction will be invalid). If a commit was left half done, the
+     * PartialCommitException is thrown every time, and nothing more is written.
      */
-    private synchronized void putFlushJobs(List<FlushJob> jobs) throws SQLException {
+    private synchronized void putFlushJobs(List<FlushJob> jobs, Map<String, long[]> sizes,
+            int size) throws SQLException {
         long startTime = System.currentTimeMillis();
         while (flushJobs != null) {
             try {
@@ -412,12 +512,18 @@ public class Batch
             } catch (InterruptedException e) {
             }
         }
+        if ((fatalProblem != null) && (jobs != CLOSE_DOWN_COMMAND)) {
+            throw fatalProblem;
+        }
         long endTime = System.currentTimeMillis();
+        timeSpentWaiting += endTime - startTime;
         if (endTime > startTime + 100) {
             LOG.info("Waited " + (endTime - startTime) + " ms for batch flusher");
         }
         if ((!jobs.isEmpty()) || (jobs == CLOSE_DOWN_COMMAND)) {
             flushJobs = jobs;
+            flushSizes = sizes;
+            inFlightSize = size;
             notifyAll();
         }
         if (problem != null) {
@@ -425,6 +531,128 @@ public class Batch
         }
     }
 
+    private synchronized Map<String, long[]> getFlushSizes() {
+        return flushSizes;
+    }
+
+    /**
+     * Adds the figures for a completed flush to the table statistics, and adjusts the batch size
+     * so that a flush takes about the target time at the write rate seen so far. The batch size
+     * is counted in bytes, so tables with wide rows are flushed after fewer rows.
+     *
+     * @param sizes a Map from table name to the number of rows and bytes written
+     * @param time the time taken by the flush, in milliseconds
+     */
+    private void recordFlush(Map<String, long[]> sizes, long time) {
+        long total = 0;
+        for (long[] size : sizes.values()) {
+            total += size[1];
+        }
+        synchronized (tableStatistics) {
+            for (Map.Entry<String, long[]> entry : sizes.entrySet()) {
+                TableStatistics stats = tableStatistics.get(entry.getKey());
+                if (stats == null) {
+                    stats = new TableStatistics();
+                    tableStatistics.put(entry.getKey(), stats);
+                }
+                long[] size = entry.getValue();
+                stats.add(size[0], size[1], (total == 0 ? 0 : (time * size[1]) / total));
+            }
+        }
+        // Small flushes are dominated by round trips, and would make the rate look too slow
+        if (total >= MIN_BATCH_SIZE / OPP_BATCH_FRACTION) {
+            double rate = ((double) total) / Math.max(time, 1L);
+            bytesPerMilli = (bytesPerMilli < 0.0 ? rate : (0.7 * bytesPerMilli) + (0.3 * rate));
+            int newSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE,
+                        bytesPerMilli * targetFlushTime));
+            if ((newSize > flushBatchSize * 2) || (newSize < flushBatchSize / 2)) {
+                LOG.info("Changing batch size from " + flushBatchSize + " to " + newSize
+                        + " bytes, for a write rate of " + ((long) (bytesPerMilli * 1000.0))
+                        + " bytes per second");
+            }
+            flushBatchSize = newSize;
+        }
+    }
+
+    /**
+     * Sets the time that a flush of a full batch should take. The size of the batch is adjusted
+     * to this from the measured speed of previous flushes, within fixed limits. A shorter time
+     * means that callers wait for less time when a full batch has to wait for the previous one,
+     * and less memory is used, but there are more round trips to the database.
+     *
+     * @param targetFlushTime the time in milliseconds
+     */
+    public void setTargetFlushTime(int targetFlushTime) {
+        this.targetFlushTime = targetFlushTime;
+    }
+
+    /**
+     * Returns the number of bytes of data that the batch will hold before it is flushed.
+     *
+     * @return a number of bytes
+     */
+    public int getFlushBatchSize() {
+        return flushBatchSize;
+    }
+
+    /**
+     * Returns the number of bytes of data held by this Batch, both waiting to be flushed and
+     * being flushed. This is never much more than twice getFlushBatchSize(), because a full batch
+     * waits for the previous flush to finish.
+     *
+     * @return a number of bytes
+     */
+    public int getPendingSize() {
+        return batchSize + inFlightSize;
+    }
+
+    /**
+     * Returns whether the database is not keeping up with the writes to this Batch. When this
+     * returns true, a flush is in progress and the batch is more than half full, so callers that
+     * keep adding rows may soon have to wait for the flush. Producers that can slow down or do
+     * other work should do so, or call waitWhileBackedUp().
+     *
+     * @return true if the batch is backed up
+     */
+    public boolean isBackedUp() {
+        return (!isFreeConnection()) && (batchSize > flushBatchSize / 2);
+    }
+
+    /**
+     * Waits for the flush in progress to finish if the batch is backed up. A producer that calls
+     * this before adding each piece of work is held back while the database catches up, so the
+     * batch it is filling stays at about half of getFlushBatchSize(), rather than filling up and
+     * then stalling for a whole flush with twice as much data in memory.
+     *
+     * @return the time waited in milliseconds
+     */
+    public long waitWhileBackedUp() {
+        if (!isBackedUp()) {
+            return 0;
+        }
+        long startTime = System.currentTimeMillis();
+        int pending = getPendingSize();
+        waitForFreeConnection();
+        long waited = System.currentTimeMillis() - startTime;
+        timeSpentBackedUp += waited;
+        if (waited > 1000) {
+            LOG.info("Held back for " + waited + " ms by the batch flusher, with " + pending
+                    + " bytes pending");
+        }
+        return waited;
+    }
+
+    /**
+     * Returns figures for the data written to each table by this Batch so far.
+     *
+     * @return a Map from table name to TableStatistics
+     */
+    public Map<String, TableStatistics> getTableStatistics() {
+        synchronized (tableStatistics) {
+            return new TreeMap<String, TableStatistics>(tableStatistics);
+        }
+    }
+
     /**
      * Reports a problem to the Batch - it will be thrown on the next background flush, or discarded
      * by the clear method.
@@ -435,6 +663,57 @@ public class Batch
         this.problem = problem;
     }
 
+    /**
+     * Reports a commit that was left half done to the Batch. It is thrown by every later flush,
+     * and is not discarded by the clear method, as the prepared transactions must be dealt with
+     * by hand before any more data is written.
+     *
+     * @param problem the PartialCommitException
+     */
+    private synchronized void reportFatalProblem(PartialCommitException problem) {
+        LOG.error("Batch can no longer be used - prepared transactions "
+                + problem.getPreparedIds() + " must be committed with COMMIT PREPARED", problem);
+        this.fatalProblem = problem;
+        this.problem = problem;
+    }
+
+    /**
+     * Returns the time that the background writer Thread has spent writing to the database.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTimeSpentFlushing() {
+        return timeSpentFlushing;
+    }
+
+    /**
+     * Returns the time that callers of this Batch have spent waiting for the background writer
+     * Thread to finish a previous flush.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTimeSpentWaiting() {
+        return timeSpentWaiting;
+    }
+
+    /**
+     * Returns the time that callers of this Batch have been held back by waitWhileBackedUp().
+     *
+     * @return the time in milliseconds
+     */
+    public long getTimeSpentBackedUp() {
+        return timeSpentBackedUp;
+    }
+
+    /**
+     * Returns the number of lists of flush jobs that have been written to the database.
+     *
+     * @return the number of flushes
+     */
+    public int getFlushCount() {
+        return flushCount;
+    }
+
     /**
      * Clears the problem with the Batch.
      */
@@ -456,12 +735,18 @@ public class Batch
             while (jobs != CLOSE_DOWN_COMMAND) {
                 try {
                     jobs = getFlushJobs();
+                    Map<String, long[]> sizes = getFlushSizes();
                     long start = System.currentTimeMillis();
                     for (FlushJob job : jobs) {
                         job.flush();
                     }
                     long end = System.currentTimeMillis();
+                    if (sizes != null) {
+                        recordFlush(sizes, end - start);
+                    }
                     totalSpent += end - start;
+                    timeSpentFlushing = totalSpent;
+                    flushCount++;
                     if (end / 100000 > (timeAtLastMessage) / 100000) {
                         int totalDutyCycle = (int) (((100 * totalSpent + ((end - flusherStart) / 2))
                                     / (end - flusherStart)));
@@ -478,6 +763,8 @@ public class Batch
                     //        + " ms, total " + totalSpent + " of " + (end - flusherStart)
                     //        + " (duty cycle " + ((100 * totalSpent + ((end - flusherStart) / 2))
                     //                / (end - flusherStart)) + "%)");
+                } catch (PartialCommitException e) {
+                    reportFatalProblem(e);
                 } catch (SQLException e) {
                     reportProblem(e);
                 } catch (Throwable t) {
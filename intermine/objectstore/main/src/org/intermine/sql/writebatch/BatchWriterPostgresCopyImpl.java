@@ -20,7 +20,6 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.intermine.model.StringConstructor;
@@ -49,59 +48,36 @@ public class BatchWriterPostgresCopyImpl extends BatchWriterPreparedStatementImp
         throws SQLException {
         String[] colNames = table.getColNames();
         if ((colNames != null) && (!table.getIdsToInsert().isEmpty())) {
-            try {
-                CopyManager copyManager = null;
-                if (con.isWrapperFor(PGConnection.class)) {
-                    copyManager = con.unwrap(PGConnection.class).getCopyAPI();
-                }
-                if (copyManager == null) {
-                    LOG.warn("Database with Connection " + con.getClass().getName()
-                            + " is incompatible with the PostgreSQL COPY command - falling"
-                            + " back to prepared statements");
-                    super.doInserts(name, table, batches);
-                } else {
-                    PostgresByteArrayOutputStream baos = new PostgresByteArrayOutputStream();
-                    PostgresDataOutputStream dos = new PostgresDataOutputStream(baos);
-                    dos.writeBytes("PGCOPY\n");
-                    dos.writeByte(255);
-                    dos.writeBytes("\r\n");
-                    dos.writeByte(0); // Signature done
-                    dos.writeInt(0); // Flags - we aren't supplying OIDS
-                    dos.writeInt(0); // Length of header extension
-                    for (Map.Entry<Object, Object> insertEntry : table.getIdsToInsert()
-                            .entrySet()) {
-                        Object inserts = insertEntry.getValue();
-                        if (inserts instanceof Object[]) {
-                            Object[] values = (Object[]) inserts;
-                            dos.writeShort(colNames.length);
-                            for (int i = 0; i < colNames.length; i++) {
-                                writeObject(dos, values[i]);
-                            }
-                        } else {
-                            for (Object[] values : ((List<Object[]>) inserts)) {
-                                dos.writeShort(colNames.length);
-                                for (int i = 0; i < colNames.length; i++) {
-                                    writeObject(dos, values[i]);
-                                }
-                            }
-                        }
+            CopyManager copyManager = null;
+            if (con.isWrapperFor(PGConnection.class)) {
+                copyManager = con.unwrap(PGConnection.class).getCopyAPI();
+            }
+            if (copyManager == null) {
+                LOG.warn("Database with Connection " + con.getClass().getName()
+                        + " is incompatible with the PostgreSQL COPY command - falling"
+                        + " back to prepared statements");
+                super.doInserts(name, table, batches);
+            } else {
+                StringBuffer sqlBuffer = new StringBuffer("COPY ").append(name).append(" (");
+                for (int i = 0; i < colNames.length; i++) {
+                    if (i > 0) {
+                        sqlBuffer.append(", ");
                     }
-                    StringBuffer sqlBuffer = new StringBuffer("COPY ").append(name).append(" (");
-                    for (int i = 0; i < colNames.length; i++) {
-                        if (i > 0) {
-                            sqlBuffer.append(", ");
-                        }
-                        sqlBuffer.append(colNames[i]);
+                    sqlBuffer.append(colNames[i]);
+                }
+                sqlBuffer.append(") FROM STDIN BINARY");
+                String sql = sqlBuffer.toString();
+                // The table is cleared after this, so take a copy of the rows to encode later
+                List<Object[]> rows = new ArrayList<Object[]>();
+                for (Object inserts : table.getIdsToInsert().values()) {
+                    if (inserts instanceof Object[]) {
+                        rows.add((Object[]) inserts);
+                    } else {
+                        rows.addAll((List<Object[]>) inserts);
                     }
-                    sqlBuffer.append(") FROM STDIN BINARY");
-                    String sql = sqlBuffer.toString();
-                    dos.writeShort(-1);
-                    dos.flush();
-                    batches.add(new FlushJobPostgresCopyImpl(copyManager, sql,
-                                baos.getBuffer(), baos.size()));
                 }
-            } catch (IOException e) {
-                throw new SQLException(e.toString());
+                batches.add(new FlushJobPostgresCopyImpl(copyManager, name, sql,
+                            new TableCopyData(colNames.length, rows)));
             }
             return table.getIdsToInsert().size();
         }
@@ -199,45 +175,98 @@ public class BatchWriterPostgresCopyImpl extends BatchWriterPreparedStatementImp
     protected int doIndirectionInserts(String name,
             IndirectionTableBatch table, List<FlushJob> batches) throws SQLException {
         if (!table.getRowsToInsert().isEmpty()) {
-            try {
-                CopyManager copyManager = null;
-                if (con.isWrapperFor(PGConnection.class)) {
-                    copyManager = con.unwrap(PGConnection.class).getCopyAPI();
-                }
-                if (copyManager == null) {
-                    LOG.warn("Database is incompatible with the PostgreSQL COPY command - falling"
-                            + " back to prepared statements");
-                    super.doIndirectionInserts(name, table, batches);
-                } else {
-                    PostgresByteArrayOutputStream baos = new PostgresByteArrayOutputStream();
-                    DataOutputStream dos = new DataOutputStream(baos);
-                    dos.writeBytes("PGCOPY\n");
-                    dos.writeByte(255);
-                    dos.writeBytes("\r\n");
-                    dos.writeByte(0); // Signature done
-                    dos.writeInt(0); // Flags - we aren't supplying OIDS
-                    dos.writeInt(0); // Length of header extension
-                    for (Row row : table.getRowsToInsert()) {
-                        dos.writeShort(2);
-                        dos.writeInt(4);
-                        dos.writeInt(row.getLeft());
-                        dos.writeInt(4);
-                        dos.writeInt(row.getRight());
-                    }
-                    String sql = "COPY " + name + " (" + table.getLeftColName() + ", "
-                        + table.getRightColName() + ") FROM STDIN BINARY";
-                    dos.writeShort(-1);
-                    dos.flush();
-                    batches.add(new FlushJobPostgresCopyImpl(copyManager, sql,
-                                baos.getBuffer(), baos.size()));
-                }
-            } catch (IOException e) {
-                throw new SQLException(e.toString());
+            CopyManager copyManager = null;
+            if (con.isWrapperFor(PGConnection.class)) {
+                copyManager = con.unwrap(PGConnection.class).getCopyAPI();
+            }
+            if (copyManager == null) {
+                LOG.warn("Database is incompatible with the PostgreSQL COPY command - falling"
+                        + " back to prepared statements");
+                super.doIndirectionInserts(name, table, batches);
+            } else {
+                String sql = "COPY " + name + " (" + table.getLeftColName() + ", "
+                    + table.getRightColName() + ") FROM STDIN BINARY";
+                batches.add(new FlushJobPostgresCopyImpl(copyManager, name, sql,
+                            new IndirectionCopyData(new ArrayList<Row>(
+                                    table.getRowsToInsert()))));
             }
         }
         return table.getRowsToInsert().size();
     }
 
+    /**
+     * Writes the header of the PostgreSQL binary COPY format.
+     *
+     * @param dos the stream to write to
+     * @throws IOException if there is an error writing to the stream
+     */
+    protected static void writeHeader(DataOutputStream dos) throws IOException {
+        dos.writeBytes("PGCOPY\n");
+        dos.writeByte(255);
+        dos.writeBytes("\r\n");
+        dos.writeByte(0); // Signature done
+        dos.writeInt(0); // Flags - we aren't supplying OIDS
+        dos.writeInt(0); // Length of header extension
+    }
+
+    /**
+     * The rows to be inserted into a normal table, which are encoded as they are sent.
+     */
+    private static class TableCopyData implements PostgresCopyData
+    {
+        private int colCount;
+        private List<Object[]> rows;
+
+        public TableCopyData(int colCount, List<Object[]> rows) {
+            this.colCount = colCount;
+            this.rows = rows;
+        }
+
+        public void write(PostgresDataOutputStream dos) throws IOException {
+            writeHeader(dos);
+            for (Object[] values : rows) {
+                dos.writeShort(colCount);
+                for (int i = 0; i < colCount; i++) {
+                    writeObject(dos, values[i]);
+                }
+            }
+            dos.writeShort(-1);
+        }
+
+        public int getEstimatedSize() {
+            // Assume eight bytes per value, plus its length
+            return (int) Math.min(Integer.MAX_VALUE, 21L + rows.size() * (2L + 12L * colCount));
+        }
+    }
+
+    /**
+     * The rows to be inserted into an indirection table, which are encoded as they are sent.
+     */
+    private static class IndirectionCopyData implements PostgresCopyData
+    {
+        private List<Row> rows;
+
+        public IndirectionCopyData(List<Row> rows) {
+            this.rows = rows;
+        }
+
+        public void write(PostgresDataOutputStream dos) throws IOException {
+            writeHeader(dos);
+            for (Row row : rows) {
+                dos.writeShort(2);
+                dos.writeInt(4);
+                dos.writeInt(row.getLeft());
+                dos.writeInt(4);
+                dos.writeInt(row.getRight());
+            }
+            dos.writeShort(-1);
+        }
+
+        public int getEstimatedSize() {
+            return (int) Math.min(Integer.MAX_VALUE, 21L + rows.size() * 18L);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,293 @@
+package org.intermine.sql.writebatch;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.intermine.sql.Database;
+import org.intermine.sql.DatabaseUtil;
+
+/**
+ * A FlushJob that commits a transaction, after running a set of COPY jobs for different tables
+ * at the same time over several extra Connections from a Database. The transactions of the extra
+ * Connections are committed with the main transaction by a two-phase commit: once every COPY has
+ * finished, each extra transaction is prepared, which makes it durable, then the main transaction
+ * is committed, and only then are the prepared transactions committed. If a COPY fails, or an
+ * extra transaction cannot be prepared, the jobs that ran on that Connection are run again on
+ * the main Connection before it is committed. If the main transaction fails to commit, the
+ * prepared transactions are rolled back, and if a prepared transaction fails to commit after the
+ * main transaction has, it is left prepared rather than lost, so that it can be committed with
+ * COMMIT PREPARED, and a PartialCommitException naming it is thrown. Other transactions may see
+ * the data of the main transaction before that of the extra Connections only for as long as the
+ * COMMIT PREPARED statements take.
+ * <p>
+ * If the database does not allow prepared transactions, all the COPY jobs are run on the main
+ * Connection, so that the data is committed in the one transaction.
+ * <p>
+ * The COPY jobs must not write to tables that have rows deleted or inserted in the main
+ * transaction that could conflict with them, otherwise the extra Connections may wait for the
+ * main transaction, which is waiting for them.
+ *
+ * @author Matthew Wakeling
+ */
+public class FlushJobParallelCopyImpl implements FlushJob
+{
+    private static final Logger LOG = Logger.getLogger(FlushJobParallelCopyImpl.class);
+    private static final String PREPARED_PREFIX = "writebatch";
+    private static volatile boolean warnedNoPrepare = false;
+
+    private Connection con;
+    private Database db;
+    private int connections;
+    private LinkedList<FlushJobPostgresCopyImpl> queue
+        = new LinkedList<FlushJobPostgresCopyImpl>();
+    private List<FlushJobPostgresCopyImpl> toRetry = new ArrayList<FlushJobPostgresCopyImpl>();
+    private boolean committed = false;
+    private boolean cancelled = false;
+
+    /**
+     * Constructor for this class
+     *
+     * @param con the Connection of the main transaction, which is committed by this job
+     * @param db the Database to get the extra Connections from
+     * @param connections the maximum number of extra Connections to use
+     * @param jobs the COPY jobs to run on the extra Connections
+     */
+    public FlushJobParallelCopyImpl(Connection con, Database db, int connections,
+            List<FlushJobPostgresCopyImpl> jobs) {
+        this.con = con;
+        this.db = db;
+        this.connections = connections;
+        queue.addAll(jobs);
+        // Start the largest jobs first, so that the Connections finish at about the same time
+        Collections.sort(queue, new Comparator<FlushJobPostgresCopyImpl>() {
+            public int compare(FlushJobPostgresCopyImpl a, FlushJobPostgresCopyImpl b) {
+                return b.getSize() - a.getSize();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void flush() throws SQLException {
+        long start = System.currentTimeMillis();
+        int jobCount = queue.size();
+        if ((jobCount > 0) && (!DatabaseUtil.isTwoPhaseCommitSupported(con))) {
+            if (!warnedNoPrepare) {
+                LOG.warn("The database does not allow prepared transactions - set"
+                        + " max_prepared_transactions in postgresql.conf to COPY in parallel");
+                warnedNoPrepare = true;
+            }
+            connections = 1;
+        }
+        List<Worker> workers = new ArrayList<Worker>();
+        try {
+            if (connections > 1) {
+                for (int i = 0; i < Math.min(connections, jobCount); i++) {
+                    Connection c = db.getConnection();
+                    c.setAutoCommit(false);
+                    workers.add(new Worker(c));
+                }
+            }
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 1; i < workers.size(); i++) {
+                Thread thread = new Thread(workers.get(i), "WriteBatch parallel COPY " + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            if (!workers.isEmpty()) {
+                workers.get(0).run();
+            }
+            boolean interrupted = false;
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        // Stop the workers starting any more jobs, and wait for the COPY jobs in
+                        // progress to finish, so that their Connections are not closed under them
+                        cancel();
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for parallel COPY");
+            }
+            for (Worker worker : workers) {
+                worker.prepare();
+            }
+            // Anything that failed, or was never started, is written over the main Connection
+            toRetry.addAll(queue);
+            queue.clear();
+            if ((!toRetry.isEmpty()) && (!workers.isEmpty())) {
+                LOG.warn("Writing " + toRetry.size() + " COPY jobs over the main connection after"
+                        + " a parallel COPY failed");
+            }
+            for (FlushJobPostgresCopyImpl job : toRetry) {
+                job.flush(con);
+            }
+            con.commit();
+            committed = true;
+            SQLException problem = null;
+            List<String> uncommitted = new ArrayList<String>();
+            for (Worker worker : workers) {
+                String id = worker.preparedId;
+                try {
+                    worker.commit();
+                } catch (SQLException e) {
+                    uncommitted.add(id);
+                    problem = (problem == null ? e : problem);
+                }
+            }
+            if (problem != null) {
+                throw new PartialCommitException(uncommitted, problem);
+            }
+        } finally {
+            for (Worker worker : workers) {
+                worker.close();
+            }
+        }
+        LOG.debug("Wrote " + jobCount + " COPY jobs over " + workers.size() + " connections in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private synchronized FlushJobPostgresCopyImpl nextJob() {
+        return (cancelled ? null : queue.poll());
+    }
+
+    private synchronized void cancel() {
+        cancelled = true;
+    }
+
+    private synchronized void retry(List<FlushJobPostgresCopyImpl> jobs) {
+        toRetry.addAll(jobs);
+    }
+
+    private class Worker implements Runnable
+    {
+        private Connection con;
+        private List<FlushJobPostgresCopyImpl> done = new ArrayList<FlushJobPostgresCopyImpl>();
+        private String preparedId = null;
+
+        public Worker(Connection con) {
+            this.con = con;
+        }
+
+        public void run() {
+            FlushJobPostgresCopyImpl job = nextJob();
+            while (job != null) {
+                done.add(job);
+                try {
+                    job.flush(con);
+                } catch (Throwable e) {
+                    LOG.warn("Parallel COPY failed - will retry on the main connection", e);
+                    fail();
+                    return;
+                }
+                job = nextJob();
+            }
+        }
+
+        /**
+         * Prepares the transaction of this worker, or hands its jobs to the main Connection if
+         * it cannot be prepared.
+         */
+        public void prepare() {
+            if ((con == null) || done.isEmpty()) {
+                return;
+            }
+            String id = DatabaseUtil.newPreparedTransactionId(PREPARED_PREFIX);
+            try {
+                DatabaseUtil.prepareTransaction(con, id);
+                preparedId = id;
+            } catch (SQLException e) {
+                LOG.warn("Could not prepare parallel COPY transaction - will retry on the main"
+                        + " connection", e);
+                fail();
+            }
+        }
+
+        /**
+         * Commits the prepared transaction of this worker. This must only be called once the
+         * main transaction has committed.
+         *
+         * @throws SQLException if the prepared transaction could not be committed, in which case
+         * it is left prepared
+         */
+        public void commit() throws SQLException {
+            if (preparedId == null) {
+                return;
+            }
+            try {
+                DatabaseUtil.commitPrepared(con, preparedId);
+            } catch (SQLException e) {
+                // The Connection may have broken, so try once more on a fresh one
+                LOG.warn("Error committing prepared transaction " + preparedId + " - retrying", e);
+                Connection c = db.getConnection();
+                try {
+                    DatabaseUtil.commitPrepared(c, preparedId);
+                } catch (SQLException e2) {
+                    LOG.error("Could not commit prepared transaction " + preparedId + " of a"
+                            + " parallel COPY - commit it with COMMIT PREPARED", e2);
+                    throw e2;
+                } finally {
+                    c.close();
+                }
+            } finally {
+                preparedId = null;
+            }
+            done.clear();
+        }
+
+        public void close() {
+            if (con != null) {
+                try {
+                    if ((preparedId != null) && (!committed)) {
+                        DatabaseUtil.rollbackPrepared(con, preparedId);
+                        preparedId = null;
+                    } else if ((preparedId == null) && (!con.getAutoCommit())) {
+                        // A COPY was still in progress when an error occurred
+                        con.rollback();
+                    }
+                    con.setAutoCommit(true);
+                    con.close();
+                } catch (SQLException e) {
+                    LOG.error("Error closing parallel COPY connection"
+                            + (preparedId == null ? "" : " - roll back prepared transaction "
+                                + preparedId + " with ROLLBACK PREPARED"), e);
+                }
+                con = null;
+            }
+        }
+
+        private void fail() {
+            try {
+                con.rollback();
+            } catch (SQLException e) {
+                LOG.warn("Error rolling back parallel COPY connection", e);
+            }
+            retry(done);
+            done.clear();
+            close();
+        }
+    }
+}
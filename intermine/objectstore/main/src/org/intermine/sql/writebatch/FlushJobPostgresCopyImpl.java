@@ -12,8 +12,10 @@ package org.intermine.sql.writebatch;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.SQLException;
 
+import org.postgresql.PGConnection;
 import org.postgresql.copy.CopyManager;
 
 /**
@@ -24,9 +26,11 @@ import org.postgresql.copy.CopyManager;
 public class FlushJobPostgresCopyImpl implements FlushJob
 {
     private CopyManager copyManager;
+    private String tableName;
     private String sql;
     private byte[] data;
     private int size;
+    private PostgresCopyData copyData;
 
     /**
      * Constructor for this class
@@ -37,21 +41,100 @@ public class FlushJobPostgresCopyImpl implements FlushJob
      * @param size the size of data
      */
     public FlushJobPostgresCopyImpl(CopyManager copyManager, String sql, byte[] data, int size) {
+        this(copyManager, null, sql, data, size);
+    }
+
+    /**
+     * Constructor for this class, for a job that may be run on another Connection by
+     * flush(Connection).
+     *
+     * @param copyManager the CopyManager to use
+     * @param tableName the name of the table that the data is copied into
+     * @param sql the SQL String containing the COPY command
+     * @param data a byte array of COPY data
+     * @param size the size of data
+     */
+    public FlushJobPostgresCopyImpl(CopyManager copyManager, String tableName, String sql,
+            byte[] data, int size) {
         this.copyManager = copyManager;
+        this.tableName = tableName;
         this.sql = sql;
         this.data = data;
         this.size = size;
     }
 
+    /**
+     * Constructor for this class, for a job that encodes its rows while it sends them to the
+     * database, instead of holding all of the COPY data in memory.
+     *
+     * @param copyManager the CopyManager to use
+     * @param tableName the name of the table that the data is copied into
+     * @param sql the SQL String containing the COPY command
+     * @param copyData the rows to copy
+     */
+    public FlushJobPostgresCopyImpl(CopyManager copyManager, String tableName, String sql,
+            PostgresCopyData copyData) {
+        this.copyManager = copyManager;
+        this.tableName = tableName;
+        this.sql = sql;
+        this.copyData = copyData;
+        this.size = copyData.getEstimatedSize();
+    }
+
+    /**
+     * Returns the name of the table that the data is copied into.
+     *
+     * @return the table name, or null if it is not known
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Returns the size of the COPY data, or an estimate of it if the rows have not been encoded.
+     *
+     * @return the size in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
     /**
      * {@inheritDoc}
      */
     public void flush() throws SQLException {
+        copy(copyManager);
+        copyManager = null;
+        sql = null;
+        data = null;
+        copyData = null;
+    }
+
+    /**
+     * Performs the COPY over a different Connection from the one the job was created for. The
+     * data is kept, so that the job can be run again on another Connection if this one fails.
+     *
+     * @param con a Connection to a PostgreSQL database
+     * @throws SQLException if there is a problem performing the COPY
+     */
+    public void flush(Connection con) throws SQLException {
+        copy(con.unwrap(PGConnection.class).getCopyAPI());
+    }
+
+    private void copy(CopyManager manager) throws SQLException {
         try {
-            copyManager.copyIn(sql, new ByteArrayInputStream(data, 0, size));
-            copyManager = null;
-            sql = null;
-            data = null;
+            if (copyData == null) {
+                manager.copyIn(sql, new ByteArrayInputStream(data, 0, size));
+            } else {
+                PostgresCopyOutputStream out = new PostgresCopyOutputStream(manager.copyIn(sql));
+                try {
+                    PostgresDataOutputStream dos = new PostgresDataOutputStream(out);
+                    copyData.write(dos);
+                    dos.close();
+                } finally {
+                    out.cancel();
+                }
+            }
         } catch (SQLException e) {
             SQLException e2 = new SQLException("Error writing to database, running statement "
                     + sql + ", data size = " + size);
@@ -137,4 +137,11 @@ public class IndirectionTableBatch implements Table
     public int getSize() {
         return size;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getRowCount() {
+        return rowsToInsert.size() + rowsToDelete.size();
+    }
 }
@@ -0,0 +1,51 @@
+package org.intermine.sql.writebatch;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An Exception thrown when a transaction written over several Connections has been committed on
+ * the main Connection, but some of the prepared transactions of the other Connections could not
+ * be committed. Their data is not visible until they are committed by hand with COMMIT PREPARED,
+ * so the database is left with half of a transaction, and the Batch cannot be used any more.
+ *
+ * @author Matthew Wakeling
+ */
+public class PartialCommitException extends SQLException
+{
+    private final List<String> preparedIds;
+
+    /**
+     * Constructs a PartialCommitException.
+     *
+     * @param preparedIds the identifiers of the prepared transactions that are still to be
+     * committed
+     * @param cause the SQLException from the first failed COMMIT PREPARED
+     */
+    public PartialCommitException(List<String> preparedIds, SQLException cause) {
+        super("Committed the main transaction, but could not commit prepared transactions "
+                + preparedIds + " - commit them with COMMIT PREPARED", cause);
+        this.preparedIds = Collections.unmodifiableList(new ArrayList<String>(preparedIds));
+    }
+
+    /**
+     * Returns the identifiers of the prepared transactions that are still to be committed.
+     *
+     * @return a List of identifiers
+     */
+    public List<String> getPreparedIds() {
+        return preparedIds;
+    }
+}
@@ -0,0 +1,39 @@
+package org.intermine.sql.writebatch;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+
+/**
+ * An interface representing the rows of a PostgreSQL COPY, which are encoded in the binary COPY
+ * format while they are being sent to the database, rather than all at once beforehand.
+ *
+ * @author Matthew Wakeling
+ */
+public interface PostgresCopyData
+{
+    /**
+     * Writes the whole of the COPY data, including the header and trailer, to the given stream.
+     * This may be called more than once, if the COPY has to be retried.
+     *
+     * @param dos the stream to write to
+     * @throws IOException if there is an error writing to the stream
+     */
+    void write(PostgresDataOutputStream dos) throws IOException;
+
+    /**
+     * Returns a rough estimate of the number of bytes that write() will produce, without
+     * encoding the rows.
+     *
+     * @return a number of bytes
+     */
+    int getEstimatedSize();
+}
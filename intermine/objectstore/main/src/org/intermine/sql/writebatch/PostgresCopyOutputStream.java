@@ -0,0 +1,173 @@
+package org.intermine.sql.writebatch;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.LinkedList;
+
+import org.postgresql.copy.CopyIn;
+
+/**
+ * An OutputStream that sends data to a PostgreSQL COPY operation in fixed-size chunks as it is
+ * written, so that the data for a large COPY is never held in memory all at once. The chunk
+ * buffers are shared between streams through a small pool, so that a busy writer does not
+ * allocate a new one for every COPY.
+ *
+ * @author Matthew Wakeling
+ */
+public class PostgresCopyOutputStream extends OutputStream
+{
+    /** The size of each chunk sent to the database. */
+    public static final int CHUNK_SIZE = 65536;
+    private static final int MAX_POOLED_CHUNKS = 16;
+    private static final LinkedList<byte[]> POOL = new LinkedList<byte[]>();
+
+    private CopyIn copyIn;
+    private byte[] buf;
+    private int count = 0;
+    private long written = 0;
+
+    /**
+     * Constructor for this class.
+     *
+     * @param copyIn a COPY operation that has been started with CopyManager.copyIn()
+     */
+    public PostgresCopyOutputStream(CopyIn copyIn) {
+        this.copyIn = copyIn;
+        buf = borrowChunk();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) {
+            sendChunk();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buf.length) {
+                sendChunk();
+            }
+            int toCopy = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, toCopy);
+            count += toCopy;
+            off += toCopy;
+            len -= toCopy;
+        }
+    }
+
+    /**
+     * Sends any data that has been written to the database. This does not wait for the database
+     * to process it.
+     *
+     * @throws IOException if there is an error sending the data
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            sendChunk();
+        }
+    }
+
+    /**
+     * Sends the rest of the data to the database, and finishes the COPY operation.
+     *
+     * @throws IOException if there is an error sending the data, or the COPY fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (copyIn != null) {
+            try {
+                flush();
+                copyIn.endCopy();
+            } catch (SQLException e) {
+                IOException e2 = new IOException("Error finishing COPY after " + written
+                        + " bytes");
+                e2.initCause(e);
+                throw e2;
+            } finally {
+                copyIn = null;
+                releaseChunk(buf);
+                buf = null;
+            }
+        }
+    }
+
+    /**
+     * Cancels the COPY operation if it has not been finished by close(), so that the Connection
+     * can be used again. This does nothing if the stream has been closed.
+     *
+     * @throws SQLException if there is an error cancelling the COPY
+     */
+    public void cancel() throws SQLException {
+        if (copyIn != null) {
+            try {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            } finally {
+                copyIn = null;
+                releaseChunk(buf);
+                buf = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes sent to the database so far.
+     *
+     * @return a number of bytes
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    private void sendChunk() throws IOException {
+        try {
+            copyIn.writeToCopy(buf, 0, count);
+        } catch (SQLException e) {
+            IOException e2 = new IOException("Error sending COPY data after " + written
+                    + " bytes");
+            e2.initCause(e);
+            throw e2;
+        }
+        written += count;
+        count = 0;
+    }
+
+    private static byte[] borrowChunk() {
+        synchronized (POOL) {
+            if (!POOL.isEmpty()) {
+                return POOL.removeFirst();
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private static void releaseChunk(byte[] chunk) {
+        synchronized (POOL) {
+            if (POOL.size() < MAX_POOLED_CHUNKS) {
+                POOL.addFirst(chunk);
+            }
+        }
+    }
+}
@@ -28,4 +28,11 @@ public interface Table
      * @return an int
      */
     int getSize();
+
+    /**
+     * Returns the number of rows to be inserted or deleted that are held in this object.
+     *
+     * @return an int
+     */
+    int getRowCount();
 }
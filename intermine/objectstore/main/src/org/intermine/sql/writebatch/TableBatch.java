@@ -35,6 +35,7 @@ public class TableBatch implements Table
     private Set<Object> idsToDelete;
     private Map<Object, Object> idsToInsert;
     private int size = 0;
+    private int rowCount = 0;
 
     /**
      * Constructor for this class. Generates a table batch with no data to write.
@@ -103,6 +104,7 @@ public class TableBatch implements Table
         }
         int deltaSize = sizeOfArray(values) + 16;
         size += deltaSize;
+        rowCount++;
         return deltaSize;
     }
 
@@ -136,12 +138,16 @@ public class TableBatch implements Table
             if (removed != null) {
                 if (removed instanceof Object[]) {
                     retval -= sizeOfArray((Object[]) removed);
+                    rowCount--;
                 } else {
                     retval -= sizeOfList((List<Object[]>) removed);
+                    rowCount -= ((List<Object[]>) removed).size();
                 }
             }
         }
-        idsToDelete.add(idValue);
+        if (idsToDelete.add(idValue)) {
+            rowCount++;
+        }
         size += retval;
         return retval;
     }
@@ -193,6 +199,7 @@ public class TableBatch implements Table
             idsToInsert.clear();
         }
         size = 0;
+        rowCount = 0;
     }
 
     /**
@@ -202,6 +209,13 @@ public class TableBatch implements Table
         return size;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
     /**
      * Calculates the size of an array, in bytes.
      *
@@ -0,0 +1,102 @@
+package org.intermine.sql.writebatch;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * Figures for the writes to a single table by a Batch. Each flush writes several tables at once,
+ * so the time spent writing a table is an estimate, taken as its share of the bytes in each
+ * flush.
+ *
+ * @author Matthew Wakeling
+ */
+public class TableStatistics
+{
+    private long rows = 0;
+    private long bytes = 0;
+    private long time = 0;
+    private int flushes = 0;
+
+    /**
+     * Records the writing of some rows of the table in one flush.
+     *
+     * @param rows the number of rows inserted or deleted
+     * @param bytes the size of the rows, as counted by the Batch
+     * @param time the estimated time spent writing the rows, in milliseconds
+     */
+    public synchronized void add(long rows, long bytes, long time) {
+        this.rows += rows;
+        this.bytes += bytes;
+        this.time += time;
+        flushes++;
+    }
+
+    /**
+     * Returns the number of rows written.
+     *
+     * @return a number of rows
+     */
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the size of the rows written.
+     *
+     * @return a number of bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the estimated time spent writing the rows.
+     *
+     * @return a time in milliseconds
+     */
+    public synchronized long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the number of flushes that have written to the table.
+     *
+     * @return the number of flushes
+     */
+    public synchronized int getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * Returns the rate at which rows have been written while the table was being flushed.
+     *
+     * @return rows per second
+     */
+    public synchronized long getRowsPerSecond() {
+        return (1000L * rows) / Math.max(time, 1L);
+    }
+
+    /**
+     * Returns the rate at which data has been written while the table was being flushed.
+     *
+     * @return bytes per second
+     */
+    public synchronized long getBytesPerSecond() {
+        return (1000L * bytes) / Math.max(time, 1L);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return rows + " rows, " + bytes + " bytes in " + flushes + " flushes, " + time + " ms";
+    }
+}
@@ -19,6 +19,7 @@ import java.io.LineNumberReader;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -34,6 +35,7 @@ import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
+import org.intermine.modelproduction.MetadataManager;
 import org.intermine.sql.Database;
 import org.intermine.sql.DatabaseFactory;
 
@@ -571,7 +573,9 @@ class AcceptanceTestResult
             DatabaseMetaData dbMetadata = con.getMetaData();
             ResultSet trackerTableResults = dbMetadata.getTables(null, null, "tracker", null);
 
-            if (trackerTableResults.next()) {
+            // A tracker table is left over from an earlier build if the tracking data is now
+            // kept in a file by the MappedDataTracker, so its entries would be misleading
+            if (trackerTableResults.next() && (!usesTrackerFile(con))) {
                 // we have a tracker table
 
                 for (int i = 1; i <= metadata.getColumnCount(); i++) {
@@ -617,6 +621,25 @@ class AcceptanceTestResult
         return resultCount;
     }
 
+    /**
+     * Returns true if the tracking data of the database is kept in a file rather than in the
+     * tracker table, which is recorded in the metadata table.
+     */
+    private static boolean usesTrackerFile(Connection con) throws SQLException {
+        if (!con.getMetaData().getTables(null, null, MetadataManager.METADATA_TABLE, null)
+                .next()) {
+            return false;
+        }
+        PreparedStatement select = con.prepareStatement("SELECT key FROM "
+                + MetadataManager.METADATA_TABLE + " WHERE key = ?");
+        try {
+            select.setString(1, MetadataManager.TRACKER_FILE);
+            return select.executeQuery().next();
+        } finally {
+            select.close();
+        }
+    }
+
     /**
      * Get the rows from the tracker table that refer to the given id
      * @return the results as a List of Lists or null if there is an SQLException (which is stored
@@ -49,6 +49,7 @@ public class PrecomputeTask extends Task
 
     protected String alias;
     protected int minRows = -1;
+    protected int threads = THREAD_COUNT;
     // set by readProperties()
 
     /**
@@ -70,6 +71,16 @@ public class PrecomputeTask extends Task
         this.minRows = minRows.intValue();
     }
 
+    /**
+     * Set the number of queries to precompute at the same time. This should be about the number
+     * of CPU cores of the database server, so that they are all kept busy.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(Integer threads) {
+        this.threads = threads.intValue();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -145,7 +156,7 @@ public class PrecomputeTask extends Task
      * @return a ParallelPrecomputer for the ObjectStore
      */
     protected ParallelPrecomputer getPrecomputer(ObjectStoreInterMineImpl os) {
-        return new ParallelPrecomputer(os, THREAD_COUNT);
+        return new ParallelPrecomputer(os, threads);
     }
 
     /**
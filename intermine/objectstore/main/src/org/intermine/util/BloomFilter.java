@@ -0,0 +1,211 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A Set that remembers the values added to it in a fixed-size array of bits. The contains method
+ * returns false only if the value has definitely never been added, and may return true for a
+ * value that has not been added, with a probability given when the filter is created, as long as
+ * no more than the expected number of values are added.
+ * <p>
+ * Values are hashed by value rather than by hashCode, so that a filter written out by one JVM
+ * gives the same answers when it is read back by another. Numbers of different types with the
+ * same value, such as an Integer and a Long, hash to the same bits.
+ *
+ * @author Matthew Wakeling
+ */
+public class BloomFilter extends PseudoSet<Object>
+{
+    private long[] words;
+    private long bits;
+    private int hashCount;
+    private long expectedCount;
+    private long count = 0;
+
+    /**
+     * Constructs an empty BloomFilter.
+     *
+     * @param expectedCount the number of values that are expected to be added
+     * @param falsePositiveRate the desired probability of contains returning true for a value
+     * that has not been added, once expectedCount values have been added
+     */
+    public BloomFilter(long expectedCount, double falsePositiveRate) {
+        if ((falsePositiveRate <= 0.0) || (falsePositiveRate >= 1.0)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: "
+                    + falsePositiveRate);
+        }
+        this.expectedCount = Math.max(expectedCount, 1);
+        double ln2 = Math.log(2.0);
+        long wantedBits = (long) Math.ceil(-this.expectedCount * Math.log(falsePositiveRate)
+                / (ln2 * ln2));
+        long wordCount = Math.min((wantedBits + 63) / 64, Integer.MAX_VALUE - 8);
+        words = new long[(int) Math.max(wordCount, 1)];
+        bits = words.length * 64L;
+        hashCount = (int) Math.max(1, Math.round(((double) bits) / this.expectedCount * ln2));
+    }
+
+    private BloomFilter(long[] words, int hashCount, long expectedCount, long count) {
+        this.words = words;
+        this.bits = words.length * 64L;
+        this.hashCount = hashCount;
+        this.expectedCount = expectedCount;
+        this.count = count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean add(Object o) {
+        long hash = hash(o);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1L;
+        boolean changed = false;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((hash + i * hash2) & Long.MAX_VALUE) % bits;
+            long mask = 1L << (bit & 63);
+            int word = (int) (bit >>> 6);
+            if ((words[word] & mask) == 0) {
+                words[word] |= mask;
+                changed = true;
+            }
+        }
+        count++;
+        return changed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean contains(Object o) {
+        long hash = hash(o);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((hash + i * hash2) & Long.MAX_VALUE) % bits;
+            if ((words[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of times add has been called. This counts values that were added more
+     * than once, so it is an upper bound on the number of distinct values in the filter.
+     *
+     * @return a long
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns true if more values have been added than the filter was sized for, so that it is
+     * likely to return true more often than the false positive rate it was created with.
+     *
+     * @return a boolean
+     */
+    public synchronized boolean isSaturated() {
+        return count > expectedCount;
+    }
+
+    /**
+     * Writes this filter to a DataOutput, in a form that can be read back by read.
+     *
+     * @param out the DataOutput
+     * @throws IOException if the write fails
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(words.length);
+        out.writeInt(hashCount);
+        out.writeLong(expectedCount);
+        out.writeLong(count);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by the write method.
+     *
+     * @param in the DataInput
+     * @return a new BloomFilter
+     * @throws IOException if the read fails
+     */
+    public static BloomFilter read(DataInput in) throws IOException {
+        int wordCount = in.readInt();
+        int hashCount = in.readInt();
+        long expectedCount = in.readLong();
+        long count = in.readLong();
+        if ((wordCount <= 0) || (hashCount <= 0)) {
+            throw new IOException("Corrupt BloomFilter with " + wordCount + " words and "
+                    + hashCount + " hashes");
+        }
+        long[] words = new long[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words, hashCount, expectedCount, count);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return "BloomFilter(" + count + " values, " + bits + " bits, " + hashCount + " hashes)";
+    }
+
+    /**
+     * Returns a hash of a value that does not depend on the JVM.
+     *
+     * @param o the value
+     * @return a long
+     */
+    private static long hash(Object o) {
+        long h;
+        if (o == null) {
+            h = 0L;
+        } else if ((o instanceof Integer) || (o instanceof Long) || (o instanceof Short)
+                || (o instanceof Byte)) {
+            h = ((Number) o).longValue();
+        } else if ((o instanceof Float) || (o instanceof Double)) {
+            h = Double.doubleToLongBits(((Number) o).doubleValue());
+        } else if (o instanceof Boolean) {
+            h = ((Boolean) o).booleanValue() ? 1L : 2L;
+        } else if (o instanceof Date) {
+            h = ((Date) o).getTime();
+        } else {
+            // FNV-1a over the characters of the string form
+            String s = o.toString();
+            h = 0xCBF29CE484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001B3L;
+            }
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
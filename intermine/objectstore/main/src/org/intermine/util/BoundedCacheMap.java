@@ -0,0 +1,659 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This is a Map implementation designed specifically for people intending to create a cache,
+ * where the memory used by the cache must be bounded. Unlike CacheMap, values are held strongly,
+ * and entries are evicted when the total weight of the entries exceeds a configured maximum. The
+ * weight of an entry is calculated by a Weigher, and is refreshed every time the entry is
+ * accessed, so that values that grow after they have been put into the cache (such as Results
+ * objects) are accounted for.
+ * <p>
+ * The Map is split into a number of segments, each of which is locked independently, so that
+ * threads accessing different keys do not contend with each other. The weight is limited by a
+ * CacheBudget, which may be shared with other caches so that they have a single limit between
+ * them. Each access is stamped with the time from the clock of the budget, and each segment keeps
+ * its entries in access order, so the least recently used entry of all the caches is always found
+ * at the head of one of the segments. Eviction is either least recently used or (approximately)
+ * least frequently used. Hit, miss and eviction counts are recorded, and can be published through
+ * JMX with the registerMBean() method.
+ * <p>
+ * The keySet(), values() and entrySet() methods return snapshots of the Map.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ * @author Matthew Wakeling
+ */
+public class BoundedCacheMap<K, V> extends AbstractMap<K, V>
+    implements BoundedCacheMapMBean, CacheBudget.Member
+{
+    private static final Logger LOG = Logger.getLogger(BoundedCacheMap.class);
+    private static final int DEFAULT_SEGMENTS = 16;
+    // The number of entries examined when choosing a victim for LFU eviction
+    private static final int LFU_SAMPLE_SIZE = 8;
+
+    /**
+     * The policy used to choose which entry to evict.
+     */
+    public enum Policy {
+        /** Evict the least recently used entry. */
+        LRU,
+        /** Evict the least frequently used entry, out of a sample of the oldest entries. */
+        LFU;
+
+        /**
+         * Parses a policy from a String, ignoring case.
+         *
+         * @param policy the String, either "lru" or "lfu"
+         * @return a Policy
+         * @throws IllegalArgumentException if the String is not a valid policy
+         */
+        public static Policy parse(String policy) {
+            return valueOf(policy.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Calculates the weight of an entry in the cache, usually an estimate of its size in bytes.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     */
+    public interface Weigher<K, V>
+    {
+        /**
+         * Returns the weight of the given entry. This must be cheap to calculate, as it is called
+         * every time the entry is accessed.
+         *
+         * @param key the key of the entry
+         * @param value the value of the entry
+         * @return a non-negative weight
+         */
+        long weigh(K key, V value);
+    }
+
+    /**
+     * Receives notification of entries being evicted from the cache. The notification is made
+     * after the entry has been removed, outside any locks held by the cache.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     */
+    public interface EvictionListener<K, V>
+    {
+        /**
+         * Called when an entry has been evicted.
+         *
+         * @param key the key of the evicted entry
+         * @param value the value of the evicted entry
+         */
+        void evicted(K key, V value);
+    }
+
+    protected String name;
+    protected CacheBudget budget;
+    protected Policy policy;
+    protected Weigher<? super K, ? super V> weigher;
+    protected EvictionListener<? super K, ? super V> listener = null;
+    protected Segment<K, V>[] segments;
+    protected AtomicLong weight = new AtomicLong(0);
+    protected AtomicLong hits = new AtomicLong(0);
+    protected AtomicLong misses = new AtomicLong(0);
+    protected AtomicLong evictions = new AtomicLong(0);
+    private ObjectName mbeanName = null;
+
+    /**
+     * Constructs a new, empty BoundedCacheMap where every entry has a weight of one, so the cache
+     * holds at most maxEntries entries.
+     *
+     * @param name the name of the cache - printed out in log messages and used in JMX
+     * @param maxEntries the maximum number of entries
+     * @param policy the eviction policy
+     */
+    public BoundedCacheMap(String name, long maxEntries, Policy policy) {
+        this(name, maxEntries, policy, null);
+    }
+
+    /**
+     * Constructs a new, empty BoundedCacheMap.
+     *
+     * @param name the name of the cache - printed out in log messages and used in JMX
+     * @param maxWeight the maximum total weight of all the entries in the cache
+     * @param policy the eviction policy
+     * @param weigher a Weigher to calculate the weight of each entry, or null to give every
+     * entry a weight of one
+     */
+    public BoundedCacheMap(String name, long maxWeight, Policy policy,
+            Weigher<? super K, ? super V> weigher) {
+        this(name, new CacheBudget(maxWeight), policy, weigher);
+    }
+
+    /**
+     * Constructs a new, empty BoundedCacheMap that shares a limit on its weight with other
+     * caches. Use clear() and unregister() when the cache is no longer needed, so that its
+     * weight is released from the budget.
+     *
+     * @param name the name of the cache - printed out in log messages and used in JMX
+     * @param budget the CacheBudget that limits the weight of this and other caches
+     * @param policy the eviction policy
+     * @param weigher a Weigher to calculate the weight of each entry, or null to give every
+     * entry a weight of one
+     */
+    public BoundedCacheMap(String name, CacheBudget budget, Policy policy,
+            Weigher<? super K, ? super V> weigher) {
+        this(name, budget, policy, weigher, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Constructs a new, empty BoundedCacheMap that shares a limit on its weight with other
+     * caches, with the given number of independently locked segments. Small caches that are
+     * only accessed by a few threads at a time should use a single segment, as the cost of
+     * finding the least recently used entry grows with the number of segments.
+     *
+     * @param name the name of the cache - printed out in log messages and used in JMX
+     * @param budget the CacheBudget that limits the weight of this and other caches
+     * @param policy the eviction policy
+     * @param weigher a Weigher to calculate the weight of each entry, or null to give every
+     * entry a weight of one
+     * @param segmentCount the number of segments, which must be a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCacheMap(String name, CacheBudget budget, Policy policy,
+            Weigher<? super K, ? super V> weigher, int segmentCount) {
+        if (policy == null) {
+            throw new NullPointerException("policy must not be null");
+        }
+        if ((segmentCount <= 0) || ((segmentCount & (segmentCount - 1)) != 0)) {
+            throw new IllegalArgumentException("segmentCount must be a power of two - was "
+                    + segmentCount);
+        }
+        this.name = name;
+        this.budget = budget;
+        this.policy = policy;
+        this.weigher = weigher;
+        segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<K, V>();
+        }
+        budget.register(this, weight);
+    }
+
+    /**
+     * Removes this cache from its CacheBudget. Entries still in the cache are no longer counted
+     * against the budget.
+     */
+    public void unregister() {
+        budget.add(-weight.get());
+        budget.unregister(this);
+    }
+
+    /**
+     * Sets the listener that is told about evicted entries.
+     *
+     * @param listener an EvictionListener, or null for none
+     */
+    public void setEvictionListener(EvictionListener<? super K, ? super V> listener) {
+        this.listener = listener;
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = (key == null ? 0 : key.hashCode());
+        h ^= (h >>> 16) ^ (h >>> 8);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private long weigh(K key, V value) {
+        return (weigher == null ? 1 : weigher.weigh(key, value));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object key) {
+        Segment<K, V> segment = segmentFor(key);
+        V retval;
+        synchronized (segment) {
+            Node<V> node = segment.map.get(key);
+            if (node == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            if (node.frequency < Integer.MAX_VALUE) {
+                node.frequency++;
+            }
+            @SuppressWarnings("unchecked") K realKey = (K) key;
+            long newWeight = weigh(realKey, node.value);
+            addWeight(newWeight - node.weight);
+            node.weight = newWeight;
+            node.lastAccess = budget.tick();
+            retval = node.value;
+        }
+        evictIfNecessary();
+        return retval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.map.containsKey(key);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(K key, V value) {
+        long newWeight = weigh(key, value);
+        Segment<K, V> segment = segmentFor(key);
+        Node<V> old;
+        synchronized (segment) {
+            old = segment.map.put(key, new Node<V>(value, newWeight, budget.tick()));
+            addWeight(newWeight - (old == null ? 0 : old.weight));
+        }
+        evictIfNecessary();
+        return (old == null ? null : old.value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(Object key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Node<V> old = segment.map.remove(key);
+            if (old == null) {
+                return null;
+            }
+            addWeight(-old.weight);
+            return old.value;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                for (Node<V> node : segment.map.values()) {
+                    addWeight(-node.weight);
+                }
+                segment.map.clear();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        int retval = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                retval += segment.map.size();
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns a snapshot of the entries in this Map. Changes to the Set are not reflected in the
+     * Map.
+     *
+     * @return a Set of Map.Entry objects
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Map<K, V> snapshot = new HashMap<K, V>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                for (Map.Entry<K, Node<V>> entry : segment.map.entrySet()) {
+                    snapshot.put(entry.getKey(), entry.getValue().value);
+                }
+            }
+        }
+        return snapshot.entrySet();
+    }
+
+    /**
+     * Returns a snapshot of the keys in this Map. Changes to the Set are not reflected in the
+     * Map.
+     *
+     * @return a Set of keys
+     */
+    @Override
+    public Set<K> keySet() {
+        Set<K> retval = new HashSet<K>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                retval.addAll(segment.map.keySet());
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Returns a snapshot of the values in this Map. Changes to the Collection are not reflected in
+     * the Map.
+     *
+     * @return a Collection of values
+     */
+    @Override
+    public Collection<V> values() {
+        List<V> retval = new ArrayList<V>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                for (Node<V> node : segment.map.values()) {
+                    retval.add(node.value);
+                }
+            }
+        }
+        return retval;
+    }
+
+    private void addWeight(long delta) {
+        weight.addAndGet(delta);
+        budget.add(delta);
+    }
+
+    /**
+     * Evicts entries until the total weight of the budget is within its maximum. This must not be
+     * called while holding a segment lock.
+     */
+    private void evictIfNecessary() {
+        if (budget.isOverBudget()) {
+            budget.evictIfNecessary();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getOldestAccess() {
+        long retval = Long.MAX_VALUE;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                Iterator<Node<V>> iter = segment.map.values().iterator();
+                if (iter.hasNext()) {
+                    retval = Math.min(retval, iter.next().lastAccess);
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean evictOldest() {
+        while (true) {
+            Segment<K, V> oldest = null;
+            long oldestAccess = Long.MAX_VALUE;
+            for (Segment<K, V> segment : segments) {
+                synchronized (segment) {
+                    Iterator<Node<V>> iter = segment.map.values().iterator();
+                    if (iter.hasNext()) {
+                        long access = iter.next().lastAccess;
+                        if (access < oldestAccess) {
+                            oldestAccess = access;
+                            oldest = segment;
+                        }
+                    }
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+            K victimKey;
+            Node<V> victim;
+            synchronized (oldest) {
+                Map.Entry<K, Node<V>> entry = chooseVictim(oldest);
+                if (entry == null) {
+                    // Emptied by another thread since we looked - try again
+                    continue;
+                }
+                victimKey = entry.getKey();
+                victim = entry.getValue();
+                oldest.map.remove(victimKey);
+                addWeight(-victim.weight);
+            }
+            evictions.incrementAndGet();
+            if (listener != null) {
+                try {
+                    listener.evicted(victimKey, victim.value);
+                } catch (RuntimeException e) {
+                    LOG.warn(name + ": Eviction listener threw exception", e);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Chooses an entry to evict from a segment. The caller must hold the segment lock.
+     *
+     * @param segment the Segment
+     * @return the entry to evict, or null if the segment is empty
+     */
+    private Map.Entry<K, Node<V>> chooseVictim(Segment<K, V> segment) {
+        Iterator<Map.Entry<K, Node<V>>> iter = segment.map.entrySet().iterator();
+        if (!iter.hasNext()) {
+            return null;
+        }
+        Map.Entry<K, Node<V>> retval = iter.next();
+        if (policy == Policy.LFU) {
+            // Look at the least recently used few entries, and pick the least frequently used of
+            // those. The survivors have their frequency halved, so that entries that were popular
+            // a long time ago do not stay in the cache forever.
+            int sampled = 1;
+            while (iter.hasNext() && (sampled < LFU_SAMPLE_SIZE)) {
+                Map.Entry<K, Node<V>> candidate = iter.next();
+                sampled++;
+                if (candidate.getValue().frequency < retval.getValue().frequency) {
+                    retval.getValue().age();
+                    retval = candidate;
+                } else {
+                    candidate.getValue().age();
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Registers this cache with the platform MBeanServer, so that its statistics can be seen
+     * through JMX. If registration fails, a warning is logged and the cache carries on working.
+     */
+    public synchronized void registerMBean() {
+        if (mbeanName != null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName("org.intermine:type=Cache,name="
+                    + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            mbeanName = objectName;
+        } catch (JMException e) {
+            LOG.warn("Could not register cache " + name + " with JMX", e);
+        }
+    }
+
+    /**
+     * Removes this cache from the platform MBeanServer, if it was registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                LOG.warn("Could not unregister cache " + name + " from JMX", e);
+            }
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getPolicy() {
+        return policy.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getSize() {
+        return size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMaxWeight() {
+        return budget.getMaxWeight();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return (total == 0 ? 0.0 : ((double) hitCount) / total);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return name + ": size " + size() + ", weight " + weight.get() + "/" + budget.getMaxWeight()
+            + ", hits " + hits.get() + ", misses " + misses.get() + ", evictions "
+            + evictions.get();
+    }
+
+    /**
+     * A part of the Map, with its own lock. The LinkedHashMap is kept in access order, so the
+     * first entry is always the least recently used.
+     */
+    private static class Segment<K, V>
+    {
+        LinkedHashMap<K, Node<V>> map = new LinkedHashMap<K, Node<V>>(16, 0.75F, true);
+    }
+
+    /**
+     * An entry in a Segment.
+     */
+    private static class Node<V>
+    {
+        V value;
+        long weight;
+        int frequency = 0;
+
+        long lastAccess;
+
+        Node(V value, long weight, long lastAccess) {
+            this.value = value;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+        }
+
+        void age() {
+            frequency = frequency / 2;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * JMX management interface for BoundedCacheMap, exposing the size and statistics of the cache.
+ *
+ * @author Matthew Wakeling
+ */
+public interface BoundedCacheMapMBean
+{
+    /**
+     * Returns the name of the cache.
+     *
+     * @return a String
+     */
+    String getName();
+
+    /**
+     * Returns the eviction policy of the cache.
+     *
+     * @return a String
+     */
+    String getPolicy();
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return an int
+     */
+    int getSize();
+
+    /**
+     * Returns the total weight of the entries in the cache.
+     *
+     * @return a long
+     */
+    long getWeight();
+
+    /**
+     * Returns the maximum total weight permitted before entries are evicted.
+     *
+     * @return a long
+     */
+    long getMaxWeight();
+
+    /**
+     * Returns the number of get operations that found an entry.
+     *
+     * @return a long
+     */
+    long getHitCount();
+
+    /**
+     * Returns the number of get operations that did not find an entry.
+     *
+     * @return a long
+     */
+    long getMissCount();
+
+    /**
+     * Returns the number of entries that have been evicted to keep the cache within its maximum
+     * weight.
+     *
+     * @return a long
+     */
+    long getEvictionCount();
+
+    /**
+     * Returns the proportion of get operations that found an entry.
+     *
+     * @return a double between 0 and 1
+     */
+    double getHitRatio();
+
+    /**
+     * Resets the hit, miss and eviction counts to zero.
+     */
+    void resetStatistics();
+
+    /**
+     * Removes all entries from the cache.
+     */
+    void clear();
+}
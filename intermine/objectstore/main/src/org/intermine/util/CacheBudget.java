@@ -0,0 +1,218 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the total weight of the entries in a group of caches. Each cache adds the weight of
+ * its entries to the budget, and when the total is over the limit, entries are evicted from the
+ * cache that has the least recently used entry, until the total is within the limit again. Access
+ * times are taken from a clock shared by all the caches, so the least recently used entry of the
+ * whole group is always evicted first.
+ * <p>
+ * The caches are only held weakly, so a cache that is no longer used can be garbage collected.
+ * Each cache registers the counter that holds its own weight, and when a cache is garbage
+ * collected without having been unregistered, the last value of that counter is taken back from
+ * the total.
+ *
+ * @author Matthew Wakeling
+ */
+public class CacheBudget
+{
+    /**
+     * A cache whose entries are limited by a CacheBudget.
+     */
+    public interface Member
+    {
+        /**
+         * Returns the access time of the least recently used entry in the cache.
+         *
+         * @return a time from the tick() method of the budget, or Long.MAX_VALUE if the cache is
+         * empty
+         */
+        long getOldestAccess();
+
+        /**
+         * Evicts the least recently used entry from the cache, reducing the weight of the budget.
+         * This is called without any locks of the cache being held.
+         *
+         * @return false if there was nothing to evict
+         */
+        boolean evictOldest();
+    }
+
+    private volatile long maxWeight;
+    private AtomicLong weight = new AtomicLong(0);
+    private AtomicLong clock = new AtomicLong(0);
+    private Set<MemberReference> members = Collections.newSetFromMap(
+            new ConcurrentHashMap<MemberReference, Boolean>());
+    private ReferenceQueue<Member> collected = new ReferenceQueue<Member>();
+
+    /**
+     * Constructs a new CacheBudget.
+     *
+     * @param maxWeight the maximum total weight of the entries in all the caches
+     */
+    public CacheBudget(long maxWeight) {
+        setMaxWeight(maxWeight);
+    }
+
+    /**
+     * Changes the maximum total weight. If the total is now over the limit, entries will be
+     * evicted the next time one of the caches is written to.
+     *
+     * @param maxWeight the maximum total weight of the entries in all the caches
+     */
+    public void setMaxWeight(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be greater than zero - was "
+                    + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the maximum total weight.
+     *
+     * @return a long
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Returns the total weight of the entries in all the caches.
+     *
+     * @return a long
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * Returns a new access time, later than all the previous ones.
+     *
+     * @return a long
+     */
+    public long tick() {
+        return clock.incrementAndGet();
+    }
+
+    /**
+     * Adds a cache to the group limited by this budget. The cache must add every change to
+     * memberWeight to this budget as well, with the add() method, so that the weight can be taken
+     * back if the cache is garbage collected.
+     *
+     * @param member the cache
+     * @param memberWeight the counter holding the weight of the entries of the cache
+     */
+    public void register(Member member, AtomicLong memberWeight) {
+        expungeCollectedMembers();
+        members.add(new MemberReference(member, memberWeight, collected));
+    }
+
+    /**
+     * Removes a cache from the group limited by this budget. The weight of its entries should
+     * already have been removed.
+     *
+     * @param member the cache
+     */
+    public void unregister(Member member) {
+        for (MemberReference ref : members) {
+            if (ref.get() == member) {
+                members.remove(ref);
+                ref.clear();
+            }
+        }
+        expungeCollectedMembers();
+    }
+
+    /**
+     * Changes the total weight, when an entry is added, removed, or re-weighed.
+     *
+     * @param delta the change in weight
+     */
+    public void add(long delta) {
+        weight.addAndGet(delta);
+        expungeCollectedMembers();
+    }
+
+    /**
+     * Takes back the weight of caches that have been garbage collected without being
+     * unregistered.
+     */
+    private void expungeCollectedMembers() {
+        Reference<? extends Member> ref;
+        while ((ref = collected.poll()) != null) {
+            MemberReference memberRef = (MemberReference) ref;
+            if (members.remove(memberRef)) {
+                weight.addAndGet(-memberRef.memberWeight.get());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the total weight is over the limit.
+     *
+     * @return a boolean
+     */
+    public boolean isOverBudget() {
+        return weight.get() > maxWeight;
+    }
+
+    /**
+     * Evicts the least recently used entries of all the caches until the total weight is within
+     * the limit. This must not be called while holding a lock of any of the caches.
+     */
+    public synchronized void evictIfNecessary() {
+        expungeCollectedMembers();
+        while (weight.get() > maxWeight) {
+            Member oldest = null;
+            long oldestAccess = Long.MAX_VALUE;
+            Iterator<MemberReference> iter = members.iterator();
+            while (iter.hasNext()) {
+                Member member = iter.next().get();
+                if (member != null) {
+                    long access = member.getOldestAccess();
+                    if (access < oldestAccess) {
+                        oldestAccess = access;
+                        oldest = member;
+                    }
+                }
+            }
+            if ((oldest == null) || (!oldest.evictOldest())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A weak reference to a cache, which remembers the counter holding the weight of the cache
+     * after the cache itself has gone.
+     */
+    private static class MemberReference extends WeakReference<Member>
+    {
+        AtomicLong memberWeight;
+
+        MemberReference(Member member, AtomicLong memberWeight, ReferenceQueue<Member> queue) {
+            super(member, queue);
+            this.memberWeight = memberWeight;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent cache from int keys to values, bounded by number of entries and by total weight.
+ * The cache is split into segments by key, and each segment is locked only while it is being
+ * modified. Lookups take no locks at all - the hash chains are never modified in place, so a
+ * reader always sees a consistent chain. Values may be null, which is distinct from the key being
+ * absent.
+ * <p>
+ * Several users may share one cache, and so one memory limit, by each taking a namespace from
+ * newNamespace(). Keys in different namespaces are independent. A user can drop all its entries
+ * at once by moving to a new namespace, and the old entries are then evicted as the cache fills.
+ * <p>
+ * When a segment is over its share of the limits, entries are evicted with the CLOCK algorithm,
+ * which approximates LRU by giving each entry that has been read since the last sweep a second
+ * chance.
+ *
+ * @param <V> the type of the values
+ * @author Matthew Wakeling
+ */
+public class IntObjectCache<V>
+{
+    /** The value returned by lookup() for a key that is not in the cache. */
+    public static final Object NOT_PRESENT = new Object();
+
+    private static final int DEFAULT_SEGMENTS = 32;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    /**
+     * Calculates the weight of a value in the cache, which is usually an estimate of its size in
+     * bytes.
+     *
+     * @param <V> the type of the values
+     */
+    public interface Weigher<V>
+    {
+        /**
+         * Returns the weight of a value.
+         *
+         * @param value the value, which may be null
+         * @return a positive number
+         */
+        long weigh(V value);
+    }
+
+    private String name;
+    private Weigher<? super V> weigher;
+    private Segment<V>[] segments;
+    private int segmentShift;
+    private long maxEntriesPerSegment;
+    private long maxWeightPerSegment;
+    // Namespace zero is used by the methods that take no namespace
+    private AtomicInteger nextNamespace = new AtomicInteger(1);
+
+    /**
+     * Constructs a new IntObjectCache.
+     *
+     * @param name the name of the cache, for log messages
+     * @param maxEntries the maximum number of entries
+     * @param maxWeight the maximum total weight of the values
+     * @param weigher the Weigher for the values
+     */
+    @SuppressWarnings("unchecked")
+    public IntObjectCache(String name, long maxEntries, long maxWeight,
+            Weigher<? super V> weigher) {
+        this.name = name;
+        this.weigher = weigher;
+        segments = (Segment<V>[]) new Segment<?>[DEFAULT_SEGMENTS];
+        for (int i = 0; i < DEFAULT_SEGMENTS; i++) {
+            segments[i] = new Segment<V>();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(DEFAULT_SEGMENTS);
+        maxEntriesPerSegment = Math.max(1, maxEntries / DEFAULT_SEGMENTS);
+        maxWeightPerSegment = Math.max(1, maxWeight / DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Returns a namespace that has not been used before in this cache, and so has no entries.
+     *
+     * @return a namespace to pass to the other methods
+     */
+    public int newNamespace() {
+        return nextNamespace.getAndIncrement();
+    }
+
+    /**
+     * Returns the value for a key, or null if the key is not present.
+     *
+     * @param key the key
+     * @return the value
+     */
+    public V get(int key) {
+        return get(0, key);
+    }
+
+    /**
+     * Returns the value for a key in a namespace, or null if the key is not present.
+     *
+     * @param namespace the namespace
+     * @param key the key
+     * @return the value
+     */
+    public V get(int namespace, int key) {
+        Entry<V> e = getEntry(namespace, key);
+        return (e == null ? null : e.value);
+    }
+
+    /**
+     * Returns the value for a key, or NOT_PRESENT if the key is not present. This allows a key
+     * with a null value to be told apart from a missing key in a single lookup.
+     *
+     * @param key the key
+     * @return the value, or NOT_PRESENT
+     */
+    public Object lookup(int key) {
+        return lookup(0, key);
+    }
+
+    /**
+     * Returns the value for a key in a namespace, or NOT_PRESENT if the key is not present.
+     *
+     * @param namespace the namespace
+     * @param key the key
+     * @return the value, or NOT_PRESENT
+     */
+    public Object lookup(int namespace, int key) {
+        Entry<V> e = getEntry(namespace, key);
+        return (e == null ? NOT_PRESENT : e.value);
+    }
+
+    /**
+     * Returns true if the key is present.
+     *
+     * @param key the key
+     * @return a boolean
+     */
+    public boolean containsKey(int key) {
+        return getEntry(0, key) != null;
+    }
+
+    private Entry<V> getEntry(int namespace, int key) {
+        int hash = hash(namespace, key);
+        Segment<V> s = segments[hash >>> segmentShift];
+        AtomicReferenceArray<Entry<V>> table = s.table;
+        Entry<V> e = table.get(hash & (table.length() - 1));
+        while (e != null) {
+            if ((e.key == key) && (e.namespace == namespace)) {
+                if (!e.referenced) {
+                    e.referenced = true;
+                }
+                s.hits.incrementAndGet();
+                return e;
+            }
+            e = e.next;
+        }
+        s.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Puts a value into the cache, evicting other entries if the cache is full.
+     *
+     * @param key the key
+     * @param value the value, which may be null
+     */
+    public void put(int key, V value) {
+        put(0, key, value);
+    }
+
+    /**
+     * Puts a value into the cache under a key in a namespace, evicting other entries if the cache
+     * is full.
+     *
+     * @param namespace the namespace
+     * @param key the key
+     * @param value the value, which may be null
+     */
+    public void put(int namespace, int key, V value) {
+        int hash = hash(namespace, key);
+        Segment<V> s = segments[hash >>> segmentShift];
+        long weight = weigher.weigh(value);
+        synchronized (s) {
+            AtomicReferenceArray<Entry<V>> table = s.table;
+            int index = hash & (table.length() - 1);
+            Entry<V> first = table.get(index);
+            Entry<V> e = first;
+            while ((e != null) && ((e.key != key) || (e.namespace != namespace))) {
+                e = e.next;
+            }
+            if (e != null) {
+                s.weight += weight - e.weight;
+                e.weight = weight;
+                e.value = value;
+            } else {
+                if (s.count >= table.length()) {
+                    table = s.resize();
+                    index = hash & (table.length() - 1);
+                    first = table.get(index);
+                }
+                table.set(index, new Entry<V>(namespace, key, value, weight, first));
+                s.count++;
+                s.weight += weight;
+            }
+            while ((s.count > 1) && ((s.count > maxEntriesPerSegment)
+                        || (s.weight > maxWeightPerSegment))) {
+                if (!s.evict(namespace, key)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a key from the cache.
+     *
+     * @param key the key
+     */
+    public void remove(int key) {
+        remove(0, key);
+    }
+
+    /**
+     * Removes a key in a namespace from the cache.
+     *
+     * @param namespace the namespace
+     * @param key the key
+     */
+    public void remove(int namespace, int key) {
+        int hash = hash(namespace, key);
+        Segment<V> s = segments[hash >>> segmentShift];
+        synchronized (s) {
+            AtomicReferenceArray<Entry<V>> table = s.table;
+            int index = hash & (table.length() - 1);
+            Entry<V> e = table.get(index);
+            while ((e != null) && ((e.key != key) || (e.namespace != namespace))) {
+                e = e.next;
+            }
+            if (e != null) {
+                s.removeEntry(index, e);
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries from the cache.
+     */
+    public void clear() {
+        for (Segment<V> s : segments) {
+            synchronized (s) {
+                s.table = new AtomicReferenceArray<Entry<V>>(INITIAL_SEGMENT_CAPACITY);
+                s.count = 0;
+                s.weight = 0;
+                s.hand = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return an int
+     */
+    public int size() {
+        int retval = 0;
+        for (Segment<V> s : segments) {
+            retval += s.count;
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the total weight of the entries in the cache.
+     *
+     * @return a long
+     */
+    public long getWeight() {
+        long retval = 0;
+        for (Segment<V> s : segments) {
+            retval += s.weight;
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the number of lookups that found their key.
+     *
+     * @return a long
+     */
+    public long getHitCount() {
+        long retval = 0;
+        for (Segment<V> s : segments) {
+            retval += s.hits.get();
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the number of lookups that did not find their key.
+     *
+     * @return a long
+     */
+    public long getMissCount() {
+        long retval = 0;
+        for (Segment<V> s : segments) {
+            retval += s.misses.get();
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the number of entries evicted because the cache was full.
+     *
+     * @return a long
+     */
+    public long getEvictionCount() {
+        long retval = 0;
+        for (Segment<V> s : segments) {
+            retval += s.evictions;
+        }
+        return retval;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "IntObjectCache \"" + name + "\": size = " + size() + ", weight = " + getWeight()
+            + ", hits = " + getHitCount() + ", misses = " + getMissCount() + ", evictions = "
+            + getEvictionCount();
+    }
+
+    private static int hash(int namespace, int key) {
+        // Ids are often sequential, so spread them over the segments and buckets
+        int h = (key + namespace * 0x85EBCA6B) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry<V>
+    {
+        final int namespace;
+        final int key;
+        final Entry<V> next;
+        volatile V value;
+        volatile boolean referenced = false;
+        // Only accessed while holding the segment lock
+        long weight;
+
+        Entry(int namespace, int key, V value, long weight, Entry<V> next) {
+            this.namespace = namespace;
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.next = next;
+        }
+    }
+
+    private static final class Segment<V>
+    {
+        volatile AtomicReferenceArray<Entry<V>> table
+            = new AtomicReferenceArray<Entry<V>>(INITIAL_SEGMENT_CAPACITY);
+        volatile int count = 0;
+        volatile long weight = 0;
+        volatile long evictions = 0;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        // The bucket at which the next eviction sweep starts
+        int hand = 0;
+
+        /**
+         * Doubles the size of the table. Must be called while holding the segment lock.
+         *
+         * @return the new table
+         */
+        AtomicReferenceArray<Entry<V>> resize() {
+            AtomicReferenceArray<Entry<V>> oldTable = table;
+            AtomicReferenceArray<Entry<V>> newTable
+                = new AtomicReferenceArray<Entry<V>>(oldTable.length() * 2);
+            int mask = newTable.length() - 1;
+            for (int i = 0; i < oldTable.length(); i++) {
+                for (Entry<V> e = oldTable.get(i); e != null; e = e.next) {
+                    int index = hash(e.namespace, e.key) & mask;
+                    Entry<V> copy = new Entry<V>(e.namespace, e.key, e.value, e.weight,
+                            newTable.get(index));
+                    copy.referenced = e.referenced;
+                    newTable.set(index, copy);
+                }
+            }
+            table = newTable;
+            hand = 0;
+            return newTable;
+        }
+
+        /**
+         * Removes an entry by copying the entries before it in its chain. Must be called while
+         * holding the segment lock.
+         *
+         * @param index the bucket of the entry
+         * @param target the entry
+         */
+        void removeEntry(int index, Entry<V> target) {
+            Entry<V> newFirst = target.next;
+            for (Entry<V> e = table.get(index); e != target; e = e.next) {
+                Entry<V> copy = new Entry<V>(e.namespace, e.key, e.value, e.weight, newFirst);
+                copy.referenced = e.referenced;
+                newFirst = copy;
+            }
+            table.set(index, newFirst);
+            count--;
+            weight -= target.weight;
+        }
+
+        /**
+         * Evicts one entry, other than the given key, using the CLOCK algorithm. Must be called
+         * while holding the segment lock.
+         *
+         * @param keepNamespace the namespace of a key that must not be evicted
+         * @param keep a key that must not be evicted
+         * @return false if there was nothing to evict
+         */
+        boolean evict(int keepNamespace, int keep) {
+            AtomicReferenceArray<Entry<V>> t = table;
+            // Two sweeps are enough to clear every referenced flag and find a victim
+            for (int i = 0; i < t.length() * 2; i++) {
+                int index = hand;
+                for (Entry<V> e = t.get(index); e != null; e = e.next) {
+                    if ((e.key != keep) || (e.namespace != keepNamespace)) {
+                        if (e.referenced) {
+                            e.referenced = false;
+                        } else {
+                            removeEntry(index, e);
+                            evictions++;
+                            return true;
+                        }
+                    }
+                }
+                hand = (hand + 1) & (t.length() - 1);
+            }
+            return false;
+        }
+    }
+}
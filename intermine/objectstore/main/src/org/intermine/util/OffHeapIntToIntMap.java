@@ -0,0 +1,469 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An IntToIntMap that stores its mappings outside the Java heap, in an open-addressing hash
+ * table. Each mapping takes eight bytes, and the table is kept at most half full, so a map with
+ * a hundred million mappings uses between 0.8 and 1.6 GB of memory that is not scanned by the
+ * garbage collector. When the table would grow past a configured size, which by default is a
+ * quarter of the direct memory the JVM may allocate, it is put in a memory-mapped temporary file
+ * instead, so that the operating system can page it out.
+ * <p>
+ * Lookups take no locks, so any number of threads may read the map while one thread writes to
+ * it. Writes are serialised. A mapping is never removed from the table - putting -1 leaves the
+ * key in place with a value of -1, which reads as absent - so a reader can never see a chain
+ * broken by a concurrent write. When the table is resized, readers carry on using the old table,
+ * which is left intact. Each table counts the readers using it, and the memory of a replaced
+ * table is released as soon as the last of them has finished, rather than when the garbage
+ * collector gets round to its buffers.
+ *
+ * @author Matthew Wakeling
+ */
+public class OffHeapIntToIntMap extends IntToIntMap
+{
+    private static final Logger LOG = Logger.getLogger(OffHeapIntToIntMap.class);
+
+    // Each slot holds a key and a value
+    private static final int SLOT_BYTES = 8;
+    // A buffer can hold at most 2 GB, so large tables are split into chunks of 2^27 slots
+    private static final int CHUNK_SHIFT = 27;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int MAX_SLOTS = 1 << 30;
+    private static final int INITIAL_SLOTS = 1 << 16;
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private long spillBytes;
+    private File spillDir;
+    private volatile Table table;
+    // Integer.MIN_VALUE marks an empty slot, so it cannot be stored in the table
+    private volatile int emptyKeyValue = -1;
+    private volatile int size = 0;
+
+    /**
+     * Constructs an empty OffHeapIntToIntMap that spills to a file in the default temporary
+     * directory once its table is larger than getDefaultSpillBytes().
+     */
+    public OffHeapIntToIntMap() {
+        this(getDefaultSpillBytes(), null);
+    }
+
+    /**
+     * Constructs an empty OffHeapIntToIntMap.
+     *
+     * @param spillBytes the size in bytes of a table beyond which it will be stored in a
+     * memory-mapped file rather than in direct memory
+     * @param spillDir the directory in which to create the memory-mapped file, or null for the
+     * default temporary directory
+     */
+    public OffHeapIntToIntMap(long spillBytes, File spillDir) {
+        this.spillBytes = spillBytes;
+        this.spillDir = spillDir;
+        table = new Table(INITIAL_SLOTS, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void put(int from, int to) {
+        int old;
+        if (from == EMPTY) {
+            old = emptyKeyValue;
+            emptyKeyValue = to;
+        } else {
+            Table t = table;
+            int slot = t.find(from);
+            if (t.getKey(slot) == from) {
+                old = t.getValue(slot);
+                t.setValue(slot, to);
+            } else if (to == -1) {
+                return;
+            } else {
+                if ((t.used + 1) * 2L > t.slots) {
+                    t = resize();
+                    slot = t.find(from);
+                }
+                old = -1;
+                // Write the value before the key, so a reader that sees the key sees the value
+                t.setValue(slot, to);
+                t.setKey(slot, from);
+                t.used++;
+            }
+        }
+        int newSize = size;
+        if (old != -1) {
+            newSize--;
+        }
+        if (to != -1) {
+            newSize++;
+        }
+        // This volatile write publishes the slot to readers
+        size = newSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int from) {
+        if (size == 0) {
+            return -1;
+        }
+        if (from == EMPTY) {
+            return emptyKeyValue;
+        }
+        Table t = acquire();
+        try {
+            int slot = t.find(from);
+            return (t.getKey(slot) == from ? t.getValue(slot) : -1);
+        } finally {
+            release(t);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void clear() {
+        Table oldTable = table;
+        table = new Table(INITIAL_SLOTS, false);
+        retire(oldTable);
+        emptyKeyValue = -1;
+        size = 0;
+    }
+
+    /**
+     * Returns the number of bytes used by the hash table.
+     *
+     * @return a long
+     */
+    public long getTableBytes() {
+        return ((long) table.slots) * SLOT_BYTES;
+    }
+
+    /**
+     * Returns true if the hash table is stored in a memory-mapped file.
+     *
+     * @return a boolean
+     */
+    public boolean isSpilled() {
+        return table.mapped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        TreeMap<Integer, Integer> sorted = new TreeMap<Integer, Integer>();
+        if (emptyKeyValue != -1) {
+            sorted.put(new Integer(EMPTY), new Integer(emptyKeyValue));
+        }
+        Table t = table;
+        for (int slot = 0; slot < t.slots; slot++) {
+            int key = t.getKey(slot);
+            int value = t.getValue(slot);
+            if ((key != EMPTY) && (value != -1)) {
+                sorted.put(new Integer(key), new Integer(value));
+            }
+        }
+        StringBuffer retval = new StringBuffer("{");
+        boolean needComma = false;
+        for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+            if (needComma) {
+                retval.append(", ");
+            }
+            needComma = true;
+            retval.append(entry.getKey() + " -> " + entry.getValue());
+        }
+        retval.append("}");
+        return retval.toString();
+    }
+
+    /**
+     * Copies the live mappings into a new table, which is twice the size unless most of the old
+     * table is keys that map to -1, and publishes it. Keys that map to -1 are dropped. Must be
+     * called while holding the lock.
+     *
+     * @return the new table
+     */
+    private Table resize() {
+        Table oldTable = table;
+        int slots = oldTable.slots;
+        // Only grow if the table is mostly live mappings - otherwise rehashing is enough
+        if (size * 4L > slots) {
+            if (slots >= MAX_SLOTS) {
+                throw new IllegalStateException("OffHeapIntToIntMap is full, with " + size
+                        + " mappings");
+            }
+            slots *= 2;
+        }
+        boolean mapped = ((long) slots) * SLOT_BYTES > spillBytes;
+        long start = System.currentTimeMillis();
+        Table newTable = new Table(slots, mapped);
+        for (int slot = 0; slot < oldTable.slots; slot++) {
+            int key = oldTable.getKey(slot);
+            int value = oldTable.getValue(slot);
+            if ((key != EMPTY) && (value != -1)) {
+                int newSlot = newTable.find(key);
+                newTable.setValue(newSlot, value);
+                newTable.setKey(newSlot, key);
+                newTable.used++;
+            }
+        }
+        table = newTable;
+        retire(oldTable);
+        LOG.info("Resized OffHeapIntToIntMap to " + slots + " slots (" + (mapped ? "mapped"
+                    : "direct") + ") with " + size + " mappings in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return newTable;
+    }
+
+    /**
+     * Returns the current table, registered as being read, so that its memory is not released
+     * until release() is called.
+     *
+     * @return a Table
+     */
+    private Table acquire() {
+        while (true) {
+            Table t = table;
+            t.readers.incrementAndGet();
+            // If the table was replaced before we registered, the writer may not have seen us
+            if (t == table) {
+                return t;
+            }
+            release(t);
+        }
+    }
+
+    private static void release(Table t) {
+        if ((t.readers.decrementAndGet() == 0) && t.retired) {
+            t.free();
+        }
+    }
+
+    /**
+     * Marks a table that has been replaced, releasing its memory now if nothing is reading it, or
+     * otherwise when the last reader calls release(). Must be called while holding the lock.
+     */
+    private static void retire(Table t) {
+        t.retired = true;
+        if (t.readers.get() == 0) {
+            t.free();
+        }
+    }
+
+    /**
+     * Returns the default size of table beyond which the map is stored in a memory-mapped file,
+     * which is a quarter of the direct memory the JVM may allocate. A table is copied when it is
+     * resized, so the old and new tables together need three times the size of the old one.
+     *
+     * @return a number of bytes
+     */
+    public static long getDefaultSpillBytes() {
+        long maxDirect = 0;
+        try {
+            // The HotSpot option, which is 0 unless -XX:MaxDirectMemorySize is set
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            CompositeData option = (CompositeData) server.invoke(
+                    new ObjectName("com.sun.management:type=HotSpotDiagnostic"), "getVMOption",
+                    new Object[] {"MaxDirectMemorySize"}, new String[] {String.class.getName()});
+            maxDirect = Long.parseLong((String) option.get("value"));
+        } catch (Exception e) {
+            LOG.debug("Could not read MaxDirectMemorySize - using the maximum heap size", e);
+        }
+        if (maxDirect <= 0) {
+            // The default limit on direct memory is the maximum heap size
+            maxDirect = Runtime.getRuntime().maxMemory();
+        }
+        return maxDirect / 4;
+    }
+
+    /**
+     * Releases the memory of a direct or mapped ByteBuffer straight away, which the JVM otherwise
+     * only does when the buffer is garbage collected. The buffer must not be used afterwards. If
+     * the JVM does not allow this, the buffer is left for the garbage collector.
+     *
+     * @param buffer a ByteBuffer
+     */
+    private static void freeBuffer(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                // Java 9 and later
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            LOG.debug("Could not release direct buffer - leaving it for the garbage collector",
+                    e);
+        }
+    }
+
+    private static int hash(int key) {
+        // Ids are often sequential, so spread them over the table
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A fixed-size hash table with linear probing, stored in one or more ByteBuffers.
+     */
+    private final class Table
+    {
+        final int slots;
+        final boolean mapped;
+        final ByteBuffer[] chunks;
+        // The number of slots with a key in them, only accessed while holding the lock
+        int used = 0;
+        // The number of threads reading the table without holding the lock
+        final AtomicInteger readers = new AtomicInteger(0);
+        // Set once the table has been replaced, so its memory can be released
+        volatile boolean retired = false;
+        private final AtomicBoolean freed = new AtomicBoolean(false);
+
+        Table(int slots, boolean mapped) {
+            this.slots = slots;
+            this.mapped = mapped;
+            int chunkSlots = Math.min(slots, 1 << CHUNK_SHIFT);
+            chunks = new ByteBuffer[slots / chunkSlots];
+            RandomAccessFile file = null;
+            File tempFile = null;
+            try {
+                if (mapped) {
+                    tempFile = File.createTempFile("idmap", ".tmp", spillDir);
+                    file = new RandomAccessFile(tempFile, "rw");
+                }
+                for (int i = 0; i < chunks.length; i++) {
+                    int bytes = chunkSlots * SLOT_BYTES;
+                    ByteBuffer chunk;
+                    if (mapped) {
+                        chunk = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                ((long) i) * bytes, bytes);
+                    } else {
+                        chunk = ByteBuffer.allocateDirect(bytes);
+                    }
+                    chunk.order(ByteOrder.nativeOrder());
+                    for (int o = 0; o < bytes; o += SLOT_BYTES) {
+                        chunk.putInt(o, EMPTY);
+                        chunk.putInt(o + 4, -1);
+                    }
+                    chunks[i] = chunk;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not create memory-mapped id map in "
+                        + spillDir, e);
+            } finally {
+                if (file != null) {
+                    try {
+                        // The mapping stays valid after the file is closed and deleted
+                        file.close();
+                    } catch (IOException e) {
+                        LOG.warn("Could not close " + tempFile, e);
+                    }
+                }
+                if ((tempFile != null) && (!tempFile.delete())) {
+                    tempFile.deleteOnExit();
+                }
+            }
+        }
+
+        /**
+         * Releases the memory of the buffers, once only.
+         */
+        void free() {
+            if (freed.compareAndSet(false, true)) {
+                for (ByteBuffer chunk : chunks) {
+                    freeBuffer(chunk);
+                }
+            }
+        }
+
+        /**
+         * Returns the slot holding a key, or the empty slot where it would be put.
+         */
+        int find(int key) {
+            int mask = slots - 1;
+            int slot = hash(key) & mask;
+            while (true) {
+                int k = getKey(slot);
+                if ((k == key) || (k == EMPTY)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        int getKey(int slot) {
+            return chunks[slot >>> CHUNK_SHIFT].getInt((slot & CHUNK_MASK) * SLOT_BYTES);
+        }
+
+        int getValue(int slot) {
+            return chunks[slot >>> CHUNK_SHIFT].getInt((slot & CHUNK_MASK) * SLOT_BYTES + 4);
+        }
+
+        void setKey(int slot, int key) {
+            chunks[slot >>> CHUNK_SHIFT].putInt((slot & CHUNK_MASK) * SLOT_BYTES, key);
+        }
+
+        void setValue(int slot, int value) {
+            chunks[slot >>> CHUNK_SHIFT].putInt((slot & CHUNK_MASK) * SLOT_BYTES + 4, value);
+        }
+    }
+}
@@ -81,6 +81,11 @@ public class ObjectStoreWriterDummyImpl implements ObjectStoreWriter
         throw new ObjectStoreException("Not implemented");
     }
 
+    public void removeFromCollection(Integer hasId, Class clazz, String fieldName, Integer hadId)
+        throws ObjectStoreException {
+        throw new ObjectStoreException("Not implemented");
+    }
+
     public void delete(InterMineObject o) throws ObjectStoreException {
         storedObjects.remove(o.getId());
     }
@@ -0,0 +1,108 @@
+package org.intermine.objectstore.intermine;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.objectstore.query.ResultsRow;
+
+public class MappedBatchSpillStoreTest extends TestCase
+{
+    public MappedBatchSpillStoreTest(String arg1) {
+        super(arg1);
+    }
+
+    public void testStoreAndLoad() throws Exception {
+        MappedBatchSpillStore store = new MappedBatchSpillStore(null, null);
+        List<Object> batch = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            ResultsRow<Object> row = new ResultsRow<Object>();
+            row.add(new Integer(i));
+            row.add("Row " + i + " \u00e9");
+            row.add(null);
+            row.add(new Long(i * 10000000000L));
+            row.add(Boolean.valueOf(i % 2 == 0));
+            row.add(new Double(i / 3.0));
+            row.add(new Float(i / 7.0F));
+            row.add(new Short((short) i));
+            row.add(new BigDecimal("12345678901234567890." + i));
+            row.add(new Date(i * 86400000L));
+            row.add(new Character((char) ('a' + (i % 26))));
+            batch.add(row);
+        }
+        assertFalse(store.contains(3));
+        assertNull(store.load(3));
+        assertTrue(store.store(3, batch));
+        assertTrue(store.contains(3));
+        long length = store.getLength();
+        assertTrue(length > 0);
+        // Storing the same batch again does not write it again
+        assertTrue(store.store(3, batch));
+        assertEquals(length, store.getLength());
+        assertTrue(store.store(4, Collections.singletonList((Object) batch.get(0))));
+
+        assertEquals(batch, store.load(3));
+        assertEquals(Collections.singletonList(batch.get(0)), store.load(4));
+
+        store.close();
+        assertFalse(store.contains(3));
+        assertNull(store.load(3));
+    }
+
+    public void testUnsupported() throws Exception {
+        MappedBatchSpillStore store = new MappedBatchSpillStore(null, null);
+        ResultsRow<Object> row = new ResultsRow<Object>();
+        row.add(new Integer(1));
+        row.add(Collections.singletonList("collection"));
+        assertFalse(store.store(0, Collections.singletonList((Object) row)));
+        assertFalse(store.contains(0));
+        assertEquals(0, store.getLength());
+        store.close();
+    }
+
+    public void testProxy() throws Exception {
+        MappedBatchSpillStore store = new MappedBatchSpillStore(null, null);
+        ResultsRow<Object> row = new ResultsRow<Object>();
+        row.add(new ProxyReference(null, new Integer(42), InterMineObject.class));
+        assertTrue(store.store(0, Collections.singletonList((Object) row)));
+        List<Object> loaded = store.load(0);
+        ProxyReference proxy = (ProxyReference) ((List<?>) loaded.get(0)).get(0);
+        assertEquals(new Integer(42), proxy.getId());
+        assertEquals(InterMineObject.class, proxy.getProxiedClass());
+        store.close();
+    }
+
+    public void testCloseDeletesFile() throws Exception {
+        File dir = File.createTempFile("spilltest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        try {
+            MappedBatchSpillStore store = new MappedBatchSpillStore(null, dir);
+            ResultsRow<Object> row = new ResultsRow<Object>();
+            row.add(new Integer(1));
+            assertTrue(store.store(0, Collections.singletonList((Object) row)));
+            assertEquals(1, dir.listFiles().length);
+            store.close();
+            assertEquals(0, dir.listFiles().length);
+        } finally {
+            dir.delete();
+        }
+    }
+}
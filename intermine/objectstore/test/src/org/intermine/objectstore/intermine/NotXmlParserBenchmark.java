@@ -0,0 +1,91 @@
+package org.intermine.objectstore.intermine;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.model.testmodel.Department;
+import org.intermine.model.testmodel.Employee;
+import org.intermine.model.testmodel.Types;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.util.DynamicUtil;
+
+/**
+ * Compares the speed of NotXmlParser with the older method of splitting the NotXml with a regular
+ * expression and passing the resulting array to the setoBJECT method of the generated class. No
+ * database is needed. Run with no arguments; the number of iterations may be given as the first
+ * argument.
+ *
+ * @author Matthew Wakeling
+ */
+public class NotXmlParserBenchmark
+{
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+        Model model = Model.getInstanceByName("testmodel");
+        DatabaseSchema schema = new DatabaseSchema(model,
+                Collections.<ClassDescriptor>emptyList(), false, Collections.<String>emptySet(),
+                1, false, false);
+        ObjectStoreInterMineImpl os = new ObjectStoreInterMineImpl(null, schema);
+
+        List<String> notXmls = new ArrayList<String>();
+        Employee e = new Employee();
+        e.setId(new Integer(1234));
+        e.setName("Employee1");
+        e.setAge(42);
+        e.setFullTime(true);
+        e.proxyDepartment(new ProxyReference(os, new Integer(5678), Department.class));
+        notXmls.add(NotXmlRenderer.render(e).toString());
+        Types t = new Types();
+        t.setId(new Integer(4321));
+        t.setName("Types $_^ with a delimiter");
+        t.setIntType(-42);
+        t.setLongType(123456789012345L);
+        t.setDoubleType(1.5);
+        t.setBooleanObjType(Boolean.TRUE);
+        t.setDateObjType(new Date());
+        t.setBigDecimalObjType(new BigDecimal("1.2345678901234567890"));
+        t.setStringObjType("A string");
+        notXmls.add(NotXmlRenderer.render(t).toString());
+
+        for (String notXml : notXmls) {
+            InterMineObject example = NotXmlParser.parse(notXml, os);
+            String name = example.getClass().getSimpleName();
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    InterMineObject obj = DynamicUtil.createObject(example.getClass());
+                    obj.setoBJECT(NotXmlParser.SPLITTER.split(notXml), os);
+                }
+                long split = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    NotXmlParser.parse(notXml, os);
+                }
+                long parse = System.nanoTime() - start;
+                if (round >= WARMUP_ROUNDS) {
+                    System.out.println(name + ": split and setoBJECT " + (split / iterations)
+                            + " ns/op, NotXmlParser " + (parse / iterations) + " ns/op");
+                }
+            }
+        }
+    }
+}
@@ -10,6 +10,8 @@ package org.intermine.objectstore.intermine;
  *
  */
 
+import java.math.BigDecimal;
+import java.util.Date;
 import java.util.Map;
 
 import junit.framework.TestCase;
@@ -17,6 +19,7 @@ import junit.framework.TestCase;
 import org.intermine.model.testmodel.Company;
 import org.intermine.model.testmodel.Department;
 import org.intermine.model.testmodel.Employee;
+import org.intermine.model.testmodel.Types;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreFactory;
 import org.intermine.objectstore.proxy.ProxyReference;
@@ -99,6 +102,67 @@ public class NotXmlTest extends TestCase
         assertEquals(e.getId(), reparsed.getId());
     }
 
+    public void testParseTypes() throws Exception {
+        Types t = new Types();
+        t.setId(new Integer(4321));
+        t.setName("Types $_^ with $_^d delimiters");
+        t.setIntType(-42);
+        t.setLongType(123456789012345L);
+        t.setLongObjType(new Long(Long.MIN_VALUE));
+        t.setDoubleType(1.5);
+        t.setFloatType(2.25F);
+        t.setBooleanType(true);
+        t.setBooleanObjType(Boolean.FALSE);
+        t.setDateObjType(new Date(1234567890L));
+        t.setBigDecimalObjType(new BigDecimal("1.2345678901234567890"));
+        t.setStringObjType("");
+
+        String notXml = NotXmlRenderer.render(t).toString();
+        Types reparsed = (Types) NotXmlParser.parse(notXml, os);
+
+        assertEquals(notXml, NotXmlRenderer.render(reparsed).toString());
+        assertEquals(t.getName(), reparsed.getName());
+        assertEquals(-42, reparsed.getIntType());
+        assertEquals(new Long(Long.MIN_VALUE), reparsed.getLongObjType());
+        assertEquals(new Date(1234567890L), reparsed.getDateObjType());
+        assertEquals("", reparsed.getStringObjType());
+    }
+
+    public void testCompact() throws Exception {
+        Employee e = new Employee();
+        e.setId(new Integer(2874));
+        e.setName("Flibble $_^ Wotsit");
+        e.setAge(-3);
+        e.setFullTime(true);
+        e.proxyDepartment(new ProxyReference(os, new Integer(5678), Department.class));
+
+        String compact = CompactObjectRenderer.render(e).toString();
+        assertEquals(CompactObjectRenderer.MARKER, compact.charAt(0));
+        for (int i = 0; i < compact.length(); i++) {
+            assertTrue(compact.charAt(i) != 0);
+        }
+        assertTrue(compact.length() < NotXmlRenderer.render(e).length());
+
+        Employee reparsed = (Employee) NotXmlParser.parse(compact, os);
+        assertEquals(NotXmlRenderer.render(e).toString(),
+                NotXmlRenderer.render(reparsed).toString());
+        assertEquals(new Integer(5678), ((ProxyReference) reparsed.proxGetDepartment()).getId());
+    }
+
+    public void testVarLong() throws Exception {
+        long[] values = new long[] {0, 1, -1, 62, 63, 64, 4095, 4096, Integer.MAX_VALUE,
+            Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        StringBuilder sb = new StringBuilder();
+        for (long value : values) {
+            CompactObjectRenderer.writeVarLong(sb, value);
+        }
+        int[] pos = new int[] {0};
+        for (long value : values) {
+            assertEquals(value, CompactObjectRenderer.readVarLong(sb.toString(), pos));
+        }
+        assertEquals(sb.length(), pos[0]);
+    }
+
     public void testSplitPerformance() throws Exception {
         StringBuilder sb = new StringBuilder(49999997);
         for (int i = 0; i < 1000000; i++) {
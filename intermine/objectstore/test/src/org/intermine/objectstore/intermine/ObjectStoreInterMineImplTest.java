@@ -52,6 +52,7 @@ import org.intermine.objectstore.query.QueryClass;
 import org.intermine.objectstore.query.QueryCloner;
 import org.intermine.objectstore.query.QueryCollectionReference;
 import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
 import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.Results;
 import org.intermine.objectstore.query.ResultsRow;
@@ -936,6 +937,59 @@ public class ObjectStoreInterMineImplTest extends ObjectStoreAbstractImplTestCas
         assertTrue(r5.isSingleBatch());
     }
 
+    public void testExecutePartitioned() throws Exception {
+        Query q = new Query();
+        QueryClass qc = new QueryClass(Employee.class);
+        QueryClass qc2 = new QueryClass(Department.class);
+        q.addFrom(qc);
+        q.addFrom(qc2);
+        q.addToSelect(qc);
+        q.addToSelect(qc2);
+        q.setConstraint(new ContainsConstraint(new QueryObjectReference(qc, "department"),
+                    ConstraintOp.CONTAINS, qc2));
+        List<Object> expected = new ArrayList<Object>(os.execute(q, 1000, true, true, true));
+        for (int partitions = 1; partitions < 5; partitions++) {
+            List<Object> got = new ArrayList<Object>();
+            Iterator<Object> iter = ((ObjectStoreInterMineImpl) os).executePartitioned(q,
+                    partitions, 2, true);
+            while (iter.hasNext()) {
+                got.add(iter.next());
+            }
+            assertEquals(expected, got);
+        }
+    }
+
+    public void testExecutePartitionedClose() throws Exception {
+        Query q = new Query();
+        QueryClass qc = new QueryClass(Employee.class);
+        q.addFrom(qc);
+        q.addToSelect(qc);
+        PartitionedResultsIterator iter = (PartitionedResultsIterator)
+            ((ObjectStoreInterMineImpl) os).executePartitioned(q, 2, 1, true);
+        assertTrue(iter.hasNext());
+        iter.next();
+        iter.close();
+        assertFalse(iter.hasNext());
+    }
+
+    public void testExecutePartitionedFailFast() throws Exception {
+        Query q = new Query();
+        QueryClass qc = new QueryClass(Employee.class);
+        q.addFrom(qc);
+        q.addToSelect(qc);
+        // With a batch size of one, the partition cannot fetch every row before this thread
+        // changes the data
+        Iterator<Object> iter = ((ObjectStoreInterMineImpl) os).executePartitioned(q, 1, 1, true);
+        storeDataWriter.store((Employee) data.get("EmployeeA1"));
+        try {
+            while (iter.hasNext()) {
+                iter.next();
+            }
+            fail("Expected: ConcurrentModificationException");
+        } catch (ConcurrentModificationException e) {
+        }
+    }
+
     public void testBatchesCacheSmallToLarge() throws Exception {
         Query q = new Query();
         QueryClass qc = new QueryClass(Company.class);
@@ -0,0 +1,176 @@
+package org.intermine.objectstore.intermine;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.intermine.metadata.ConstraintOp;
+import org.intermine.model.testmodel.Department;
+import org.intermine.model.testmodel.Employee;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryNode;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.objectstore.query.QueryValue;
+import org.intermine.objectstore.query.ResultsInfo;
+import org.intermine.objectstore.query.SimpleConstraint;
+
+/**
+ * Tests for the scheduling of ParallelPrecomputer, which do not need a database.
+ *
+ * @author Matthew Wakeling
+ */
+public class ParallelPrecomputerTest extends TestCase
+{
+    private RecordingPrecomputer pp;
+
+    public ParallelPrecomputerTest(String arg) {
+        super(arg);
+    }
+
+    public void setUp() throws Exception {
+        pp = new RecordingPrecomputer();
+    }
+
+    public void testConstraintsPreventDependency() throws Exception {
+        // The table of named employees does not have all the rows needed for the join
+        pp.precompute(Arrays.asList(job("named", namedEmployees("a1_", "x"), 10),
+                    job("join", join(null), 1000)));
+        assertEquals(Arrays.asList("join", "named"), pp.run);
+    }
+
+    public void testDependencyOrder() throws Exception {
+        // Both smaller queries help with the join, whatever their aliases, so they go first
+        pp.precompute(Arrays.asList(job("departments", departments(), 10),
+                    job("join", join("x"), 5000), job("named", namedEmployees("a1_", "x"), 20)));
+        assertEquals(Arrays.asList("named", "departments", "join"), pp.run);
+    }
+
+    public void testDifferentValuesPreventDependency() throws Exception {
+        pp.precompute(Arrays.asList(job("named", namedEmployees("a1_", "y"), 10),
+                    job("join", join("x"), 1000)));
+        assertEquals(Arrays.asList("join", "named"), pp.run);
+    }
+
+    public void testResume() throws Exception {
+        List<ParallelPrecomputer.Job> jobs = Arrays.asList(job("departments", departments(), 10),
+                job("join", join("x"), 5000), job("named", namedEmployees("a1_", "x"), 20));
+        pp.failing.add("named");
+        try {
+            pp.precompute(jobs);
+            fail("Expected exception");
+        } catch (ObjectStoreException e) {
+            // expected
+        }
+        // The jobs that depend on a failed job are still run
+        assertEquals(Arrays.asList("named", "departments", "join"), pp.run);
+
+        pp.failing.clear();
+        pp.run.clear();
+        pp.precompute(jobs);
+        assertEquals(Arrays.asList("named"), pp.run);
+        pp.run.clear();
+        pp.precompute(jobs);
+        assertEquals(new ArrayList<String>(), pp.run);
+    }
+
+    private ParallelPrecomputer.Job job(String key, Query q, long time) {
+        pp.times.put(q.toString(), new Long(time));
+        return new ParallelPrecomputer.Job(key, q, null, false, "test");
+    }
+
+    private static Query departments() {
+        Query q = new Query();
+        QueryClass qcDept = new QueryClass(Department.class);
+        q.addFrom(qcDept);
+        q.addToSelect(qcDept);
+        return q;
+    }
+
+    private static Query namedEmployees(String alias, String name) {
+        Query q = new Query();
+        QueryClass qcEmp = new QueryClass(Employee.class);
+        q.addFrom(qcEmp, alias);
+        q.addToSelect(qcEmp);
+        q.setConstraint(new SimpleConstraint(new QueryField(qcEmp, "name"), ConstraintOp.EQUALS,
+                    new QueryValue(name)));
+        return q;
+    }
+
+    private static Query join(String name) {
+        Query q = new Query();
+        QueryClass qcDept = new QueryClass(Department.class);
+        QueryClass qcEmp = new QueryClass(Employee.class);
+        q.addFrom(qcDept, "d");
+        q.addFrom(qcEmp, "e");
+        q.addToSelect(qcEmp);
+        q.addToSelect(qcDept);
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcEmp, "department"),
+                    ConstraintOp.CONTAINS, qcDept));
+        if (name != null) {
+            cs.addConstraint(new SimpleConstraint(new QueryField(qcEmp, "name"),
+                        ConstraintOp.EQUALS, new QueryValue(name)));
+        }
+        q.setConstraint(cs);
+        return q;
+    }
+
+    /**
+     * A ParallelPrecomputer with one thread, which records the jobs that it runs instead of
+     * creating tables.
+     */
+    private static class RecordingPrecomputer extends ParallelPrecomputer
+    {
+        List<String> run = new ArrayList<String>();
+        Set<String> failing = new HashSet<String>();
+        Map<String, Long> times = new HashMap<String, Long>();
+        Set<String> precomputed = new HashSet<String>();
+
+        public RecordingPrecomputer() {
+            super(null, 1);
+        }
+
+        @Override
+        protected ResultsInfo estimate(Query query) {
+            return new ResultsInfo(0, times.get(query.toString()).longValue(), 1000);
+        }
+
+        @Override
+        protected boolean isPrecomputed(Query query, boolean allFields, String category) {
+            return precomputed.contains(query.toString());
+        }
+
+        @Override
+        protected void precomputeQuery(String key, Query query,
+                Collection<? extends QueryNode> indexes,
+                boolean allFields, String category, int threadNo) throws ObjectStoreException {
+            run.add(key);
+            if (failing.contains(key)) {
+                throw new ObjectStoreException("Failed to precompute " + key);
+            }
+            precomputed.add(query.toString());
+        }
+    }
+}
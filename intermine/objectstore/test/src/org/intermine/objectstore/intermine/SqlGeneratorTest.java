@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -47,6 +48,7 @@ import org.intermine.objectstore.query.QueryCollectionReference;
 import org.intermine.objectstore.query.QueryExpression;
 import org.intermine.objectstore.query.QueryField;
 import org.intermine.objectstore.query.QueryFunction;
+import org.intermine.objectstore.query.QueryOrderable;
 import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.SimpleConstraint;
 import org.intermine.sql.Database;
@@ -893,6 +895,52 @@ public class SqlGeneratorTest extends SetupDataTestCase
         assertEquals("SELECT DISTINCT a1_.name AS a2_ FROM " + getRegisterOffset3() + " " + getRegisterOffset4() + " a1_.name < 'flibble' ORDER BY a1_.name DESC OFFSET 5", SqlGenerator.generate(q, 10, Integer.MAX_VALUE, schema, db, Collections.EMPTY_MAP));
     }
 
+    public void testRegisterKeyset() throws Exception {
+        DatabaseSchema schema = getSchema();
+        Query q = new Query();
+        QueryClass c1 = new QueryClass(Company.class);
+        q.addFrom(c1);
+        q.addToSelect(c1);
+        List<QueryOrderable> keyset = SqlGenerator.getKeysetOrderBy(q, schema);
+        assertEquals(Collections.singletonList(c1), keyset);
+        SqlGenerator.registerKeyset(q, 100, schema, db, keyset, Collections.singletonList((Object) new Integer(10)), new HashMap());
+        assertEquals(getRegisterOffset1() + " OFFSET 50", SqlGenerator.generate(q, 50, Integer.MAX_VALUE, schema, db, new HashMap()));
+        assertEquals(getRegisterOffset2() + "a1_.id > 10 ORDER BY a1_.id LIMIT 10", SqlGenerator.generate(q, 100, 10, schema, db, new HashMap()));
+        assertEquals(getRegisterOffset2() + "a1_.id > 10 ORDER BY a1_.id OFFSET 5", SqlGenerator.generate(q, 105, Integer.MAX_VALUE, schema, db, new HashMap()));
+        // An earlier key does not replace a later one
+        SqlGenerator.registerKeyset(q, 90, schema, db, keyset, Collections.singletonList((Object) new Integer(9)), new HashMap());
+        assertEquals(getRegisterOffset2() + "a1_.id > 10 ORDER BY a1_.id", SqlGenerator.generate(q, 100, Integer.MAX_VALUE, schema, db, new HashMap()));
+        SqlGenerator.registerKeyset(q, 110, schema, db, keyset, Collections.singletonList((Object) new Integer(20)), new HashMap());
+        assertEquals(getRegisterOffset2() + "a1_.id > 20 ORDER BY a1_.id", SqlGenerator.generate(q, 110, Integer.MAX_VALUE, schema, db, new HashMap()));
+        assertEquals(getRegisterOffset2() + "a1_.id > 10 ORDER BY a1_.id OFFSET 5", SqlGenerator.generate(q, 105, Integer.MAX_VALUE, schema, db, new HashMap()));
+    }
+
+    public void testGetKeysetOrderBy() throws Exception {
+        DatabaseSchema schema = getSchema();
+        Query q = new Query();
+        QueryClass qc = new QueryClass(Employee.class);
+        q.addFrom(qc);
+        QueryField f = new QueryField(qc, "name");
+        q.addToSelect(f);
+        // Names are not unique
+        assertNull(SqlGenerator.getKeysetOrderBy(q, schema));
+        q.addToSelect(qc);
+        // Names may be null
+        assertNull(SqlGenerator.getKeysetOrderBy(q, schema));
+
+        q = new Query();
+        qc = new QueryClass(Employee.class);
+        q.addFrom(qc);
+        f = new QueryField(qc, "age");
+        q.addToSelect(qc);
+        q.addToSelect(f);
+        q.addToOrderBy(f);
+        assertEquals(Arrays.asList(f, qc), SqlGenerator.getKeysetOrderBy(q, schema));
+        q.clearOrderBy();
+        q.addToOrderBy(new OrderDescending(f));
+        assertNull(SqlGenerator.getKeysetOrderBy(q, schema));
+    }
+
     public void testForPrecomp() throws Exception {
         DatabaseSchema schema = getSchema();
         Query q = (Query) queries.get("SelectSimpleObject");
@@ -35,4 +35,9 @@ public class TestParallelPrecomputer extends ParallelPrecomputer
             String category, int threadNo) {
         testQueries.add(query);
     }
+
+    @Override
+    protected boolean isPrecomputed(Query query, boolean allFields, String category) {
+        return false;
+    }
 }
@@ -0,0 +1,86 @@
+package org.intermine.objectstore.query;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import junit.framework.TestCase;
+
+import org.intermine.model.testmodel.Department;
+import org.intermine.objectstore.dummy.ObjectStoreDummyImpl;
+
+public class PrefetchManagerTest extends TestCase
+{
+    private ObjectStoreDummyImpl os;
+    private Query q;
+
+    public PrefetchManagerTest(String arg1) {
+        super(arg1);
+    }
+
+    public void setUp() throws Exception {
+        os = new ObjectStoreDummyImpl();
+        os.setResultsSize(100);
+        for (int i = 0; i < 100; i++) {
+            ResultsRow row = new ResultsRow();
+            row.add("" + i);
+            os.addRow(row);
+        }
+        q = new Query();
+        q.addFrom(new QueryClass(Department.class));
+    }
+
+    public void tearDown() throws Exception {
+        PrefetchManager.setLimits(8, 64, 8, 0.85);
+    }
+
+    public void testPrefetchWindow() throws Exception {
+        Results res = os.execute(q, 10, true, true, true);
+        ResultsBatches batches = res.getResultsBatches();
+        batches.prefetch(0, 3, true, true);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(10, batches.getBatch(i, true, true).size());
+        }
+        // Each batch was fetched once, either by a service thread or by this thread
+        assertEquals(3, os.getExecuteCalls());
+        assertFalse(batches.batches.containsKey(new Integer(3)));
+    }
+
+    public void testRefusedWhenTooManyPending() throws Exception {
+        PrefetchManager.setLimits(8, 0, 8, 0.85);
+        Results res = os.execute(q, 10, true, true, true);
+        int refused = PrefetchManager.getRefusedRequests();
+        assertFalse(PrefetchManager.addRequest(res.getResultsBatches(), 0, true, true));
+        assertEquals(refused + 1, PrefetchManager.getRefusedRequests());
+        assertEquals(0, os.getExecuteCalls());
+    }
+
+    public void testRefusedWhenMemoryTight() throws Exception {
+        PrefetchManager.setLimits(8, 64, 8, 0.0);
+        assertTrue(PrefetchManager.isMemoryTight());
+        Results res = os.execute(q, 10, true, true, true);
+        int refused = PrefetchManager.getRefusedRequests();
+        res.getResultsBatches().prefetch(0, 3, true, true);
+        // Requesting stops at the first refusal
+        assertEquals(refused + 1, PrefetchManager.getRefusedRequests());
+        assertEquals(0, os.getExecuteCalls());
+    }
+
+    public void testPrefetchOncePerBatch() throws Exception {
+        PrefetchManager.setLimits(8, 0, 8, 0.85);
+        Results res = os.execute(q, 10, true, true, true);
+        int refused = PrefetchManager.getRefusedRequests();
+        for (int i = 0; i < 30; i++) {
+            assertEquals("" + i, ((ResultsRow) res.get(i)).get(0));
+        }
+        // One request for each of batches 1, 2 and 3, rather than one for every row read
+        assertEquals(refused + 3, PrefetchManager.getRefusedRequests());
+        assertEquals(3, os.getExecuteCalls());
+    }
+}
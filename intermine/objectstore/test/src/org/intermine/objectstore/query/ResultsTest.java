@@ -22,6 +22,7 @@ import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreLimitReachedException;
 import org.intermine.objectstore.dummy.ObjectStoreDummyImpl;
 import org.intermine.model.testmodel.Department;
+import org.intermine.util.CacheBudget;
 
 import org.apache.log4j.Logger;
 
@@ -272,6 +273,37 @@ public class ResultsTest extends TestCase
         assertTrue("Expected size to fetch one batch, but fetched " + res.resultsBatches.batches.size() + ".", res.resultsBatches.batches.size() == 1);
     }
 
+    public void testBatchesCountedAgainstBudget() throws Exception {
+        Query q = new Query();
+        q.addFrom(new QueryClass(Department.class));
+        ObjectStoreDummyImpl os2 = new ObjectStoreDummyImpl();
+        os2.setResultsSize(5000);
+
+        Results res = os2.execute(q, 100, true, true, true);
+        CacheBudget budget = new CacheBudget(Long.MAX_VALUE);
+        res.getResultsBatches().setCacheBudget(budget);
+        res.get(0);
+        long oneBatch = budget.getWeight();
+        assertTrue(oneBatch > 0);
+        res.get(100);
+        assertEquals(2 * oneBatch, budget.getWeight());
+
+        // A budget with room for three batches keeps only the three most recently used
+        budget.setMaxWeight(3 * oneBatch);
+        int count = 0;
+        Iterator iter = res.iterator();
+        while (iter.hasNext()) {
+            iter.next();
+            count++;
+            assertTrue(res.getResultsBatches().batches.size() <= 3);
+        }
+        assertEquals(5000, count);
+        assertTrue(budget.getWeight() <= 3 * oneBatch);
+
+        res.getResultsBatches().clearBatches();
+        assertEquals(0, budget.getWeight());
+    }
+
     public void testIteratorPropagatesObjectStoreException() throws Exception {
         LOG.info("testIteratorPropagatesObjectStoreException starting");
         Query q = new Query();
@@ -10,6 +10,9 @@ package org.intermine.sql.precompute;
  *
  */
 
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 public class OptimiserCacheTest extends TestCase
@@ -28,4 +31,29 @@ public class OptimiserCacheTest extends TestCase
         assertNull(cache.lookup("original1", 10));
         assertNull(cache.lookup("somethingelse", 1000));
     }
+
+    public void testNormalise() throws Exception {
+        assertEquals("SELECT a FROM b WHERE c = 'x  y'",
+                OptimiserCache.normalise("  SELECT a\n  FROM b\tWHERE c = 'x  y'  "));
+        OptimiserCache cache = new OptimiserCache();
+        cache.addCacheLine("SELECT a  FROM b", "SELECT a FROM precomp1", 1000);
+        assertEquals("SELECT a FROM precomp1", cache.lookup("SELECT a\nFROM b", 1000));
+        assertEquals("EXPLAIN SELECT a FROM precomp1", cache.lookup("EXPLAIN SELECT a FROM b",
+                    1000));
+    }
+
+    public void testEncode() throws Exception {
+        List<OptimiserCacheLine> lines = Arrays.asList(
+                new OptimiserCacheLine("SELECT a FROM precomp1", 1000, "SELECT a FROM b"),
+                new OptimiserCacheLine("SELECT '\t\\' FROM precomp2", 10, "SELECT '\t\\' FROM c"));
+        String encoded = OptimiserCache.encode("sig", lines);
+        assertTrue(OptimiserCache.decode("othersig", encoded).isEmpty());
+        List<OptimiserCacheLine> decoded = OptimiserCache.decode("sig", encoded);
+        assertEquals(2, decoded.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(lines.get(i).getOriginal(), decoded.get(i).getOriginal());
+            assertEquals(lines.get(i).getOptimised(), decoded.get(i).getOptimised());
+            assertEquals(lines.get(i).getLimit(), decoded.get(i).getLimit());
+        }
+    }
 }
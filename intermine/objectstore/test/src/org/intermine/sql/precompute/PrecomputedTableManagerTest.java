@@ -13,11 +13,18 @@ package org.intermine.sql.precompute;
 import junit.framework.TestCase;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.Statement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.intermine.sql.Database;
 import org.intermine.sql.DatabaseFactory;
@@ -296,4 +303,195 @@ public class PrecomputedTableManagerTest extends TestCase
             con.close();
         }
     }
+
+    public void testPlanMaintenance() throws Exception {
+        Map<String, Set<Integer>> ids = new HashMap<String, Set<Integer>>();
+        ids.put("maintaintest", new HashSet<Integer>(Arrays.asList(1, 10)));
+        Set<String> tables = Collections.singleton("maintaintest");
+
+        PrecomputedTable pt = new PrecomputedTable(new Query("SELECT maintaintest.id AS a1_id,"
+                    + " maintaintest.value AS a1_value FROM maintaintest"), "", "precomp", null,
+                null);
+        PrecomputedTableManager.Maintenance maintenance = new PrecomputedTableManager.Maintenance();
+        PrecomputedTableManager.planMaintenance(pt, tables, ids, maintenance);
+        assertFalse(maintenance.isRebuild());
+        assertEquals(Collections.singletonMap("a1_id", new TreeSet<Integer>(Arrays.asList(1, 10))),
+                maintenance.getIds());
+
+        maintenance = new PrecomputedTableManager.Maintenance();
+        PrecomputedTableManager.planMaintenance(pt, tables, new HashMap<String, Set<Integer>>(),
+                maintenance);
+        assertTrue(maintenance.isRebuild());
+
+        pt = new PrecomputedTable(new Query("SELECT DISTINCT maintaintest.id AS a1_id,"
+                    + " maintaintest.value AS a1_value FROM maintaintest"), "", "precomp", null,
+                null);
+        maintenance = new PrecomputedTableManager.Maintenance();
+        PrecomputedTableManager.planMaintenance(pt, tables, ids, maintenance);
+        assertTrue(maintenance.isRebuild());
+
+        pt = new PrecomputedTable(new Query("SELECT maintaintest.value AS a1_value FROM"
+                    + " maintaintest"), "", "precomp", null, null);
+        maintenance = new PrecomputedTableManager.Maintenance();
+        PrecomputedTableManager.planMaintenance(pt, tables, ids, maintenance);
+        assertTrue(maintenance.isRebuild());
+    }
+
+    public void testMaintainAffected() throws Exception {
+        Connection con = database.getConnection();
+        con.setAutoCommit(true);
+        PrecomputedTableManager ptm = new PrecomputedTableManager(database);
+        Statement stmt = con.createStatement();
+        try {
+            stmt.execute("CREATE TABLE maintaintest(id int, value int)");
+            for (int i = 1; i <= 10; i++) {
+                stmt.execute("INSERT INTO maintaintest VALUES(" + i + ", " + (i * 10) + ")");
+            }
+            String sql = "SELECT maintaintest.id AS a1_id, maintaintest.value AS a1_value FROM"
+                + " maintaintest WHERE maintaintest.value < 100";
+            PrecomputedTable pt = new PrecomputedTable(new Query(sql), sql, "precomp_maintain",
+                    "test", con);
+            ptm.add(pt);
+            stmt.execute("DELETE FROM maintaintest WHERE id = 1");
+            stmt.execute("UPDATE maintaintest SET value = 5 WHERE id = 10");
+
+            Map<String, Set<Integer>> ids = new HashMap<String, Set<Integer>>();
+            ids.put("maintaintest", new HashSet<Integer>(Arrays.asList(1, 10)));
+            ptm.maintainAffected(Collections.singleton("maintaintest"), ids, false);
+            assertNull(ptm.lookupSql("test", sql));
+            ptm.waitForMaintenance();
+            assertEquals(pt, ptm.lookupSql("test", sql));
+
+            ResultSet r = stmt.executeQuery("SELECT a1_id FROM precomp_maintain ORDER BY a1_id");
+            List<Integer> got = new ArrayList<Integer>();
+            while (r.next()) {
+                got.add(new Integer(r.getInt(1)));
+            }
+            assertEquals(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9, 10), got);
+            ptm.delete(pt);
+        } finally {
+            stmt.execute("DROP TABLE maintaintest");
+            stmt.execute("DROP TABLE precompute_index");
+            con.close();
+        }
+    }
+
+    public void testWithdrawIsRecorded() throws Exception {
+        Connection con = database.getConnection();
+        con.setAutoCommit(true);
+        PrecomputedTableManager ptm = new PrecomputedTableManager(database);
+        Statement stmt = con.createStatement();
+        try {
+            stmt.execute("CREATE TABLE maintaintest(id int, value int)");
+            for (int i = 1; i <= 10; i++) {
+                stmt.execute("INSERT INTO maintaintest VALUES(" + i + ", " + (i * 10) + ")");
+            }
+            String sql = "SELECT maintaintest.id AS a1_id, maintaintest.value AS a1_value FROM"
+                + " maintaintest WHERE maintaintest.value < 100";
+            PrecomputedTable pt = new PrecomputedTable(new Query(sql), sql, "precomp_maintain",
+                    "test", con);
+            ptm.add(pt);
+            assertTrue(isRegistered(stmt, "precomp_maintain"));
+
+            ptm.withdrawAffected(Collections.singleton("maintaintest"));
+            stmt.execute("DELETE FROM maintaintest WHERE id = 1");
+            // A manager started now, as after a restart, must not use the stale table
+            assertFalse(isRegistered(stmt, "precomp_maintain"));
+            assertNull(new PrecomputedTableManager(database).lookupSql("test", sql));
+
+            Map<String, Set<Integer>> ids = new HashMap<String, Set<Integer>>();
+            ids.put("maintaintest", Collections.singleton(new Integer(1)));
+            ptm.maintainAffected(Collections.singleton("maintaintest"), ids, true);
+            ptm.waitForMaintenance();
+            assertEquals(pt, ptm.lookupSql("test", sql));
+            assertTrue(isRegistered(stmt, "precomp_maintain"));
+            assertNotNull(new PrecomputedTableManager(database).lookupSql("test", sql));
+            assertEquals(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9), getIds(stmt));
+            ptm.delete(pt);
+        } finally {
+            stmt.execute("DROP TABLE maintaintest");
+            stmt.execute("DROP TABLE precompute_index");
+            con.close();
+        }
+    }
+
+    public void testRebuild() throws Exception {
+        Connection con = database.getConnection();
+        con.setAutoCommit(true);
+        PrecomputedTableManager ptm = new PrecomputedTableManager(database);
+        Statement stmt = con.createStatement();
+        try {
+            stmt.execute("CREATE TABLE maintaintest(id int, value int)");
+            for (int i = 1; i <= 10; i++) {
+                stmt.execute("INSERT INTO maintaintest VALUES(" + i + ", " + (i * 10) + ")");
+            }
+            String sql = "SELECT maintaintest.id AS a1_id, maintaintest.value AS a1_value FROM"
+                + " maintaintest WHERE maintaintest.value < 100";
+            PrecomputedTable pt = new PrecomputedTable(new Query(sql), sql, "precomp_maintain",
+                    "test", con);
+            ptm.add(pt, Collections.singleton("a1_value"));
+            Set<String> indexes = getIndexes(stmt, "precomp_maintain");
+            assertFalse(indexes.isEmpty());
+
+            stmt.execute("DELETE FROM maintaintest WHERE id = 1");
+            stmt.execute("UPDATE maintaintest SET value = 5 WHERE id = 10");
+            // No ids are known, so the whole table is rebuilt
+            ptm.maintainAffected(Collections.singleton("maintaintest"),
+                    new HashMap<String, Set<Integer>>(), false);
+            ptm.waitForMaintenance();
+            assertEquals(pt, ptm.lookupSql("test", sql));
+            assertTrue(isRegistered(stmt, "precomp_maintain"));
+
+            assertEquals(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9, 10), getIds(stmt));
+            assertEquals(indexes, getIndexes(stmt, "precomp_maintain"));
+            assertFalse(DatabaseUtil.tableExists(con, "precomp_maintain_rebuild"));
+            ptm.delete(pt);
+        } finally {
+            stmt.execute("DROP TABLE maintaintest");
+            stmt.execute("DROP TABLE precompute_index");
+            con.close();
+        }
+    }
+
+    public void testCopyIndexDefinition() throws Exception {
+        assertEquals("CREATE INDEX precomp_rebuild_0 ON precomp_rebuild USING btree (a1_id)",
+                PrecomputedTableManager.copyIndexDefinition("CREATE INDEX precomp_a1_id ON"
+                    + " public.precomp USING btree (a1_id)", "precomp_rebuild_0",
+                    "precomp_rebuild"));
+        assertEquals("CREATE UNIQUE INDEX x ON y USING btree (lower(a1_name) text_pattern_ops)",
+                PrecomputedTableManager.copyIndexDefinition("CREATE UNIQUE INDEX precomp_lower"
+                    + " ON precomp USING btree (lower(a1_name) text_pattern_ops)", "x", "y"));
+        try {
+            PrecomputedTableManager.copyIndexDefinition("nonsense", "x", "y");
+            fail("Expected SQLException");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+
+    private static boolean isRegistered(Statement stmt, String name) throws SQLException {
+        ResultSet r = stmt.executeQuery("SELECT COUNT(*) FROM precompute_index WHERE name = '"
+                + name + "'");
+        r.next();
+        return r.getInt(1) > 0;
+    }
+
+    private static List<Integer> getIds(Statement stmt) throws SQLException {
+        ResultSet r = stmt.executeQuery("SELECT a1_id FROM precomp_maintain ORDER BY a1_id");
+        List<Integer> got = new ArrayList<Integer>();
+        while (r.next()) {
+            got.add(new Integer(r.getInt(1)));
+        }
+        return got;
+    }
+
+    private static Set<String> getIndexes(Statement stmt, String table) throws SQLException {
+        ResultSet r = stmt.executeQuery("SELECT indexname FROM pg_indexes WHERE tablename = '"
+                + table + "'");
+        Set<String> retval = new TreeSet<String>();
+        while (r.next()) {
+            retval.add(r.getString(1));
+        }
+        return retval;
+    }
 }
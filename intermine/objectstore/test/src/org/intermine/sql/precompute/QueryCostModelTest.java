@@ -0,0 +1,72 @@
+package org.intermine.sql.precompute;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.intermine.sql.query.Query;
+
+public class QueryCostModelTest extends TestCase
+{
+    private QueryCostModel model;
+
+    public QueryCostModelTest(String arg1) {
+        super(arg1);
+    }
+
+    public void setUp() {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        sizes.put("small", new Long(100));
+        sizes.put("medium", new Long(50000));
+        sizes.put("huge", new Long(100000000));
+        model = new QueryCostModel(sizes);
+    }
+
+    public void testEstimate() throws Exception {
+        assertEquals(100, model.estimate(new Query("SELECT a.id FROM small AS a"), null));
+        assertEquals(50100, model.estimate(new Query("SELECT a.id FROM small AS a, medium AS b"
+                        + " WHERE a.id = b.id"), null));
+        assertEquals(50100, model.estimate(new Query("SELECT a.id FROM (SELECT c.id FROM small"
+                        + " AS c) AS a, Medium AS b WHERE a.id = b.id"), null));
+        assertEquals(-1, model.estimate(new Query("SELECT a.id FROM small AS a, unknown AS b"),
+                    null));
+    }
+
+    public void testPrune() throws Exception {
+        BestQueryExplainer bq = new BestQueryExplainer();
+        bq.costModel = model;
+        BestQueryExplainer.Candidate huge = bq.new Candidate(
+                new Query("SELECT a.id FROM huge AS a, small AS b WHERE a.id = b.id"));
+        BestQueryExplainer.Candidate unknown = bq.new Candidate(
+                new Query("SELECT a.id FROM unknown AS a, small AS b WHERE a.id = b.id"));
+        BestQueryExplainer.Candidate medium = bq.new Candidate(
+                new Query("SELECT a.id FROM medium AS a, small AS b WHERE a.id = b.id"));
+        BestQueryExplainer.Candidate small = bq.new Candidate(
+                new Query("SELECT a.id FROM small AS a, small AS b WHERE a.id = b.id"));
+        List<BestQueryExplainer.Candidate> candidates
+            = new ArrayList<BestQueryExplainer.Candidate>();
+        candidates.add(huge);
+        candidates.add(unknown);
+        candidates.add(medium);
+        candidates.add(small);
+        List<BestQueryExplainer.Candidate> pruned = bq.prune(candidates);
+        assertEquals(3, pruned.size());
+        assertSame(small, pruned.get(0));
+        assertSame(medium, pruned.get(1));
+        assertSame(unknown, pruned.get(2));
+        assertEquals(1, bq.getPrunedCount());
+    }
+}
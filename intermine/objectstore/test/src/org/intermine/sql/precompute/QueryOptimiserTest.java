@@ -90,6 +90,20 @@ public class QueryOptimiserTest extends TestCase
         assertTrue(!"alias1".equals(t7.getAlias()));
     }
 
+    public void testUsesTemporaryTables() throws Exception {
+        Query pq1 = new Query("SELECT mytable.a FROM mytable");
+        PrecomputedTable pt1 = new PrecomputedTable(pq1, pq1.getSQLString(), "precomp1", null, con);
+        PrecomputedTable pt2 = new PrecomputedTable(pq1, pq1.getSQLString(),
+                "temporary_precomp_12", "goFaster", con);
+        Set<PrecomputedTable> precomps = new HashSet<PrecomputedTable>();
+        precomps.add(pt1);
+        assertFalse(QueryOptimiser.usesTemporaryTables("SELECT mytable.a FROM mytable", precomps));
+        assertTrue(QueryOptimiser.usesTemporaryTables("SELECT mytable.a FROM mytable, "
+                    + "Employee_bag_42 AS bag WHERE mytable.a = bag.value", precomps));
+        precomps.add(pt2);
+        assertTrue(QueryOptimiser.usesTemporaryTables("SELECT mytable.a FROM mytable", precomps));
+    }
+
     public void testCompareConstraints() throws Exception {
         Set equalsSet = new HashSet();
         assertTrue(QueryOptimiser.compareConstraints(twoSameTableQuery.getWhere(),
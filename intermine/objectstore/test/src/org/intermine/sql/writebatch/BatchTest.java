@@ -0,0 +1,183 @@
+package org.intermine.sql.writebatch;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the adaptive sizing and statistics of Batch, which do not need a database.
+ *
+ * @author Matthew Wakeling
+ */
+public class BatchTest extends TestCase
+{
+    private static final String[] COL_NAMES = new String[] {"col1", "col2"};
+
+    public BatchTest(String arg) {
+        super(arg);
+    }
+
+    public void testRowCount() throws Exception {
+        TableBatch table = new TableBatch();
+        table.addRow(new Integer(1), COL_NAMES, new Object[] {new Integer(1), "a"});
+        table.addRow(new Integer(1), COL_NAMES, new Object[] {new Integer(1), "b"});
+        table.addRow(new Integer(2), COL_NAMES, new Object[] {new Integer(2), "c"});
+        assertEquals(3, table.getRowCount());
+        // Replaces both inserts for id 1 with a delete
+        table.deleteRow("col1", new Integer(1));
+        assertEquals(2, table.getRowCount());
+        table.deleteRow("col1", new Integer(1));
+        assertEquals(2, table.getRowCount());
+        table.clear();
+        assertEquals(0, table.getRowCount());
+    }
+
+    public void testStatisticsAndSizing() throws Exception {
+        SlowWriter writer = new SlowWriter();
+        Batch batch = new Batch(writer);
+        batch.setTargetFlushTime(100);
+        assertEquals(0, batch.getPendingSize());
+        // Each row is counted as 4 + 1000 * 2 + 12 + 16 = 2032 bytes
+        String wide = new String(new char[1000]);
+        for (int i = 0; i < 400; i++) {
+            batch.addRow(null, "table1", new Integer(i), COL_NAMES,
+                    new Object[] {new Integer(i), wide});
+        }
+        batch.addRow(null, "table2", new Integer(1), COL_NAMES,
+                new Object[] {new Integer(1), wide});
+        // This waits for the flusher to finish, and record the flush
+        batch.flush(null);
+        Map<String, TableStatistics> stats = batch.getTableStatistics();
+        assertEquals(2, stats.size());
+        assertEquals(400, stats.get("table1").getRows());
+        assertEquals(400 * 2032, stats.get("table1").getBytes());
+        assertEquals(1, stats.get("table2").getRows());
+        assertEquals(1, stats.get("table1").getFlushes());
+        assertTrue(stats.get("table1").getTime() > stats.get("table2").getTime());
+        // The flush wrote under 1MB in 500ms, so 100ms of writing is below the minimum size
+        assertEquals(1000000, batch.getFlushBatchSize());
+        assertEquals(0, batch.getPendingSize());
+        assertFalse(batch.isBackedUp());
+        batch.close(null);
+    }
+
+    public void testWaitWhileBackedUp() throws Exception {
+        Batch batch = new Batch(new SlowWriter());
+        batch.setTargetFlushTime(100);
+        String wide = new String(new char[1000]);
+        for (int i = 0; i < 400; i++) {
+            batch.addRow(null, "table1", new Integer(i), COL_NAMES,
+                    new Object[] {new Integer(i), wide});
+        }
+        batch.flush(null);
+        assertEquals(1000000, batch.getFlushBatchSize());
+        assertEquals(0, batch.waitWhileBackedUp());
+        // The first 50 rows start an opportunistic flush, and the other 300 stay in the batch
+        for (int i = 0; i < 350; i++) {
+            batch.addRow(null, "table1", new Integer(i), COL_NAMES,
+                    new Object[] {new Integer(i), wide});
+        }
+        assertTrue(batch.isBackedUp());
+        assertEquals(350 * 2032, batch.getPendingSize());
+        long waited = batch.waitWhileBackedUp();
+        assertTrue(waited > 0);
+        assertFalse(batch.isBackedUp());
+        assertEquals(300 * 2032, batch.getPendingSize());
+        assertEquals(waited, batch.getTimeSpentBackedUp());
+        assertEquals(0, batch.waitWhileBackedUp());
+        batch.close(null);
+    }
+
+    public void testPartialCommitIsFatal() throws Exception {
+        Batch batch = new Batch(new PartialCommitWriter());
+        batch.addRow(null, "table1", new Integer(1), COL_NAMES,
+                new Object[] {new Integer(1), "a"});
+        try {
+            batch.flush(null);
+            fail("Expected PartialCommitException");
+        } catch (PartialCommitException e) {
+            assertEquals(Collections.singletonList("writebatch_1"), e.getPreparedIds());
+        }
+        // Clearing the batch does not discard the problem
+        batch.clear();
+        batch.addRow(null, "table1", new Integer(2), COL_NAMES,
+                new Object[] {new Integer(2), "b"});
+        try {
+            batch.flush(null);
+            fail("Expected PartialCommitException");
+        } catch (PartialCommitException e) {
+            assertEquals(Collections.singletonList("writebatch_1"), e.getPreparedIds());
+        }
+        batch.close(null);
+    }
+
+    /**
+     * A BatchWriter whose flush leaves a prepared transaction uncommitted.
+     */
+    private static class PartialCommitWriter implements BatchWriter
+    {
+        public List<FlushJob> write(Connection con, Map<String, ? extends Table> tables,
+                Set<String> filter) throws SQLException {
+            List<FlushJob> retval = new ArrayList<FlushJob>();
+            for (Table table : tables.values()) {
+                table.clear();
+            }
+            retval.add(new FlushJob() {
+                public void flush() throws SQLException {
+                    throw new PartialCommitException(Collections.singletonList("writebatch_1"),
+                            new SQLException("Connection lost"));
+                }
+            });
+            return retval;
+        }
+
+        public void updateStatistics(Map<String, Integer> activity, Connection con) {
+        }
+    }
+
+    /**
+     * A BatchWriter that takes half a second to flush, without writing anything.
+     */
+    private static class SlowWriter implements BatchWriter
+    {
+        public List<FlushJob> write(Connection con, Map<String, ? extends Table> tables,
+                Set<String> filter) throws SQLException {
+            List<FlushJob> retval = new ArrayList<FlushJob>();
+            boolean empty = true;
+            for (Table table : tables.values()) {
+                empty = empty && (table.getRowCount() == 0);
+                table.clear();
+            }
+            if (!empty) {
+                retval.add(new FlushJob() {
+                    public void flush() {
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                });
+            }
+            return retval;
+        }
+
+        public void updateStatistics(Map<String, Integer> activity, Connection con) {
+        }
+    }
+}
@@ -16,6 +16,8 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.intermine.sql.Database;
 import org.intermine.sql.DatabaseFactory;
@@ -37,6 +39,85 @@ public class BatchWriterPostgresCopyImplTest extends BatchWriterTestCase
         return bw;
     }
 
+    public void testParallelCommit() throws Exception {
+        Database db = DatabaseFactory.getDatabase("db.unittest");
+        Connection con = db.getConnection();
+        con.setAutoCommit(false);
+        try {
+            Statement s = con.createStatement();
+            try {
+                s.execute("DROP TABLE table1");
+                s.execute("DROP TABLE table2");
+            } catch (SQLException e) {
+                con.rollback();
+            }
+            s.addBatch("CREATE TABLE table1(col1 int, col2 int)");
+            s.addBatch("CREATE TABLE table2(col1 int, col2 int)");
+            s.addBatch("INSERT INTO table2 VALUES (1, 101)");
+            s.executeBatch();
+            con.commit();
+            s = null;
+            Batch batch = new Batch(getWriter());
+            batch.setParallelCopy(db, 3);
+            assertTrue(batch.isParallelCopy());
+            String[] colNames = new String[] {"col1", "col2"};
+            for (int i = 2; i < 1000; i++) {
+                batch.addRow(con, "table1", new Integer(i), colNames,
+                        new Object[] {new Integer(i), new Integer(200 + i)});
+                batch.addRow(con, "table2", new Integer(i), colNames,
+                        new Object[] {new Integer(i), new Integer(100 + i)});
+            }
+            // A table with deletes is written over the main connection
+            batch.deleteRow(con, "table2", "col1", new Integer(1));
+            batch.batchCommit(con);
+            batch.close(con);
+            con.commit();
+            Connection other = db.getConnection();
+            try {
+                s = other.createStatement();
+                Map<Integer, Integer> counts = new TreeMap<Integer, Integer>();
+                ResultSet r = s.executeQuery("SELECT COUNT(*) FROM table1");
+                r.next();
+                counts.put(new Integer(1), new Integer(r.getInt(1)));
+                r = s.executeQuery("SELECT COUNT(*) FROM table2");
+                r.next();
+                counts.put(new Integer(2), new Integer(r.getInt(1)));
+                Map<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+                expected.put(new Integer(1), new Integer(998));
+                expected.put(new Integer(2), new Integer(998));
+                assertEquals(expected, counts);
+                // No prepared transaction of the parallel COPY is left behind
+                r = s.executeQuery("SELECT COUNT(*) FROM pg_prepared_xacts"
+                        + " WHERE gid LIKE 'writebatch%'");
+                r.next();
+                assertEquals(0, r.getInt(1));
+            } finally {
+                other.close();
+            }
+        } catch (SQLException e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            while (e != null) {
+                e.printStackTrace(pw);
+                e = e.getNextException();
+            }
+            pw.flush();
+            throw new Exception(sw.toString());
+        } finally {
+            try {
+                Statement s = con.createStatement();
+                s.execute("DROP TABLE table1");
+                s.execute("DROP TABLE table2");
+                con.commit();
+            } catch (Exception e) {
+            }
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
     /*
      * This test no longer works because we throttle analyses to once every ten minutes at most.
      *
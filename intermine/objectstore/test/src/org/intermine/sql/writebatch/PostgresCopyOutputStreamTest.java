@@ -0,0 +1,129 @@
+package org.intermine.sql.writebatch;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.postgresql.copy.CopyIn;
+
+public class PostgresCopyOutputStreamTest extends TestCase
+{
+    public PostgresCopyOutputStreamTest(String arg) {
+        super(arg);
+    }
+
+    public void testChunks() throws Exception {
+        DummyCopyIn copyIn = new DummyCopyIn();
+        PostgresCopyOutputStream out = new PostgresCopyOutputStream(copyIn);
+        PostgresDataOutputStream dos = new PostgresDataOutputStream(out);
+        byte[] expected = new byte[PostgresCopyOutputStream.CHUNK_SIZE * 2 + 100];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+        }
+        dos.write(expected, 0, 10);
+        for (int i = 10; i < PostgresCopyOutputStream.CHUNK_SIZE + 10; i++) {
+            dos.writeByte(expected[i]);
+        }
+        dos.write(expected, PostgresCopyOutputStream.CHUNK_SIZE + 10,
+                expected.length - PostgresCopyOutputStream.CHUNK_SIZE - 10);
+        assertEquals(2, copyIn.chunkSizes.size());
+        assertFalse(copyIn.ended);
+        dos.close();
+        assertTrue(copyIn.ended);
+        assertEquals(Arrays.asList(new Integer(PostgresCopyOutputStream.CHUNK_SIZE),
+                    new Integer(PostgresCopyOutputStream.CHUNK_SIZE), new Integer(100)),
+                copyIn.chunkSizes);
+        assertTrue(Arrays.equals(expected, copyIn.data.toByteArray()));
+        assertEquals(expected.length, out.getWritten());
+        // Cancelling after close does nothing
+        out.cancel();
+        assertFalse(copyIn.cancelled);
+    }
+
+    public void testCancel() throws Exception {
+        DummyCopyIn copyIn = new DummyCopyIn();
+        PostgresCopyOutputStream out = new PostgresCopyOutputStream(copyIn);
+        out.write(1);
+        out.cancel();
+        assertTrue(copyIn.cancelled);
+        assertFalse(copyIn.ended);
+        assertEquals(0, copyIn.data.size());
+    }
+
+    public void testError() throws Exception {
+        DummyCopyIn copyIn = new DummyCopyIn();
+        copyIn.fail = true;
+        PostgresCopyOutputStream out = new PostgresCopyOutputStream(copyIn);
+        out.write(1);
+        try {
+            out.close();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+    }
+
+    private static class DummyCopyIn implements CopyIn
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        List<Integer> chunkSizes = new ArrayList<Integer>();
+        boolean ended = false;
+        boolean cancelled = false;
+        boolean fail = false;
+
+        public void writeToCopy(byte[] buf, int off, int size) throws SQLException {
+            if (fail) {
+                throw new SQLException("Failed");
+            }
+            data.write(buf, off, size);
+            chunkSizes.add(new Integer(size));
+        }
+
+        public void flushCopy() {
+        }
+
+        public long endCopy() {
+            ended = true;
+            return 0;
+        }
+
+        public int getFieldCount() {
+            return 0;
+        }
+
+        public int getFormat() {
+            return 1;
+        }
+
+        public int getFieldFormat(int field) {
+            return 1;
+        }
+
+        public boolean isActive() {
+            return !(ended || cancelled);
+        }
+
+        public void cancelCopy() {
+            cancelled = true;
+        }
+
+        public long getHandledRowCount() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.TestCase;
+
+public class BloomFilterTest extends TestCase
+{
+    public BloomFilterTest(String arg1) {
+        super(arg1);
+    }
+
+    public void testNoFalseNegatives() throws Exception {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("Gene" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.contains("Gene" + i));
+        }
+        assertEquals(10000, filter.getCount());
+        assertFalse(filter.isSaturated());
+        filter.add("Gene10000");
+        assertTrue(filter.isSaturated());
+    }
+
+    public void testFalsePositiveRate() throws Exception {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("Gene" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.contains("Protein" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 2000);
+    }
+
+    public void testTypes() throws Exception {
+        BloomFilter filter = new BloomFilter(100, 0.001);
+        filter.add(new Integer(42));
+        filter.add(Boolean.TRUE);
+        filter.add(null);
+        assertTrue(filter.contains(new Integer(42)));
+        assertTrue(filter.contains(new Long(42)));
+        assertTrue(filter.contains(Boolean.TRUE));
+        assertTrue(filter.contains(null));
+        assertFalse(filter.contains(new Integer(43)));
+        assertFalse(filter.contains(Boolean.FALSE));
+    }
+
+    public void testReadWrite() throws Exception {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("Gene" + i);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(baos));
+        BloomFilter read = BloomFilter.read(new DataInputStream(new ByteArrayInputStream(
+                        baos.toByteArray())));
+        assertEquals(filter.toString(), read.toString());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(filter.contains("Gene" + i), read.contains("Gene" + i));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BoundedCacheMapTest extends TestCase
+{
+    public BoundedCacheMapTest(String arg1) {
+        super(arg1);
+    }
+
+    public void testBasic() throws Exception {
+        BoundedCacheMap<Integer, Integer> cm = new BoundedCacheMap<Integer, Integer>("test", 100,
+                BoundedCacheMap.Policy.LRU);
+
+        cm.put(new Integer(5), new Integer(40));
+        cm.put(new Integer(763), new Integer(67));
+        cm.put(new Integer(2), null);
+
+        assertEquals(new Integer(40), cm.get(new Integer(5)));
+        assertEquals(new Integer(67), cm.get(new Integer(763)));
+        assertNull(cm.get(new Integer(2)));
+        assertTrue(cm.containsKey(new Integer(2)));
+        assertFalse(cm.containsKey(new Integer(3)));
+        assertEquals(3, cm.size());
+
+        assertNull(cm.remove(new Integer(3)));
+        assertEquals(new Integer(40), cm.remove(new Integer(5)));
+        assertFalse(cm.containsKey(new Integer(5)));
+        assertEquals(2, cm.size());
+        assertEquals(2, cm.getWeight());
+
+        cm.clear();
+        assertTrue(cm.isEmpty());
+        assertEquals(0, cm.getWeight());
+        assertEquals(3, cm.getHitCount());
+        assertEquals(0, cm.getMissCount());
+    }
+
+    public void testMaxEntries() throws Exception {
+        BoundedCacheMap<Integer, Integer> cm = new BoundedCacheMap<Integer, Integer>("test", 50,
+                BoundedCacheMap.Policy.LRU);
+        for (int i = 0; i < 1000; i++) {
+            cm.put(new Integer(i), new Integer(i));
+        }
+        assertEquals(50, cm.size());
+        assertEquals(50, cm.getWeight());
+        assertEquals(950, cm.getEvictionCount());
+        assertTrue("Expected last entry to be present", cm.containsKey(new Integer(999)));
+    }
+
+    public void testWeigherAndListener() throws Exception {
+        BoundedCacheMap<Integer, byte[]> cm = new BoundedCacheMap<Integer, byte[]>("test", 1000,
+                BoundedCacheMap.Policy.LRU, new BoundedCacheMap.Weigher<Integer, byte[]>() {
+                    public long weigh(Integer key, byte[] value) {
+                        return value.length;
+                    }
+                });
+        final List<Integer> evicted = new ArrayList<Integer>();
+        cm.setEvictionListener(new BoundedCacheMap.EvictionListener<Integer, byte[]>() {
+            public void evicted(Integer key, byte[] value) {
+                evicted.add(key);
+            }
+        });
+        for (int i = 0; i < 20; i++) {
+            cm.put(new Integer(i), new byte[100]);
+        }
+        assertTrue(cm.getWeight() <= 1000);
+        assertEquals(cm.size() * 100, cm.getWeight());
+        assertEquals(20 - cm.size(), evicted.size());
+        assertEquals(evicted.size(), cm.getEvictionCount());
+
+        // A single entry larger than the cache is evicted immediately
+        cm.put(new Integer(100), new byte[2000]);
+        assertFalse(cm.containsKey(new Integer(100)));
+    }
+
+    public void testReweigh() throws Exception {
+        BoundedCacheMap<Integer, List<Object>> cm = new BoundedCacheMap<Integer, List<Object>>(
+                "test", 10, BoundedCacheMap.Policy.LRU,
+                new BoundedCacheMap.Weigher<Integer, List<Object>>() {
+                    public long weigh(Integer key, List<Object> value) {
+                        return value.size();
+                    }
+                });
+        List<Object> growing = new ArrayList<Object>();
+        cm.put(new Integer(1), growing);
+        assertEquals(0, cm.getWeight());
+        for (int i = 0; i < 5; i++) {
+            growing.add("");
+        }
+        cm.get(new Integer(1));
+        assertEquals(5, cm.getWeight());
+    }
+
+    public void testLfu() throws Exception {
+        BoundedCacheMap<Integer, Integer> cm = new BoundedCacheMap<Integer, Integer>("test", 64,
+                BoundedCacheMap.Policy.LFU);
+        Integer popular = new Integer(0);
+        cm.put(popular, popular);
+        for (int i = 1; i < 1000; i++) {
+            cm.get(popular);
+            cm.get(popular);
+            cm.put(new Integer(i), new Integer(i));
+        }
+        assertTrue("Expected frequently used entry to be present", cm.containsKey(popular));
+        assertTrue(cm.size() <= 64);
+    }
+
+    public void testLeastRecentlyUsedAcrossSegments() throws Exception {
+        BoundedCacheMap<Integer, Integer> cm = new BoundedCacheMap<Integer, Integer>("test", 10,
+                BoundedCacheMap.Policy.LRU);
+        for (int i = 0; i < 10; i++) {
+            cm.put(new Integer(i), new Integer(i));
+        }
+        for (int i = 0; i < 10; i += 2) {
+            cm.get(new Integer(i));
+        }
+        for (int i = 10; i < 15; i++) {
+            cm.put(new Integer(i), new Integer(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Entry " + i, i % 2 == 0, cm.containsKey(new Integer(i)));
+        }
+        for (int i = 10; i < 15; i++) {
+            assertTrue("Entry " + i, cm.containsKey(new Integer(i)));
+        }
+    }
+
+    public void testSharedBudget() throws Exception {
+        CacheBudget budget = new CacheBudget(10);
+        BoundedCacheMap<Integer, Integer> cm1 = new BoundedCacheMap<Integer, Integer>("test1",
+                budget, BoundedCacheMap.Policy.LRU, null);
+        BoundedCacheMap<Integer, Integer> cm2 = new BoundedCacheMap<Integer, Integer>("test2",
+                budget, BoundedCacheMap.Policy.LRU, null);
+        for (int i = 0; i < 8; i++) {
+            cm1.put(new Integer(i), new Integer(i));
+        }
+        for (int i = 0; i < 8; i++) {
+            cm2.put(new Integer(i), new Integer(i));
+        }
+        assertEquals(10, budget.getWeight());
+        assertEquals(2, cm1.size());
+        assertEquals(8, cm2.size());
+        assertTrue(cm1.containsKey(new Integer(7)));
+
+        cm2.clear();
+        cm2.unregister();
+        assertEquals(2, budget.getWeight());
+        for (int i = 8; i < 16; i++) {
+            cm1.put(new Integer(i), new Integer(i));
+        }
+        assertEquals(10, cm1.size());
+    }
+
+    public void testCollectedCacheReleasesWeight() throws Exception {
+        CacheBudget budget = new CacheBudget(100);
+        BoundedCacheMap<Integer, Integer> cm = new BoundedCacheMap<Integer, Integer>("test",
+                budget, BoundedCacheMap.Policy.LRU, null);
+        for (int i = 0; i < 8; i++) {
+            cm.put(new Integer(i), new Integer(i));
+        }
+        assertEquals(8, budget.getWeight());
+        cm = null;
+        long end = System.currentTimeMillis() + 10000;
+        while ((budget.getWeight() != 0) && (System.currentTimeMillis() < end)) {
+            System.gc();
+            Thread.sleep(10);
+            budget.add(0);
+        }
+        assertEquals(0, budget.getWeight());
+    }
+}
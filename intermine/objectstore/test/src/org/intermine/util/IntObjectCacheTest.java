@@ -0,0 +1,173 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class IntObjectCacheTest extends TestCase
+{
+    private static final IntObjectCache.Weigher<Object> ONE = new IntObjectCache.Weigher<Object>() {
+        public long weigh(Object value) {
+            return 1;
+        }
+    };
+
+    public IntObjectCacheTest(String arg1) {
+        super(arg1);
+    }
+
+    public void testBasic() throws Exception {
+        IntObjectCache<String> cache = new IntObjectCache<String>("test", 1000, 1000, ONE);
+        cache.put(5, "Five");
+        cache.put(763, "Seven six three");
+        cache.put(2, null);
+
+        assertEquals("Five", cache.get(5));
+        assertEquals("Seven six three", cache.get(763));
+        assertNull(cache.get(2));
+        assertTrue(cache.containsKey(2));
+        assertNull(cache.lookup(2));
+        assertFalse(cache.containsKey(3));
+        assertSame(IntObjectCache.NOT_PRESENT, cache.lookup(3));
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.getWeight());
+
+        cache.put(5, "Cinq");
+        assertEquals("Cinq", cache.get(5));
+        assertEquals(3, cache.size());
+
+        cache.remove(3);
+        cache.remove(5);
+        assertFalse(cache.containsKey(5));
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertFalse(cache.containsKey(763));
+    }
+
+    public void testNamespaces() throws Exception {
+        IntObjectCache<String> cache = new IntObjectCache<String>("test", 1000, 1000, ONE);
+        int ns1 = cache.newNamespace();
+        int ns2 = cache.newNamespace();
+        assertTrue(ns1 != ns2);
+        cache.put(ns1, 5, "Five");
+        cache.put(ns2, 5, "Cinq");
+        cache.put(5, "Funf");
+        assertEquals("Five", cache.get(ns1, 5));
+        assertEquals("Cinq", cache.get(ns2, 5));
+        assertEquals("Funf", cache.get(5));
+        assertSame(IntObjectCache.NOT_PRESENT, cache.lookup(ns1, 6));
+        assertEquals(3, cache.size());
+
+        cache.remove(ns1, 5);
+        assertSame(IntObjectCache.NOT_PRESENT, cache.lookup(ns1, 5));
+        assertEquals("Cinq", cache.get(ns2, 5));
+
+        // Entries of an abandoned namespace are evicted to make room for new ones
+        IntObjectCache<String> small = new IntObjectCache<String>("small", 64, 64, ONE);
+        int old = small.newNamespace();
+        for (int i = 0; i < 64; i++) {
+            small.put(old, i, "Old " + i);
+        }
+        int current = small.newNamespace();
+        for (int i = 0; i < 64; i++) {
+            small.put(current, i, "New " + i);
+        }
+        assertTrue(small.size() <= 64);
+        assertSame(IntObjectCache.NOT_PRESENT, small.lookup(current, 1000));
+    }
+
+    public void testManyEntries() throws Exception {
+        IntObjectCache<Integer> cache = new IntObjectCache<Integer>("test", 100000, 100000, ONE);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, new Integer(i * 2));
+        }
+        assertEquals(10000, cache.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(new Integer(i * 2), cache.get(i));
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            cache.remove(i);
+        }
+        assertEquals(5000, cache.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 2 == 0 ? null : new Integer(i * 2), cache.get(i));
+        }
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    public void testMaxEntries() throws Exception {
+        IntObjectCache<Integer> cache = new IntObjectCache<Integer>("test", 320, Long.MAX_VALUE,
+                ONE);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, new Integer(i));
+            assertEquals(new Integer(i), cache.get(i));
+        }
+        assertTrue(cache.size() <= 320);
+        assertTrue(cache.size() > 0);
+        assertEquals(10000 - cache.size(), cache.getEvictionCount());
+    }
+
+    public void testMaxWeight() throws Exception {
+        IntObjectCache<String> cache = new IntObjectCache<String>("test", Long.MAX_VALUE, 3200,
+                new IntObjectCache.Weigher<String>() {
+                    public long weigh(String value) {
+                        return value.length();
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "0123456789");
+        }
+        assertTrue(cache.getWeight() <= 3200);
+        assertEquals(cache.size() * 10, cache.getWeight());
+    }
+
+    public void testConcurrent() throws Exception {
+        final IntObjectCache<Integer> cache = new IntObjectCache<Integer>("test", 1000, 1000, ONE);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            int key = (i * 7 + offset) % 3000;
+                            Integer value = cache.get(key);
+                            if ((value != null) && (value.intValue() != key)) {
+                                throw new IllegalStateException("Wrong value " + value
+                                        + " for key " + key);
+                            }
+                            cache.put(key, new Integer(key));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertTrue(cache.size() <= 1000);
+    }
+}
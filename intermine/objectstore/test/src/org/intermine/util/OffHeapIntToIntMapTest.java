@@ -0,0 +1,140 @@
+package org.intermine.util;
+
+/*
+ * Copyright (C) 2002-2014 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class OffHeapIntToIntMapTest extends TestCase
+{
+    public OffHeapIntToIntMapTest(String arg1) {
+        super(arg1);
+    }
+
+    public void test() throws Exception {
+        IntToIntMap map = new OffHeapIntToIntMap();
+        map.put(4, 6);
+        map.put(30000, 7643);
+        map.put(Integer.MIN_VALUE, 12);
+
+        assertEquals(6, map.get(4));
+        assertEquals(7643, map.get(30000));
+        assertEquals(12, map.get(Integer.MIN_VALUE));
+        assertEquals(-1, map.get(0));
+        assertEquals(new Integer(6), map.get(new Integer(4)));
+        assertNull(map.get(new Integer(0)));
+        assertEquals(3, map.size());
+        assertEquals("{-2147483648 -> 12, 4 -> 6, 30000 -> 7643}", map.toString());
+
+        map.put(new Integer(4), null);
+        map.put(30000, -1);
+        map.put(Integer.MIN_VALUE, -1);
+        map.put(5, -1);
+
+        assertEquals(-1, map.get(4));
+        assertEquals(-1, map.get(30000));
+        assertEquals(-1, map.get(0));
+        assertEquals(0, map.size());
+        assertEquals("{}", map.toString());
+    }
+
+    public void testResize() throws Exception {
+        OffHeapIntToIntMap map = new OffHeapIntToIntMap();
+        for (int i = 0; i < 200000; i++) {
+            map.put(i * 3, i);
+        }
+        for (int i = 0; i < 200000; i += 2) {
+            map.put(i * 3, -1);
+        }
+        assertEquals(100000, map.size());
+        for (int i = 0; i < 200000; i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, map.get(i * 3));
+            assertEquals(-1, map.get(i * 3 + 1));
+        }
+        // Removed keys are dropped when the table is rebuilt, so reusing keys must not grow it
+        long bytes = map.getTableBytes();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 200000; i += 2) {
+                map.put(i * 3, i);
+                map.put(i * 3, -1);
+            }
+        }
+        assertEquals(bytes, map.getTableBytes());
+        assertEquals(100000, map.size());
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(3));
+    }
+
+    public void testSpill() throws Exception {
+        OffHeapIntToIntMap map = new OffHeapIntToIntMap(1024 * 1024, null);
+        assertFalse(map.isSpilled());
+        for (int i = 0; i < 300000; i++) {
+            map.put(i, i + 1);
+        }
+        assertTrue(map.isSpilled());
+        assertEquals(300000, map.size());
+        for (int i = 0; i < 300000; i++) {
+            assertEquals(i + 1, map.get(i));
+        }
+    }
+
+    public void testDefaultSpillBytes() throws Exception {
+        long bytes = OffHeapIntToIntMap.getDefaultSpillBytes();
+        assertTrue(bytes > 0);
+        assertTrue(bytes < Long.MAX_VALUE);
+    }
+
+    public void testConcurrentReaders() throws Exception {
+        final OffHeapIntToIntMap map = new OffHeapIntToIntMap();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final int count = 300000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        int seen = 0;
+                        while (seen < count) {
+                            for (int i = 0; i < count; i += 997) {
+                                int value = map.get(i);
+                                if ((value != -1) && (value != i * 2)) {
+                                    throw new IllegalStateException("Wrong value " + value
+                                            + " for key " + i);
+                                }
+                            }
+                            seen = map.size();
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (int i = 0; i < count; i++) {
+            map.put(i, i * 2);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        for (int i = 0; i < count; i++) {
+            assertEquals(i * 2, map.get(i));
+        }
+    }
+}